@@ -0,0 +1,346 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.psp.grouper;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import edu.internet2.middleware.grouper.changeLog.ChangeLogEntry;
+import edu.internet2.middleware.grouper.changeLog.ChangeLogLabels;
+import edu.internet2.middleware.grouper.changeLog.ChangeLogTypeBuiltin;
+
+/**
+ * Reduces the change log entries of a batch to their net effect before they are provisioned.
+ * 
+ * Entries are only ever removed, so the entries which remain are processed in their original order. An entry is
+ * removed if its effect is superseded by a later entry of the same batch :
+ * 
+ * <ul>
+ * <li>a group or stem added and deleted within the batch is not provisioned at all, so its add, updates, delete, and
+ * the memberships of the group are removed</li>
+ * <li>an update which does not rename a group or stem is removed if the object is updated or deleted later in the
+ * batch, since an update replaces the provisioned data with the current data of the object</li>
+ * <li>membership adds and deletes of the same group, member, and field cancel in pairs, and only the last of an odd
+ * number is kept</li>
+ * </ul>
+ * 
+ * Renames are never removed, other than for objects added and deleted within the batch, since the old name of a
+ * renamed object is calculated from the change log entry.
+ * 
+ * A removed entry is settled by the later entry which supersedes it. If processing stops before the settling entry is
+ * processed, the sequence number committed must precede the removed entry, see
+ * {@link #getCommittedSequenceNumber(long)}.
+ */
+public class ChangeLogCompactor {
+
+    /** The net effect of a change log entry. */
+    public enum Change {
+
+        /** A group or stem is added. */
+        ADD,
+
+        /** A group or stem is deleted. */
+        DELETE,
+
+        /** A group or stem is updated. */
+        UPDATE,
+
+        /** A group or stem is renamed. */
+        RENAME,
+
+        /** A membership is added. */
+        MEMBERSHIP_ADD,
+
+        /** A membership is deleted. */
+        MEMBERSHIP_DELETE,
+
+        /** Any other change, which is never removed. */
+        OTHER,
+    }
+
+    /** The updated properties which rename a group or stem. */
+    public static final Set<String> RENAME_PROPERTIES = new HashSet<String>(Arrays.asList(new String[] {"name",
+            "extension", "displayName", "displayExtension",}));
+
+    /** The sequence number of the last change log entry of the batch. */
+    private long lastSequenceNumber = -1;
+
+    /** The sequence number of the last change log entry which was not removed. */
+    private long lastKeptSequenceNumber = -1;
+
+    /** Map of the sequence numbers of removed change log entries to the sequence numbers of their settling entries. */
+    private TreeMap<Long, Long> settledSequenceNumbers = new TreeMap<Long, Long>();
+
+    /**
+     * Reduce the change log entries of a batch to their net effect.
+     * 
+     * @param changeLogEntries the change log entries of the batch, in sequence number order
+     * @return the change log entries to be processed, in sequence number order
+     */
+    public List<ChangeLogEntry> compact(List<ChangeLogEntry> changeLogEntries) {
+
+        int size = changeLogEntries.size();
+        Change[] changes = new Change[size];
+        String[] objectKeys = new String[size];
+        long[] sequenceNumbers = new long[size];
+        boolean[] removed = new boolean[size];
+
+        for (int i = 0; i < size; i++) {
+            ChangeLogEntry changeLogEntry = changeLogEntries.get(i);
+            changes[i] = getChange(changeLogEntry);
+            objectKeys[i] = changes[i].equals(Change.OTHER) ? null : getObjectKey(changeLogEntry);
+            sequenceNumbers[i] = changeLogEntry.getSequenceNumber();
+        }
+
+        // objects added and deleted within the batch
+        Map<String, Integer> adds = new HashMap<String, Integer>();
+        for (int i = 0; i < size; i++) {
+            if (objectKeys[i] == null) {
+                continue;
+            }
+            if (changes[i].equals(Change.ADD)) {
+                adds.put(objectKeys[i], i);
+            } else if (changes[i].equals(Change.DELETE) && adds.containsKey(objectKeys[i])) {
+                int add = adds.remove(objectKeys[i]);
+                for (int j = add; j <= i; j++) {
+                    if (objectKeys[i].equals(objectKeys[j])) {
+                        remove(removed, j, sequenceNumbers, i);
+                    }
+                }
+            }
+        }
+
+        // updates superseded by a later update or delete of the same object
+        Map<String, Integer> superseding = new HashMap<String, Integer>();
+        for (int i = size - 1; i >= 0; i--) {
+            if (removed[i] || objectKeys[i] == null) {
+                continue;
+            }
+            if (changes[i].equals(Change.UPDATE)) {
+                if (superseding.containsKey(objectKeys[i])) {
+                    remove(removed, i, sequenceNumbers, superseding.get(objectKeys[i]));
+                } else {
+                    superseding.put(objectKeys[i], i);
+                }
+            } else if (changes[i].equals(Change.DELETE)) {
+                superseding.put(objectKeys[i], i);
+            } else if (changes[i].equals(Change.ADD)) {
+                superseding.remove(objectKeys[i]);
+            }
+        }
+
+        // membership adds and deletes which cancel
+        Map<String, List<Integer>> memberships = new LinkedHashMap<String, List<Integer>>();
+        for (int i = 0; i < size; i++) {
+            if (removed[i]) {
+                continue;
+            }
+            if (!changes[i].equals(Change.MEMBERSHIP_ADD) && !changes[i].equals(Change.MEMBERSHIP_DELETE)) {
+                continue;
+            }
+            String membershipKey = getMembershipKey(changeLogEntries.get(i));
+            List<Integer> indexes = memberships.get(membershipKey);
+            if (indexes == null) {
+                indexes = new ArrayList<Integer>();
+                memberships.put(membershipKey, indexes);
+            }
+            indexes.add(i);
+        }
+        for (List<Integer> indexes : memberships.values()) {
+            if (indexes.size() < 2 || !isAlternating(changes, indexes)) {
+                continue;
+            }
+            int last = indexes.get(indexes.size() - 1);
+            int keep = indexes.size() % 2 == 0 ? indexes.size() : indexes.size() - 1;
+            for (int j = 0; j < keep; j++) {
+                remove(removed, indexes.get(j), sequenceNumbers, last);
+            }
+        }
+
+        List<ChangeLogEntry> compacted = new ArrayList<ChangeLogEntry>();
+        for (int i = 0; i < size; i++) {
+            if (!removed[i]) {
+                compacted.add(changeLogEntries.get(i));
+                lastKeptSequenceNumber = sequenceNumbers[i];
+            }
+        }
+        if (size > 0) {
+            lastSequenceNumber = sequenceNumbers[size - 1];
+        }
+
+        return compacted;
+    }
+
+    /**
+     * Mark a change log entry as removed.
+     * 
+     * @param removed whether or not each change log entry is removed
+     * @param index the index of the change log entry to remove
+     * @param sequenceNumbers the sequence number of each change log entry
+     * @param settlingIndex the index of the change log entry which supersedes the removed entry
+     */
+    private void remove(boolean[] removed, int index, long[] sequenceNumbers, int settlingIndex) {
+        removed[index] = true;
+        settledSequenceNumbers.put(sequenceNumbers[index], sequenceNumbers[settlingIndex]);
+    }
+
+    /**
+     * Returns true if the membership changes alternate between add and delete.
+     * 
+     * @param changes the change of each change log entry
+     * @param indexes the indexes of the membership change log entries
+     * @return true if the membership changes alternate
+     */
+    private boolean isAlternating(Change[] changes, List<Integer> indexes) {
+        for (int j = 1; j < indexes.size(); j++) {
+            if (changes[indexes.get(j)].equals(changes[indexes.get(j - 1)])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the sequence number to be committed once the compacted change log entries have been processed through
+     * the given sequence number.
+     * 
+     * If every compacted entry has been processed, the sequence number of the last entry of the batch is returned,
+     * since the removed entries are settled. Otherwise, the sequence number returned precedes every removed entry
+     * which is not yet settled.
+     * 
+     * @param sequenceNumber the sequence number of the last compacted change log entry processed
+     * @return the sequence number to be committed
+     */
+    public long getCommittedSequenceNumber(long sequenceNumber) {
+
+        if (sequenceNumber == lastKeptSequenceNumber) {
+            return lastSequenceNumber;
+        }
+
+        for (Map.Entry<Long, Long> settled : settledSequenceNumbers.headMap(sequenceNumber + 1).entrySet()) {
+            if (settled.getValue() > sequenceNumber) {
+                return settled.getKey() - 1;
+            }
+        }
+
+        return sequenceNumber;
+    }
+
+    /**
+     * Gets the number of change log entries removed.
+     * 
+     * @return the number of change log entries removed
+     */
+    public int getRemovedCount() {
+        return settledSequenceNumbers.size();
+    }
+
+    /**
+     * Returns the net effect of a change log entry.
+     * 
+     * @param changeLogEntry the change log entry
+     * @return the change
+     */
+    protected Change getChange(ChangeLogEntry changeLogEntry) {
+
+        if (changeLogEntry.equalsCategoryAndAction(ChangeLogTypeBuiltin.GROUP_ADD)
+                || changeLogEntry.equalsCategoryAndAction(ChangeLogTypeBuiltin.STEM_ADD)) {
+            return Change.ADD;
+        }
+        if (changeLogEntry.equalsCategoryAndAction(ChangeLogTypeBuiltin.GROUP_DELETE)
+                || changeLogEntry.equalsCategoryAndAction(ChangeLogTypeBuiltin.STEM_DELETE)) {
+            return Change.DELETE;
+        }
+        if (changeLogEntry.equalsCategoryAndAction(ChangeLogTypeBuiltin.GROUP_UPDATE)) {
+            String property = changeLogEntry.retrieveValueForLabel(ChangeLogLabels.GROUP_UPDATE.propertyChanged);
+            return RENAME_PROPERTIES.contains(property) ? Change.RENAME : Change.UPDATE;
+        }
+        if (changeLogEntry.equalsCategoryAndAction(ChangeLogTypeBuiltin.STEM_UPDATE)) {
+            String property = changeLogEntry.retrieveValueForLabel(ChangeLogLabels.STEM_UPDATE.propertyChanged);
+            return RENAME_PROPERTIES.contains(property) ? Change.RENAME : Change.UPDATE;
+        }
+        if (changeLogEntry.equalsCategoryAndAction(ChangeLogTypeBuiltin.MEMBERSHIP_ADD)) {
+            return Change.MEMBERSHIP_ADD;
+        }
+        if (changeLogEntry.equalsCategoryAndAction(ChangeLogTypeBuiltin.MEMBERSHIP_DELETE)) {
+            return Change.MEMBERSHIP_DELETE;
+        }
+        return Change.OTHER;
+    }
+
+    /**
+     * Returns the key of the group or stem changed by a change log entry. The key of a membership change is the key of
+     * its group.
+     * 
+     * @param changeLogEntry the change log entry
+     * @return the key of the group or stem
+     */
+    protected String getObjectKey(ChangeLogEntry changeLogEntry) {
+
+        if (changeLogEntry.equalsCategoryAndAction(ChangeLogTypeBuiltin.GROUP_ADD)) {
+            return "group:" + changeLogEntry.retrieveValueForLabel(ChangeLogLabels.GROUP_ADD.id);
+        }
+        if (changeLogEntry.equalsCategoryAndAction(ChangeLogTypeBuiltin.GROUP_DELETE)) {
+            return "group:" + changeLogEntry.retrieveValueForLabel(ChangeLogLabels.GROUP_DELETE.id);
+        }
+        if (changeLogEntry.equalsCategoryAndAction(ChangeLogTypeBuiltin.GROUP_UPDATE)) {
+            return "group:" + changeLogEntry.retrieveValueForLabel(ChangeLogLabels.GROUP_UPDATE.id);
+        }
+        if (changeLogEntry.equalsCategoryAndAction(ChangeLogTypeBuiltin.STEM_ADD)) {
+            return "stem:" + changeLogEntry.retrieveValueForLabel(ChangeLogLabels.STEM_ADD.id);
+        }
+        if (changeLogEntry.equalsCategoryAndAction(ChangeLogTypeBuiltin.STEM_DELETE)) {
+            return "stem:" + changeLogEntry.retrieveValueForLabel(ChangeLogLabels.STEM_DELETE.id);
+        }
+        if (changeLogEntry.equalsCategoryAndAction(ChangeLogTypeBuiltin.STEM_UPDATE)) {
+            return "stem:" + changeLogEntry.retrieveValueForLabel(ChangeLogLabels.STEM_UPDATE.id);
+        }
+        if (changeLogEntry.equalsCategoryAndAction(ChangeLogTypeBuiltin.MEMBERSHIP_ADD)) {
+            return "group:" + changeLogEntry.retrieveValueForLabel(ChangeLogLabels.MEMBERSHIP_ADD.groupId);
+        }
+        if (changeLogEntry.equalsCategoryAndAction(ChangeLogTypeBuiltin.MEMBERSHIP_DELETE)) {
+            return "group:" + changeLogEntry.retrieveValueForLabel(ChangeLogLabels.MEMBERSHIP_DELETE.groupId);
+        }
+        return null;
+    }
+
+    /**
+     * Returns the key of the membership changed by a change log entry, its group, member, and field.
+     * 
+     * @param changeLogEntry the membership change log entry
+     * @return the key of the membership
+     */
+    protected String getMembershipKey(ChangeLogEntry changeLogEntry) {
+
+        if (changeLogEntry.equalsCategoryAndAction(ChangeLogTypeBuiltin.MEMBERSHIP_ADD)) {
+            return changeLogEntry.retrieveValueForLabel(ChangeLogLabels.MEMBERSHIP_ADD.groupId) + ":"
+                    + changeLogEntry.retrieveValueForLabel(ChangeLogLabels.MEMBERSHIP_ADD.memberId) + ":"
+                    + changeLogEntry.retrieveValueForLabel(ChangeLogLabels.MEMBERSHIP_ADD.fieldId);
+        }
+        return changeLogEntry.retrieveValueForLabel(ChangeLogLabels.MEMBERSHIP_DELETE.groupId) + ":"
+                + changeLogEntry.retrieveValueForLabel(ChangeLogLabels.MEMBERSHIP_DELETE.memberId) + ":"
+                + changeLogEntry.retrieveValueForLabel(ChangeLogLabels.MEMBERSHIP_DELETE.fieldId);
+    }
+}
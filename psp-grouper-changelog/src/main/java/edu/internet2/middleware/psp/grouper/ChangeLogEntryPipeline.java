@@ -0,0 +1,233 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.psp.grouper;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.internet2.middleware.grouper.changeLog.ChangeLogEntry;
+
+/**
+ * Processes the change log entries of a batch concurrently while preserving the order of entries which depend on each
+ * other.
+ * 
+ * Each entry is submitted with the key of the object it affects. Entries with the same key are processed in the order
+ * in which they were submitted. An entry submitted without a key is a barrier, it is processed after every entry
+ * submitted before it, and every entry submitted after it is processed after it.
+ * 
+ * Entries are dispatched to the executor in submission order. Since an entry only ever waits for entries submitted
+ * before it, which have already been dispatched, the executor must execute tasks in the order in which they are
+ * dispatched, otherwise waiting workers may deadlock.
+ * 
+ * The sequence number which may be committed is the contiguous low watermark of processed entries, the sequence number
+ * preceding the first submitted entry which is not yet processed, so that no entry is skipped if processing stops.
+ */
+public class ChangeLogEntryPipeline {
+
+    /** The logger. */
+    private static final Logger LOG = LoggerFactory.getLogger(ChangeLogEntryPipeline.class);
+
+    /** The name of this pipeline. */
+    private String name;
+
+    /** The workers. */
+    private ExecutorService executorService;
+
+    /** Whether or not to skip the entries which have not started once an entry fails. */
+    private boolean stopOnError;
+
+    /** Whether or not an entry has failed. */
+    private volatile boolean failed;
+
+    /** The most recently submitted entry for each key. */
+    private Map<String, Future<?>> pending = new HashMap<String, Future<?>>();
+
+    /** The entries submitted since the last barrier. */
+    private List<Future<?>> sinceBarrier = new ArrayList<Future<?>>();
+
+    /** The last barrier submitted. */
+    private Future<?> barrier;
+
+    /** Every submitted entry. */
+    private List<Future<?>> submitted = new ArrayList<Future<?>>();
+
+    /** The sequence numbers of the submitted entries which have not been processed successfully. */
+    private SortedSet<Long> incomplete = Collections.synchronizedSortedSet(new TreeSet<Long>());
+
+    /** The failures by sequence number. */
+    private SortedMap<Long, Exception> failures = Collections.synchronizedSortedMap(new TreeMap<Long, Exception>());
+
+    /** The sequence number of the last entry submitted. */
+    private long lastSubmittedSequenceNumber = -1;
+
+    /**
+     * Constructor.
+     * 
+     * @param name the name of this pipeline
+     * @param executorService the workers, which must execute tasks in the order in which they are dispatched
+     * @param stopOnError whether or not to skip the entries which have not started once an entry fails
+     */
+    public ChangeLogEntryPipeline(String name, ExecutorService executorService, boolean stopOnError) {
+        this.name = name;
+        this.executorService = executorService;
+        this.stopOnError = stopOnError;
+    }
+
+    /**
+     * Submit a change log entry for asynchronous processing. Entries must be submitted in sequence number order.
+     * 
+     * @param changeLogEntry the change log entry
+     * @param key the key of the object affected by the entry, or null if the entry is a barrier
+     * @param task processes the entry
+     */
+    public void submit(ChangeLogEntry changeLogEntry, String key, final Callable<?> task) {
+
+        final long sequenceNumber = changeLogEntry.getSequenceNumber();
+
+        final List<Future<?>> dependencies = new ArrayList<Future<?>>();
+        if (key == null) {
+            dependencies.addAll(sinceBarrier);
+            if (barrier != null) {
+                dependencies.add(barrier);
+            }
+        } else {
+            Future<?> previous = pending.get(key);
+            if (previous != null) {
+                dependencies.add(previous);
+            } else if (barrier != null) {
+                dependencies.add(barrier);
+            }
+        }
+
+        FutureTask<Object> futureTask = new FutureTask<Object>(new Callable<Object>() {
+
+            public Object call() throws Exception {
+                awaitDependencies(dependencies);
+                if (stopOnError && failed) {
+                    LOG.debug("Pipeline '{}' - Skipping sequence number '{}' after an error.", name, sequenceNumber);
+                    return null;
+                }
+                try {
+                    task.call();
+                } catch (Exception e) {
+                    failures.put(sequenceNumber, e);
+                    failed = true;
+                    if (stopOnError) {
+                        return null;
+                    }
+                }
+                incomplete.remove(sequenceNumber);
+                return null;
+            }
+        });
+
+        if (key == null) {
+            barrier = futureTask;
+            sinceBarrier.clear();
+            pending.clear();
+        } else {
+            pending.put(key, futureTask);
+            sinceBarrier.add(futureTask);
+        }
+
+        incomplete.add(sequenceNumber);
+        lastSubmittedSequenceNumber = sequenceNumber;
+        submitted.add(futureTask);
+
+        LOG.trace("Pipeline '{}' - Submit sequence number '{}' key '{}' after {} entries", new Object[] {name,
+                sequenceNumber, key, dependencies.size(),});
+
+        executorService.execute(futureTask);
+    }
+
+    /**
+     * Wait for all submitted entries to be processed or skipped.
+     * 
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void awaitCompletion() throws InterruptedException {
+        awaitDependencies(submitted);
+    }
+
+    /**
+     * Returns true if an entry has failed.
+     * 
+     * @return true if an entry has failed
+     */
+    public boolean hasFailed() {
+        return failed;
+    }
+
+    /**
+     * Gets the failures by sequence number.
+     * 
+     * @return the failures by sequence number
+     */
+    public SortedMap<Long, Exception> getFailures() {
+        synchronized (failures) {
+            return new TreeMap<Long, Exception>(failures);
+        }
+    }
+
+    /**
+     * Gets the contiguous low watermark, the sequence number preceding the first submitted entry which has not been
+     * processed successfully, or the sequence number of the last submitted entry if every entry has been processed.
+     * If stop on error is false, an entry which failed is considered processed.
+     * 
+     * @return the low watermark, or -1 if no entry has been submitted
+     */
+    public long getWatermark() {
+        synchronized (incomplete) {
+            if (incomplete.isEmpty()) {
+                return lastSubmittedSequenceNumber;
+            }
+            return incomplete.first() - 1;
+        }
+    }
+
+    /**
+     * Wait for the dependencies to complete.
+     * 
+     * @param dependencies the dependencies
+     * @throws InterruptedException if interrupted while waiting
+     */
+    private void awaitDependencies(List<Future<?>> dependencies) throws InterruptedException {
+        for (Future<?> dependency : dependencies) {
+            try {
+                dependency.get();
+            } catch (ExecutionException e) {
+                LOG.debug("Pipeline '{}' - A preceding entry failed : {}", name, e.getCause());
+            }
+        }
+    }
+}
@@ -0,0 +1,360 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.psp.grouper;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+import org.openspml.v2.msg.spml.ModificationMode;
+import org.openspml.v2.msg.spml.PSOIdentifier;
+import org.openspml.v2.msg.spmlref.Reference;
+import org.openspml.v2.profiles.dsml.DSMLAttr;
+import org.openspml.v2.profiles.dsml.DSMLProfileException;
+import org.openspml.v2.profiles.dsml.DSMLValue;
+
+/**
+ * Coalesces the attribute values and references to be added to or deleted from provisioned objects by the change log
+ * entries of a batch, so that each object may be modified once per batch rather than once per change log entry.
+ * 
+ * The pending values of an object all have the same modification mode. The values to be buffered are calculated from
+ * the provisioned object as it is before the pending values are written, so the pending values of an object must be
+ * removed and written before values with a different modification mode are calculated for that object.
+ */
+public class ModificationBuffer {
+
+    /** The attribute values and references to be added to or deleted from a provisioned object. */
+    public static class PendingModification {
+
+        /** The provisioned object identifier. */
+        private PSOIdentifier psoID;
+
+        /** The schema entity name. */
+        private String entityName;
+
+        /** The modification mode. */
+        private ModificationMode modificationMode;
+
+        /** Map of attribute names to values, keyed by value. */
+        private Map<String, Map<String, DSMLValue>> values = new LinkedHashMap<String, Map<String, DSMLValue>>();
+
+        /** Map of reference types to references, keyed by the identifier of the referenced object. */
+        private Map<String, Map<String, Reference>> references = new LinkedHashMap<String, Map<String, Reference>>();
+
+        /** The sequence numbers of the change log entries whose values are pending. */
+        private SortedSet<Long> sequenceNumbers = new TreeSet<Long>();
+
+        /** The number of values and references. */
+        private int size;
+
+        /**
+         * Constructor.
+         * 
+         * @param psoID the provisioned object identifier
+         * @param entityName the schema entity name
+         * @param modificationMode the modification mode
+         */
+        protected PendingModification(PSOIdentifier psoID, String entityName, ModificationMode modificationMode) {
+            this.psoID = psoID;
+            this.entityName = entityName;
+            this.modificationMode = modificationMode;
+        }
+
+        /**
+         * Add a value unless it is already pending.
+         * 
+         * @param name the attribute name
+         * @param value the value
+         */
+        protected void addValue(String name, DSMLValue value) {
+            Map<String, DSMLValue> attributeValues = values.get(name);
+            if (attributeValues == null) {
+                attributeValues = new LinkedHashMap<String, DSMLValue>();
+                values.put(name, attributeValues);
+            }
+            if (!attributeValues.containsKey(value.getValue())) {
+                attributeValues.put(value.getValue(), value);
+                size++;
+            }
+        }
+
+        /**
+         * Add a reference unless it is already pending.
+         * 
+         * @param reference the reference
+         */
+        protected void addReference(Reference reference) {
+            Map<String, Reference> typeReferences = references.get(reference.getTypeOfReference());
+            if (typeReferences == null) {
+                typeReferences = new LinkedHashMap<String, Reference>();
+                references.put(reference.getTypeOfReference(), typeReferences);
+            }
+            String key = reference.getToPsoID().getTargetID() + " " + reference.getToPsoID().getID();
+            if (!typeReferences.containsKey(key)) {
+                typeReferences.put(key, reference);
+                size++;
+            }
+        }
+
+        /**
+         * Gets the attributes whose values are to be added or deleted.
+         * 
+         * @return the possibly empty list of attributes
+         * @throws DSMLProfileException if an attribute can not be created
+         */
+        public List<DSMLAttr> getAttributes() throws DSMLProfileException {
+            List<DSMLAttr> attributes = new ArrayList<DSMLAttr>();
+            for (String name : values.keySet()) {
+                attributes.add(new DSMLAttr(name, values.get(name).values().toArray(new DSMLValue[] {})));
+            }
+            return attributes;
+        }
+
+        /**
+         * Gets the schema entity name.
+         * 
+         * @return the schema entity name
+         */
+        public String getEntityName() {
+            return entityName;
+        }
+
+        /**
+         * Gets the modification mode.
+         * 
+         * @return the modification mode
+         */
+        public ModificationMode getModificationMode() {
+            return modificationMode;
+        }
+
+        /**
+         * Gets the provisioned object identifier.
+         * 
+         * @return the provisioned object identifier
+         */
+        public PSOIdentifier getPsoID() {
+            return psoID;
+        }
+
+        /**
+         * Gets the references to be added or deleted.
+         * 
+         * @return the possibly empty list of references
+         */
+        public List<Reference> getReferences() {
+            List<Reference> list = new ArrayList<Reference>();
+            for (Map<String, Reference> typeReferences : references.values()) {
+                list.addAll(typeReferences.values());
+            }
+            return list;
+        }
+
+        /**
+         * Gets the sequence numbers of the change log entries whose values are pending. Every chunk of a provisioned
+         * object has the sequence numbers of all of the change log entries of the object.
+         * 
+         * @return the sequence numbers
+         */
+        public SortedSet<Long> getSequenceNumbers() {
+            return Collections.unmodifiableSortedSet(sequenceNumbers);
+        }
+
+        /**
+         * Gets the number of values and references.
+         * 
+         * @return the number of values and references
+         */
+        public int size() {
+            return size;
+        }
+    }
+
+    /** The maximum number of values and references per modification. */
+    private int maxValues;
+
+    /** Map of provisioned object keys to pending modifications, in the order the objects were first buffered. */
+    private Map<String, PendingModification> pending = new LinkedHashMap<String, PendingModification>();
+
+    /**
+     * Constructor.
+     * 
+     * @param maxValues the maximum number of values and references per modification
+     */
+    public ModificationBuffer(int maxValues) {
+        if (maxValues < 1) {
+            throw new IllegalArgumentException("The maximum number of values must be at least 1.");
+        }
+        this.maxValues = maxValues;
+    }
+
+    /**
+     * The key of a provisioned object.
+     * 
+     * @param psoID the provisioned object identifier
+     * @return the key
+     */
+    private static String key(PSOIdentifier psoID) {
+        return psoID.getTargetID() + " " + psoID.getID();
+    }
+
+    /**
+     * Buffer the attribute values and references to be added to or deleted from a provisioned object by a change log
+     * entry.
+     * 
+     * @param psoID the provisioned object identifier
+     * @param entityName the schema entity name
+     * @param modificationMode the modification mode
+     * @param attributes the attributes whose values are to be added or deleted
+     * @param references the references to be added or deleted
+     * @param sequenceNumber the sequence number of the change log entry
+     * @return the number of values and references pending for the provisioned object
+     * @throws IllegalArgumentException if values with a different modification mode are pending for the object
+     */
+    public int add(PSOIdentifier psoID, String entityName, ModificationMode modificationMode,
+            List<DSMLAttr> attributes, List<Reference> references, long sequenceNumber) {
+
+        String key = key(psoID);
+        PendingModification pendingModification = pending.get(key);
+        if (pendingModification == null) {
+            pendingModification = new PendingModification(psoID, entityName, modificationMode);
+            pending.put(key, pendingModification);
+        } else if (!pendingModification.getModificationMode().equals(modificationMode)) {
+            throw new IllegalArgumentException("Modifications with mode '" + pendingModification.getModificationMode()
+                    + "' are pending for '" + key + "'");
+        }
+
+        for (DSMLAttr attribute : attributes) {
+            for (DSMLValue value : attribute.getValues()) {
+                pendingModification.addValue(attribute.getName(), value);
+            }
+        }
+        for (Reference reference : references) {
+            pendingModification.addReference(reference);
+        }
+        pendingModification.sequenceNumbers.add(sequenceNumber);
+
+        return pendingModification.size();
+    }
+
+    /**
+     * Gets the modification mode of the values pending for a provisioned object.
+     * 
+     * @param psoID the provisioned object identifier
+     * @return the modification mode, or null if nothing is pending for the object
+     */
+    public ModificationMode getModificationMode(PSOIdentifier psoID) {
+        PendingModification pendingModification = pending.get(key(psoID));
+        return pendingModification == null ? null : pendingModification.getModificationMode();
+    }
+
+    /**
+     * Returns true if nothing is pending.
+     * 
+     * @return true if nothing is pending
+     */
+    public boolean isEmpty() {
+        return pending.isEmpty();
+    }
+
+    /**
+     * Remove the values pending for a provisioned object, split into chunks of at most the maximum number of values
+     * and references.
+     * 
+     * @param psoID the provisioned object identifier
+     * @return the possibly empty list of chunks
+     */
+    public List<PendingModification> remove(PSOIdentifier psoID) {
+        PendingModification pendingModification = pending.remove(key(psoID));
+        if (pendingModification == null) {
+            return Collections.<PendingModification> emptyList();
+        }
+        return split(pendingModification);
+    }
+
+    /**
+     * Remove the values pending for every provisioned object, in the order the objects were first buffered, split into
+     * chunks of at most the maximum number of values and references.
+     * 
+     * @return the possibly empty list of chunks
+     */
+    public List<PendingModification> removeAll() {
+        List<PendingModification> chunks = new ArrayList<PendingModification>();
+        for (PendingModification pendingModification : pending.values()) {
+            chunks.addAll(split(pendingModification));
+        }
+        pending.clear();
+        return chunks;
+    }
+
+    /**
+     * Split pending values into chunks of at most the maximum number of values and references.
+     * 
+     * @param pendingModification the pending values
+     * @return the chunks
+     */
+    private List<PendingModification> split(PendingModification pendingModification) {
+
+        if (pendingModification.size() <= maxValues) {
+            return Collections.singletonList(pendingModification);
+        }
+
+        List<PendingModification> chunks = new ArrayList<PendingModification>();
+        PendingModification chunk = null;
+
+        for (String name : pendingModification.values.keySet()) {
+            for (DSMLValue value : pendingModification.values.get(name).values()) {
+                if (chunk == null || chunk.size() == maxValues) {
+                    chunk = newChunk(pendingModification);
+                    chunks.add(chunk);
+                }
+                chunk.addValue(name, value);
+            }
+        }
+
+        for (Map<String, Reference> typeReferences : pendingModification.references.values()) {
+            for (Reference reference : typeReferences.values()) {
+                if (chunk == null || chunk.size() == maxValues) {
+                    chunk = newChunk(pendingModification);
+                    chunks.add(chunk);
+                }
+                chunk.addReference(reference);
+            }
+        }
+
+        return chunks;
+    }
+
+    /**
+     * Returns a new empty chunk of the pending values.
+     * 
+     * @param pendingModification the pending values
+     * @return the empty chunk
+     */
+    private static PendingModification newChunk(PendingModification pendingModification) {
+        PendingModification chunk =
+                new PendingModification(pendingModification.getPsoID(), pendingModification.getEntityName(),
+                        pendingModification.getModificationMode());
+        chunk.sequenceNumbers.addAll(pendingModification.sequenceNumbers);
+        return chunk;
+    }
+}
@@ -22,6 +22,16 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.lang.time.StopWatch;
 import org.opensaml.util.resource.ResourceException;
@@ -36,6 +46,7 @@ import org.openspml.v2.msg.spml.ModificationMode;
 import org.openspml.v2.msg.spml.ModifyRequest;
 import org.openspml.v2.msg.spml.ModifyResponse;
 import org.openspml.v2.msg.spml.PSO;
+import org.openspml.v2.msg.spml.PSOIdentifier;
 import org.openspml.v2.msg.spml.Response;
 import org.openspml.v2.msg.spml.ReturnData;
 import org.openspml.v2.msg.spml.StatusCode;
@@ -60,7 +71,10 @@ import edu.internet2.middleware.psp.PspCLI;
 import edu.internet2.middleware.psp.PspException;
 import edu.internet2.middleware.psp.PspNoSuchIdentifierException;
 import edu.internet2.middleware.psp.PspOptions;
+import edu.internet2.middleware.psp.grouper.ChangeLogCompactor.Change;
+import edu.internet2.middleware.psp.grouper.ModificationBuffer.PendingModification;
 import edu.internet2.middleware.psp.shibboleth.ChangeLogDataConnector;
+import edu.internet2.middleware.psp.shibboleth.ChangeLogEntryRegistry;
 import edu.internet2.middleware.psp.spml.config.Pso;
 import edu.internet2.middleware.psp.spml.request.BulkSyncRequest;
 import edu.internet2.middleware.psp.spml.request.BulkSyncResponse;
@@ -186,6 +200,12 @@ public class PspChangeLogConsumer extends ChangeLogConsumerBase {
     /** The Provisioning Service Provider. */
     private static Psp psp;
 
+    /** The workers processing change log entries concurrently, null if entries are processed sequentially. */
+    private static ExecutorService executorService;
+
+    /** The number of threads of the workers processing change log entries concurrently. */
+    private static int executorServiceThreads;
+
     /**
      * Gets a simple string representation of the change log entry.
      * 
@@ -222,6 +242,27 @@ public class PspChangeLogConsumer extends ChangeLogConsumerBase {
     /** Whether or not to omit sync responses in a bulk response. */
     private boolean omitSyncResponses = false;
 
+    /** Whether or not to coalesce membership modifications per provisioned object within a batch. */
+    private boolean coalesceMemberships = true;
+
+    /** The maximum number of values and references per coalesced modify request. */
+    private int coalesceMaxValues = 500;
+
+    /** Whether or not to reduce the change log entries of a batch to their net effect before processing. */
+    private boolean compactChangeLog = true;
+
+    /** The number of change log entries to process concurrently. */
+    private int threads = 1;
+
+    /** Determines the object affected by a change log entry. */
+    private ChangeLogCompactor partitioner = new ChangeLogCompactor();
+
+    /** The membership modifications pending during a batch of change log entries, null outside of a batch. */
+    private ModificationBuffer modificationBuffer;
+
+    /** The sequence numbers of the change log entries of the current batch whose pending modifications failed. */
+    private SortedSet<Long> failedSequenceNumbers;
+
     /**
      * 
      * Constructor. Initializes the underlying {@link Psp}.
@@ -232,6 +273,61 @@ public class PspChangeLogConsumer extends ChangeLogConsumerBase {
         initialize();
     }
 
+    /**
+     * Buffer the attribute values and references which need to be added to or deleted from every {@link PSO}
+     * calculated from the change log entry, to be written with those of other change log entries of the batch. The
+     * pending values of an object are written first if their modification mode differs, and whenever the maximum
+     * number of values is reached.
+     * 
+     * @param consumer the psp change log consumer
+     * @param changeLogEntry the change log entry
+     * @param modificationMode the modification mode
+     * @param returnData spmlv2 return data
+     * @throws Spml2Exception if an SPML error occurs
+     * @throws PspException if an error occurs processing the change log entry
+     */
+    public void bufferModification(PspChangeLogConsumer consumer, ChangeLogEntry changeLogEntry,
+            ModificationMode modificationMode, ReturnData returnData) throws Spml2Exception, PspException {
+
+        CalcRequest calcRequest = new CalcRequest();
+        calcRequest.setId(ChangeLogDataConnector.principalName(changeLogEntry.getSequenceNumber()));
+        calcRequest.setRequestID(PSPUtil.uniqueRequestId());
+        if (returnData != null) {
+            calcRequest.setReturnData(returnData);
+        }
+
+        CalcResponse calcResponse = consumer.getPsp().execute(calcRequest);
+
+        for (PSO pso : calcResponse.getPSOs()) {
+
+            // the pending values must be written before the values to be modified are determined
+            ModificationMode pendingMode = modificationBuffer.getModificationMode(pso.getPsoID());
+            if (pendingMode != null && !pendingMode.equals(modificationMode)) {
+                flushModifications(pso.getPsoID());
+            }
+
+            List<DSMLAttr> attributes = processModificationData(pso, modificationMode);
+
+            List<Reference> references = processModificationReferences(pso, modificationMode);
+
+            if (references.isEmpty() && attributes.isEmpty()) {
+                continue;
+            }
+
+            String entityName = pso.findOpenContentAttrValueByName(Pso.ENTITY_NAME_ATTRIBUTE);
+            int size =
+                    modificationBuffer.add(pso.getPsoID(), entityName, modificationMode, attributes, references,
+                            changeLogEntry.getSequenceNumber());
+
+            LOG.debug("PSP Consumer '{}' - Change log entry '{}' Buffered modification of '{}'", new Object[] {name,
+                    toString(changeLogEntry), PSPUtil.toString(pso.getPsoID()),});
+
+            if (size >= coalesceMaxValues) {
+                flushModifications(pso.getPsoID());
+            }
+        }
+    }
+
     /**
      * Execute each {@link ModifyRequest}. If an error occurs executing a request, continue to execute requests, but
      * throw an exception upon completion.
@@ -306,6 +402,105 @@ public class PspChangeLogConsumer extends ChangeLogConsumerBase {
         }
     }
 
+    /**
+     * Write the pending membership modifications of every provisioned object. The sequence numbers of the change log
+     * entries whose modifications could not be written are remembered.
+     */
+    public void flushModifications() {
+        if (modificationBuffer != null && !modificationBuffer.isEmpty()) {
+            executePendingModifications(modificationBuffer.removeAll());
+        }
+    }
+
+    /**
+     * Write the pending membership modifications of a provisioned object. The sequence numbers of the change log
+     * entries whose modifications could not be written are remembered.
+     * 
+     * @param psoID the provisioned object identifier
+     */
+    public void flushModifications(PSOIdentifier psoID) {
+        if (modificationBuffer != null) {
+            executePendingModifications(modificationBuffer.remove(psoID));
+        }
+    }
+
+    /**
+     * Execute a {@link ModifyRequest} for each pending modification. If an error occurs executing a request, continue
+     * to execute requests, and remember the sequence numbers of the change log entries of the failed request.
+     * 
+     * @param pendingModifications the pending modifications
+     */
+    protected void executePendingModifications(List<PendingModification> pendingModifications) {
+
+        for (PendingModification pendingModification : pendingModifications) {
+
+            SortedSet<Long> sequenceNumbers = pendingModification.getSequenceNumbers();
+
+            try {
+                ModifyRequest modifyRequest =
+                        newModifyRequest(pendingModification.getPsoID(), pendingModification.getEntityName(),
+                                pendingModification.getModificationMode(), pendingModification.getAttributes(),
+                                pendingModification.getReferences());
+
+                // add or delete the empty value of reference attributes which are emptied or no longer empty
+                if (!pendingModification.getReferences().isEmpty()) {
+                    getPsp().updateEmptyReferences(modifyRequest);
+                }
+
+                ModifyResponse modifyResponse = getPsp().execute(modifyRequest);
+
+                if (modifyResponse.getStatus().equals(StatusCode.SUCCESS)) {
+                    LOG.info("PSP Consumer '{}' - Change log entries {} Modify {} values '{}'", new Object[] {name,
+                            sequenceNumbers, pendingModification.size(), PSPUtil.toString(modifyResponse),});
+                } else {
+                    LOG.error("PSP Consumer '{}' - Change log entries {} Modify failed '{}'", new Object[] {name,
+                            sequenceNumbers, PSPUtil.toString(modifyResponse),});
+                    failedSequenceNumbers.addAll(sequenceNumbers);
+                }
+            } catch (Spml2Exception e) {
+                LOG.error("PSP Consumer '" + name + "' - Change log entries " + sequenceNumbers + " Modify failed", e);
+                failedSequenceNumbers.addAll(sequenceNumbers);
+            } catch (PspException e) {
+                LOG.error("PSP Consumer '" + name + "' - Change log entries " + sequenceNumbers + " Modify failed", e);
+                failedSequenceNumbers.addAll(sequenceNumbers);
+            }
+        }
+    }
+
+    /**
+     * Register a problem for each change log entry of the batch whose pending modifications could not be written, and
+     * return the sequence number to be returned for the batch. If retry on error is true, the returned sequence number
+     * precedes the first change log entry whose modifications could not be written.
+     * 
+     * @param sequenceNumber the sequence number of the last change log entry processed
+     * @param changeLogProcessorMetadata the change log processor metadata
+     * @return the sequence number to be returned for the batch
+     */
+    protected long getCommittedSequenceNumber(long sequenceNumber,
+            ChangeLogProcessorMetadata changeLogProcessorMetadata) {
+
+        if (failedSequenceNumbers == null || failedSequenceNumbers.isEmpty()) {
+            return sequenceNumber;
+        }
+
+        for (Long failedSequenceNumber : failedSequenceNumbers) {
+            String message =
+                    "PSP Consumer '" + name + "' - An error occurred writing the modifications of sequence number "
+                            + failedSequenceNumber;
+            PspException e = new PspException(message);
+            changeLogProcessorMetadata.registerProblem(e, message, failedSequenceNumber);
+            changeLogProcessorMetadata.setHadProblem(true);
+            changeLogProcessorMetadata.setRecordException(e);
+            changeLogProcessorMetadata.setRecordExceptionSequence(failedSequenceNumber);
+        }
+
+        if (retryOnError) {
+            return Math.min(sequenceNumber, failedSequenceNumbers.first() - 1);
+        }
+
+        return sequenceNumber;
+    }
+
     /**
      * Run a full synchronization by executing a {@link BulkSyncRequest}.
      * 
@@ -399,7 +594,25 @@ public class PspChangeLogConsumer extends ChangeLogConsumerBase {
             omitSyncResponses =
                     GrouperLoaderConfig.getPropertyBoolean("changeLog.psp.fullSync.omitSyncResponses", false);
             LOG.debug("PSP Consumer - Setting omit sync responses to {}", omitSyncResponses);
+
+            // coalesce membership modifications
+            coalesceMemberships =
+                    GrouperLoaderConfig.getPropertyBoolean("changeLog.consumer.psp.coalesceMemberships", true);
+            LOG.debug("PSP Consumer - Setting coalesce memberships to {}", coalesceMemberships);
+
+            // maximum number of values per coalesced modify request
+            coalesceMaxValues = GrouperLoaderConfig.getPropertyInt("changeLog.consumer.psp.coalesceMaxValues", 500);
+            LOG.debug("PSP Consumer - Setting coalesce max values to {}", coalesceMaxValues);
+
+            // compact change log entries
+            compactChangeLog = GrouperLoaderConfig.getPropertyBoolean("changeLog.consumer.psp.compactChangeLog", true);
+            LOG.debug("PSP Consumer - Setting compact change log to {}", compactChangeLog);
+
         }
+
+        // number of change log entries to process concurrently, read on every initialization to follow reloads
+        threads = GrouperLoaderConfig.getPropertyInt("changeLog.consumer.psp.threads", 1);
+        LOG.debug("PSP Consumer - Setting threads to {}", threads);
     }
 
     /**
@@ -464,12 +677,80 @@ public class PspChangeLogConsumer extends ChangeLogConsumerBase {
             LOG.trace("PSP Consumer '{}' - Setting name.", name);
         }
 
+        LOG.debug("PSP Consumer '{}' - Processing change log entry list size '{}'", name, changeLogEntryList.size());
+
+        // the workers processing the entries of this batch concurrently, or null
+        ExecutorService workers = getExecutorService(threads);
+
+        // coalesce membership modifications per provisioned object during this batch, unless processing concurrently
+        if (coalesceMemberships && workers == null) {
+            modificationBuffer = new ModificationBuffer(coalesceMaxValues);
+            failedSequenceNumbers = new TreeSet<Long>();
+        }
+
+        // reduce the change log entries to their net effect
+        List<ChangeLogEntry> compactedChangeLogEntryList = changeLogEntryList;
+        ChangeLogCompactor compactor = null;
+        if (compactChangeLog) {
+            compactor = new ChangeLogCompactor();
+            compactedChangeLogEntryList = compactor.compact(changeLogEntryList);
+            LOG.debug("PSP Consumer '{}' - Compacted change log entry list size '{}' to '{}'", new Object[] {name,
+                    changeLogEntryList.size(), compactedChangeLogEntryList.size(),});
+        }
+
+        // the change log data connector resolves entries of this batch without querying for them
+        ChangeLogEntryRegistry.register(changeLogEntryList);
+
+        try {
+            if (compactedChangeLogEntryList.isEmpty()) {
+                // nothing to process
+            } else if (workers != null) {
+                sequenceNumber =
+                        processChangeLogEntryListConcurrently(compactedChangeLogEntryList, changeLogProcessorMetadata,
+                                workers);
+            } else {
+                sequenceNumber = processChangeLogEntryList(compactedChangeLogEntryList, changeLogProcessorMetadata);
+            }
+            // removed entries are committed only once the entries which supersede them have been processed
+            if (compactor != null) {
+                sequenceNumber = compactor.getCommittedSequenceNumber(sequenceNumber);
+            }
+        } finally {
+            ChangeLogEntryRegistry.unregister(changeLogEntryList);
+            modificationBuffer = null;
+            failedSequenceNumbers = null;
+        }
+
+        if (sequenceNumber == -1) {
+            LOG.error("PSP Consumer '" + name + "' - Unable to process any records.");
+            throw new RuntimeException("PSP Consumer '" + name + "' - Unable to process any records.");
+        }
+
+        LOG.debug("PSP Consumer '{}' - Finished processing change log entries. Last sequence number '{}'", name,
+                sequenceNumber);
+
+        // return the sequence number
+        return sequenceNumber;
+    }
+
+    /**
+     * Process each change log entry of a batch, writing any pending membership modifications before returning.
+     * 
+     * @param changeLogEntryList the change log entries
+     * @param changeLogProcessorMetadata the change log processor metadata
+     * @return the sequence number of the last change log entry processed whose modifications were written, or -1
+     */
+    protected long processChangeLogEntryList(List<ChangeLogEntry> changeLogEntryList,
+            ChangeLogProcessorMetadata changeLogProcessorMetadata) {
+
+        // the change log sequence number to return
+        long sequenceNumber = -1;
+
         // time context processing
         StopWatch stopWatch = new StopWatch();
         // the last change log sequence number processed
         String lastContextId = null;
 
-        LOG.debug("PSP Consumer '{}' - Processing change log entry list size '{}'", name, changeLogEntryList.size());
         boolean first = true;
         // process each change log entry
         for (ChangeLogEntry changeLogEntry : changeLogEntryList) {
@@ -479,9 +760,11 @@ public class PspChangeLogConsumer extends ChangeLogConsumerBase {
 
             // if full sync is running, return the previous sequence number to process this entry on the next run
             if (fullSyncIsRunning) {
+                flushModifications();
+                sequenceNumber = getCommittedSequenceNumber(sequenceNumber - 1, changeLogProcessorMetadata);
                 LOG.info("PSP Consumer '{}' - Full sync is running, returning sequence number '{}'", name,
-                        sequenceNumber - 1);
-                return sequenceNumber - 1;
+                        sequenceNumber);
+                return sequenceNumber;
             }
 
             // if first run, start the stop watch and store the last sequence number
@@ -524,6 +807,17 @@ public class PspChangeLogConsumer extends ChangeLogConsumerBase {
                 sequenceNumber--;
                 break;
             }
+
+            // if writing pending modifications failed and retry on error is true, stop
+            if (retryOnError && failedSequenceNumbers != null && !failedSequenceNumbers.isEmpty()) {
+                break;
+            }
+        }
+
+        // write the pending modifications
+        flushModifications();
+        if (sequenceNumber != -1) {
+            sequenceNumber = getCommittedSequenceNumber(sequenceNumber, changeLogProcessorMetadata);
         }
 
         // stop the timer and log
@@ -531,18 +825,180 @@ public class PspChangeLogConsumer extends ChangeLogConsumerBase {
         LOG.debug("PSP Consumer '{}' - Processed change log context '{}' Elapsed time {}", new Object[] {name,
                 lastContextId, stopWatch,});
 
+        return sequenceNumber;
+    }
+
+    /**
+     * Process the change log entries of a batch concurrently. Entries with the same partition key are processed in
+     * order, and entries without a partition key are processed after every preceding entry and before every following
+     * entry, see {@link #getPartitionKey(ChangeLogEntry)}. Membership modifications are not coalesced.
+     * 
+     * @param changeLogEntryList the change log entries
+     * @param changeLogProcessorMetadata the change log processor metadata
+     * @param workers the workers processing the change log entries
+     * @return the sequence number preceding the first change log entry which was not processed, or -1
+     */
+    protected long processChangeLogEntryListConcurrently(List<ChangeLogEntry> changeLogEntryList,
+            ChangeLogProcessorMetadata changeLogProcessorMetadata, ExecutorService workers) {
+
+        ChangeLogEntryPipeline pipeline = new ChangeLogEntryPipeline(name, workers, retryOnError);
+
+        StopWatch stopWatch = new StopWatch();
+        stopWatch.start();
+
+        for (final ChangeLogEntry changeLogEntry : changeLogEntryList) {
+
+            // if full sync is running, return the previous sequence number to process this entry on the next run
+            if (fullSyncIsRunning) {
+                LOG.info("PSP Consumer '{}' - Full sync is running, not processing sequence number '{}'", name,
+                        changeLogEntry.getSequenceNumber());
+                break;
+            }
+
+            // if an error occurs and retry on error is true, stop
+            if (retryOnError && pipeline.hasFailed()) {
+                break;
+            }
+
+            pipeline.submit(changeLogEntry, getPartitionKey(changeLogEntry), new Callable<Object>() {
+
+                public Object call() throws Exception {
+                    processChangeLogEntry(changeLogEntry);
+                    return null;
+                }
+            });
+        }
+
+        try {
+            pipeline.awaitCompletion();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            LOG.error("PSP Consumer '" + name + "' - Interrupted while processing change log entries", e);
+        }
+
+        for (Map.Entry<Long, Exception> failure : pipeline.getFailures().entrySet()) {
+            String message =
+                    "PSP Consumer '" + name + "' - An error occurred processing sequence number " + failure.getKey();
+            LOG.error(message, failure.getValue());
+            changeLogProcessorMetadata.registerProblem(failure.getValue(), message, failure.getKey());
+            changeLogProcessorMetadata.setHadProblem(true);
+            changeLogProcessorMetadata.setRecordException(failure.getValue());
+            changeLogProcessorMetadata.setRecordExceptionSequence(failure.getKey());
+        }
+
+        long sequenceNumber = pipeline.getWatermark();
         if (sequenceNumber == -1) {
-            LOG.error("PSP Consumer '" + name + "' - Unable to process any records.");
-            throw new RuntimeException("PSP Consumer '" + name + "' - Unable to process any records.");
+            sequenceNumber = changeLogEntryList.get(0).getSequenceNumber() - 1;
         }
 
-        LOG.debug("PSP Consumer '{}' - Finished processing change log entries. Last sequence number '{}'", name,
-                sequenceNumber);
+        stopWatch.stop();
+        LOG.debug("PSP Consumer '{}' - Processed change log entries concurrently through sequence number '{}' Elapsed "
+                + "time {}", new Object[] {name, sequenceNumber, stopWatch,});
 
-        // return the sequence number
         return sequenceNumber;
     }
 
+    /**
+     * Returns the key of the object whose change log entries may be processed concurrently with those of other
+     * objects, or null if the change log entry must be processed after every preceding entry and before every
+     * following entry.
+     * 
+     * @see #getPartitionKey(Change, String)
+     * @param changeLogEntry the change log entry
+     * @return the key of the object, or null
+     */
+    protected String getPartitionKey(ChangeLogEntry changeLogEntry) {
+
+        Change change = partitioner.getChange(changeLogEntry);
+        if (change.equals(Change.OTHER)) {
+            return null;
+        }
+
+        return getPartitionKey(change, partitioner.getObjectKey(changeLogEntry));
+    }
+
+    /**
+     * Returns the partition key of a change to an object, or null if the change must be processed after every
+     * preceding change and before every following change.
+     * 
+     * Membership changes are keyed by group. The attribute values and references they write to the group, and to the
+     * member subject or group, are added or deleted rather than replaced, so they commute with those written for other
+     * groups, and memberships of the same subject in different groups may be processed concurrently. Updates of a
+     * group replace attribute values of the group, which may also be written by memberships of other groups the group
+     * is a member of, so they are not keyed.
+     * 
+     * Updates which do not rename a stem are keyed by stem, since a stem is never a member of a group. Adds, deletes,
+     * and renames of groups and stems affect the objects beneath or referring to them, so they are not keyed.
+     * 
+     * @param change the change
+     * @param objectKey the key of the changed group or stem, or null
+     * @return the partition key, or null
+     */
+    protected static String getPartitionKey(Change change, String objectKey) {
+
+        if (objectKey == null) {
+            return null;
+        }
+
+        if (change.equals(Change.MEMBERSHIP_ADD) || change.equals(Change.MEMBERSHIP_DELETE)) {
+            return objectKey;
+        }
+
+        if (change.equals(Change.UPDATE) && objectKey.startsWith("stem:")) {
+            return objectKey;
+        }
+
+        return null;
+    }
+
+    /**
+     * Returns the workers which process change log entries concurrently, or null if change log entries are processed
+     * sequentially. The workers are created when first needed, replaced if the number of threads changes, and shut
+     * down if the number of threads is reduced to one, so that a reloaded configuration takes effect. Replaced workers
+     * finish the tasks already dispatched to them.
+     * 
+     * @param threads the number of worker threads
+     * @return the workers, or null
+     */
+    protected static synchronized ExecutorService getExecutorService(int threads) {
+
+        if (executorService != null && executorServiceThreads != threads) {
+            LOG.debug("PSP Consumer - Shutting down {} worker threads", executorServiceThreads);
+            executorService.shutdown();
+            executorService = null;
+            executorServiceThreads = 0;
+        }
+
+        if (threads > 1 && executorService == null) {
+            LOG.debug("PSP Consumer - Starting {} worker threads", threads);
+            executorService = newExecutorService(threads);
+            executorServiceThreads = threads;
+        }
+
+        return executorService;
+    }
+
+    /**
+     * Returns the workers which process change log entries concurrently. Tasks are executed in the order in which they
+     * are dispatched, as required by {@link ChangeLogEntryPipeline}.
+     * 
+     * @param threads the number of worker threads
+     * @return the workers
+     */
+    protected static ExecutorService newExecutorService(int threads) {
+
+        final AtomicInteger threadNumber = new AtomicInteger();
+        return new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, "psp-changelog-" + threadNumber.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+    }
+
     /**
      * Call the method of the {@link EventType} enum which matches the {@link ChangeLogEntry} category and action (the
      * change log type).
@@ -564,6 +1020,12 @@ public class PspChangeLogConsumer extends ChangeLogConsumerBase {
                 LOG.debug("PSP Consumer '{}' - Change log entry '{}' Unsupported category and action.", name,
                         toString(changeLogEntry));
             } else {
+                // write pending membership modifications before processing any other type of change
+                if (modificationBuffer != null && !ldappcEventType.equals(EventType.membership__addMembership)
+                        && !ldappcEventType.equals(EventType.membership__deleteMembership)) {
+                    flushModifications();
+                }
+
                 // process the change log event
                 LOG.info("PSP Consumer '{}' - Change log entry '{}'", name, toStringDeep(changeLogEntry));
                 StopWatch stopWatch = new StopWatch();
@@ -707,6 +1169,11 @@ public class PspChangeLogConsumer extends ChangeLogConsumerBase {
         LOG.debug("PSP Consumer '{}' - Change log entry '{}' Processing membership add.", name,
                 toString(changeLogEntry));
 
+        if (modificationBuffer != null) {
+            bufferModification(consumer, changeLogEntry, ModificationMode.ADD, ReturnData.EVERYTHING);
+            return;
+        }
+
         List<ModifyRequest> modifyRequests =
                 consumer.processModification(consumer, changeLogEntry, ModificationMode.ADD, ReturnData.EVERYTHING);
 
@@ -727,6 +1194,11 @@ public class PspChangeLogConsumer extends ChangeLogConsumerBase {
         LOG.debug("PSP Consumer '{}' - Change log entry '{}' Processing membership delete.", name,
                 toString(changeLogEntry));
 
+        if (modificationBuffer != null) {
+            bufferModification(consumer, changeLogEntry, ModificationMode.DELETE, ReturnData.EVERYTHING);
+            return;
+        }
+
         List<ModifyRequest> modifyRequests =
                 consumer.processModification(consumer, changeLogEntry, ModificationMode.DELETE, ReturnData.EVERYTHING);
 
@@ -754,11 +1226,36 @@ public class PspChangeLogConsumer extends ChangeLogConsumerBase {
             return null;
         }
 
+        ModifyRequest modifyRequest =
+                newModifyRequest(pso.getPsoID(), pso.findOpenContentAttrValueByName(Pso.ENTITY_NAME_ATTRIBUTE),
+                        modificationMode, attributes, references);
+
+        // add or delete the empty value of reference attributes which are emptied or no longer empty
+        if (!references.isEmpty()) {
+            getPsp().updateEmptyReferences(modifyRequest);
+        }
+
+        return modifyRequest;
+    }
+
+    /**
+     * Return a {@link ModifyRequest} which adds or deletes the given attribute values and references.
+     * 
+     * @param psoID the provisioned object identifier
+     * @param entityName the schema entity name
+     * @param modificationMode the modification mode
+     * @param attributes the attributes whose values are to be added or deleted
+     * @param references the references to be added or deleted
+     * @return the modify request
+     * @throws Spml2Exception if an SPML error occurs
+     */
+    public ModifyRequest newModifyRequest(PSOIdentifier psoID, String entityName, ModificationMode modificationMode,
+            List<DSMLAttr> attributes, List<Reference> references) throws Spml2Exception {
+
         ModifyRequest modifyRequest = new ModifyRequest();
         modifyRequest.setRequestID(PSPUtil.uniqueRequestId());
-        modifyRequest.setPsoID(pso.getPsoID());
-        modifyRequest.addOpenContentAttr(Pso.ENTITY_NAME_ATTRIBUTE,
-                pso.findOpenContentAttrValueByName(Pso.ENTITY_NAME_ATTRIBUTE));
+        modifyRequest.setPsoID(psoID);
+        modifyRequest.addOpenContentAttr(Pso.ENTITY_NAME_ATTRIBUTE, entityName);
         modifyRequest.setReturnData(ReturnData.IDENTIFIER);
 
         if (!attributes.isEmpty()) {
@@ -823,6 +1320,9 @@ public class PspChangeLogConsumer extends ChangeLogConsumerBase {
     /**
      * Return the {@link DSMLAttr}s which need to be added or deleted to the {@link PSO}.
      * 
+     * The values of each attribute which the provisioned object has are found with a single query when the target
+     * supports it, see {@link Psp#findAttributeValues(PSOIdentifier, String, Collection)}.
+     * 
      * @param pso the provisioned object
      * @param modificationMode the modification mode, either add or delete
      * @return the possibly empty list of attributes
@@ -842,29 +1342,36 @@ public class PspChangeLogConsumer extends ChangeLogConsumerBase {
         for (String dsmlAttrName : dsmlAttrMap.keySet()) {
             DSMLAttr dsmlAttr = dsmlAttrMap.get(dsmlAttrName);
 
+            // if modification mode is delete, do not delete values if retain all values is true
+            if (modificationMode.equals(ModificationMode.DELETE)) {
+                String entityName = pso.findOpenContentAttrValueByName(Pso.ENTITY_NAME_ATTRIBUTE);
+                if (entityName != null) {
+                    Pso psoDefinition = getPsp().getPso(pso.getPsoID().getTargetID(), entityName);
+                    if (psoDefinition != null) {
+                        boolean retainAll = psoDefinition.getPsoAttribute(dsmlAttrName).isRetainAll();
+                        if (retainAll) {
+                            continue;
+                        }
+                    }
+                }
+            }
+
             // the dsml values to be added or deleted
             List<DSMLValue> dsmlValuesToBeModified = new ArrayList<DSMLValue>();
 
-            // for every attribute value
+            List<String> values = new ArrayList<String>();
             for (DSMLValue dsmlValue : dsmlAttr.getValues()) {
+                values.add(dsmlValue.getValue());
+            }
 
-                // if modification mode is delete, do not delete value if retain all values is true
-                if (modificationMode.equals(ModificationMode.DELETE)) {
-                    String entityName = pso.findOpenContentAttrValueByName(Pso.ENTITY_NAME_ATTRIBUTE);
-                    if (entityName != null) {
-                        Pso psoDefinition = psp.getPso(pso.getPsoID().getTargetID(), entityName);
-                        if (psoDefinition != null) {
-                            boolean retainAll = psoDefinition.getPsoAttribute(dsmlAttrName).isRetainAll();
-                            if (retainAll) {
-                                continue;
-                            }
-                        }
-                    }
-                }
+            try {
+                // determine which values exist
+                Set<String> existingValues = getPsp().findAttributeValues(pso.getPsoID(), dsmlAttr.getName(), values);
 
-                try {
-                    // perform a search to determine if the attribute exists
-                    boolean hasAttribute = psp.hasAttribute(pso.getPsoID(), dsmlAttr.getName(), dsmlValue.getValue());
+                // for every attribute value
+                for (DSMLValue dsmlValue : dsmlAttr.getValues()) {
+
+                    boolean hasAttribute = existingValues.contains(dsmlValue.getValue());
 
                     // if adding attribute and it does not exist on target, modify
                     if (modificationMode.equals(ModificationMode.ADD) && !hasAttribute) {
@@ -880,12 +1387,12 @@ public class PspChangeLogConsumer extends ChangeLogConsumerBase {
                     if (modificationMode.equals(ModificationMode.DELETE) && hasAttribute) {
                         dsmlValuesToBeModified.add(dsmlValue);
                     }
-                } catch (PspNoSuchIdentifierException e) {
-                    if (modificationMode.equals(ModificationMode.DELETE)) {
-                        // ignore, must be already deleted, do not throw exception
-                    } else {
-                        throw new PspException(e);
-                    }
+                }
+            } catch (PspNoSuchIdentifierException e) {
+                if (modificationMode.equals(ModificationMode.DELETE)) {
+                    // ignore, must be already deleted, do not throw exception
+                } else {
+                    throw new PspException(e);
                 }
             }
 
@@ -902,7 +1409,8 @@ public class PspChangeLogConsumer extends ChangeLogConsumerBase {
     /**
      * Return the {@link Reference}s which need to be added or deleted to the {@link PSO}.
      * 
-     * A HasReference query is performed to determine if each {@link Reference} exists.
+     * The references which exist are found with a single query for each type of reference when the target supports
+     * it, see {@link Psp#findReferences(PSOIdentifier, Collection)}.
      * 
      * @param pso the provisioned object
      * @param modificationMode the modification mode, either add or delete
@@ -919,37 +1427,44 @@ public class PspChangeLogConsumer extends ChangeLogConsumerBase {
         // references from the pso
         Map<String, List<Reference>> referenceMap = PSPUtil.getReferences(pso.getCapabilityData());
 
-        // for every type of reference, i.e. the attribute name
+        // every reference, in order of type of reference
+        List<Reference> allReferences = new ArrayList<Reference>();
         for (String typeOfReference : referenceMap.keySet()) {
-            // for every reference
-            for (Reference reference : referenceMap.get(typeOfReference)) {
+            allReferences.addAll(referenceMap.get(typeOfReference));
+        }
 
-                // perform a search to determine if the reference exists
-                try {
-                    boolean hasReference = psp.hasReference(pso.getPsoID(), reference);
+        if (allReferences.isEmpty()) {
+            return references;
+        }
 
-                    // if adding reference and reference does not exist, modify
-                    if (modificationMode.equals(ModificationMode.ADD) && !hasReference) {
-                        references.add(reference);
-                    }
+        // determine which references exist
+        try {
+            List<Reference> existingReferences = getPsp().findReferences(pso.getPsoID(), allReferences);
 
-                    // if replacing reference and reference does not exist, modify
-                    if (modificationMode.equals(ModificationMode.REPLACE) && !hasReference) {
-                        references.add(reference);
-                    }
+            for (Reference reference : allReferences) {
 
-                    // if deleting reference and reference exists, modify
-                    if (modificationMode.equals(ModificationMode.DELETE) && hasReference) {
-                        references.add(reference);
-                    }
-                } catch (PspNoSuchIdentifierException e) {
-                    if (modificationMode.equals(ModificationMode.DELETE)) {
-                        // ignore, must be already deleted, do not throw exception
-                    } else {
-                        throw new PspException(e);
-                    }
+                boolean hasReference = existingReferences.contains(reference);
+
+                // if adding reference and reference does not exist, modify
+                if (modificationMode.equals(ModificationMode.ADD) && !hasReference) {
+                    references.add(reference);
+                }
+
+                // if replacing reference and reference does not exist, modify
+                if (modificationMode.equals(ModificationMode.REPLACE) && !hasReference) {
+                    references.add(reference);
                 }
 
+                // if deleting reference and reference exists, modify
+                if (modificationMode.equals(ModificationMode.DELETE) && hasReference) {
+                    references.add(reference);
+                }
+            }
+        } catch (PspNoSuchIdentifierException e) {
+            if (modificationMode.equals(ModificationMode.DELETE)) {
+                // ignore, must be already deleted, do not throw exception
+            } else {
+                throw new PspException(e);
             }
         }
 
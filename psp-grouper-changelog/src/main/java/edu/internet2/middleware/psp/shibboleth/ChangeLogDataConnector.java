@@ -83,9 +83,14 @@ public class ChangeLogDataConnector extends BaseGrouperDataConnector<ChangeLogEn
             return Collections.EMPTY_MAP;
         }
 
-        // query for the change log entry
-        ChangeLogEntry changeLogEntry =
-                GrouperDAOFactory.getFactory().getChangeLogEntry().findBySequenceNumber(sequenceNumber, false);
+        // the change log entry being processed, otherwise query for the change log entry
+        ChangeLogEntry changeLogEntry = ChangeLogEntryRegistry.get(sequenceNumber);
+        if (changeLogEntry == null) {
+            LOG.debug("ChangeLog data connector '{}' - Changelog sequence '{}' not registered, querying", getId(),
+                    principalName);
+            changeLogEntry =
+                    GrouperDAOFactory.getFactory().getChangeLogEntry().findBySequenceNumber(sequenceNumber, false);
+        }
 
         if (changeLogEntry == null) {
             LOG.debug("ChangeLog data connector '{}' - Changelog sequence '{}' not found", getId(), principalName);
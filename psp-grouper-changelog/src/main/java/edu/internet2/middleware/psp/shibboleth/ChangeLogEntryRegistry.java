@@ -0,0 +1,82 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.psp.shibboleth;
+
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+
+import edu.internet2.middleware.grouper.changeLog.ChangeLogEntry;
+
+/**
+ * The {@link ChangeLogEntry}s currently being processed, by sequence number.
+ * 
+ * A change log consumer registers the entries it is processing so that the {@link ChangeLogDataConnector} can resolve
+ * a principal name returned by {@link ChangeLogDataConnector#principalName(long)} without querying the database for
+ * the entry. Entries must be unregistered when processing is finished.
+ */
+public final class ChangeLogEntryRegistry {
+
+    /** The registered change log entries by sequence number. */
+    private static final ConcurrentHashMap<Long, ChangeLogEntry> ENTRIES =
+            new ConcurrentHashMap<Long, ChangeLogEntry>();
+
+    /** Private constructor. */
+    private ChangeLogEntryRegistry() {
+    }
+
+    /**
+     * Register change log entries.
+     * 
+     * @param changeLogEntries the change log entries
+     */
+    public static void register(Collection<ChangeLogEntry> changeLogEntries) {
+        for (ChangeLogEntry changeLogEntry : changeLogEntries) {
+            ENTRIES.put(changeLogEntry.getSequenceNumber(), changeLogEntry);
+        }
+    }
+
+    /**
+     * Unregister change log entries. An entry is removed only if it is the entry registered for its sequence number.
+     * 
+     * @param changeLogEntries the change log entries
+     */
+    public static void unregister(Collection<ChangeLogEntry> changeLogEntries) {
+        for (ChangeLogEntry changeLogEntry : changeLogEntries) {
+            ENTRIES.remove(changeLogEntry.getSequenceNumber(), changeLogEntry);
+        }
+    }
+
+    /**
+     * Return the registered change log entry with the given sequence number.
+     * 
+     * @param sequenceNumber the sequence number
+     * @return the change log entry or null if no entry is registered with the sequence number
+     */
+    public static ChangeLogEntry get(long sequenceNumber) {
+        return ENTRIES.get(sequenceNumber);
+    }
+
+    /**
+     * Return the number of registered change log entries.
+     * 
+     * @return the number of registered change log entries
+     */
+    public static int size() {
+        return ENTRIES.size();
+    }
+}
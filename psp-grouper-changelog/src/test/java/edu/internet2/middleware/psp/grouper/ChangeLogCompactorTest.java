@@ -0,0 +1,163 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.psp.grouper;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+import junit.textui.TestRunner;
+
+import edu.internet2.middleware.grouper.changeLog.ChangeLogEntry;
+import edu.internet2.middleware.psp.grouper.ChangeLogCompactor.Change;
+
+/**
+ * Tests the reduction of change log entries to their net effect.
+ */
+public class ChangeLogCompactorTest extends TestCase {
+
+  public static void main(String[] args) {
+    TestRunner.run(ChangeLogCompactorTest.class);
+  }
+
+  public ChangeLogCompactorTest(String name) {
+    super(name);
+  }
+
+  /** The change and keys of each change log entry by sequence number. */
+  private Map<Long, String[]> changes;
+
+  /** The change log entries. */
+  private List<ChangeLogEntry> entries;
+
+  /** The compactor, which reads the change and keys of the test entries. */
+  private ChangeLogCompactor compactor;
+
+  /** {@inheritDoc} */
+  protected void setUp() {
+    changes = new HashMap<Long, String[]>();
+    entries = new ArrayList<ChangeLogEntry>();
+    compactor = new ChangeLogCompactor() {
+
+      protected Change getChange(ChangeLogEntry changeLogEntry) {
+        return Change.valueOf(changes.get(changeLogEntry.getSequenceNumber())[0]);
+      }
+
+      protected String getObjectKey(ChangeLogEntry changeLogEntry) {
+        return changes.get(changeLogEntry.getSequenceNumber())[1];
+      }
+
+      protected String getMembershipKey(ChangeLogEntry changeLogEntry) {
+        return changes.get(changeLogEntry.getSequenceNumber())[2];
+      }
+    };
+  }
+
+  private void entry(long sequenceNumber, Change change, String objectKey, String membershipKey) {
+    ChangeLogEntry changeLogEntry = new ChangeLogEntry();
+    changeLogEntry.setSequenceNumber(sequenceNumber);
+    changes.put(sequenceNumber, new String[] {change.name(), objectKey, membershipKey});
+    entries.add(changeLogEntry);
+  }
+
+  private String compact() {
+    List<Long> sequenceNumbers = new ArrayList<Long>();
+    for (ChangeLogEntry changeLogEntry : compactor.compact(entries)) {
+      sequenceNumbers.add(changeLogEntry.getSequenceNumber());
+    }
+    return sequenceNumbers.toString();
+  }
+
+  public void testAddAndDeleteCancel() throws Exception {
+
+    entry(1, Change.ADD, "group:a", null);
+    entry(2, Change.MEMBERSHIP_ADD, "group:a", "a:m1:members");
+    entry(3, Change.ADD, "group:b", null);
+    entry(4, Change.UPDATE, "group:a", null);
+    entry(5, Change.MEMBERSHIP_DELETE, "group:a", "a:m1:members");
+    entry(6, Change.DELETE, "group:a", null);
+
+    assertEquals("[3]", compact());
+    assertEquals(5, compactor.getRemovedCount());
+    assertEquals(6, compactor.getCommittedSequenceNumber(3));
+  }
+
+  public void testLastUpdateWins() throws Exception {
+
+    entry(1, Change.UPDATE, "group:a", null);
+    entry(2, Change.UPDATE, "group:b", null);
+    entry(3, Change.RENAME, "group:a", null);
+    entry(4, Change.UPDATE, "group:a", null);
+    entry(5, Change.UPDATE, "stem:a", null);
+
+    assertEquals("[2, 3, 4, 5]", compact());
+  }
+
+  public void testUpdateBeforeDelete() throws Exception {
+
+    entry(1, Change.UPDATE, "group:a", null);
+    entry(2, Change.RENAME, "group:a", null);
+    entry(3, Change.DELETE, "group:a", null);
+
+    assertEquals("[2, 3]", compact());
+  }
+
+  public void testMembershipFlips() throws Exception {
+
+    entry(1, Change.MEMBERSHIP_ADD, "group:a", "a:m1:members");
+    entry(2, Change.MEMBERSHIP_ADD, "group:a", "a:m2:members");
+    entry(3, Change.MEMBERSHIP_DELETE, "group:a", "a:m1:members");
+    entry(4, Change.MEMBERSHIP_DELETE, "group:a", "a:m2:members");
+    entry(5, Change.MEMBERSHIP_ADD, "group:a", "a:m2:members");
+    entry(6, Change.OTHER, null, null);
+
+    assertEquals("[5, 6]", compact());
+  }
+
+  public void testCommittedSequenceNumber() throws Exception {
+
+    entry(10, Change.MEMBERSHIP_ADD, "group:a", "a:m1:members");
+    entry(11, Change.OTHER, null, null);
+    entry(12, Change.MEMBERSHIP_DELETE, "group:a", "a:m1:members");
+    entry(13, Change.OTHER, null, null);
+    entry(14, Change.UPDATE, "group:b", null);
+    entry(15, Change.UPDATE, "group:b", null);
+
+    assertEquals("[11, 13, 15]", compact());
+
+    // stopped before the delete which settles the add
+    assertEquals(9, compactor.getCommittedSequenceNumber(11));
+    // stopped before the update which settles the earlier update
+    assertEquals(13, compactor.getCommittedSequenceNumber(13));
+    assertEquals(13, compactor.getCommittedSequenceNumber(14));
+    // processing failed on the first entry
+    assertEquals(9, compactor.getCommittedSequenceNumber(10));
+    assertEquals(15, compactor.getCommittedSequenceNumber(15));
+  }
+
+  public void testEverythingRemoved() throws Exception {
+
+    entry(1, Change.MEMBERSHIP_ADD, "group:a", "a:m1:members");
+    entry(2, Change.MEMBERSHIP_DELETE, "group:a", "a:m1:members");
+
+    assertEquals("[]", compact());
+    assertEquals(2, compactor.getCommittedSequenceNumber(-1));
+  }
+}
@@ -0,0 +1,151 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.psp.grouper;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+import junit.textui.TestRunner;
+
+import edu.internet2.middleware.grouper.changeLog.ChangeLogEntry;
+
+/**
+ * Tests the ordering and watermark of concurrently processed change log entries.
+ */
+public class ChangeLogEntryPipelineTest extends TestCase {
+
+  public static void main(String[] args) {
+    TestRunner.run(ChangeLogEntryPipelineTest.class);
+  }
+
+  public ChangeLogEntryPipelineTest(String name) {
+    super(name);
+  }
+
+  /** Records the order in which entries are processed. */
+  private List<Long> processed;
+
+  /** The workers. */
+  private ExecutorService executorService;
+
+  /** {@inheritDoc} */
+  protected void setUp() {
+    processed = Collections.synchronizedList(new ArrayList<Long>());
+    executorService = PspChangeLogConsumer.newExecutorService(4);
+  }
+
+  /** {@inheritDoc} */
+  protected void tearDown() {
+    executorService.shutdown();
+  }
+
+  private static ChangeLogEntry entry(long sequenceNumber) {
+    ChangeLogEntry changeLogEntry = new ChangeLogEntry();
+    changeLogEntry.setSequenceNumber(sequenceNumber);
+    return changeLogEntry;
+  }
+
+  /**
+   * A task which waits for the latch, if any, before recording the entry, and fails if requested.
+   */
+  private Callable<Object> task(final long sequenceNumber, final CountDownLatch latch, final boolean fail) {
+    return new Callable<Object>() {
+
+      public Object call() throws Exception {
+        if (latch != null) {
+          latch.await(10, TimeUnit.SECONDS);
+        }
+        processed.add(sequenceNumber);
+        if (fail) {
+          throw new Exception("failed " + sequenceNumber);
+        }
+        return null;
+      }
+    };
+  }
+
+  public void testSameKeyInOrder() throws Exception {
+
+    ChangeLogEntryPipeline pipeline = new ChangeLogEntryPipeline("test", executorService, false);
+    CountDownLatch latch = new CountDownLatch(1);
+
+    pipeline.submit(entry(1), "group:a", task(1, latch, false));
+    pipeline.submit(entry(2), "group:b", task(2, null, false));
+    pipeline.submit(entry(3), "group:a", task(3, null, false));
+
+    // b does not wait for a
+    while (!processed.contains(2L)) {
+      Thread.sleep(10);
+    }
+    assertEquals(0, pipeline.getWatermark());
+
+    latch.countDown();
+    pipeline.awaitCompletion();
+
+    assertEquals("[2, 1, 3]", processed.toString());
+    assertEquals(3, pipeline.getWatermark());
+  }
+
+  public void testBarrier() throws Exception {
+
+    ChangeLogEntryPipeline pipeline = new ChangeLogEntryPipeline("test", executorService, false);
+    CountDownLatch latch = new CountDownLatch(1);
+
+    pipeline.submit(entry(1), "group:a", task(1, latch, false));
+    pipeline.submit(entry(2), null, task(2, null, false));
+    pipeline.submit(entry(3), "group:b", task(3, null, false));
+
+    latch.countDown();
+    pipeline.awaitCompletion();
+
+    assertEquals("[1, 2, 3]", processed.toString());
+  }
+
+  public void testFailureIsProcessed() throws Exception {
+
+    ChangeLogEntryPipeline pipeline = new ChangeLogEntryPipeline("test", executorService, false);
+
+    pipeline.submit(entry(1), "group:a", task(1, null, true));
+    pipeline.submit(entry(2), "group:a", task(2, null, false));
+    pipeline.awaitCompletion();
+
+    assertEquals("[1, 2]", processed.toString());
+    assertEquals(2, pipeline.getWatermark());
+    assertEquals(1, pipeline.getFailures().size());
+  }
+
+  public void testStopOnError() throws Exception {
+
+    ChangeLogEntryPipeline pipeline = new ChangeLogEntryPipeline("test", executorService, true);
+
+    pipeline.submit(entry(5), null, task(5, null, false));
+    pipeline.submit(entry(6), "group:a", task(6, null, true));
+    pipeline.submit(entry(7), "group:a", task(7, null, false));
+    pipeline.awaitCompletion();
+
+    assertTrue(pipeline.hasFailed());
+    assertEquals("[5, 6]", processed.toString());
+    assertEquals(5, pipeline.getWatermark());
+  }
+}
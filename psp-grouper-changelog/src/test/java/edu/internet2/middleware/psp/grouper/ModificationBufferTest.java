@@ -0,0 +1,136 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.psp.grouper;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.TestCase;
+import junit.textui.TestRunner;
+
+import org.openspml.v2.msg.spml.ModificationMode;
+import org.openspml.v2.msg.spml.PSOIdentifier;
+import org.openspml.v2.msg.spmlref.Reference;
+import org.openspml.v2.profiles.dsml.DSMLAttr;
+
+import edu.internet2.middleware.psp.grouper.ModificationBuffer.PendingModification;
+
+/**
+ * Tests the coalescing of membership modifications.
+ */
+public class ModificationBufferTest extends TestCase {
+
+  public static void main(String[] args) {
+    TestRunner.run(ModificationBufferTest.class);
+  }
+
+  public ModificationBufferTest(String name) {
+    super(name);
+  }
+
+  private static PSOIdentifier psoID(String id) {
+    return new PSOIdentifier(id, null, "ldap");
+  }
+
+  private static List<Reference> member(String id) {
+    Reference reference = new Reference();
+    reference.setToPsoID(psoID(id));
+    reference.setTypeOfReference("member");
+    return Collections.singletonList(reference);
+  }
+
+  private static List<DSMLAttr> isMemberOf(String value) throws Exception {
+    return Collections.singletonList(new DSMLAttr("isMemberOf", value));
+  }
+
+  public void testCoalescePerObject() throws Exception {
+
+    ModificationBuffer buffer = new ModificationBuffer(100);
+    PSOIdentifier group = psoID("cn=group,ou=groups,dc=edu");
+
+    assertEquals(1, buffer.add(group, "group", ModificationMode.ADD, Collections.EMPTY_LIST, member("uid=a"), 10));
+    assertEquals(2, buffer.add(group, "group", ModificationMode.ADD, Collections.EMPTY_LIST, member("uid=b"), 11));
+    // duplicate
+    assertEquals(2, buffer.add(group, "group", ModificationMode.ADD, Collections.EMPTY_LIST, member("uid=a"), 12));
+    buffer.add(psoID("uid=a"), "member", ModificationMode.ADD, isMemberOf("group"), Collections.EMPTY_LIST, 10);
+
+    List<PendingModification> chunks = buffer.removeAll();
+    assertTrue(buffer.isEmpty());
+    assertEquals(2, chunks.size());
+
+    PendingModification groupChunk = chunks.get(0);
+    assertEquals("cn=group,ou=groups,dc=edu", groupChunk.getPsoID().getID());
+    assertEquals("group", groupChunk.getEntityName());
+    assertEquals(ModificationMode.ADD, groupChunk.getModificationMode());
+    assertEquals(2, groupChunk.getReferences().size());
+    assertEquals("uid=a", groupChunk.getReferences().get(0).getToPsoID().getID());
+    assertEquals("uid=b", groupChunk.getReferences().get(1).getToPsoID().getID());
+    assertTrue(groupChunk.getAttributes().isEmpty());
+    assertEquals(Arrays.asList(new Long[] {10L, 11L, 12L}), new ArrayList<Long>(groupChunk.getSequenceNumbers()));
+
+    PendingModification memberChunk = chunks.get(1);
+    assertEquals(1, memberChunk.getAttributes().size());
+    assertEquals("isMemberOf", memberChunk.getAttributes().get(0).getName());
+    assertEquals("group", memberChunk.getAttributes().get(0).getValues()[0].getValue());
+  }
+
+  public void testSplitIntoChunks() throws Exception {
+
+    ModificationBuffer buffer = new ModificationBuffer(2);
+    PSOIdentifier group = psoID("cn=group,ou=groups,dc=edu");
+
+    for (int i = 0; i < 5; i++) {
+      buffer.add(group, "group", ModificationMode.DELETE, Collections.EMPTY_LIST, member("uid=" + i), i);
+    }
+
+    List<PendingModification> chunks = buffer.remove(group);
+    assertEquals(3, chunks.size());
+    assertEquals(2, chunks.get(0).size());
+    assertEquals(2, chunks.get(1).size());
+    assertEquals(1, chunks.get(2).size());
+    assertEquals("uid=4", chunks.get(2).getReferences().get(0).getToPsoID().getID());
+    for (PendingModification chunk : chunks) {
+      assertEquals(ModificationMode.DELETE, chunk.getModificationMode());
+      assertEquals(5, chunk.getSequenceNumbers().size());
+    }
+    assertTrue(buffer.remove(group).isEmpty());
+  }
+
+  public void testDifferentModeIsRejected() throws Exception {
+
+    ModificationBuffer buffer = new ModificationBuffer(100);
+    PSOIdentifier group = psoID("cn=group,ou=groups,dc=edu");
+
+    buffer.add(group, "group", ModificationMode.ADD, Collections.EMPTY_LIST, member("uid=a"), 1);
+    assertEquals(ModificationMode.ADD, buffer.getModificationMode(group));
+    assertNull(buffer.getModificationMode(psoID("cn=other,ou=groups,dc=edu")));
+
+    try {
+      buffer.add(group, "group", ModificationMode.DELETE, Collections.EMPTY_LIST, member("uid=a"), 2);
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+
+    buffer.remove(group);
+    buffer.add(group, "group", ModificationMode.DELETE, Collections.EMPTY_LIST, member("uid=a"), 2);
+    assertEquals(ModificationMode.DELETE, buffer.getModificationMode(group));
+  }
+}
@@ -0,0 +1,381 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.psp.grouper;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+
+import junit.framework.TestCase;
+import junit.textui.TestRunner;
+
+import org.openspml.v2.msg.spml.Extensible;
+import org.openspml.v2.msg.spml.ModificationMode;
+import org.openspml.v2.msg.spml.PSO;
+import org.openspml.v2.msg.spml.PSOIdentifier;
+import org.openspml.v2.msg.spmlref.Reference;
+import org.openspml.v2.profiles.dsml.DSMLAttr;
+import org.openspml.v2.profiles.dsml.DSMLValue;
+
+import edu.internet2.middleware.grouper.changeLog.ChangeLogEntry;
+import edu.internet2.middleware.grouper.changeLog.ChangeLogProcessorMetadata;
+import edu.internet2.middleware.psp.Psp;
+import edu.internet2.middleware.psp.PspException;
+import edu.internet2.middleware.psp.PspNoSuchIdentifierException;
+import edu.internet2.middleware.psp.grouper.ChangeLogCompactor.Change;
+import edu.internet2.middleware.psp.spml.config.Pso;
+import edu.internet2.middleware.psp.spml.config.PsoAttribute;
+import edu.internet2.middleware.psp.util.PSPUtil;
+
+/**
+ * Tests which attribute values and references of a change log entry the consumer adds or deletes, given the values
+ * and references the provisioned object already has.
+ */
+public class PspChangeLogConsumerTest extends TestCase {
+
+  public static void main(String[] args) {
+    TestRunner.run(PspChangeLogConsumerTest.class);
+  }
+
+  public PspChangeLogConsumerTest(String name) {
+    super(name);
+  }
+
+  /** A psp whose provisioned object has the given values, and which counts the queries of the consumer. */
+  private static class StubPsp extends Psp {
+
+    /** Whether or not the provisioned object exists. */
+    private boolean exists = true;
+
+    /** The attribute values and reference ids of the provisioned object. */
+    private Set<String> present = new HashSet<String>();
+
+    /** The pso definition. */
+    private Pso psoDefinition = new Pso();
+
+    /** The number of queries. */
+    private int queries;
+
+    public Pso getPso(String targetId, String objectId) {
+      return psoDefinition;
+    }
+
+    public Set<String> findAttributeValues(PSOIdentifier psoID, String attributeName,
+        Collection<String> attributeValues) throws PspNoSuchIdentifierException {
+      queries++;
+      if (!exists) {
+        throw new PspNoSuchIdentifierException("Unable to find '" + psoID.getID() + "'");
+      }
+      Set<String> found = new LinkedHashSet<String>(attributeValues);
+      found.retainAll(present);
+      return found;
+    }
+
+    public List<Reference> findReferences(PSOIdentifier psoID, Collection<Reference> references)
+        throws PspNoSuchIdentifierException {
+      queries++;
+      if (!exists) {
+        throw new PspNoSuchIdentifierException("Unable to find '" + psoID.getID() + "'");
+      }
+      List<Reference> found = new ArrayList<Reference>();
+      for (Reference reference : references) {
+        if (present.contains(reference.getToPsoID().getID())) {
+          found.add(reference);
+        }
+      }
+      return found;
+    }
+  }
+
+  private StubPsp psp;
+
+  private PspChangeLogConsumer consumer;
+
+  /** {@inheritDoc} */
+  protected void setUp() throws Exception {
+    psp = new StubPsp();
+
+    PsoAttribute isMemberOf = new PsoAttribute();
+    isMemberOf.setName("isMemberOf");
+    psp.psoDefinition.setPsoAttributes(Arrays.asList(isMemberOf));
+
+    consumer = new PspChangeLogConsumer() {
+
+      public void initialize() {
+      }
+
+      public Psp getPsp() {
+        return psp;
+      }
+    };
+  }
+
+  private static PSO pso(String... isMemberOf) throws Exception {
+    PSO pso = new PSO();
+    pso.setPsoID(new PSOIdentifier("uid=a,ou=people,dc=edu", null, "ldap"));
+    pso.addOpenContentAttr(Pso.ENTITY_NAME_ATTRIBUTE, "member");
+    DSMLValue[] values = new DSMLValue[isMemberOf.length];
+    for (int i = 0; i < isMemberOf.length; i++) {
+      values[i] = new DSMLValue(isMemberOf[i]);
+    }
+    Extensible data = new Extensible();
+    data.addOpenContentElement(new DSMLAttr("isMemberOf", values));
+    pso.setData(data);
+    return pso;
+  }
+
+  private static PSO groupPso(String... members) throws Exception {
+    PSO pso = new PSO();
+    pso.setPsoID(new PSOIdentifier("cn=group,ou=groups,dc=edu", null, "ldap"));
+    pso.addOpenContentAttr(Pso.ENTITY_NAME_ATTRIBUTE, "group");
+    List<Reference> references = new ArrayList<Reference>();
+    for (String member : members) {
+      Reference reference = new Reference();
+      reference.setToPsoID(new PSOIdentifier(member, null, "ldap"));
+      reference.setTypeOfReference("member");
+      references.add(reference);
+    }
+    pso.addCapabilityData(PSPUtil.fromReferences(references));
+    return pso;
+  }
+
+  private static List<String> values(List<DSMLAttr> attributes) {
+    List<String> values = new ArrayList<String>();
+    for (DSMLAttr attribute : attributes) {
+      for (DSMLValue value : attribute.getValues()) {
+        values.add(value.getValue());
+      }
+    }
+    return values;
+  }
+
+  private static List<String> ids(List<Reference> references) {
+    List<String> ids = new ArrayList<String>();
+    for (Reference reference : references) {
+      ids.add(reference.getToPsoID().getID());
+    }
+    return ids;
+  }
+
+  public void testAddMissingValues() throws Exception {
+
+    psp.present.add("a");
+
+    assertEquals(Arrays.asList("b", "c"), values(consumer.processModificationData(pso("a", "b", "c"),
+        ModificationMode.ADD)));
+    // a single query for every value of the attribute
+    assertEquals(1, psp.queries);
+  }
+
+  public void testDeletePresentValues() throws Exception {
+
+    psp.present.add("a");
+    psp.present.add("c");
+
+    assertEquals(Arrays.asList("a", "c"), values(consumer.processModificationData(pso("a", "b", "c"),
+        ModificationMode.DELETE)));
+    assertEquals(1, psp.queries);
+  }
+
+  public void testDeleteRetainAll() throws Exception {
+
+    psp.present.add("a");
+    psp.psoDefinition.getPsoAttribute("isMemberOf").setRetainAll(true);
+
+    assertTrue(consumer.processModificationData(pso("a"), ModificationMode.DELETE).isEmpty());
+    assertEquals(0, psp.queries);
+
+    // values are still added
+    assertEquals(Arrays.asList("b"), values(consumer.processModificationData(pso("b"), ModificationMode.ADD)));
+  }
+
+  public void testDeleteValuesOfMissingObject() throws Exception {
+
+    psp.exists = false;
+
+    assertTrue(consumer.processModificationData(pso("a"), ModificationMode.DELETE).isEmpty());
+  }
+
+  public void testAddValuesToMissingObject() throws Exception {
+
+    psp.exists = false;
+
+    try {
+      consumer.processModificationData(pso("a"), ModificationMode.ADD);
+      fail("Adding values to a missing object must fail.");
+    } catch (PspException e) {
+      // expected
+    }
+  }
+
+  public void testAddMissingReferences() throws Exception {
+
+    psp.present.add("uid=a");
+
+    assertEquals(Arrays.asList("uid=b"), ids(consumer.processModificationReferences(groupPso("uid=a", "uid=b"),
+        ModificationMode.ADD)));
+    assertEquals(1, psp.queries);
+  }
+
+  public void testDeletePresentReferences() throws Exception {
+
+    psp.present.add("uid=a");
+
+    assertEquals(Arrays.asList("uid=a"), ids(consumer.processModificationReferences(groupPso("uid=a", "uid=b"),
+        ModificationMode.DELETE)));
+    assertEquals(1, psp.queries);
+  }
+
+  public void testDeleteReferencesOfMissingObject() throws Exception {
+
+    psp.exists = false;
+
+    assertTrue(consumer.processModificationReferences(groupPso("uid=a"), ModificationMode.DELETE).isEmpty());
+  }
+
+  public void testAddReferencesToMissingObject() throws Exception {
+
+    psp.exists = false;
+
+    try {
+      consumer.processModificationReferences(groupPso("uid=a"), ModificationMode.ADD);
+      fail("Adding references to a missing object must fail.");
+    } catch (PspException e) {
+      // expected
+    }
+  }
+
+  public void testPartitionKey() throws Exception {
+
+    // memberships are keyed by group
+    assertEquals("group:a", PspChangeLogConsumer.getPartitionKey(Change.MEMBERSHIP_ADD, "group:a"));
+    assertEquals("group:a", PspChangeLogConsumer.getPartitionKey(Change.MEMBERSHIP_DELETE, "group:a"));
+
+    // group updates replace values which memberships of other groups may write
+    assertNull(PspChangeLogConsumer.getPartitionKey(Change.UPDATE, "group:a"));
+
+    // stem updates are keyed by stem
+    assertEquals("stem:a", PspChangeLogConsumer.getPartitionKey(Change.UPDATE, "stem:a"));
+
+    // adds, deletes, and renames affect other objects
+    assertNull(PspChangeLogConsumer.getPartitionKey(Change.ADD, "group:a"));
+    assertNull(PspChangeLogConsumer.getPartitionKey(Change.DELETE, "group:a"));
+    assertNull(PspChangeLogConsumer.getPartitionKey(Change.RENAME, "group:a"));
+    assertNull(PspChangeLogConsumer.getPartitionKey(Change.ADD, "stem:a"));
+    assertNull(PspChangeLogConsumer.getPartitionKey(Change.DELETE, "stem:a"));
+    assertNull(PspChangeLogConsumer.getPartitionKey(Change.RENAME, "stem:a"));
+    assertNull(PspChangeLogConsumer.getPartitionKey(Change.OTHER, null));
+  }
+
+  public void testExecutorServiceFollowsThreads() throws Exception {
+
+    try {
+      assertNull(PspChangeLogConsumer.getExecutorService(1));
+
+      ExecutorService workers = PspChangeLogConsumer.getExecutorService(4);
+      assertNotNull(workers);
+      assertSame(workers, PspChangeLogConsumer.getExecutorService(4));
+
+      // resized
+      ExecutorService resized = PspChangeLogConsumer.getExecutorService(2);
+      assertNotSame(workers, resized);
+      assertTrue(workers.isShutdown());
+
+      // disabled
+      assertNull(PspChangeLogConsumer.getExecutorService(1));
+      assertTrue(resized.isShutdown());
+    } finally {
+      PspChangeLogConsumer.getExecutorService(1);
+    }
+  }
+
+  public void testProcessConcurrently() throws Exception {
+
+    final Map<Long, String> keys = new HashMap<Long, String>();
+    keys.put(1L, "group:a");
+    keys.put(2L, "group:b");
+    keys.put(3L, "group:a");
+    keys.put(4L, null);
+    keys.put(5L, "group:b");
+    keys.put(6L, "group:a");
+
+    final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+
+    PspChangeLogConsumer concurrentConsumer = new PspChangeLogConsumer() {
+
+      public void initialize() {
+      }
+
+      public Psp getPsp() {
+        return psp;
+      }
+
+      protected String getPartitionKey(ChangeLogEntry changeLogEntry) {
+        return keys.get(changeLogEntry.getSequenceNumber());
+      }
+
+      public void processChangeLogEntry(ChangeLogEntry changeLogEntry) throws Exception {
+        events.add("start " + changeLogEntry.getSequenceNumber());
+        // the entries of group a are slower than the others
+        if ("group:a".equals(keys.get(changeLogEntry.getSequenceNumber()))) {
+          Thread.sleep(50);
+        }
+        events.add("end " + changeLogEntry.getSequenceNumber());
+      }
+    };
+
+    List<ChangeLogEntry> entries = new ArrayList<ChangeLogEntry>();
+    for (long sequenceNumber = 1; sequenceNumber <= 6; sequenceNumber++) {
+      ChangeLogEntry changeLogEntry = new ChangeLogEntry();
+      changeLogEntry.setSequenceNumber(sequenceNumber);
+      entries.add(changeLogEntry);
+    }
+
+    try {
+      ExecutorService workers = PspChangeLogConsumer.getExecutorService(4);
+      assertEquals(6, concurrentConsumer.processChangeLogEntryListConcurrently(entries,
+          new ChangeLogProcessorMetadata(), workers));
+    } finally {
+      PspChangeLogConsumer.getExecutorService(1);
+    }
+
+    assertEquals(12, events.size());
+
+    // group b does not wait for group a
+    assertTrue(events.indexOf("end 2") < events.indexOf("end 1"));
+
+    // entries of the same group are processed in order
+    assertTrue(events.indexOf("end 1") < events.indexOf("start 3"));
+    assertTrue(events.indexOf("end 2") < events.indexOf("start 5"));
+
+    // an entry without a key is processed after every preceding entry and before every following entry
+    assertTrue(events.indexOf("end 1") < events.indexOf("start 4"));
+    assertTrue(events.indexOf("end 2") < events.indexOf("start 4"));
+    assertTrue(events.indexOf("end 3") < events.indexOf("start 4"));
+    assertTrue(events.indexOf("end 4") < events.indexOf("start 5"));
+    assertTrue(events.indexOf("end 4") < events.indexOf("start 6"));
+  }
+}
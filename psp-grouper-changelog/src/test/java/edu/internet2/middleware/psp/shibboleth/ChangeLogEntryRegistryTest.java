@@ -0,0 +1,79 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.psp.shibboleth;
+
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+import junit.textui.TestRunner;
+
+import edu.internet2.middleware.grouper.changeLog.ChangeLogEntry;
+
+/**
+ * Tests the registry of change log entries being processed.
+ */
+public class ChangeLogEntryRegistryTest extends TestCase {
+
+  public static void main(String[] args) {
+    TestRunner.run(ChangeLogEntryRegistryTest.class);
+  }
+
+  public ChangeLogEntryRegistryTest(String name) {
+    super(name);
+  }
+
+  private ChangeLogEntry entry(long sequenceNumber) {
+    ChangeLogEntry changeLogEntry = new ChangeLogEntry();
+    changeLogEntry.setSequenceNumber(sequenceNumber);
+    return changeLogEntry;
+  }
+
+  public void testRegisterAndUnregister() {
+
+    List<ChangeLogEntry> entries = Arrays.asList(entry(1), entry(2));
+
+    ChangeLogEntryRegistry.register(entries);
+    try {
+      assertSame(entries.get(0), ChangeLogEntryRegistry.get(1));
+      assertSame(entries.get(1), ChangeLogEntryRegistry.get(2));
+      assertNull(ChangeLogEntryRegistry.get(3));
+    } finally {
+      ChangeLogEntryRegistry.unregister(entries);
+    }
+
+    assertNull(ChangeLogEntryRegistry.get(1));
+    assertNull(ChangeLogEntryRegistry.get(2));
+  }
+
+  public void testUnregisterOnlyOwnEntries() {
+
+    List<ChangeLogEntry> first = Arrays.asList(entry(1));
+    List<ChangeLogEntry> second = Arrays.asList(entry(1));
+
+    ChangeLogEntryRegistry.register(first);
+    ChangeLogEntryRegistry.register(second);
+
+    // the first batch must not remove the entry registered by the second batch
+    ChangeLogEntryRegistry.unregister(first);
+    assertSame(second.get(0), ChangeLogEntryRegistry.get(1));
+
+    ChangeLogEntryRegistry.unregister(second);
+    assertNull(ChangeLogEntryRegistry.get(1));
+  }
+}
@@ -34,13 +34,20 @@ package edu.internet2.middleware.psp.grouper;
  */
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
-import java.util.TreeSet;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
 import org.opensaml.xml.util.DatatypeHelper;
 import org.openspml.v2.msg.spml.AddRequest;
@@ -96,12 +103,21 @@ import edu.internet2.middleware.grouper.exception.GroupAddException;
 import edu.internet2.middleware.grouper.exception.GroupDeleteException;
 import edu.internet2.middleware.grouper.exception.InsufficientPrivilegeException;
 import edu.internet2.middleware.grouper.exception.SchemaException;
+import edu.internet2.middleware.grouper.attr.value.AttributeAssignValue;
 import edu.internet2.middleware.grouper.exception.StemAddException;
+import edu.internet2.middleware.grouper.hibernate.GrouperRollbackType;
+import edu.internet2.middleware.grouper.hibernate.GrouperTransaction;
+import edu.internet2.middleware.grouper.hibernate.GrouperTransactionHandler;
+import edu.internet2.middleware.grouper.hibernate.GrouperTransactionType;
+import edu.internet2.middleware.grouper.internal.dao.QueryOptions;
+import edu.internet2.middleware.grouper.internal.dao.QuerySort;
+import edu.internet2.middleware.grouper.misc.GrouperDAOFactory;
 import edu.internet2.middleware.grouper.util.GrouperUtil;
 import edu.internet2.middleware.psp.PspException;
 import edu.internet2.middleware.psp.spml.config.Pso;
 import edu.internet2.middleware.psp.spml.config.PsoIdentifyingAttribute;
 import edu.internet2.middleware.psp.spml.provider.BaseSpmlTarget;
+import edu.internet2.middleware.psp.spml.provider.SpmlBatchAddTarget;
 import edu.internet2.middleware.psp.spml.request.AlternateIdentifier;
 import edu.internet2.middleware.psp.util.PSPUtil;
 import edu.internet2.middleware.shibboleth.common.service.ServiceException;
@@ -110,13 +126,58 @@ import edu.internet2.middleware.subject.SubjectNotFoundException;
 import edu.internet2.middleware.subject.SubjectNotUniqueException;
 
 /** An (incomplete) spmlv2 provisioning target which provisions Grouper. */
-public class GrouperSpmlTarget extends BaseSpmlTarget {
+public class GrouperSpmlTarget extends BaseSpmlTarget implements SpmlBatchAddTarget {
 
     /** Logger. */
     private static final Logger LOG = LoggerFactory.getLogger(GrouperSpmlTarget.class);
 
-    /** The Grouper session. */
-    private GrouperSession grouperSession;
+    /** Orders add requests so that parent stems are added before their children. */
+    private static final Comparator<AddRequest> PARENTS_FIRST = new Comparator<AddRequest>() {
+
+        public int compare(AddRequest addRequest1, AddRequest addRequest2) {
+            return depth(addRequest1.getPsoID().getID()) - depth(addRequest2.getPsoID().getID());
+        }
+
+        private int depth(String name) {
+            int depth = 0;
+            for (int i = 0; i < name.length(); i++) {
+                if (name.charAt(i) == ':') {
+                    depth++;
+                }
+            }
+            return depth;
+        }
+    };
+
+    /** The number of groups whose custom attributes are read in one query, the size of Grouper's in clause batches. */
+    private static final int ATTRIBUTE_PAGE_SIZE = 100;
+
+    /** Root Grouper sessions by thread, stopped once their thread has exited. */
+    private final Map<Thread, GrouperSession> grouperSessions = new WeakHashMap<Thread, GrouperSession>();
+
+    /** The number of members per page when enumerating the members of a group. */
+    private int membershipPageSize = 1000;
+
+    /** The maximum number of membership changes applied in one transaction. */
+    private int membershipBatchSize = 500;
+
+    /** Fields by name, cached for the life of the target. */
+    private Map<String, Field> fields = new ConcurrentHashMap<String, Field>();
+
+    /** The number of seconds a group or stem which was not found is remembered as missing, 0 to disable. */
+    private int negativeCacheTtl = 0;
+
+    /** The maximum number of groups and stems remembered as missing. */
+    private int negativeCacheSize = 10000;
+
+    /** The expiration time in milliseconds of object type and name pairs which were not found. */
+    private final Map<String, Long> missingObjects = new ConcurrentHashMap<String, Long>();
+
+    /** Stems known to exist by name, the parents of the groups and stems added by the current bulk add call. */
+    private final ThreadLocal<Map<String, Stem>> stems = new ThreadLocal<Map<String, Stem>>();
+
+    /** The maximum number of objects added in one transaction by {@link #execute(List)}. */
+    private int addBatchSize = 100;
 
     /**
      * {@inheritDoc}
@@ -393,6 +454,7 @@ public class GrouperSpmlTarget extends BaseSpmlTarget {
                         alternateIdentifier.getID(),});
                 group.setExtension(newExtension, true);
                 group.store();
+                missingObjects.clear();
             } else {
                 fail(modifyResponse, ErrorCode.CUSTOM_ERROR, "Unable to move group.");
                 return;
@@ -419,7 +481,8 @@ public class GrouperSpmlTarget extends BaseSpmlTarget {
                 fail(modifyResponse, ErrorCode.UNSUPPORTED_OPERATION);
                 return;
             }
-            modifyMemberships(group, referenceModification.getCapabilityData(), ModificationMode.ADD, modifyResponse);
+            modifyMemberships(group, referenceModification.getCapabilityData(),
+                    referenceModification.getModificationMode(), modifyResponse);
             if (!modifyResponse.getStatus().equals(StatusCode.SUCCESS)) {
                 return;
             }
@@ -470,6 +533,7 @@ public class GrouperSpmlTarget extends BaseSpmlTarget {
                         alternateIdentifier.getID(),});
                 stem.setExtension(newExtension, true);
                 stem.store();
+                missingObjects.clear();
             } else {
                 fail(modifyResponse, ErrorCode.CUSTOM_ERROR, "Unable to move stem.");
                 return;
@@ -506,6 +570,14 @@ public class GrouperSpmlTarget extends BaseSpmlTarget {
             returnData = ReturnData.EVERYTHING;
         }
 
+        // has reference queries apply to the base pso only
+        for (QueryClause queryClause : query.getQueryClauses()) {
+            if (queryClause instanceof HasReference) {
+                searchHasReference(query, (HasReference) queryClause, returnData, searchResponse);
+                return;
+            }
+        }
+
         // scope, default to subtree
         Scope scope = Scope.SUB;
         if (query.getScope() != null) {
@@ -526,7 +598,7 @@ public class GrouperSpmlTarget extends BaseSpmlTarget {
                 fail(searchResponse, ErrorCode.MALFORMED_REQUEST, "Unknown base target ID.");
                 return;
             }
-            baseStem = StemFinder.findByName(grouperSession, query.getBasePsoID().getID(), false);
+            baseStem = StemFinder.findByName(getGrouperSession(), query.getBasePsoID().getID(), false);
             if (baseStem == null) {
                 fail(searchResponse, ErrorCode.MALFORMED_REQUEST, "Unable to find base pso ID.");
                 return;
@@ -534,24 +606,12 @@ public class GrouperSpmlTarget extends BaseSpmlTarget {
         }
         // use root stem as base if base pso id is not specified
         if (baseStem == null) {
-            baseStem = StemFinder.findRootStem(grouperSession);
+            baseStem = StemFinder.findRootStem(getGrouperSession());
         }
 
         // query clause
         for (QueryClause queryClause : query.getQueryClauses()) {
-            if (queryClause instanceof HasReference) {
-
-                HasReference hasReference = (HasReference) queryClause;
-
-                if (hasReference.getTypeOfReference() != null && hasReference.getToPsoID() != null
-                        && hasReference.getToPsoID().getID() != null) {
-                    // TODO implement
-                }
-
-                fail(searchResponse, ErrorCode.MALFORMED_REQUEST, "Unsupported query.");
-                return;
-
-            } else if (queryClause instanceof Filter) {
+            if (queryClause instanceof Filter) {
 
                 FilterItem filterItem = ((Filter) queryClause).getItem();
 
@@ -569,17 +629,28 @@ public class GrouperSpmlTarget extends BaseSpmlTarget {
                 }
 
                 if (value.equals("group")) {
-                    Set<Group> groups = baseStem.getChildGroups(scope);
-                    for (Group group : groups) {
-                        try {
-                            searchResponse.addPSO(getPSO(group, returnData));
-                        } catch (Spml2Exception e) {
-                            fail(searchResponse, ErrorCode.CUSTOM_ERROR, e);
-                            return;
-                        } catch (PspException e) {
-                            fail(searchResponse, ErrorCode.CUSTOM_ERROR, e);
-                            return;
+                    List<Group> groups = new ArrayList<Group>(baseStem.getChildGroups(scope));
+                    try {
+                        // custom attributes are read a page of groups at a time rather than once per group
+                        boolean prefetch =
+                                !returnData.equals(ReturnData.IDENTIFIER)
+                                        && hasCustomAttributes(getPSP().getPsos(getId()));
+                        for (int from = 0; from < groups.size(); from += ATTRIBUTE_PAGE_SIZE) {
+                            List<Group> page =
+                                    groups.subList(from, Math.min(from + ATTRIBUTE_PAGE_SIZE, groups.size()));
+                            Map<String, Map<String, AttributeAssignValue>> customAttributes =
+                                    prefetch ? getCustomAttributes(page) : null;
+                            for (Group group : page) {
+                                searchResponse.addPSO(getPSO(group, returnData, customAttributes == null ? null
+                                        : customAttributes.get(group.getUuid())));
+                            }
                         }
+                    } catch (Spml2Exception e) {
+                        fail(searchResponse, ErrorCode.CUSTOM_ERROR, e);
+                        return;
+                    } catch (PspException e) {
+                        fail(searchResponse, ErrorCode.CUSTOM_ERROR, e);
+                        return;
                     }
                 } else if (value.equals("stem")) {
                     Set<Stem> stems = baseStem.getChildStems(scope);
@@ -606,19 +677,104 @@ public class GrouperSpmlTarget extends BaseSpmlTarget {
         }
     }
 
+    /**
+     * Add groups and stems in bulk. Psp adds objects to this target in bulk when a sync, or a window of the sync
+     * requests of a bulk sync, adds more than one object.
+     * 
+     * The requests are sorted so that parent stems are added before their children, and are executed in batches of at
+     * most addBatchSize requests, each batch in one transaction. A group and its initial memberships are added in the
+     * transaction of its batch. If any request of a batch fails, the batch is rolled back and its requests are
+     * executed again one at a time, so that the failure is reported only for the failing request. Parent stems are
+     * looked up once per call.
+     * 
+     * @param addRequests the add requests
+     * @return the add responses, in the order of the add requests
+     */
+    public List<AddResponse> execute(List<AddRequest> addRequests) {
+
+        stems.set(new HashMap<String, Stem>());
+        try {
+            return executeBatches(addRequests);
+        } finally {
+            stems.remove();
+        }
+    }
+
+    /**
+     * Add groups and stems in batches, see {@link #execute(List)}.
+     * 
+     * @param addRequests the add requests
+     * @return the add responses, in the order of the add requests
+     */
+    protected List<AddResponse> executeBatches(List<AddRequest> addRequests) {
+
+        List<AddRequest> sortedAddRequests = new ArrayList<AddRequest>(addRequests);
+        Collections.sort(sortedAddRequests, PARENTS_FIRST);
+
+        Map<AddRequest, AddResponse> addResponses = new IdentityHashMap<AddRequest, AddResponse>();
+        for (int fromIndex = 0; fromIndex < sortedAddRequests.size(); fromIndex += addBatchSize) {
+            final List<AddRequest> batch =
+                    sortedAddRequests.subList(fromIndex, Math.min(fromIndex + addBatchSize, sortedAddRequests.size()));
+            final List<AddResponse> batchResponses = new ArrayList<AddResponse>(batch.size());
+
+            Object committed = null;
+            try {
+                committed = GrouperTransaction.callbackGrouperTransaction(GrouperTransactionType.READ_WRITE_NEW,
+                        new GrouperTransactionHandler() {
+
+                            public Object callback(GrouperTransaction grouperTransaction) {
+                                for (AddRequest addRequest : batch) {
+                                    AddResponse addResponse = execute(addRequest);
+                                    batchResponses.add(addResponse);
+                                    if (!addResponse.getStatus().equals(StatusCode.SUCCESS)) {
+                                        grouperTransaction.rollback(GrouperRollbackType.ROLLBACK_NOW);
+                                        return Boolean.FALSE;
+                                    }
+                                }
+                                return Boolean.TRUE;
+                            }
+                        });
+            } catch (RuntimeException e) {
+                LOG.error("Target '{}' - Bulk add of {} objects failed : {}", new Object[] {getId(), batch.size(),
+                        e.getMessage(),});
+            }
+
+            if (Boolean.TRUE.equals(committed)) {
+                LOG.debug("Target '{}' - Bulk added {} objects", getId(), batch.size());
+                for (int i = 0; i < batch.size(); i++) {
+                    addResponses.put(batch.get(i), batchResponses.get(i));
+                }
+            } else {
+                // stems added by the rolled back batch do not exist
+                stems.get().clear();
+                LOG.info("Target '{}' - Bulk add of {} objects rolled back, adding one at a time", getId(), batch
+                        .size());
+                for (AddRequest addRequest : batch) {
+                    addResponses.put(addRequest, execute(addRequest));
+                }
+            }
+        }
+
+        List<AddResponse> responses = new ArrayList<AddResponse>(addRequests.size());
+        for (AddRequest addRequest : addRequests) {
+            responses.add(addResponses.get(addRequest));
+        }
+        return responses;
+    }
+
     /**
      * Add a group.
      * 
      * @param addRequest the add request
      * @param addResponse the add response
      */
-    public void executeAddGroup(AddRequest addRequest, AddResponse addResponse) {
+    public void executeAddGroup(final AddRequest addRequest, final AddResponse addResponse) {
 
         String groupName = addRequest.getPsoID().getID();
 
         String parentStemName = GrouperUtil.parentStemNameFromName(groupName);
 
-        Stem parentStem = StemFinder.findByName(grouperSession, parentStemName, false);
+        Stem parentStem = getStem(parentStemName);
         if (parentStem == null) {
             fail(addResponse, ErrorCode.CUSTOM_ERROR, "Unable to add group. Parent stem not found.");
             return;
@@ -635,7 +791,7 @@ public class GrouperSpmlTarget extends BaseSpmlTarget {
         }
 
         // group save object
-        GroupSave groupSave = new GroupSave(grouperSession);
+        final GroupSave groupSave = new GroupSave(getGrouperSession());
         groupSave.assignCreateParentStemsIfNotExist(false);
 
         groupSave.assignName(groupName);
@@ -651,11 +807,16 @@ public class GrouperSpmlTarget extends BaseSpmlTarget {
             groupSave.assignDescription(description);
         }
 
+        // the group and its memberships are added in one transaction
         Group group = null;
         try {
-            LOG.debug("Target '{}' - Adding group '{}'", getId(), group);
-            group = groupSave.save();
-            LOG.info("Target '{}' - Added group '{}'", getId(), group);
+            group = (Group) GrouperTransaction.callbackGrouperTransaction(
+                    GrouperTransactionType.READ_WRITE_OR_USE_EXISTING, new GrouperTransactionHandler() {
+
+                        public Object callback(GrouperTransaction grouperTransaction) {
+                            return addGroup(groupSave, addRequest, addResponse, grouperTransaction);
+                        }
+                    });
         } catch (GroupAddException e) {
             fail(addResponse, ErrorCode.CUSTOM_ERROR, e);
             return;
@@ -664,12 +825,8 @@ public class GrouperSpmlTarget extends BaseSpmlTarget {
             return;
         }
 
-        // references
-        if (addRequest.getReturnData().equals(ReturnData.EVERYTHING)) {
-            modifyMemberships(group, addRequest.getCapabilityData(), ModificationMode.ADD, addResponse);
-            if (!addResponse.getStatus().equals(StatusCode.SUCCESS)) {
-                return;
-            }
+        if (group == null) {
+            return;
         }
 
         try {
@@ -682,6 +839,37 @@ public class GrouperSpmlTarget extends BaseSpmlTarget {
         }
     }
 
+    /**
+     * Save a group and add its initial memberships. If the memberships can not be added, the transaction is rolled back
+     * so that the group is not added either.
+     * 
+     * @param groupSave the group save object
+     * @param addRequest the add request
+     * @param addResponse the add response
+     * @param grouperTransaction the transaction
+     * @return the group, or null if the memberships could not be added
+     */
+    protected Group addGroup(GroupSave groupSave, AddRequest addRequest, AddResponse addResponse,
+            GrouperTransaction grouperTransaction) {
+
+        LOG.debug("Target '{}' - Adding group '{}'", getId(), addRequest.getPsoID().getID());
+        Group group = groupSave.save();
+
+        // references
+        if (addRequest.getReturnData().equals(ReturnData.EVERYTHING)) {
+            modifyMemberships(group, addRequest.getCapabilityData(), ModificationMode.ADD, addResponse);
+            if (!addResponse.getStatus().equals(StatusCode.SUCCESS)) {
+                LOG.error("Target '{}' - Unable to add memberships of group '{}', rolling back", getId(), group);
+                grouperTransaction.rollback(GrouperRollbackType.ROLLBACK_NOW);
+                return null;
+            }
+        }
+
+        LOG.info("Target '{}' - Added group '{}'", getId(), group);
+        forgetMissing(group.getName());
+        return group;
+    }
+
     /**
      * Add a stem.
      * 
@@ -694,13 +882,7 @@ public class GrouperSpmlTarget extends BaseSpmlTarget {
 
         String parentStemName = GrouperUtil.parentStemNameFromName(stemName);
 
-        Stem parentStem = null;
-        if (parentStemName == null) {
-            parentStem = StemFinder.findRootStem(grouperSession);
-        } else {
-            parentStem = StemFinder.findByName(grouperSession, parentStemName, false);
-        }
-
+        Stem parentStem = getStem(parentStemName);
         if (parentStem == null) {
             fail(addResponse, ErrorCode.CUSTOM_ERROR, "Unable to add stem. Parent stem not found.");
             LOG.error(PSPUtil.toString(addResponse));
@@ -719,7 +901,7 @@ public class GrouperSpmlTarget extends BaseSpmlTarget {
         }
 
         // stem save object
-        StemSave stemSave = new StemSave(grouperSession);
+        StemSave stemSave = new StemSave(getGrouperSession());
         stemSave.assignCreateParentStemsIfNotExist(false);
 
         // required attributes
@@ -740,6 +922,11 @@ public class GrouperSpmlTarget extends BaseSpmlTarget {
             // create the stem
             Stem stem = stemSave.save();
             LOG.info("Target '{}' - Added stem '{}'", getId(), stem);
+            forgetMissing(stem.getName());
+            Map<String, Stem> knownStems = stems.get();
+            if (knownStems != null) {
+                knownStems.put(stem.getName(), stem);
+            }
             addResponse.setPso(getPSO(stem, addRequest.getReturnData()));
             addResponse.setStatus(StatusCode.SUCCESS);
         } catch (StemAddException e) {
@@ -757,20 +944,48 @@ public class GrouperSpmlTarget extends BaseSpmlTarget {
         }
     }
 
+    /**
+     * Return the stem with the given name, or the root stem if the name is null. During a bulk add, see
+     * {@link #execute(List)}, stems which exist are remembered by the calling thread until the bulk add returns, so
+     * that adding many children of the same stem does not query Grouper for the stem each time.
+     * 
+     * @param name the name of the stem
+     * @return the stem or null if the stem does not exist
+     */
+    protected Stem getStem(String name) {
+
+        Map<String, Stem> knownStems = stems.get();
+        String key = name == null ? ":" : name;
+        Stem stem = knownStems == null ? null : knownStems.get(key);
+        if (stem == null) {
+            if (name == null) {
+                stem = StemFinder.findRootStem(getGrouperSession());
+            } else {
+                stem = StemFinder.findByName(getGrouperSession(), name, false);
+            }
+            if (stem != null && knownStems != null) {
+                knownStems.put(key, stem);
+            }
+        }
+        return stem;
+    }
+
     /**
      * Return the Grouper object identified by the given id. Returns either a {@link Group}, {@link Stem}, or null if
      * nothing is found.
      * 
-     * If the {@link Request} has a {@link Pso.ENTITY_NAME_ATTRIBUTE} attribute of "group", then attempt to find a group
-     * by name.
+     * If the object type of the {@link Request}, see {@link #getObjectType(Request)}, is "group", then attempt to find
+     * a group by name.
      * 
-     * If the {@link Request} has a {@link Pso.ENTITY_NAME_ATTRIBUTE} attribute of "stem", then attempt to find a stem
-     * by name.
+     * If the object type of the {@link Request} is "stem", then attempt to find a stem by name.
      * 
      * If the {@link Request} does not have a {@link Pso.ENTITY_NAME_ATTRIBUTE}, attempt to find a group first then a
      * stem. If both a group and stem is found, set the response status to {@link ErrorCode.CUSTOM_ERROR} and return
      * null.
      * 
+     * Groups and stems which are not found are remembered as missing for negativeCacheTtl seconds, so that repeated
+     * lookups of the same missing object during a bulk operation do not query Grouper.
+     * 
      * @param id the identifier
      * @param request the SPML request
      * @param response the SPML response
@@ -778,16 +993,22 @@ public class GrouperSpmlTarget extends BaseSpmlTarget {
      */
     protected Object getObject(String id, Request request, Response response) {
 
-        String entityName = request.findOpenContentAttrValueByName(Pso.ENTITY_NAME_ATTRIBUTE);
+        String objectType = getObjectType(request);
 
         Group group = null;
-        if (entityName == null || entityName.equals("group")) {
-            group = GroupFinder.findByName(grouperSession, id, false);
+        if ((objectType == null || objectType.equals("group")) && !isMissing("group", id)) {
+            group = GroupFinder.findByName(getGrouperSession(), id, false);
+            if (group == null) {
+                putMissing("group", id);
+            }
         }
 
         Stem stem = null;
-        if (entityName == null || entityName.equals("stem")) {
-            stem = StemFinder.findByName(grouperSession, id, false);
+        if ((objectType == null || objectType.equals("stem")) && !isMissing("stem", id)) {
+            stem = StemFinder.findByName(getGrouperSession(), id, false);
+            if (stem == null) {
+                putMissing("stem", id);
+            }
         }
 
         if (group == null && stem == null) {
@@ -806,6 +1027,299 @@ public class GrouperSpmlTarget extends BaseSpmlTarget {
         }
     }
 
+    /**
+     * Return the type of object, either "group" or "stem", the given request refers to, or null if unknown.
+     * 
+     * The type is the value of the objectclass identifying attribute of the schema entity named by the
+     * {@link Pso.ENTITY_NAME_ATTRIBUTE} attribute of the request. If the schema entity is not known, the entity name
+     * itself is the type.
+     * 
+     * @param request the SPML request
+     * @return "group", "stem", or null
+     */
+    protected String getObjectType(Request request) {
+
+        String entityName = request.findOpenContentAttrValueByName(Pso.ENTITY_NAME_ATTRIBUTE);
+        if (entityName == null) {
+            return null;
+        }
+
+        if (getPSP() != null) {
+            Pso psoDefinition = getPSP().getPso(getId(), entityName);
+            if (psoDefinition != null) {
+                PsoIdentifyingAttribute identifyingAttribute = psoDefinition.getPsoIdentifyingAttribute();
+                if (identifyingAttribute != null && identifyingAttribute.getName().equalsIgnoreCase("objectclass")) {
+                    return identifyingAttribute.getValue();
+                }
+            }
+        }
+
+        return entityName;
+    }
+
+    /**
+     * Return true if the object of the given type and name was recently not found.
+     * 
+     * @param objectType "group" or "stem"
+     * @param name the name of the object
+     * @return true if the object is known to be missing
+     */
+    protected boolean isMissing(String objectType, String name) {
+
+        if (negativeCacheTtl <= 0) {
+            return false;
+        }
+
+        String key = objectType + " " + name;
+        Long expiration = missingObjects.get(key);
+        if (expiration == null) {
+            return false;
+        }
+        if (expiration < System.currentTimeMillis()) {
+            missingObjects.remove(key);
+            return false;
+        }
+
+        LOG.debug("Target '{}' - The {} '{}' is known to be missing", new Object[] {getId(), objectType, name,});
+        return true;
+    }
+
+    /**
+     * Remember that the object of the given type and name was not found. If the negative cache is full, expired
+     * entries are removed, and the object is not remembered if none have expired.
+     * 
+     * @param objectType "group" or "stem"
+     * @param name the name of the object
+     */
+    protected void putMissing(String objectType, String name) {
+
+        if (negativeCacheTtl <= 0) {
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        if (missingObjects.size() >= negativeCacheSize) {
+            Iterator<Long> expirations = missingObjects.values().iterator();
+            while (expirations.hasNext()) {
+                if (expirations.next() < now) {
+                    expirations.remove();
+                }
+            }
+            if (missingObjects.size() >= negativeCacheSize) {
+                return;
+            }
+        }
+
+        missingObjects.put(objectType + " " + name, now + TimeUnit.SECONDS.toMillis(negativeCacheTtl));
+    }
+
+    /**
+     * Forget that the object with the given name, or any of its parent stems, was not found, because it was added.
+     * 
+     * @param name the name of the added object
+     */
+    protected void forgetMissing(String name) {
+
+        String ancestorName = name;
+        while (ancestorName != null) {
+            missingObjects.remove("group " + ancestorName);
+            missingObjects.remove("stem " + ancestorName);
+            int index = ancestorName.lastIndexOf(':');
+            ancestorName = index > 0 ? ancestorName.substring(0, index) : null;
+        }
+    }
+
+    /**
+     * Return the group which is the base of a {@link HasReference} query if the group has the reference.
+     * 
+     * The existence of the membership is determined by a single query for the membership of the referenced subject in
+     * the group, rather than by retrieving the members of the group, so the cost of the query does not depend on the
+     * size of the group. The scope of the query must be PSO.
+     * 
+     * @param query the spml query
+     * @param hasReference the has reference query clause
+     * @param returnData the spml return data
+     * @param searchResponse the spml search response
+     */
+    protected void searchHasReference(Query query, HasReference hasReference, ReturnData returnData,
+            SearchResponse searchResponse) {
+
+        if (query.getQueryClauses().length != 1 || hasReference.getTypeOfReference() == null
+                || hasReference.getToPsoID() == null || hasReference.getToPsoID().getID() == null) {
+            fail(searchResponse, ErrorCode.MALFORMED_REQUEST, "Unsupported query.");
+            return;
+        }
+
+        if (query.getScope() == null || !query.getScope().equals(org.openspml.v2.msg.spmlsearch.Scope.PSO)) {
+            fail(searchResponse, ErrorCode.MALFORMED_REQUEST, "The scope of a has reference query must be PSO.");
+            return;
+        }
+
+        if (query.getBasePsoID() == null || query.getBasePsoID().getID() == null) {
+            fail(searchResponse, ErrorCode.MALFORMED_REQUEST, "A basePsoID is required.");
+            return;
+        }
+
+        if (query.getBasePsoID().getTargetID() != null && !query.getBasePsoID().getTargetID().equals(getId())) {
+            fail(searchResponse, ErrorCode.MALFORMED_REQUEST, "Unknown base target ID.");
+            return;
+        }
+
+        Group group = GroupFinder.findByName(getGrouperSession(), query.getBasePsoID().getID(), false);
+        if (group == null) {
+            fail(searchResponse, ErrorCode.NO_SUCH_IDENTIFIER);
+            return;
+        }
+
+        // references to other targets are not memberships
+        if (hasReference.getToPsoID().getTargetID() != null
+                && !hasReference.getToPsoID().getTargetID().equals(getId())) {
+            return;
+        }
+
+        try {
+            if (hasMember(group, hasReference.getToPsoID().getID(), hasReference.getTypeOfReference())) {
+                searchResponse.addPSO(getPSO(group, returnData));
+            }
+        } catch (SchemaException e) {
+            fail(searchResponse, ErrorCode.CUSTOM_ERROR, e);
+        } catch (SubjectNotUniqueException e) {
+            fail(searchResponse, ErrorCode.CUSTOM_ERROR, e);
+        } catch (Spml2Exception e) {
+            fail(searchResponse, ErrorCode.CUSTOM_ERROR, e);
+        } catch (PspException e) {
+            fail(searchResponse, ErrorCode.CUSTOM_ERROR, e);
+        }
+    }
+
+    /**
+     * Return true if the subject with the given id or identifier is a member of the group in the given field. The
+     * membership is queried directly by group, member, and field.
+     * 
+     * @param group the group
+     * @param id the reference id, the name of a group for groups and the subject id otherwise
+     * @param typeOfReference the name of the membership field
+     * @return true if the subject is a member, false if the subject is not a member, does not exist, or is not referred
+     *         to by the id
+     * @throws SchemaException if the field does not exist
+     * @throws SubjectNotUniqueException if more than one subject has the id or identifier
+     */
+    protected boolean hasMember(Group group, String id, String typeOfReference) throws SchemaException,
+            SubjectNotUniqueException {
+
+        // subject, a group by name or another subject by id, see getReferenceId(Subject)
+        Subject subject = SubjectFinder.findByIdOrIdentifier(id, false);
+        if (subject == null) {
+            LOG.debug("Target '{}' - Has member '{}' of '{}' unable to find subject", new Object[] {getId(), id,
+                    group.getName(),});
+            return false;
+        }
+        if (!id.equals(getReferenceId(subject))) {
+            LOG.debug("Target '{}' - Has member '{}' of '{}' matches the identifier of subject '{}' of source '{}'",
+                    new Object[] {getId(), id, group.getName(), subject.getId(), subject.getSource().getId(),});
+            return false;
+        }
+
+        boolean hasMember = group.hasMember(subject, getField(typeOfReference));
+        LOG.debug("Target '{}' - Has member '{}' of '{}' field '{}' {}", new Object[] {getId(), id, group.getName(),
+                typeOfReference, hasMember,});
+        return hasMember;
+    }
+
+    /**
+     * Gets the number of members per page when enumerating the members of a group.
+     * 
+     * @return the number of members per page
+     */
+    public int getMembershipPageSize() {
+        return membershipPageSize;
+    }
+
+    /**
+     * Gets the maximum number of membership changes applied in one transaction.
+     * 
+     * @return the maximum number of membership changes applied in one transaction
+     */
+    public int getMembershipBatchSize() {
+        return membershipBatchSize;
+    }
+
+    /**
+     * Gets the number of seconds a group or stem which was not found is remembered as missing.
+     * 
+     * @return the number of seconds, 0 if missing objects are not remembered
+     */
+    public int getNegativeCacheTtl() {
+        return negativeCacheTtl;
+    }
+
+    /**
+     * Gets the maximum number of groups and stems remembered as missing.
+     * 
+     * @return the maximum number of groups and stems remembered as missing
+     */
+    public int getNegativeCacheSize() {
+        return negativeCacheSize;
+    }
+
+    /**
+     * Gets the maximum number of objects added in one transaction by a bulk add.
+     * 
+     * @return the maximum number of objects added in one transaction
+     */
+    public int getAddBatchSize() {
+        return addBatchSize;
+    }
+
+    /**
+     * Returns references of type "members" to the given members. The names of members which are groups are retrieved
+     * with one query rather than one query per member.
+     * 
+     * @param members the members
+     * @return the references
+     */
+    protected List<Reference> getReferences(Collection<Member> members) {
+
+        String groupSourceId = SubjectFinder.internal_getGSA().getId();
+
+        // the names of the groups which are members
+        Set<String> groupIds = new LinkedHashSet<String>();
+        for (Member member : members) {
+            if (member.getSubjectSourceId().equals(groupSourceId)) {
+                groupIds.add(member.getSubjectId());
+            }
+        }
+        Map<String, String> groupNames = new HashMap<String, String>(groupIds.size());
+        if (!groupIds.isEmpty()) {
+            for (Group group : new GroupFinder().assignGroupIds(groupIds).findGroups()) {
+                groupNames.put(group.getId(), group.getName());
+            }
+        }
+
+        List<Reference> references = new ArrayList<Reference>(members.size());
+        for (Member member : members) {
+            // reference to pso id
+            PSOIdentifier toPSOId = new PSOIdentifier();
+            // assume same target ?
+            toPSOId.setTargetID(getId());
+            // FUTURE containerID ?
+            if (member.getSubjectSourceId().equals(groupSourceId)) {
+                String groupName = groupNames.get(member.getSubjectId());
+                toPSOId.setID(groupName != null ? groupName : member.toGroup().getName());
+            } else {
+                toPSOId.setID(member.getSubjectId());
+            }
+
+            Reference reference = new Reference();
+            reference.setTypeOfReference("members");
+            reference.setToPsoID(toPSOId);
+
+            references.add(reference);
+        }
+
+        return references;
+    }
+
     /**
      * Returns a {@link PSO} applicable for the given group.
      * 
@@ -820,6 +1334,22 @@ public class GrouperSpmlTarget extends BaseSpmlTarget {
      * @throws PspException if a psp error occurs
      */
     protected PSO getPSO(Group group, ReturnData returnData) throws Spml2Exception, PspException {
+        return getPSO(group, returnData, null);
+    }
+
+    /**
+     * Returns a {@link PSO} applicable for the given group, using the given custom attribute values rather than
+     * querying them.
+     * 
+     * @param group the group
+     * @param returnData the spml return data
+     * @param customAttributes the custom attribute values of the group by attribute name, or null to query them
+     * @return the pso representation of the group
+     * @throws Spml2Exception if an spml error occurs
+     * @throws PspException if a psp error occurs
+     */
+    protected PSO getPSO(Group group, ReturnData returnData, Map<String, AttributeAssignValue> customAttributes)
+            throws Spml2Exception, PspException {
 
         PSO pso = new PSO();
 
@@ -852,13 +1382,19 @@ public class GrouperSpmlTarget extends BaseSpmlTarget {
                 }
             }
 
-            // custom attributes
-            Map<String, edu.internet2.middleware.grouper.Attribute> customAttributes = group.getAttributesMap(false);
-            for (String attributeName : customAttributes.keySet()) {
-                if (psoDefinition.getAttributeNames().contains(attributeName)) {
-                    String value = customAttributes.get(attributeName).getValue();
-                    if (!DatatypeHelper.isEmpty(value)) {
-                        data.addOpenContentElement(new DSMLAttr(attributeName, value));
+            // custom attributes, which are queried only if the schema entity has any and were not prefetched
+            if (hasCustomAttributes(psoDefinition)) {
+                if (customAttributes == null) {
+                    customAttributes = getCustomAttributes(Collections.singletonList(group)).get(group.getUuid());
+                }
+                if (customAttributes != null) {
+                    for (String attributeName : customAttributes.keySet()) {
+                        if (psoDefinition.getAttributeNames().contains(attributeName)) {
+                            String value = customAttributes.get(attributeName).getValueString();
+                            if (!DatatypeHelper.isEmpty(value)) {
+                                data.addOpenContentElement(new DSMLAttr(attributeName, value));
+                            }
+                        }
                     }
                 }
             }
@@ -866,27 +1402,22 @@ public class GrouperSpmlTarget extends BaseSpmlTarget {
             pso.setData(data);
         }
 
-        // memberships
+        // memberships, a page at a time, ordered by the unique member uuid after the subject id so that members with
+        // the same subject id in different sources are neither skipped nor repeated between pages
         if (returnData.equals(ReturnData.EVERYTHING)) {
             List<Reference> references = new ArrayList<Reference>();
-            Set<Member> sorted = new TreeSet<Member>(group.getMembers());
-            for (Member member : sorted) {
-                // reference to pso id
-                PSOIdentifier toPSOId = new PSOIdentifier();
-                // assume same target ?
-                toPSOId.setTargetID(getId());
-                // FUTURE containerID ?
-                if (member.getSubjectSourceId().equals(SubjectFinder.internal_getGSA().getId())) {
-                    toPSOId.setID(member.toGroup().getName());
-                } else {
-                    toPSOId.setID(member.getSubjectId());
+            for (int pageNumber = 1;; pageNumber++) {
+                QuerySort querySort = new QuerySort("m.uuid", true);
+                querySort.insertSortToBeginning("m.subjectIdDb", true);
+                QueryOptions queryOptions =
+                        new QueryOptions().paging(membershipPageSize, pageNumber, false).sort(querySort);
+                Set<Member> members = group.getMembers(Group.getDefaultList(), null, queryOptions);
+                LOG.debug("Target '{}' - Group '{}' members page {} size {}", new Object[] {getId(), group.getName(),
+                        pageNumber, members.size(),});
+                references.addAll(getReferences(members));
+                if (members.size() < membershipPageSize) {
+                    break;
                 }
-
-                Reference reference = new Reference();
-                reference.setTypeOfReference("members");
-                reference.setToPsoID(toPSOId);
-
-                references.add(reference);
             }
 
             PSPUtil.setReferences(pso, references);
@@ -895,6 +1426,52 @@ public class GrouperSpmlTarget extends BaseSpmlTarget {
         return pso;
     }
 
+    /**
+     * Return true if the schema entity has attributes other than "displayExtension" and "description", which are group
+     * properties rather than custom attributes.
+     * 
+     * @param psoDefinition the schema entity
+     * @return true if the schema entity has custom attributes
+     */
+    protected boolean hasCustomAttributes(Pso psoDefinition) {
+        for (String attributeName : psoDefinition.getAttributeNames()) {
+            if (!attributeName.equals("displayExtension") && !attributeName.equals("description")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Return true if any of the schema entities has custom attributes.
+     * 
+     * @param psoDefinitions the schema entities
+     * @return true if any schema entity has custom attributes
+     */
+    protected boolean hasCustomAttributes(Collection<Pso> psoDefinitions) {
+        for (Pso psoDefinition : psoDefinitions) {
+            if (hasCustomAttributes(psoDefinition)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the custom attribute values of the given groups by attribute name by group uuid, read with one query per
+     * {@link #ATTRIBUTE_PAGE_SIZE} groups.
+     * 
+     * @param groups the groups
+     * @return the custom attribute values by attribute name by group uuid
+     */
+    protected Map<String, Map<String, AttributeAssignValue>> getCustomAttributes(Collection<Group> groups) {
+        List<String> groupIds = new ArrayList<String>(groups.size());
+        for (Group group : groups) {
+            groupIds.add(group.getUuid());
+        }
+        return GrouperDAOFactory.getFactory().getAttributeAssignValue().findLegacyAttributesByGroupIds(groupIds);
+    }
+
     /**
      * Returns a {@link PSO} applicable for the given stem.
      * 
@@ -1229,8 +1806,7 @@ public class GrouperSpmlTarget extends BaseSpmlTarget {
             return;
         }
 
-        // subject
-        // TODO source ?
+        // subject, a group by name or another subject by id, see getReferenceId(Subject)
         Subject subject = null;
         try {
             subject = SubjectFinder.findByIdOrIdentifier(id, true);
@@ -1241,43 +1817,48 @@ public class GrouperSpmlTarget extends BaseSpmlTarget {
             fail(response, ErrorCode.CUSTOM_ERROR, e);
             return;
         }
+        if (!id.equals(getReferenceId(subject))) {
+            fail(response, ErrorCode.CUSTOM_ERROR, "Reference '" + id + "' matches the identifier of subject '"
+                    + subject.getId() + "' of source '" + subject.getSource().getId() + "'.");
+            return;
+        }
 
         Field field = null;
         try {
-            field = FieldFinder.find(reference.getTypeOfReference(), true);
+            field = getField(reference.getTypeOfReference());
         } catch (SchemaException e) {
             fail(response, ErrorCode.CUSTOM_ERROR, e);
             return;
         }
 
-        if (modMode.equals(ModificationMode.ADD)) {
-            boolean didNotAlreadyExist = group.addMember(subject, field, false);
-            LOG.debug("Target '{}' - Add '{}' to '{}'. Did not already exist '{}'", new Object[] {getId(), subject,
-                    group, didNotAlreadyExist,});
-        }
-
-        if (modMode.equals(ModificationMode.DELETE)) {
-            boolean notAlreadyDeleted = group.deleteMember(subject, field, false);
-            LOG.debug("Target '{}' - Delete '{}' from '{}'. Was not already deleted '{}'", new Object[] {getId(),
-                    subject, group, notAlreadyDeleted,});
-        }
-
         if (modMode.equals(ModificationMode.REPLACE)) {
             fail(response, ErrorCode.UNSUPPORTED_OPERATION);
             return;
         }
+
+        modifyMembership(group, subject, field, modMode);
     }
 
     /**
      * Add or delete group memberships.
      * 
+     * The subjects of all references are resolved with one query. Memberships are then added or deleted in batches of
+     * at most membershipBatchSize, each batch in its own transaction unless the caller already started one. If a batch
+     * fails, the response fails with the batch number, memberships changed by previous batches remain, and subsequent
+     * batches are not attempted.
+     * 
      * @param group the group
      * @param capabilityDataArray the spml reference capability data
      * @param modMode the modification mode, only add and delete are supported
      * @param response the spml response
      */
-    public void modifyMemberships(Group group, CapabilityData[] capabilityDataArray, ModificationMode modMode,
-            Response response) {
+    public void modifyMemberships(final Group group, CapabilityData[] capabilityDataArray,
+            final ModificationMode modMode, Response response) {
+
+        if (modMode.equals(ModificationMode.REPLACE)) {
+            fail(response, ErrorCode.UNSUPPORTED_OPERATION);
+            return;
+        }
 
         Map<String, List<Reference>> references = null;
         try {
@@ -1287,21 +1868,259 @@ public class GrouperSpmlTarget extends BaseSpmlTarget {
             return;
         }
 
+        // the field and subject id of each reference to this target
+        final List<Field> referenceFields = new ArrayList<Field>();
+        final List<String> ids = new ArrayList<String>();
         for (String typeOfReference : references.keySet()) {
+            Field field = null;
+            try {
+                field = getField(typeOfReference);
+            } catch (SchemaException e) {
+                fail(response, ErrorCode.CUSTOM_ERROR, e);
+                return;
+            }
             for (Reference reference : references.get(typeOfReference)) {
-                modifyMembership(group, reference, ModificationMode.ADD, response);
-                if (!response.getStatus().equals(StatusCode.SUCCESS)) {
+                // match target id
+                if (!reference.getToPsoID().getTargetID().equals(getId())) {
+                    LOG.info("Target '{}' - Ignoring reference with target id '{}'", getId(), reference.getToPsoID()
+                            .getTargetID());
+                    continue;
+                }
+                String id = reference.getToPsoID().getID();
+                if (DatatypeHelper.isEmpty(id)) {
+                    LOG.error("Target '{}' - A reference id is required '{}'.", getId(), PSPUtil.toString(reference));
+                    fail(response, ErrorCode.MALFORMED_REQUEST);
                     return;
                 }
+                referenceFields.add(field);
+                ids.add(id);
             }
         }
+
+        if (ids.isEmpty()) {
+            return;
+        }
+
+        // subjects, groups by name and other subjects by id, see getReferenceId(Subject)
+        final Map<String, Subject> subjects = SubjectFinder.findByIdsOrIdentifiers(new LinkedHashSet<String>(ids));
+        for (String id : ids) {
+            Subject subject = subjects.get(id);
+            if (subject == null) {
+                fail(response, ErrorCode.CUSTOM_ERROR, "Unable to find subject '" + id + "'.");
+                return;
+            }
+            if (!id.equals(getReferenceId(subject))) {
+                fail(response, ErrorCode.CUSTOM_ERROR, "Reference '" + id + "' matches the identifier of subject '"
+                        + subject.getId() + "' of source '" + subject.getSource().getId() + "'.");
+                return;
+            }
+        }
+
+        int numberOfBatches = (ids.size() + membershipBatchSize - 1) / membershipBatchSize;
+        for (int batch = 0; batch < numberOfBatches; batch++) {
+            final int fromIndex = batch * membershipBatchSize;
+            final int toIndex = Math.min(fromIndex + membershipBatchSize, ids.size());
+            LOG.debug("Target '{}' - Modify memberships of '{}' batch {} of {}", new Object[] {getId(), group,
+                    batch + 1, numberOfBatches,});
+            try {
+                GrouperTransaction.callbackGrouperTransaction(GrouperTransactionType.READ_WRITE_OR_USE_EXISTING,
+                        new GrouperTransactionHandler() {
+
+                            public Object callback(GrouperTransaction grouperTransaction) {
+                                for (int i = fromIndex; i < toIndex; i++) {
+                                    modifyMembership(group, subjects.get(ids.get(i)), referenceFields.get(i), modMode);
+                                }
+                                return null;
+                            }
+                        });
+            } catch (RuntimeException e) {
+                LOG.error("Target '{}' - Modify memberships of '{}' batch " + (batch + 1) + " of " + numberOfBatches
+                        + " failed", getId(), group);
+                fail(response, ErrorCode.CUSTOM_ERROR, "Membership batch " + (batch + 1) + " of " + numberOfBatches
+                        + " of '" + group.getName() + "' failed : " + e.getMessage());
+                return;
+            }
+        }
+    }
+
+    /**
+     * Returns the id of a reference to the given subject, as returned by {@link #getReferences(Collection)}. References
+     * do not have a subject source, so a group is referred to by name, which is its identifier in the group source, and
+     * any other subject by its id. A subject found by a reference id which is not its reference id, for example a
+     * subject whose identifier is the id of another subject, is not the subject referred to.
+     * 
+     * @param subject the subject
+     * @return the group name or subject id
+     */
+    protected String getReferenceId(Subject subject) {
+        if (subject.getSource().getId().equals(SubjectFinder.internal_getGSA().getId())) {
+            return subject.getName();
+        }
+        return subject.getId();
+    }
+
+    /**
+     * Add or delete a group membership of a resolved subject.
+     * 
+     * @param group the group
+     * @param subject the subject
+     * @param field the membership field
+     * @param modMode the modification mode, either add or delete
+     */
+    protected void modifyMembership(Group group, Subject subject, Field field, ModificationMode modMode) {
+
+        if (modMode.equals(ModificationMode.ADD)) {
+            boolean didNotAlreadyExist = group.addMember(subject, field, false);
+            LOG.debug("Target '{}' - Add '{}' to '{}'. Did not already exist '{}'", new Object[] {getId(), subject,
+                    group, didNotAlreadyExist,});
+        }
+
+        if (modMode.equals(ModificationMode.DELETE)) {
+            boolean notAlreadyDeleted = group.deleteMember(subject, field, false);
+            LOG.debug("Target '{}' - Delete '{}' from '{}'. Was not already deleted '{}'", new Object[] {getId(),
+                    subject, group, notAlreadyDeleted,});
+        }
+    }
+
+    /**
+     * Returns the field with the given name, which is cached for the life of this target.
+     * 
+     * @param name the field name
+     * @return the field
+     * @throws SchemaException if the field does not exist
+     */
+    protected Field getField(String name) throws SchemaException {
+
+        Field field = fields.get(name);
+        if (field == null) {
+            field = FieldFinder.find(name, true);
+            fields.put(name, field);
+        }
+        return field;
+    }
+
+    /**
+     * Returns the root Grouper session of the current thread, starting it if necessary. Grouper sessions are not
+     * shared between threads, so requests may be executed concurrently by multiple threads. Starting a session stops
+     * the sessions of threads which have exited.
+     * 
+     * @return the Grouper session of the current thread
+     */
+    public GrouperSession getGrouperSession() {
+
+        Thread thread = Thread.currentThread();
+        synchronized (grouperSessions) {
+            GrouperSession grouperSession = grouperSessions.get(thread);
+            if (grouperSession == null) {
+                stopExitedGrouperSessions();
+                LOG.debug("Target '{}' - Starting Grouper session for thread '{}'", getId(), thread.getName());
+                grouperSession = GrouperSession.startRootSession();
+                grouperSessions.put(thread, grouperSession);
+                LOG.info("Target '{}' - Started Grouper session '{}' for thread '{}'", new Object[] {getId(),
+                        grouperSession, thread.getName(),});
+            }
+            return grouperSession;
+        }
+    }
+
+    /**
+     * Stop the Grouper session of the current thread, if any. The thread starts a new session on next use.
+     */
+    public void stopGrouperSession() {
+
+        GrouperSession grouperSession;
+        synchronized (grouperSessions) {
+            grouperSession = grouperSessions.remove(Thread.currentThread());
+        }
+        if (grouperSession != null) {
+            LOG.debug("Target '{}' - Stopping Grouper session '{}'", getId(), grouperSession);
+            GrouperSession.stopQuietly(grouperSession);
+        }
+    }
+
+    /**
+     * Stop the Grouper sessions of threads which have exited. The sessions of live threads are not stopped, since they
+     * may be in use.
+     */
+    protected void stopExitedGrouperSessions() {
+
+        List<GrouperSession> exited = new ArrayList<GrouperSession>();
+        synchronized (grouperSessions) {
+            for (Iterator<Map.Entry<Thread, GrouperSession>> i = grouperSessions.entrySet().iterator(); i.hasNext();) {
+                Map.Entry<Thread, GrouperSession> entry = i.next();
+                if (!entry.getKey().isAlive()) {
+                    exited.add(entry.getValue());
+                    i.remove();
+                }
+            }
+        }
+        for (GrouperSession grouperSession : exited) {
+            LOG.debug("Target '{}' - Stopping Grouper session '{}' of an exited thread", getId(), grouperSession);
+            GrouperSession.stopQuietly(grouperSession);
+        }
     }
 
     /** {@inheritDoc} */
     protected void onNewContextCreated(ApplicationContext newServiceContext) throws ServiceException {
-        LOG.debug("Target '{}' - Starting Grouper session,", getId());
-        grouperSession = GrouperSession.startRootSession();
-        LOG.info("Target '{}' - Started Grouper session '{}'", getId(), grouperSession);
+        stopExitedGrouperSessions();
+        fields.clear();
+        missingObjects.clear();
+        getGrouperSession();
+    }
+
+    /**
+     * Sets the number of members per page when enumerating the members of a group.
+     * 
+     * @param membershipPageSize the number of members per page
+     * @throws IllegalArgumentException if the page size is less than 1
+     */
+    public void setMembershipPageSize(int membershipPageSize) {
+        if (membershipPageSize < 1) {
+            throw new IllegalArgumentException("The membership page size must be at least 1.");
+        }
+        this.membershipPageSize = membershipPageSize;
+    }
+
+    /**
+     * Sets the maximum number of membership changes applied in one transaction.
+     * 
+     * @param membershipBatchSize the maximum number of membership changes applied in one transaction
+     * @throws IllegalArgumentException if the batch size is less than 1
+     */
+    public void setMembershipBatchSize(int membershipBatchSize) {
+        if (membershipBatchSize < 1) {
+            throw new IllegalArgumentException("The membership batch size must be at least 1.");
+        }
+        this.membershipBatchSize = membershipBatchSize;
+    }
+
+    /**
+     * Sets the number of seconds a group or stem which was not found is remembered as missing. Objects added outside
+     * of this target are not seen until their entries expire, so the cache is disabled by default.
+     * 
+     * @param negativeCacheTtl the number of seconds, 0 to not remember missing objects
+     */
+    public void setNegativeCacheTtl(int negativeCacheTtl) {
+        this.negativeCacheTtl = negativeCacheTtl;
+        missingObjects.clear();
+    }
+
+    /**
+     * Sets the maximum number of groups and stems remembered as missing.
+     * 
+     * @param negativeCacheSize the maximum number of groups and stems remembered as missing
+     */
+    public void setNegativeCacheSize(int negativeCacheSize) {
+        this.negativeCacheSize = negativeCacheSize;
+    }
+
+    /**
+     * Sets the maximum number of objects added in one transaction by a bulk add.
+     * 
+     * @param addBatchSize the maximum number of objects added in one transaction
+     */
+    public void setAddBatchSize(int addBatchSize) {
+        this.addBatchSize = addBatchSize;
     }
 
     /**
@@ -19,6 +19,10 @@ package edu.internet2.middleware.psp.spring;
 
 import javax.xml.namespace.QName;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.support.BeanDefinitionBuilder;
+import org.springframework.beans.factory.xml.ParserContext;
 import org.w3c.dom.Element;
 
 import edu.internet2.middleware.psp.grouper.GrouperSpmlTarget;
@@ -26,6 +30,9 @@ import edu.internet2.middleware.psp.grouper.GrouperSpmlTarget;
 /** Spring bean definition parser for configuring a {@link GrouperSpmlTarget}. */
 public class GrouperSpmlTargetBeanDefinitionParser extends BaseSpmlProviderBeanDefinitionParser {
 
+    /** Logger. */
+    private static final Logger LOG = LoggerFactory.getLogger(GrouperSpmlTargetBeanDefinitionParser.class);
+
     /** Schema type name. */
     public static final QName TYPE_NAME = new QName(GrouperSpmlTargetNamespaceHandler.NAMESPACE, "GrouperTarget");
 
@@ -33,4 +40,39 @@ public class GrouperSpmlTargetBeanDefinitionParser extends BaseSpmlProviderBeanD
     protected Class<GrouperSpmlTarget> getBeanClass(Element element) {
         return GrouperSpmlTarget.class;
     }
+
+    /** {@inheritDoc} */
+    protected void doParse(Element configElement, ParserContext parserContext, BeanDefinitionBuilder builder) {
+        super.doParse(configElement, parserContext, builder);
+
+        if (configElement.hasAttributeNS(null, "membershipPageSize")) {
+            int membershipPageSize = Integer.parseInt(configElement.getAttributeNS(null, "membershipPageSize"));
+            LOG.debug("Setting membershipPageSize to '{}'", membershipPageSize);
+            builder.addPropertyValue("membershipPageSize", membershipPageSize);
+        }
+
+        if (configElement.hasAttributeNS(null, "membershipBatchSize")) {
+            int membershipBatchSize = Integer.parseInt(configElement.getAttributeNS(null, "membershipBatchSize"));
+            LOG.debug("Setting membershipBatchSize to '{}'", membershipBatchSize);
+            builder.addPropertyValue("membershipBatchSize", membershipBatchSize);
+        }
+
+        if (configElement.hasAttributeNS(null, "negativeCacheTtl")) {
+            int negativeCacheTtl = Integer.parseInt(configElement.getAttributeNS(null, "negativeCacheTtl"));
+            LOG.debug("Setting negativeCacheTtl to '{}'", negativeCacheTtl);
+            builder.addPropertyValue("negativeCacheTtl", negativeCacheTtl);
+        }
+
+        if (configElement.hasAttributeNS(null, "negativeCacheSize")) {
+            int negativeCacheSize = Integer.parseInt(configElement.getAttributeNS(null, "negativeCacheSize"));
+            LOG.debug("Setting negativeCacheSize to '{}'", negativeCacheSize);
+            builder.addPropertyValue("negativeCacheSize", negativeCacheSize);
+        }
+
+        if (configElement.hasAttributeNS(null, "addBatchSize")) {
+            int addBatchSize = Integer.parseInt(configElement.getAttributeNS(null, "addBatchSize"));
+            LOG.debug("Setting addBatchSize to '{}'", addBatchSize);
+            builder.addPropertyValue("addBatchSize", addBatchSize);
+        }
+    }
 }
@@ -0,0 +1,188 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.psp.grouper;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import junit.textui.TestRunner;
+
+import org.openspml.v2.msg.spml.ModificationMode;
+
+import edu.internet2.middleware.grouper.Field;
+import edu.internet2.middleware.grouper.Group;
+import edu.internet2.middleware.grouper.GroupFinder;
+import edu.internet2.middleware.grouper.GrouperSession;
+import edu.internet2.middleware.grouper.Stem;
+import edu.internet2.middleware.grouper.StemFinder;
+import edu.internet2.middleware.grouper.helper.GrouperTest;
+import edu.internet2.middleware.grouper.helper.SubjectTestHelper;
+
+/** Stress test of a {@link GrouperSpmlTarget} used by multiple threads at once. */
+public class GrouperSpmlTargetConcurrencyTest extends GrouperTest {
+
+    /** The number of threads. */
+    public static final int THREADS = 8;
+
+    /** The number of iterations per thread. */
+    public static final int ITERATIONS = 50;
+
+    /** The target. */
+    private GrouperSpmlTarget target;
+
+    /**
+     * Constructor.
+     * 
+     * @param name
+     */
+    public GrouperSpmlTargetConcurrencyTest(String name) {
+        super(name);
+    }
+
+    /**
+     * Run tests.
+     * 
+     * @param args
+     */
+    public static void main(String[] args) {
+        TestRunner.run(GrouperSpmlTargetConcurrencyTest.class);
+    }
+
+    /** {@inheritDoc} */
+    public void setUp() {
+        super.setUp();
+        target = new GrouperSpmlTarget();
+        target.setId("grouper");
+    }
+
+    /** {@inheritDoc} */
+    public void tearDown() {
+        target.stopGrouperSession();
+        target.stopExitedGrouperSessions();
+        super.tearDown();
+    }
+
+    /**
+     * Each thread reads a shared group and adds and deletes memberships of its own group, using its own session.
+     * 
+     * @throws Exception
+     */
+    public void testConcurrentReadsAndModifications() throws Exception {
+
+        Stem test = StemFinder.findRootStem(target.getGrouperSession()).addChildStem("test", "test");
+        test.addChildGroup("shared", "shared").addMember(SubjectTestHelper.SUBJ0);
+        for (int i = 0; i < THREADS; i++) {
+            test.addChildGroup("group" + i, "group" + i);
+        }
+
+        final Set<GrouperSession> sessions =
+                Collections.synchronizedSet(Collections.newSetFromMap(new IdentityHashMap<GrouperSession, Boolean>()));
+
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        List<Future<Void>> futures = new ArrayList<Future<Void>>();
+        for (int i = 0; i < THREADS; i++) {
+            final String groupName = "test:group" + i;
+            futures.add(executor.submit(new Callable<Void>() {
+
+                public Void call() throws Exception {
+                    GrouperSession grouperSession = target.getGrouperSession();
+                    sessions.add(grouperSession);
+                    Field members = target.getField("members");
+                    for (int j = 0; j < ITERATIONS; j++) {
+                        assertSame(grouperSession, target.getGrouperSession());
+
+                        Group shared = GroupFinder.findByName(grouperSession, "test:shared", true);
+                        assertTrue(target.hasMember(shared, SubjectTestHelper.SUBJ0_ID, "members"));
+
+                        Group group = GroupFinder.findByName(grouperSession, groupName, true);
+                        target.modifyMembership(group, SubjectTestHelper.SUBJ1, members, ModificationMode.ADD);
+                        assertTrue(target.hasMember(group, SubjectTestHelper.SUBJ1_ID, "members"));
+                        target.modifyMembership(group, SubjectTestHelper.SUBJ1, members, ModificationMode.DELETE);
+                        assertFalse(target.hasMember(group, SubjectTestHelper.SUBJ1_ID, "members"));
+                    }
+                    return null;
+                }
+            }));
+        }
+
+        for (Future<Void> future : futures) {
+            // rethrows any assertion failure or exception of the thread
+            future.get(5, TimeUnit.MINUTES);
+        }
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(1, TimeUnit.MINUTES));
+
+        assertEquals(THREADS, sessions.size());
+        assertFalse(sessions.contains(target.getGrouperSession()));
+
+        // the sessions of the exited threads are stopped
+        target.stopExitedGrouperSessions();
+        for (GrouperSession grouperSession : sessions) {
+            assertNull(grouperSession.getSubjectDb());
+        }
+    }
+
+    /**
+     * Stopping the session of the current thread starts a new session on next use.
+     */
+    public void testStopGrouperSession() {
+
+        GrouperSession grouperSession = target.getGrouperSession();
+        assertSame(grouperSession, target.getGrouperSession());
+
+        target.stopGrouperSession();
+
+        assertNull(grouperSession.getSubjectDb());
+        assertNotSame(grouperSession, target.getGrouperSession());
+    }
+
+    /**
+     * Only the sessions of exited threads are stopped, the sessions of live threads are kept.
+     * 
+     * @throws Exception
+     */
+    public void testStopExitedGrouperSessions() throws Exception {
+
+        GrouperSession grouperSession = target.getGrouperSession();
+
+        final List<GrouperSession> exitedSessions = new ArrayList<GrouperSession>();
+        Thread thread = new Thread() {
+
+            public void run() {
+                exitedSessions.add(target.getGrouperSession());
+            }
+        };
+        thread.start();
+        thread.join();
+
+        target.stopExitedGrouperSessions();
+
+        assertEquals(1, exitedSessions.size());
+        assertNull(exitedSessions.get(0).getSubjectDb());
+        assertNotNull(grouperSession.getSubjectDb());
+        assertSame(grouperSession, target.getGrouperSession());
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.psp.grouper;
+
+import junit.textui.TestRunner;
+
+import edu.internet2.middleware.grouper.Group;
+import edu.internet2.middleware.grouper.GrouperSession;
+import edu.internet2.middleware.grouper.Stem;
+import edu.internet2.middleware.grouper.StemFinder;
+import edu.internet2.middleware.grouper.helper.GrouperTest;
+import edu.internet2.middleware.grouper.helper.SubjectTestHelper;
+
+/**
+ * Tests {@link GrouperSpmlTarget#hasMember(Group, String, String)} against a small group and a large group. Run with a
+ * number of checks as the argument to compare the time taken by checks against both groups, which should be about the
+ * same.
+ */
+public class GrouperSpmlTargetHasReferenceTest extends GrouperTest {
+
+    /** The number of members of the large group. */
+    public static final int LARGE_GROUP_SIZE = 1000;
+
+    /** The small group. */
+    private Group small;
+
+    /** The large group. */
+    private Group large;
+
+    /** The Grouper session. */
+    private GrouperSession grouperSession;
+
+    /** The target. */
+    private GrouperSpmlTarget target;
+
+    /**
+     * Constructor.
+     * 
+     * @param name
+     */
+    public GrouperSpmlTargetHasReferenceTest(String name) {
+        super(name);
+    }
+
+    /**
+     * Run tests, or the benchmark if a number of checks is given.
+     * 
+     * @param args
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0) {
+            GrouperSpmlTargetHasReferenceTest test = new GrouperSpmlTargetHasReferenceTest("benchmark");
+            test.setUp();
+            try {
+                test.benchmark(Integer.parseInt(args[0]));
+            } finally {
+                test.tearDown();
+            }
+        } else {
+            TestRunner.run(GrouperSpmlTargetHasReferenceTest.class);
+        }
+    }
+
+    /** {@inheritDoc} */
+    public void setUp() {
+        super.setUp();
+        grouperSession = GrouperSession.startRootSession();
+        target = new GrouperSpmlTarget();
+        target.setId("grouper");
+    }
+
+    /** {@inheritDoc} */
+    public void tearDown() {
+        GrouperSession.stopQuietly(grouperSession);
+        super.tearDown();
+    }
+
+    /**
+     * Check membership of a group with one member and a group with {@link #LARGE_GROUP_SIZE} members.
+     * 
+     * @throws Exception
+     */
+    public void testHasMember() throws Exception {
+
+        addGroups();
+
+        // group members are referred to by name
+        assertTrue(target.hasMember(large, "test:member0", "members"));
+        assertFalse(target.hasMember(small, "test:member0", "members"));
+        assertFalse(target.hasMember(small, "unknown", "members"));
+
+        // subjects are referred to by id
+        assertTrue(target.hasMember(small, SubjectTestHelper.SUBJ0_ID, "members"));
+        assertFalse(target.hasMember(small, SubjectTestHelper.SUBJ1_ID, "members"));
+        assertTrue(target.hasMember(large, SubjectTestHelper.SUBJ0_ID, "members"));
+        assertFalse(target.hasMember(large, SubjectTestHelper.SUBJ1_ID, "members"));
+
+        // subjects are not referred to by identifier
+        assertFalse(target.hasMember(small, SubjectTestHelper.SUBJ0_IDENTIFIER, "members"));
+    }
+
+    /**
+     * Add a group with one member and a group with {@link #LARGE_GROUP_SIZE} more members.
+     * 
+     * @throws Exception
+     */
+    private void addGroups() throws Exception {
+
+        Stem test = StemFinder.findRootStem(grouperSession).addChildStem("test", "test");
+
+        small = test.addChildGroup("small", "small");
+        small.addMember(SubjectTestHelper.SUBJ0);
+
+        large = test.addChildGroup("large", "large");
+        large.addMember(SubjectTestHelper.SUBJ0);
+        for (int i = 0; i < LARGE_GROUP_SIZE; i++) {
+            large.addMember(test.addChildGroup("member" + i, "member" + i).toSubject());
+        }
+    }
+
+    /**
+     * Print the mean time of the given number of membership checks against the small group and the large group.
+     * 
+     * @param checks the number of checks per group
+     * @throws Exception
+     */
+    private void benchmark(int checks) throws Exception {
+
+        addGroups();
+
+        for (int round = 0; round < 5; round++) {
+            long smallNanos = time(small, checks);
+            long largeNanos = time(large, checks);
+            System.out.println("round " + round + " : hasMember mean " + smallNanos / 1000 + " us for 1 member, "
+                    + largeNanos / 1000 + " us for " + (LARGE_GROUP_SIZE + 1) + " members");
+        }
+    }
+
+    /**
+     * Returns the mean time of membership checks against the given group, alternating a member and a non-member.
+     * 
+     * @param group the group
+     * @param checks the number of checks of each
+     * @return the mean time in nanoseconds
+     * @throws Exception
+     */
+    private long time(Group group, int checks) throws Exception {
+
+        long start = System.nanoTime();
+        for (int i = 0; i < checks; i++) {
+            target.hasMember(group, SubjectTestHelper.SUBJ0_ID, "members");
+            target.hasMember(group, SubjectTestHelper.SUBJ1_ID, "members");
+        }
+        return (System.nanoTime() - start) / (2 * checks);
+    }
+}
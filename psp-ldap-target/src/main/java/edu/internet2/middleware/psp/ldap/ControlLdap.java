@@ -0,0 +1,66 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package edu.internet2.middleware.psp.ldap;
+
+import javax.naming.NamingException;
+import javax.naming.ldap.Control;
+import javax.naming.ldap.LdapContext;
+
+import edu.vt.middleware.ldap.Ldap;
+import edu.vt.middleware.ldap.LdapConfig;
+
+/**
+ * An ldap connection which exposes contexts for operations which send request controls and read response controls,
+ * which the vt-ldap operations do not expose.
+ * 
+ * The connection is opened by vt-ldap from the ldap configuration, so the bind DN and credential, startTLS, the SSL
+ * socket factory, and the other connection properties of the configuration are honored.
+ */
+public class ControlLdap extends Ldap {
+
+    /** Serial version UID. */
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Constructor.
+     * 
+     * @param ldapConfig the ldap configuration, usually the configuration of the ldap pool
+     */
+    public ControlLdap(LdapConfig ldapConfig) {
+        super(ldapConfig);
+    }
+
+    /**
+     * Returns a new context sharing this connection, connecting if necessary, with the given request controls. The
+     * caller must close the returned context. Closing the context does not close the connection.
+     * 
+     * @param requestControls the request controls, possibly null
+     * @return the context
+     * @throws NamingException if the connection can not be opened
+     */
+    public LdapContext getLdapContext(Control[] requestControls) throws NamingException {
+
+        LdapContext context = getContext();
+        if (context == null) {
+            throw new NamingException("Unable to connect to the ldap.");
+        }
+        context.setRequestControls(requestControls);
+        return context;
+    }
+}
@@ -0,0 +1,220 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.psp.ldap;
+
+import java.util.AbstractSet;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import javax.naming.InvalidNameException;
+import javax.naming.ldap.LdapName;
+import javax.naming.ldap.Rdn;
+
+import org.openspml.v2.msg.spml.PSOIdentifier;
+
+/**
+ * Orders pso identifiers whose ids are DNs so that children precede their parents, which is suitable for deletion.
+ *
+ * Each DN is converted once to a sort key, its RDNs from the root down, with attribute types lower cased and values
+ * upper cased. DNs without escapes, quotes, or multi-valued RDNs are split on commas, others are parsed as an
+ * {@link LdapName}. An array of indexes is sorted by key in descending order, so that descendants precede ancestors,
+ * and identifiers whose DNs are equal are reduced to the last one. The result is a read only view of the sorted
+ * indexes rather than a copy of the identifiers.
+ */
+public final class DeletionOrder {
+
+    /** Separates the RDNs of a key, sorts before any character of an RDN so that parents sort before children. */
+    private static final char SEPARATOR = '\u0001';
+
+    /** Sorts indexes by insertion below this length. */
+    private static final int INSERTION_SORT_THRESHOLD = 16;
+
+    /** Private constructor. */
+    private DeletionOrder() {
+    }
+
+    /**
+     * Order pso identifiers for deletion, children before parents.
+     *
+     * @param psoIdentifiers the pso identifiers, whose ids are DNs
+     * @return the pso identifiers ordered for deletion, a read only set whose contains method is linear
+     * @throws InvalidNameException if an id is not a valid DN
+     */
+    public static Set<PSOIdentifier> order(Collection<PSOIdentifier> psoIdentifiers) throws InvalidNameException {
+
+        final PSOIdentifier[] ids = psoIdentifiers.toArray(new PSOIdentifier[psoIdentifiers.size()]);
+
+        String[] keys = new String[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            keys[i] = key(ids[i].getID());
+        }
+
+        int[] order = new int[ids.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        sort(order, new int[order.length], 0, order.length, keys);
+
+        // reduce equal DNs to the last identifier, which the sort being stable places last
+        int size = 0;
+        for (int i = 0; i < order.length; i++) {
+            if (size > 0 && keys[order[size - 1]].equals(keys[order[i]])) {
+                order[size - 1] = order[i];
+            } else {
+                order[size++] = order[i];
+            }
+        }
+
+        final int[] sorted = order;
+        final int length = size;
+        return new AbstractSet<PSOIdentifier>() {
+
+            public Iterator<PSOIdentifier> iterator() {
+                return new Iterator<PSOIdentifier>() {
+
+                    /** The position of the next identifier, the order is reversed when iterating. */
+                    private int next = length - 1;
+
+                    public boolean hasNext() {
+                        return next >= 0;
+                    }
+
+                    public PSOIdentifier next() {
+                        if (next < 0) {
+                            throw new NoSuchElementException();
+                        }
+                        return ids[sorted[next--]];
+                    }
+
+                    public void remove() {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+
+            public int size() {
+                return length;
+            }
+        };
+    }
+
+    /**
+     * Gets the sort key of a DN, its RDNs from the root down separated by a character which sorts before any other.
+     *
+     * @param dn the DN, possibly with escaped forward slashes
+     * @return the sort key
+     * @throws InvalidNameException if the DN is not valid
+     */
+    protected static String key(String dn) throws InvalidNameException {
+
+        StringBuilder key = new StringBuilder(dn.length());
+
+        if (dn.indexOf('\\') >= 0 || dn.indexOf('"') >= 0 || dn.indexOf('+') >= 0) {
+            LdapName ldapName = new LdapName(LdapSpmlTarget.unescapeForwardSlash(dn));
+            for (Rdn rdn : ldapName.getRdns()) {
+                if (key.length() > 0) {
+                    key.append(SEPARATOR);
+                }
+                appendRdn(key, rdn.toString(), 0, rdn.toString().length());
+            }
+            return key.toString();
+        }
+
+        int end = dn.length();
+        for (int comma = dn.lastIndexOf(',', end - 1); end > 0; comma = dn.lastIndexOf(',', end - 1)) {
+            if (key.length() > 0) {
+                key.append(SEPARATOR);
+            }
+            if (!appendRdn(key, dn, comma + 1, end)) {
+                throw new InvalidNameException("Invalid name: " + dn);
+            }
+            end = comma;
+        }
+
+        return key.toString();
+    }
+
+    /**
+     * Append the normalized form of an RDN, a lower cased attribute type and upper cased value without surrounding
+     * spaces.
+     *
+     * @param key the key
+     * @param dn the string containing the RDN
+     * @param start the position of the RDN
+     * @param end the position after the RDN
+     * @return false if the RDN does not contain an equals sign
+     */
+    private static boolean appendRdn(StringBuilder key, String dn, int start, int end) {
+
+        int equals = dn.indexOf('=', start);
+        if (equals < 0 || equals >= end) {
+            return false;
+        }
+
+        key.append(dn.substring(start, equals).trim().toLowerCase());
+        key.append('=');
+        key.append(dn.substring(equals + 1, end).trim().toUpperCase());
+        return true;
+    }
+
+    /**
+     * Stable merge sort of indexes by key.
+     *
+     * @param order the indexes
+     * @param buffer a buffer at least as long as the indexes
+     * @param from the first position to sort
+     * @param to the position after the last position to sort
+     * @param keys the keys
+     */
+    private static void sort(int[] order, int[] buffer, int from, int to, String[] keys) {
+
+        if (to - from < INSERTION_SORT_THRESHOLD) {
+            for (int i = from + 1; i < to; i++) {
+                int index = order[i];
+                int j = i - 1;
+                while (j >= from && keys[order[j]].compareTo(keys[index]) > 0) {
+                    order[j + 1] = order[j];
+                    j--;
+                }
+                order[j + 1] = index;
+            }
+            return;
+        }
+
+        int middle = (from + to) >>> 1;
+        sort(order, buffer, from, middle, keys);
+        sort(order, buffer, middle, to, keys);
+
+        if (keys[order[middle - 1]].compareTo(keys[order[middle]]) <= 0) {
+            return;
+        }
+
+        System.arraycopy(order, from, buffer, from, to - from);
+        int left = from;
+        int right = middle;
+        for (int i = from; i < to; i++) {
+            if (right >= to || (left < middle && keys[buffer[left]].compareTo(keys[buffer[right]]) <= 0)) {
+                order[i] = buffer[left++];
+            } else {
+                order[i] = buffer[right++];
+            }
+        }
+    }
+}
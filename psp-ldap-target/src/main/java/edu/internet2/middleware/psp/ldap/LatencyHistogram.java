@@ -0,0 +1,175 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.psp.ldap;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/** A thread safe histogram of latencies with fixed millisecond buckets, plus count, total, max, and errors. */
+public class LatencyHistogram {
+
+    /** The inclusive upper bounds of the buckets in milliseconds, the last bucket is unbounded. */
+    public static final long[] BUCKET_BOUNDS_MILLIS = {1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000,};
+
+    /** The number of latencies recorded in each bucket. */
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_BOUNDS_MILLIS.length + 1);
+
+    /** The number of latencies recorded. */
+    private final AtomicLong count = new AtomicLong();
+
+    /** The sum of the latencies recorded in nanoseconds. */
+    private final AtomicLong totalNanos = new AtomicLong();
+
+    /** The maximum latency recorded in nanoseconds. */
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    /** The number of errors recorded. */
+    private final AtomicLong errors = new AtomicLong();
+
+    /**
+     * Record a latency.
+     *
+     * @param nanos the latency in nanoseconds
+     */
+    public void record(long nanos) {
+
+        long millis = TimeUnit.NANOSECONDS.toMillis(nanos);
+        int bucket = 0;
+        while (bucket < BUCKET_BOUNDS_MILLIS.length && millis > BUCKET_BOUNDS_MILLIS[bucket]) {
+            bucket++;
+        }
+        buckets.incrementAndGet(bucket);
+
+        count.incrementAndGet();
+        totalNanos.addAndGet(nanos);
+
+        long max = maxNanos.get();
+        while (nanos > max && !maxNanos.compareAndSet(max, nanos)) {
+            max = maxNanos.get();
+        }
+    }
+
+    /**
+     * Record the latency of an operation which started at the given time, and optionally an error.
+     *
+     * @param startNanos the start time from {@link System#nanoTime()}
+     * @param success false to also record an error
+     */
+    public void record(long startNanos, boolean success) {
+        record(System.nanoTime() - startNanos);
+        if (!success) {
+            errors.incrementAndGet();
+        }
+    }
+
+    /**
+     * Record an error without a latency.
+     */
+    public void recordError() {
+        errors.incrementAndGet();
+    }
+
+    /**
+     * Gets the number of latencies recorded.
+     *
+     * @return the number of latencies recorded
+     */
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * Gets the number of errors recorded.
+     *
+     * @return the number of errors recorded
+     */
+    public long getErrorCount() {
+        return errors.get();
+    }
+
+    /**
+     * Gets the maximum latency recorded in milliseconds.
+     *
+     * @return the maximum latency recorded in milliseconds
+     */
+    public long getMaxMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(maxNanos.get());
+    }
+
+    /**
+     * Gets the mean latency in milliseconds.
+     *
+     * @return the mean latency in milliseconds, or zero if nothing has been recorded
+     */
+    public double getMeanMillis() {
+        long n = count.get();
+        return n == 0 ? 0 : totalNanos.get() / (n * 1000000.0);
+    }
+
+    /**
+     * Gets the total latency in milliseconds.
+     *
+     * @return the total latency in milliseconds
+     */
+    public long getTotalMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(totalNanos.get());
+    }
+
+    /**
+     * Gets the non-empty buckets, one line per bucket, for example "<= 10 ms : 42".
+     *
+     * @return the non-empty buckets
+     */
+    public String[] getBuckets() {
+
+        List<String> lines = new ArrayList<String>();
+        for (int i = 0; i < buckets.length(); i++) {
+            long n = buckets.get(i);
+            if (n > 0) {
+                if (i < BUCKET_BOUNDS_MILLIS.length) {
+                    lines.add("<= " + BUCKET_BOUNDS_MILLIS[i] + " ms : " + n);
+                } else {
+                    lines.add("> " + BUCKET_BOUNDS_MILLIS[BUCKET_BOUNDS_MILLIS.length - 1] + " ms : " + n);
+                }
+            }
+        }
+        return lines.toArray(new String[lines.size()]);
+    }
+
+    /**
+     * Reset all counts.
+     */
+    public void reset() {
+        for (int i = 0; i < buckets.length(); i++) {
+            buckets.set(i, 0);
+        }
+        count.set(0);
+        totalNanos.set(0);
+        maxNanos.set(0);
+        errors.set(0);
+    }
+
+    /** {@inheritDoc} */
+    public String toString() {
+        return "count=" + getCount() + " errors=" + getErrorCount() + " mean=" + String.format("%.1f", getMeanMillis())
+                + "ms max=" + getMaxMillis() + "ms";
+    }
+}
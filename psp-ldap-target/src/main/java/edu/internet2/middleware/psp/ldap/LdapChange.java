@@ -0,0 +1,95 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.psp.ldap;
+
+import javax.naming.directory.Attributes;
+
+/**
+ * A change to an ldap entry reported by the directory.
+ */
+public class LdapChange {
+
+    /** The DN of the entry. */
+    private String dn;
+
+    /** The previous DN of a renamed entry, or null. */
+    private String previousDn;
+
+    /** The change type, as defined by {@link PersistentSearchControl}, or zero if unknown. */
+    private int changeType;
+
+    /** The returned attributes of the entry, possibly empty. */
+    private Attributes attributes;
+
+    /**
+     * Constructor.
+     * 
+     * @param dn the DN of the entry
+     * @param previousDn the previous DN of a renamed entry, or null
+     * @param changeType the change type as defined by {@link PersistentSearchControl}, or zero if unknown
+     * @param attributes the returned attributes of the entry
+     */
+    public LdapChange(String dn, String previousDn, int changeType, Attributes attributes) {
+        this.dn = dn;
+        this.previousDn = previousDn;
+        this.changeType = changeType;
+        this.attributes = attributes;
+    }
+
+    /**
+     * Gets the DN of the entry.
+     * 
+     * @return the DN of the entry
+     */
+    public String getDn() {
+        return dn;
+    }
+
+    /**
+     * Gets the previous DN of a renamed entry.
+     * 
+     * @return the previous DN, or null
+     */
+    public String getPreviousDn() {
+        return previousDn;
+    }
+
+    /**
+     * Gets the change type as defined by {@link PersistentSearchControl}.
+     * 
+     * @return the change type, or zero if unknown
+     */
+    public int getChangeType() {
+        return changeType;
+    }
+
+    /**
+     * Gets the returned attributes of the entry.
+     * 
+     * @return the attributes, possibly empty
+     */
+    public Attributes getAttributes() {
+        return attributes;
+    }
+
+    /** {@inheritDoc} */
+    public String toString() {
+        return "dn='" + dn + "' changeType=" + changeType
+                + (previousDn == null ? "" : " previousDn='" + previousDn + "'");
+    }
+}
@@ -0,0 +1,36 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.psp.ldap;
+
+import java.util.List;
+
+import edu.internet2.middleware.psp.PspException;
+
+/**
+ * Handles changes made to the directory by others, as reported by an {@link LdapChangeWatcher}.
+ */
+public interface LdapChangeHandler {
+
+    /**
+     * Handle changes. Each entry is reported at most once per call, with its most recent change.
+     * 
+     * @param changes the changes, in the order in which they were reported
+     * @throws PspException if the changes can not be handled
+     */
+    public void handle(List<LdapChange> changes) throws PspException;
+}
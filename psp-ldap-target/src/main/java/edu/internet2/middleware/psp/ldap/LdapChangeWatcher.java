@@ -0,0 +1,644 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.psp.ldap;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.naming.InvalidNameException;
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.BasicAttributes;
+import javax.naming.directory.SearchControls;
+import javax.naming.directory.SearchResult;
+import javax.naming.ldap.Control;
+import javax.naming.ldap.HasControls;
+import javax.naming.ldap.LdapContext;
+import javax.naming.ldap.LdapName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.internet2.middleware.psp.PspException;
+import edu.internet2.middleware.psp.ldap.PersistentSearchControl.EntryChangeNotification;
+import edu.vt.middleware.ldap.LdapConfig;
+
+/**
+ * Watches subtrees of a directory for changes using persistent searches, and hands the changed entries to an
+ * {@link LdapChangeHandler}.
+ * 
+ * A persistent search is run for each base DN on its own connection and thread, and is restarted after a delay if the
+ * connection fails. Changes are collected for a short delay before being handed to the handler, so that an entry
+ * changed repeatedly is handled once.
+ * 
+ * Changes written by the provisioning target itself are ignored by matching the notification with the recorded write,
+ * see {@link #recordOwnChange(int, String, String, String)}. An add, delete, or rename matches the next notification
+ * of the same type for the DN, and a modify matches the notification carrying the value of the change attribute, such
+ * as entryCSN, read from the post-image of the write. Other changes to the same entry are handled.
+ */
+public class LdapChangeWatcher {
+
+    /** The logger. */
+    private static final Logger LOG = LoggerFactory.getLogger(LdapChangeWatcher.class);
+
+    /** The name of this watcher, used to name threads. */
+    private String name;
+
+    /** The ldap configuration used to connect to the directory. */
+    private LdapConfig ldapConfig;
+
+    /** The DNs of the subtrees to watch. */
+    private List<String> baseDns;
+
+    /** The search filter. */
+    private String filter = "(objectclass=*)";
+
+    /** The names of the attributes returned with each changed entry. */
+    private String[] returningAttributes;
+
+    /** The handler of changes. */
+    private LdapChangeHandler handler;
+
+    /** The time in milliseconds to collect changes before handling them. */
+    private long delayMillis = 1000;
+
+    /** The name of the operational attribute whose value identifies a modification of an entry. */
+    private String changeAttribute = "entryCSN";
+
+    /** The maximum number of entries whose own changes are remembered until their notifications are received. */
+    private int ownChangeCapacity = 10000;
+
+    /** The time in milliseconds to wait before restarting a failed persistent search. */
+    private long retryMillis = 10000;
+
+    /** Whether or not the watcher is running. */
+    private volatile boolean running;
+
+    /** The threads running persistent searches and handling changes. */
+    private List<Thread> threads = new ArrayList<Thread>();
+
+    /** The connections of the persistent searches, closed to stop them. */
+    private List<ControlLdap> connections = Collections.synchronizedList(new ArrayList<ControlLdap>());
+
+    /** The changes not yet handled, by DN. */
+    private LinkedHashMap<LdapName, List<LdapChange>> pending = new LinkedHashMap<LdapName, List<LdapChange>>();
+
+    /** The changes written by the target whose notifications have not been received, by DN, oldest first. */
+    private final Map<LdapName, List<OwnChange>> ownChanges = new LinkedHashMap<LdapName, List<OwnChange>>() {
+
+        private static final long serialVersionUID = 1L;
+
+        protected boolean removeEldestEntry(Map.Entry<LdapName, List<OwnChange>> eldest) {
+            return size() > ownChangeCapacity;
+        }
+    };
+
+    /** The number of changes reported by the directory. */
+    private final AtomicLong received = new AtomicLong();
+
+    /** The number of changes ignored since they were written by the target. */
+    private final AtomicLong ignored = new AtomicLong();
+
+    /** The number of changes handed to the handler. */
+    private final AtomicLong handled = new AtomicLong();
+
+    /**
+     * Constructor.
+     * 
+     * @param name the name of this watcher
+     * @param ldapConfig the ldap configuration used to connect to the directory, usually that of the ldap pool
+     * @param baseDns the DNs of the subtrees to watch
+     * @param returningAttributes the names of the attributes returned with each changed entry
+     * @param handler the handler of changes
+     */
+    public LdapChangeWatcher(String name, LdapConfig ldapConfig, List<String> baseDns,
+            String[] returningAttributes, LdapChangeHandler handler) {
+        this.name = name;
+        this.ldapConfig = ldapConfig;
+        this.baseDns = baseDns;
+        this.returningAttributes = returningAttributes;
+        this.handler = handler;
+    }
+
+    /**
+     * Start a persistent search for each base DN, and a thread handling changes.
+     */
+    public synchronized void start() {
+
+        if (running) {
+            return;
+        }
+        running = true;
+
+        for (final String baseDn : baseDns) {
+            threads.add(startThread(name + "-watch-" + baseDn, new Runnable() {
+
+                public void run() {
+                    watch(baseDn);
+                }
+            }));
+        }
+
+        threads.add(startThread(name + "-handle", new Runnable() {
+
+            public void run() {
+                dispatch();
+            }
+        }));
+
+        LOG.info("Watcher '{}' - Watching {} for changes", name, baseDns);
+    }
+
+    /**
+     * Stop the persistent searches and the handling of changes. Changes which have not been handled are discarded.
+     */
+    public synchronized void stop() {
+
+        if (!running) {
+            return;
+        }
+        running = false;
+
+        synchronized (connections) {
+            for (ControlLdap connection : connections) {
+                connection.close();
+            }
+            connections.clear();
+        }
+
+        for (Thread thread : threads) {
+            thread.interrupt();
+        }
+        threads.clear();
+
+        synchronized (pending) {
+            pending.clear();
+            pending.notifyAll();
+        }
+
+        LOG.info("Watcher '{}' - Stopped", name);
+    }
+
+    /**
+     * Whether or not the watcher is running.
+     * 
+     * @return true if the watcher is running
+     */
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Record that the target has written an entry, so that the notification of the change is ignored. The write may be
+     * recorded after its notification is received, as long as the notification has not yet been handled.
+     * 
+     * A modification is recorded only if the value of the change attribute of the entry after the modification is
+     * known, otherwise its notification is handled like a change made by others.
+     * 
+     * @param changeType the type of change, one of the change types of {@link PersistentSearchControl}
+     * @param dn the DN of the entry
+     * @param previousDn the previous DN of a renamed entry, otherwise null
+     * @param changeId the value of the change attribute of a modified entry, otherwise null
+     */
+    public void recordOwnChange(int changeType, String dn, String previousDn, String changeId) {
+
+        if (changeType == PersistentSearchControl.MODIFY && changeId == null) {
+            return;
+        }
+
+        LdapName ldapName = toLdapName(dn);
+        if (ldapName == null) {
+            return;
+        }
+
+        OwnChange ownChange = newOwnChange(changeType, previousDn, changeId);
+        synchronized (ownChanges) {
+            List<OwnChange> changes = ownChanges.remove(ldapName);
+            if (changes == null) {
+                changes = new ArrayList<OwnChange>();
+            }
+            changes.add(ownChange);
+            ownChanges.put(ldapName, changes);
+        }
+    }
+
+    /**
+     * Queue a change reported by the directory.
+     * 
+     * @param change the change
+     */
+    public void changed(LdapChange change) {
+
+        received.incrementAndGet();
+
+        LdapName ldapName = toLdapName(change.getDn());
+        if (ldapName == null) {
+            return;
+        }
+
+        LOG.trace("Watcher '{}' - Change {}", name, change);
+
+        synchronized (pending) {
+            List<LdapChange> changes = pending.get(ldapName);
+            if (changes == null) {
+                changes = new ArrayList<LdapChange>();
+                pending.put(ldapName, changes);
+            }
+            changes.add(change);
+            pending.notifyAll();
+        }
+    }
+
+    /**
+     * Hand the queued changes to the handler, ignoring changes written by the target. The most recent change of an
+     * entry which was not written by the target is handled, in the order of the first change of the entry.
+     * 
+     * @return the number of changes handled
+     */
+    public int handlePending() {
+
+        Map<LdapName, List<LdapChange>> changesByDn;
+        synchronized (pending) {
+            if (pending.isEmpty()) {
+                return 0;
+            }
+            changesByDn = new LinkedHashMap<LdapName, List<LdapChange>>(pending);
+            pending.clear();
+        }
+
+        List<LdapChange> changes = new ArrayList<LdapChange>();
+        for (Map.Entry<LdapName, List<LdapChange>> entry : changesByDn.entrySet()) {
+            LdapChange last = null;
+            for (LdapChange change : entry.getValue()) {
+                if (isOwnChange(entry.getKey(), change)) {
+                    ignored.incrementAndGet();
+                    LOG.trace("Watcher '{}' - Ignoring own change {}", name, change);
+                } else {
+                    last = change;
+                }
+            }
+            if (last != null) {
+                LOG.debug("Watcher '{}' - Change {}", name, last);
+                changes.add(last);
+            }
+        }
+
+        if (changes.isEmpty()) {
+            return 0;
+        }
+
+        LOG.debug("Watcher '{}' - Handling {} changes", name, changes.size());
+        try {
+            handler.handle(changes);
+        } catch (PspException e) {
+            LOG.error("Watcher '" + name + "' - Unable to handle changes " + changes, e);
+        } catch (RuntimeException e) {
+            LOG.error("Watcher '" + name + "' - Unable to handle changes " + changes, e);
+        }
+        handled.addAndGet(changes.size());
+
+        return changes.size();
+    }
+
+    /**
+     * Gets the number of queued changes.
+     * 
+     * @return the number of queued changes
+     */
+    public int getPendingCount() {
+        synchronized (pending) {
+            return pending.size();
+        }
+    }
+
+    /**
+     * Gets the number of changes reported by the directory.
+     * 
+     * @return the number of changes reported by the directory
+     */
+    public long getReceivedCount() {
+        return received.get();
+    }
+
+    /**
+     * Gets the number of changes ignored since they were written by the target.
+     * 
+     * @return the number of ignored changes
+     */
+    public long getIgnoredCount() {
+        return ignored.get();
+    }
+
+    /**
+     * Gets the number of changes handed to the handler.
+     * 
+     * @return the number of handled changes
+     */
+    public long getHandledCount() {
+        return handled.get();
+    }
+
+    /**
+     * Sets the search filter selecting the entries to watch.
+     * 
+     * @param filter the search filter
+     */
+    public void setFilter(String filter) {
+        this.filter = filter;
+    }
+
+    /**
+     * Sets the time to collect changes before handling them.
+     * 
+     * @param delayMillis the time in milliseconds
+     */
+    public void setDelayMillis(long delayMillis) {
+        this.delayMillis = delayMillis;
+    }
+
+    /**
+     * Sets the name of the operational attribute whose value identifies a modification of an entry, such as entryCSN
+     * or modifyTimestamp. The attribute must be among the returning attributes.
+     * 
+     * @param changeAttribute the name of the attribute
+     */
+    public void setChangeAttribute(String changeAttribute) {
+        this.changeAttribute = changeAttribute;
+    }
+
+    /**
+     * Sets the maximum number of entries whose own changes are remembered until their notifications are received. The
+     * changes of the least recently written entries are forgotten first.
+     * 
+     * @param ownChangeCapacity the maximum number of entries
+     */
+    public void setOwnChangeCapacity(int ownChangeCapacity) {
+        this.ownChangeCapacity = ownChangeCapacity;
+    }
+
+    /**
+     * Sets the time to wait before restarting a failed persistent search.
+     * 
+     * @param retryMillis the time in milliseconds
+     */
+    public void setRetryMillis(long retryMillis) {
+        this.retryMillis = retryMillis;
+    }
+
+    /**
+     * Run a persistent search of the subtree until stopped, restarting it if it fails.
+     * 
+     * @param baseDn the DN of the subtree
+     */
+    protected void watch(String baseDn) {
+
+        SearchControls searchControls = new SearchControls();
+        searchControls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+        searchControls.setReturningAttributes(returningAttributes);
+
+        while (running) {
+            ControlLdap connection = new ControlLdap(ldapConfig);
+            connections.add(connection);
+            LdapContext context = null;
+            try {
+                context =
+                        connection.getLdapContext(new Control[] {new PersistentSearchControl(
+                                PersistentSearchControl.ALL, true, true, true),});
+
+                LOG.debug("Watcher '{}' - Starting persistent search of '{}'", name, baseDn);
+                NamingEnumeration<SearchResult> results = context.search(baseDn, filter, searchControls);
+                while (running && results.hasMore()) {
+                    changed(toLdapChange(results.next()));
+                }
+            } catch (NamingException e) {
+                if (running) {
+                    LOG.error("Watcher '" + name + "' - Persistent search of '" + baseDn + "' failed, retrying in "
+                            + retryMillis + "ms", e);
+                }
+            } finally {
+                if (context != null) {
+                    close(context);
+                }
+                connections.remove(connection);
+                connection.close();
+            }
+
+            if (running) {
+                try {
+                    Thread.sleep(retryMillis);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Hand queued changes to the handler until stopped, waiting for changes to be collected.
+     */
+    protected void dispatch() {
+        while (running) {
+            try {
+                synchronized (pending) {
+                    while (running && pending.isEmpty()) {
+                        pending.wait();
+                    }
+                }
+                Thread.sleep(delayMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+            handlePending();
+        }
+    }
+
+    /**
+     * Convert an entry returned by a persistent search to a change.
+     * 
+     * @param result the returned entry
+     * @return the change
+     * @throws NamingException if the entry change notification can not be decoded
+     */
+    protected LdapChange toLdapChange(SearchResult result) throws NamingException {
+
+        EntryChangeNotification notification = null;
+        if (result instanceof HasControls) {
+            notification = PersistentSearchControl.getEntryChangeNotification(((HasControls) result).getControls());
+        }
+
+        return new LdapChange(result.getNameInNamespace(), notification == null ? null : notification.getPreviousDn(),
+                notification == null ? 0 : notification.getChangeType(), result.getAttributes() == null
+                        ? new BasicAttributes(true) : result.getAttributes());
+    }
+
+    /**
+     * Whether or not the change was written by the target. A matching recorded change is forgotten.
+     * 
+     * @param ldapName the DN of the entry
+     * @param change the change
+     * @return true if the change was written by the target
+     */
+    private boolean isOwnChange(LdapName ldapName, LdapChange change) {
+
+        String changeId = null;
+        if (change.getChangeType() == PersistentSearchControl.MODIFY) {
+            changeId = getChangeId(change);
+            if (changeId == null) {
+                return false;
+            }
+        }
+
+        OwnChange ownChange = newOwnChange(change.getChangeType(), change.getPreviousDn(), changeId);
+        synchronized (ownChanges) {
+            List<OwnChange> changes = ownChanges.get(ldapName);
+            if (changes == null || !changes.remove(ownChange)) {
+                return false;
+            }
+            if (changes.isEmpty()) {
+                ownChanges.remove(ldapName);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Gets the value of the change attribute returned with a change.
+     * 
+     * @param change the change
+     * @return the value, or null if the attribute was not returned
+     */
+    private String getChangeId(LdapChange change) {
+
+        Attribute attribute = change.getAttributes().get(changeAttribute);
+        if (attribute == null || attribute.size() == 0) {
+            return null;
+        }
+
+        try {
+            return attribute.get().toString();
+        } catch (NamingException e) {
+            LOG.debug("Watcher '{}' - Unable to read {} : {}", new Object[] {name, changeAttribute, e.getMessage(),});
+            return null;
+        }
+    }
+
+    /**
+     * Returns the description of a change, which equals the description of the same change.
+     * 
+     * @param changeType the type of change
+     * @param previousDn the previous DN of a renamed entry, otherwise null
+     * @param changeId the value of the change attribute of a modified entry, otherwise null
+     * @return the description of the change
+     */
+    private OwnChange newOwnChange(int changeType, String previousDn, String changeId) {
+        return new OwnChange(changeType, changeType == PersistentSearchControl.MODDN && previousDn != null
+                ? toLdapName(previousDn) : null, changeType == PersistentSearchControl.MODIFY ? changeId : null);
+    }
+
+    /**
+     * Start a daemon thread.
+     * 
+     * @param threadName the name of the thread
+     * @param runnable the runnable
+     * @return the thread
+     */
+    private Thread startThread(String threadName, Runnable runnable) {
+        Thread thread = new Thread(runnable, threadName);
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * Close a context, ignoring errors.
+     * 
+     * @param context the context
+     */
+    private void close(LdapContext context) {
+        try {
+            context.close();
+        } catch (NamingException e) {
+            LOG.debug("Watcher '{}' - Unable to close context : {}", name, e.getMessage());
+        }
+    }
+
+    /**
+     * Parse a DN.
+     * 
+     * @param dn the DN
+     * @return the ldap name, or null if the DN is not valid
+     */
+    private LdapName toLdapName(String dn) {
+        try {
+            return new LdapName(LdapSpmlTarget.unescapeForwardSlash(dn));
+        } catch (InvalidNameException e) {
+            LOG.warn("Watcher '{}' - Invalid DN '{}'", name, dn);
+            return null;
+        }
+    }
+
+    /** A change written by the target. */
+    private static class OwnChange {
+
+        /** The type of change. */
+        private int changeType;
+
+        /** The previous DN of a renamed entry, otherwise null. */
+        private LdapName previousDn;
+
+        /** The value of the change attribute of a modified entry, otherwise null. */
+        private String changeId;
+
+        /**
+         * Constructor.
+         * 
+         * @param changeType the type of change
+         * @param previousDn the previous DN of a renamed entry, otherwise null
+         * @param changeId the value of the change attribute of a modified entry, otherwise null
+         */
+        public OwnChange(int changeType, LdapName previousDn, String changeId) {
+            this.changeType = changeType;
+            this.previousDn = previousDn;
+            this.changeId = changeId;
+        }
+
+        /** {@inheritDoc} */
+        public boolean equals(Object object) {
+            if (!(object instanceof OwnChange)) {
+                return false;
+            }
+            OwnChange other = (OwnChange) object;
+            return changeType == other.changeType
+                    && (previousDn == null ? other.previousDn == null : previousDn.equals(other.previousDn))
+                    && (changeId == null ? other.changeId == null : changeId.equals(other.changeId));
+        }
+
+        /** {@inheritDoc} */
+        public int hashCode() {
+            int hashCode = changeType;
+            hashCode = 31 * hashCode + (previousDn == null ? 0 : previousDn.hashCode());
+            hashCode = 31 * hashCode + (changeId == null ? 0 : changeId.hashCode());
+            return hashCode;
+        }
+    }
+}
@@ -0,0 +1,428 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.psp.ldap;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.naming.InvalidNameException;
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.BasicAttributes;
+import javax.naming.directory.DirContext;
+import javax.naming.directory.ModificationItem;
+import javax.naming.ldap.LdapName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A bounded cache of the attributes of ldap entries, keyed by DN, whose entries expire after a time to live.
+ *
+ * The cache is written through by the operations of the target, so that an entry added or modified by the target is
+ * cached as it is expected to be in the directory. An entry is removed from the cache if the result of an operation is
+ * uncertain, for example if the operation fails or a removed value is not cached. The least recently used entry is
+ * evicted when the cache is full.
+ *
+ * The DNs of the entries are also kept in DN order, which compares the rightmost RDN first, so that the descendants of
+ * an entry are adjacent to it and a subtree is removed without scanning the whole cache.
+ *
+ * Attributes are copied when cached and when returned.
+ */
+public class LdapEntryCache {
+
+    /** The logger. */
+    private static final Logger LOG = LoggerFactory.getLogger(LdapEntryCache.class);
+
+    /** A cached entry. */
+    private static class CachedEntry {
+
+        /** The attributes. */
+        private Attributes attributes;
+
+        /** The time after which the entry has expired, from {@link System#nanoTime()}. */
+        private long expires;
+    }
+
+    /** The maximum number of entries. */
+    private final int maxSize;
+
+    /** The time to live of an entry in nanoseconds. */
+    private final long ttlNanos;
+
+    /** The entries in least recently used order. */
+    private final LinkedHashMap<LdapName, CachedEntry> entries;
+
+    /** The DNs of the entries in DN order, guarded by the lock of {@link #entries}. */
+    private final TreeSet<LdapName> names = new TreeSet<LdapName>();
+
+    /** The number of lookups served from the cache. */
+    private final AtomicLong hits = new AtomicLong();
+
+    /** The number of lookups not served from the cache, including expired entries. */
+    private final AtomicLong misses = new AtomicLong();
+
+    /** The number of entries evicted since the cache was full. */
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * Constructor.
+     *
+     * @param maxSize the maximum number of entries
+     * @param ttlMillis the time to live of an entry in milliseconds
+     */
+    public LdapEntryCache(int maxSize, long ttlMillis) {
+
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("The maximum size must be at least one.");
+        }
+
+        this.maxSize = maxSize;
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+
+        entries = new LinkedHashMap<LdapName, CachedEntry>(16, 0.75f, true) {
+
+            private static final long serialVersionUID = 1L;
+
+            protected boolean removeEldestEntry(Map.Entry<LdapName, CachedEntry> eldest) {
+                if (size() > LdapEntryCache.this.maxSize) {
+                    evictions.incrementAndGet();
+                    names.remove(eldest.getKey());
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Gets a copy of the cached attributes of an entry.
+     *
+     * @param dn the DN of the entry
+     * @return the attributes, or null if the entry is not cached or has expired
+     */
+    public Attributes get(String dn) {
+
+        LdapName ldapName = toLdapName(dn);
+        if (ldapName != null) {
+            synchronized (entries) {
+                CachedEntry cachedEntry = entries.get(ldapName);
+                if (cachedEntry != null) {
+                    if (System.nanoTime() - cachedEntry.expires < 0) {
+                        hits.incrementAndGet();
+                        return copy(cachedEntry.attributes);
+                    }
+                    remove(ldapName);
+                }
+            }
+        }
+
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Cache a copy of the attributes of an entry.
+     *
+     * @param dn the DN of the entry
+     * @param attributes the attributes
+     */
+    public void put(String dn, Attributes attributes) {
+
+        LdapName ldapName = toLdapName(dn);
+        if (ldapName == null) {
+            return;
+        }
+
+        CachedEntry cachedEntry = new CachedEntry();
+        cachedEntry.attributes = copy(attributes);
+        cachedEntry.expires = System.nanoTime() + ttlNanos;
+
+        synchronized (entries) {
+            names.add(ldapName);
+            entries.put(ldapName, cachedEntry);
+        }
+    }
+
+    /**
+     * Apply modifications to a cached entry. The entry is removed if the result of a modification is uncertain. The
+     * time to live of the entry is not extended.
+     *
+     * @param dn the DN of the entry
+     * @param mods the modifications, which have been successfully applied to the directory
+     */
+    public void modify(String dn, ModificationItem[] mods) {
+
+        LdapName ldapName = toLdapName(dn);
+        if (ldapName == null) {
+            return;
+        }
+
+        synchronized (entries) {
+            CachedEntry cachedEntry = entries.get(ldapName);
+            if (cachedEntry == null) {
+                return;
+            }
+
+            try {
+                for (ModificationItem mod : mods) {
+                    if (!apply(cachedEntry.attributes, mod)) {
+                        LOG.debug("Unable to apply modification to cached entry '{}'", dn);
+                        remove(ldapName);
+                        return;
+                    }
+                }
+            } catch (NamingException e) {
+                LOG.debug("Unable to apply modification to cached entry '{}' : {}", dn, e.getMessage());
+                remove(ldapName);
+            }
+        }
+    }
+
+    /**
+     * Remove an entry.
+     *
+     * @param dn the DN of the entry
+     */
+    public void remove(String dn) {
+
+        LdapName ldapName = toLdapName(dn);
+        if (ldapName == null) {
+            return;
+        }
+
+        synchronized (entries) {
+            remove(ldapName);
+        }
+    }
+
+    /**
+     * Remove an entry and all of its descendants.
+     *
+     * @param dn the DN of the entry
+     */
+    public void removeSubtree(String dn) {
+
+        LdapName ldapName = toLdapName(dn);
+        if (ldapName == null) {
+            clear();
+            return;
+        }
+
+        synchronized (entries) {
+            // the entry is followed by its descendants in DN order
+            Iterator<LdapName> iterator = names.tailSet(ldapName).iterator();
+            while (iterator.hasNext()) {
+                LdapName name = iterator.next();
+                if (!name.startsWith(ldapName)) {
+                    break;
+                }
+                iterator.remove();
+                entries.remove(name);
+            }
+        }
+    }
+
+    /**
+     * Remove all entries.
+     */
+    public void clear() {
+        synchronized (entries) {
+            entries.clear();
+            names.clear();
+        }
+    }
+
+    /**
+     * Gets the number of cached entries, including expired entries which have not been removed.
+     *
+     * @return the number of cached entries
+     */
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    /**
+     * Gets the maximum number of entries.
+     *
+     * @return the maximum number of entries
+     */
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Gets the number of lookups served from the cache.
+     *
+     * @return the number of lookups served from the cache
+     */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * Gets the number of lookups not served from the cache.
+     *
+     * @return the number of lookups not served from the cache
+     */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * Gets the number of entries evicted since the cache was full.
+     *
+     * @return the number of evicted entries
+     */
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    /**
+     * Gets the fraction of lookups served from the cache.
+     *
+     * @return the fraction of lookups served from the cache, or zero if there have been no lookups
+     */
+    public double getHitRate() {
+        long h = hits.get();
+        long total = h + misses.get();
+        return total == 0 ? 0 : (double) h / total;
+    }
+
+    /**
+     * Reset the hit, miss, and eviction counts.
+     */
+    public void resetCounts() {
+        hits.set(0);
+        misses.set(0);
+        evictions.set(0);
+    }
+
+    /** {@inheritDoc} */
+    public String toString() {
+        return "size=" + size() + " hits=" + getHitCount() + " misses=" + getMissCount() + " evictions="
+                + getEvictionCount();
+    }
+
+    /**
+     * Remove an entry. The caller holds the lock of {@link #entries}.
+     *
+     * @param ldapName the DN of the entry
+     */
+    private void remove(LdapName ldapName) {
+        entries.remove(ldapName);
+        names.remove(ldapName);
+    }
+
+    /**
+     * Apply a modification to attributes.
+     *
+     * @param attributes the attributes
+     * @param mod the modification
+     * @return false if the result of the modification is uncertain
+     * @throws NamingException if a value can not be read
+     */
+    static boolean apply(Attributes attributes, ModificationItem mod) throws NamingException {
+
+        Attribute attribute = mod.getAttribute();
+        String id = attribute.getID();
+        Attribute cachedAttribute = attributes.get(id);
+
+        switch (mod.getModificationOp()) {
+            case DirContext.ADD_ATTRIBUTE:
+                if (cachedAttribute == null) {
+                    attributes.put((Attribute) attribute.clone());
+                } else {
+                    NamingEnumeration<?> values = attribute.getAll();
+                    while (values.hasMore()) {
+                        cachedAttribute.add(values.next());
+                    }
+                }
+                return true;
+
+            case DirContext.REPLACE_ATTRIBUTE:
+                if (attribute.size() == 0) {
+                    attributes.remove(id);
+                } else {
+                    attributes.put((Attribute) attribute.clone());
+                }
+                return true;
+
+            case DirContext.REMOVE_ATTRIBUTE:
+                if (attribute.size() == 0) {
+                    attributes.remove(id);
+                    return true;
+                }
+                if (cachedAttribute == null) {
+                    return false;
+                }
+                NamingEnumeration<?> values = attribute.getAll();
+                while (values.hasMore()) {
+                    // the directory may match values which differ from the cached values, such as by case
+                    if (!cachedAttribute.remove(values.next())) {
+                        return false;
+                    }
+                }
+                if (cachedAttribute.size() == 0) {
+                    attributes.remove(id);
+                }
+                return true;
+
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Copy attributes, including their values.
+     *
+     * @param attributes the attributes
+     * @return the copy
+     */
+    static Attributes copy(Attributes attributes) {
+        Attributes copy = new BasicAttributes(true);
+        NamingEnumeration<? extends Attribute> all = attributes.getAll();
+        while (all.hasMoreElements()) {
+            copy.put((Attribute) all.nextElement().clone());
+        }
+        return copy;
+    }
+
+    /**
+     * Parse a DN.
+     *
+     * @param dn the DN, possibly with escaped forward slashes
+     * @return the ldap name, or null if the DN is not valid
+     */
+    private static LdapName toLdapName(String dn) {
+        try {
+            return new LdapName(LdapSpmlTarget.unescapeForwardSlash(dn));
+        } catch (InvalidNameException e) {
+            LOG.debug("Not caching invalid DN '{}'", dn);
+            return null;
+        }
+    }
+}
@@ -17,32 +17,45 @@
 
 package edu.internet2.middleware.psp.ldap;
 
+import java.lang.management.ManagementFactory;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.Timer;
 import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.naming.CommunicationException;
 import javax.naming.InvalidNameException;
 import javax.naming.NameAlreadyBoundException;
 import javax.naming.NameNotFoundException;
+import javax.naming.NamingEnumeration;
 import javax.naming.NamingException;
+import javax.naming.ServiceUnavailableException;
 import javax.naming.directory.Attribute;
 import javax.naming.directory.Attributes;
 import javax.naming.directory.BasicAttribute;
 import javax.naming.directory.DirContext;
 import javax.naming.directory.ModificationItem;
+import javax.naming.directory.NoSuchAttributeException;
 import javax.naming.directory.SchemaViolationException;
 import javax.naming.directory.SearchControls;
 import javax.naming.directory.SearchResult;
+import javax.naming.ldap.Control;
+import javax.naming.ldap.LdapContext;
 import javax.naming.ldap.LdapName;
 
 import org.opensaml.xml.util.DatatypeHelper;
@@ -82,10 +95,12 @@ import org.slf4j.LoggerFactory;
 import org.springframework.context.ApplicationContext;
 
 import edu.internet2.middleware.psp.PspException;
+import edu.internet2.middleware.psp.PspNoSuchIdentifierException;
+import edu.internet2.middleware.psp.ldap.LdapSpmlTargetStats.Operation;
 import edu.internet2.middleware.psp.spml.config.Pso;
-import edu.internet2.middleware.psp.spml.config.PsoIdentifyingAttribute;
 import edu.internet2.middleware.psp.spml.config.PsoReferences;
 import edu.internet2.middleware.psp.spml.provider.BaseSpmlTarget;
+import edu.internet2.middleware.psp.spml.provider.SpmlCompareTarget;
 import edu.internet2.middleware.psp.spml.request.AlternateIdentifier;
 import edu.internet2.middleware.psp.util.PSPUtil;
 import edu.internet2.middleware.shibboleth.common.service.ServiceException;
@@ -100,13 +115,15 @@ import edu.vt.middleware.ldap.bean.LdapEntry;
 import edu.vt.middleware.ldap.bean.LdapResult;
 import edu.vt.middleware.ldap.bean.OrderedLdapBeanFactory;
 import edu.vt.middleware.ldap.bean.SortedLdapBeanFactory;
+import edu.vt.middleware.ldap.handler.SearchResultHandler;
 import edu.vt.middleware.ldap.ldif.Ldif;
 import edu.vt.middleware.ldap.ldif.LdifResultConverter;
 import edu.vt.middleware.ldap.pool.LdapPool;
+import edu.vt.middleware.ldap.pool.LdapPoolConfig;
 import edu.vt.middleware.ldap.pool.LdapPoolException;
 
 /** An (incomplete) spmlv2 provisioning target which provisions an ldap directory. */
-public class LdapSpmlTarget extends BaseSpmlTarget {
+public class LdapSpmlTarget extends BaseSpmlTarget implements SpmlCompareTarget {
 
     /** Pattern matching an escaped JNDI special forward slash character. */
     private static Pattern escapedforwardSlashPattern = Pattern.compile("\\\\/");
@@ -175,6 +192,54 @@ public class LdapSpmlTarget extends BaseSpmlTarget {
     /** the ldap pool. */
     private LdapPool<Ldap> ldapPool;
 
+    /**
+     * The current ldap pool as seen by connections used on behalf of this target outside of its operations, such as
+     * range prefetches, whose check outs and check ins are recorded like those of the target. The lifecycle of the ldap
+     * pool is managed by its owner and is not exposed.
+     */
+    private final LdapPool<Ldap> instrumentedLdapPool = new LdapPool<Ldap>() {
+
+        public Ldap checkOut() throws LdapPoolException {
+            return LdapSpmlTarget.this.checkOut();
+        }
+
+        public void checkIn(Ldap ldap) {
+            LdapSpmlTarget.this.checkIn(ldap);
+        }
+
+        public int availableCount() {
+            return ldapPool.availableCount();
+        }
+
+        public int activeCount() {
+            return ldapPool.activeCount();
+        }
+
+        public LdapPoolConfig getLdapPoolConfig() {
+            return ldapPool.getLdapPoolConfig();
+        }
+
+        public void setPoolTimer(Timer timer) {
+            throw new UnsupportedOperationException();
+        }
+
+        public void initialize() {
+            throw new UnsupportedOperationException();
+        }
+
+        public void close() {
+            throw new UnsupportedOperationException();
+        }
+
+        public void prune() {
+            throw new UnsupportedOperationException();
+        }
+
+        public void validate() {
+            throw new UnsupportedOperationException();
+        }
+    };
+
     /** The id of the ldap pool. */
     private String ldapPoolId;
 
@@ -184,10 +249,395 @@ public class LdapSpmlTarget extends BaseSpmlTarget {
     /** Whether or not log log ldif. */
     private boolean logLdif;
 
+    /** Whether or not to request the post-image of modified objects via the RFC 4527 post-read control. */
+    private boolean usePostReadControl;
+
+    /** Whether or not the directory supports the post-read control, null until determined. */
+    private Boolean postReadSupported;
+
+    /** Whether or not to find values via the RFC 3876 matched values control. */
+    private boolean useMatchedValuesControl = true;
+
+    /** Whether or not the directory supports the matched values control, null until determined. */
+    private Boolean matchedValuesSupported;
+
+    /**
+     * The maximum number of values which are compared one at a time rather than reading the attribute, if the matched
+     * values control is not used, zero to always read the attribute.
+     */
+    private int compareThreshold;
+
+    /** The connection shared by operations which send request controls. */
+    private ControlLdap controlLdap;
+
+    /** Ldap pool and operation statistics. */
+    private LdapSpmlTargetStats stats = new LdapSpmlTargetStats(this);
+
+    /** Whether or not to prefetch ranges of attribute values on another pooled connection. */
+    private boolean prefetchRanges;
+
+    /** The maximum number of cached entries, zero to not cache entries. */
+    private int entryCacheSize;
+
+    /** The time to live of cached entries in seconds. */
+    private int entryCacheTtl = 60;
+
+    /** The entry cache, or null if entries are not cached. */
+    private LdapEntryCache entryCache;
+
+    /** Whether or not values not found in a cached entry are verified by reading the entry from the directory. */
+    private boolean entryCacheVerifyOnMiss = true;
+
+    /** Whether or not to watch the directory for changes made by others. */
+    private boolean watchChanges;
+
+    /** The DN of the subtree to watch, defaults to the base DN of the ldap pool. */
+    private String watchBaseDn;
+
+    /** The name of the attribute whose value is the source identifier of a changed entry. */
+    private String watchSourceIdAttribute;
+
+    /** The time in milliseconds to collect changes before repairing them. */
+    private int watchDelay = 1000;
+
+    /** The name of the operational attribute whose value identifies a modification of a watched entry. */
+    private String watchChangeAttribute = "entryCSN";
+
+    /** The change watcher, or null if changes are not watched. */
+    private LdapChangeWatcher changeWatcher;
+
+    /** The number of partitions of a subtree search to search concurrently, zero to not partition searches. */
+    private int partitionConcurrency;
+
+    /** The partitioned search, created when first needed. */
+    private PartitionedSearch partitionedSearch;
+
     /** Constructor */
     public LdapSpmlTarget() {
     }
 
+    /**
+     * Return a connection to the ldap pool.
+     * 
+     * @param ldap the connection, may be null
+     */
+    protected void checkIn(Ldap ldap) {
+        if (ldap != null) {
+            ldapPool.checkIn(ldap);
+            stats.recordCheckIn();
+        }
+    }
+
+    /**
+     * Check out a connection from the ldap pool, recording the time spent waiting.
+     * 
+     * @return the connection
+     * @throws LdapPoolException if a connection can not be checked out
+     */
+    protected Ldap checkOut() throws LdapPoolException {
+        long start = System.nanoTime();
+        try {
+            Ldap ldap = ldapPool.checkOut();
+            stats.recordCheckOut(start);
+            return ldap;
+        } catch (LdapPoolException e) {
+            stats.recordCheckOutError(start);
+            throw e;
+        }
+    }
+
+    /**
+     * Compare an entry, recording the latency. An entry which does not have the attribute does not match.
+     * 
+     * @param ldap the connection
+     * @param escapedDn the DN
+     * @param filter the filter, an equality assertion of an attribute and value
+     * @return true if the entry matches the filter
+     * @throws NamingException if an ldap error occurs
+     */
+    protected boolean compare(Ldap ldap, String escapedDn, SearchFilter filter) throws NamingException {
+        long start = System.nanoTime();
+        boolean success = false;
+        try {
+            boolean result = ldap.compare(escapedDn, filter);
+            success = true;
+            return result;
+        } catch (NoSuchAttributeException e) {
+            // for example an empty group, the value is not present
+            LOG.debug("Target '{}' - Compare '{}' filter '{}' : no such attribute", new Object[] {getId(), escapedDn,
+                    filter,});
+            success = true;
+            return false;
+        } finally {
+            stats.record(Operation.COMPARE, start, success);
+        }
+    }
+
+    /**
+     * Configure the range search result handlers of the ldap pool to prefetch ranges using the ldap pool, checking
+     * connections out and in as this target does.
+     */
+    protected void configureRangeSearchResultHandlers() {
+        Ldap ldap = null;
+        try {
+            ldap = checkOut();
+            SearchResultHandler[] handlers = ldap.getLdapConfig().getSearchResultHandlers();
+            if (handlers != null) {
+                for (SearchResultHandler handler : handlers) {
+                    if (handler instanceof RangeSearchResultHandler) {
+                        LOG.debug("Target '{}' - Prefetching ranges using ldap pool '{}'", getId(), getLdapPoolId());
+                        ((RangeSearchResultHandler) handler).setPrefetchPool(instrumentedLdapPool);
+                    }
+                }
+            }
+        } catch (LdapPoolException e) {
+            LOG.warn("Target '{}' - Unable to configure range search result handlers : {}", getId(), e);
+        } finally {
+            checkIn(ldap);
+        }
+    }
+
+    /**
+     * Create an entry, recording the latency.
+     * 
+     * @param ldap the connection
+     * @param escapedDn the DN
+     * @param attributes the attributes
+     * @throws NamingException if an ldap error occurs
+     */
+    protected void create(Ldap ldap, String escapedDn, Attributes attributes) throws NamingException {
+        long start = System.nanoTime();
+        boolean success = false;
+        try {
+            ldap.create(escapedDn, attributes);
+            success = true;
+            recordOwnChange(PersistentSearchControl.ADD, escapedDn, null, null);
+        } finally {
+            stats.record(Operation.ADD, start, success);
+            LdapEntryCache cache = entryCache;
+            if (cache != null) {
+                if (success) {
+                    cache.put(escapedDn, attributes);
+                } else {
+                    cache.remove(escapedDn);
+                }
+            }
+        }
+    }
+
+    /**
+     * Delete an entry, recording the latency.
+     * 
+     * @param ldap the connection
+     * @param escapedDn the DN
+     * @throws NamingException if an ldap error occurs
+     */
+    protected void delete(Ldap ldap, String escapedDn) throws NamingException {
+        long start = System.nanoTime();
+        boolean success = false;
+        try {
+            ldap.delete(escapedDn);
+            success = true;
+            recordOwnChange(PersistentSearchControl.DELETE, escapedDn, null, null);
+        } finally {
+            stats.record(Operation.DELETE, start, success);
+            LdapEntryCache cache = entryCache;
+            if (cache != null) {
+                cache.removeSubtree(escapedDn);
+            }
+        }
+    }
+
+    /**
+     * Modify the attributes of an entry, recording the latency.
+     * 
+     * If changes are watched and the directory supports the post-read control, the modification is performed with the
+     * post-read control, so that the change watcher recognizes the change by the value of the watch change attribute.
+     * 
+     * @param ldap the connection
+     * @param escapedDn the DN
+     * @param mods the modifications
+     * @throws NamingException if an ldap error occurs
+     */
+    protected void modifyAttributes(Ldap ldap, String escapedDn, ModificationItem[] mods) throws NamingException {
+        if (changeWatcher != null && isPostReadControlSupported(ldap)) {
+            modifyAttributesWithPostRead(ldap, escapedDn, mods, new String[] {watchChangeAttribute});
+            return;
+        }
+        long start = System.nanoTime();
+        boolean success = false;
+        try {
+            ldap.modifyAttributes(escapedDn, mods);
+            success = true;
+        } finally {
+            stats.record(Operation.MODIFY, start, success);
+            updateEntryCache(escapedDn, mods, success);
+        }
+    }
+
+    /**
+     * Rename an entry, recording the latency.
+     * 
+     * @param ldap the connection
+     * @param oldDn the escaped old DN
+     * @param newDn the escaped new DN
+     * @throws NamingException if an ldap error occurs
+     */
+    protected void rename(Ldap ldap, String oldDn, String newDn) throws NamingException {
+        long start = System.nanoTime();
+        boolean success = false;
+        try {
+            ldap.rename(oldDn, newDn);
+            success = true;
+            recordOwnChange(PersistentSearchControl.MODDN, newDn, oldDn, null);
+        } finally {
+            stats.record(Operation.RENAME, start, success);
+            // the rdn attribute changes, so the entry is read again rather than moved
+            LdapEntryCache cache = entryCache;
+            if (cache != null) {
+                cache.removeSubtree(oldDn);
+                cache.removeSubtree(newDn);
+            }
+        }
+    }
+
+    /**
+     * Search, recording the latency as the given operation.
+     * 
+     * @param ldap the connection
+     * @param operation the operation to record, either a search or a lookup
+     * @param dn the base DN
+     * @param filter the filter
+     * @param searchControls the search controls
+     * @return the search results
+     * @throws NamingException if an ldap error occurs
+     */
+    protected Iterator<SearchResult> search(Ldap ldap, Operation operation, String dn, SearchFilter filter,
+            SearchControls searchControls) throws NamingException {
+        long start = System.nanoTime();
+        boolean success = false;
+        try {
+            Iterator<SearchResult> searchResults = ldap.search(dn, filter, searchControls);
+            success = true;
+            return searchResults;
+        } finally {
+            stats.record(operation, start, success);
+        }
+    }
+
+    /**
+     * Search an object requesting the matched values control, returning only those values of the named attribute which
+     * match the given values, on the shared connection, see {@link #getControlLdap(Ldap)}. The latency is recorded as
+     * a lookup.
+     * 
+     * @param ldap a pooled ldap connection, whose configuration is used to open the shared connection
+     * @param escapedDn the DN
+     * @param name the name of the attribute
+     * @param values the values to match
+     * @return the object with the matching values, or null if the object does not exist
+     * @throws NamingException if an ldap error occurs
+     */
+    protected SearchResult searchWithMatchedValues(Ldap ldap, String escapedDn, String name, Collection<String> values)
+            throws NamingException {
+
+        ControlLdap controlLdap = getControlLdap(ldap);
+
+        SearchControls sc = new SearchControls();
+        sc.setSearchScope(SearchControls.OBJECT_SCOPE);
+        sc.setReturningAttributes(new String[] {name});
+
+        long start = System.nanoTime();
+        boolean success = false;
+        LdapContext context = null;
+        try {
+            context = controlLdap.getLdapContext(new Control[] {new MatchedValuesControl(name, values, false)});
+            NamingEnumeration<SearchResult> searchResults = context.search(escapedDn, "(objectclass=*)", sc);
+            try {
+                SearchResult searchResult = searchResults.hasMore() ? searchResults.next() : null;
+                success = true;
+                return searchResult;
+            } finally {
+                searchResults.close();
+            }
+        } catch (CommunicationException e) {
+            LOG.warn("Target '{}' - Closing control connection : {}", getId(), e.getMessage());
+            controlLdap.close();
+            throw e;
+        } catch (ServiceUnavailableException e) {
+            LOG.warn("Target '{}' - Closing control connection : {}", getId(), e.getMessage());
+            controlLdap.close();
+            throw e;
+        } finally {
+            stats.record(Operation.LOOKUP, start, success);
+            if (context != null) {
+                context.close();
+            }
+        }
+    }
+
+    /**
+     * Search a subtree as concurrent searches of its partitions, the base entry and each entry immediately below it,
+     * see {@link PartitionedSearch}. Each partition is searched on a pooled connection, so paging and the search result
+     * handlers of the pool configuration are applied to each partition.
+     * 
+     * @param dn the base DN
+     * @param filter the filter
+     * @param searchControls the search controls
+     * @return the search results
+     * @throws NamingException if an ldap error occurs
+     */
+    protected List<SearchResult> searchPartitioned(String dn, String filter, SearchControls searchControls)
+            throws NamingException {
+
+        PartitionedSearch search;
+        synchronized (this) {
+            if (partitionedSearch == null) {
+                PartitionedSearch.Searcher searcher = new PartitionedSearch.Searcher() {
+
+                    public List<SearchResult> search(String base, String filter, SearchControls searchControls)
+                            throws NamingException {
+                        return searchPooled(escapeForwardSlash(base), filter, searchControls);
+                    }
+                };
+                partitionedSearch = new PartitionedSearch("psp-" + getId() + "-search", searcher, partitionConcurrency);
+            }
+            search = partitionedSearch;
+        }
+
+        return search.search(LdapSpmlTarget.unescapeForwardSlash(dn), filter, searchControls);
+    }
+
+    /**
+     * Search on a connection checked out of the ldap pool for the duration of the search.
+     * 
+     * @param dn the base DN
+     * @param filter the filter
+     * @param searchControls the search controls
+     * @return the search results
+     * @throws NamingException if an ldap error occurs or a connection can not be checked out
+     */
+    protected List<SearchResult> searchPooled(String dn, String filter, SearchControls searchControls)
+            throws NamingException {
+
+        Ldap ldap = null;
+        try {
+            ldap = checkOut();
+            List<SearchResult> searchResults = new ArrayList<SearchResult>();
+            Iterator<SearchResult> iterator =
+                    search(ldap, Operation.SEARCH, dn, new SearchFilter(filter), searchControls);
+            while (iterator.hasNext()) {
+                searchResults.add(iterator.next());
+            }
+            return searchResults;
+        } catch (LdapPoolException e) {
+            NamingException namingException = new NamingException("Unable to check out an ldap connection.");
+            namingException.setRootCause(e);
+            throw namingException;
+        } finally {
+            checkIn(ldap);
+        }
+    }
+
     /** {@inheritDoc} */
     public void execute(AddRequest addRequest, AddResponse addResponse) {
 
@@ -244,11 +694,11 @@ public class LdapSpmlTarget extends BaseSpmlTarget {
             String dn = addRequest.getPsoID().getID();
             String escapedDn = LdapSpmlTarget.escapeForwardSlash(dn);
 
-            ldap = ldapPool.checkOut();
+            ldap = checkOut();
 
             LOG.debug("Target '{}' - Create '{}'", getId(), PSPUtil.toString(addRequest));
             LOG.debug("Target '{}' - Create DN '{}'", getId(), escapedDn);
-            ldap.create(escapedDn, ldapAttributes.toAttributes());
+            create(ldap, escapedDn, ldapAttributes.toAttributes());
             LOG.info("Target '{}' - Created '{}'", getId(), PSPUtil.toString(addRequest));
 
             if (this.isLogLdif()) {
@@ -267,9 +717,27 @@ public class LdapSpmlTarget extends BaseSpmlTarget {
                 responsePSO.setPsoID(addRequest.getPsoID());
                 addResponse.setPso(responsePSO);
             } else {
+                // the created attributes are the post-image, so avoid reading the object back
+                String entityName = addRequest.findOpenContentAttrValueByName(Pso.ENTITY_NAME_ATTRIBUTE);
+                String[] retAttrs = getReturningAttributes(entityName, addRequest.getReturnData());
+                try {
+                    LdapEntry createdEntry = getLdapEntry(dn, ldapAttributes.toAttributes(), retAttrs);
+                    addResponse.setPso(getPSO(createdEntry, addRequest.getReturnData()));
+                    return;
+                } catch (Spml2Exception e) {
+                    LOG.debug("Target '{}' - Unable to build response from created attributes, looking up '{}' : {}",
+                            new Object[] {getId(), dn, e.getMessage(),});
+                } catch (PspException e) {
+                    LOG.debug("Target '{}' - Unable to build response from created attributes, looking up '{}' : {}",
+                            new Object[] {getId(), dn, e.getMessage(),});
+                }
+
                 LookupRequest lookupRequest = new LookupRequest();
                 lookupRequest.setPsoID(addRequest.getPsoID());
                 lookupRequest.setReturnData(addRequest.getReturnData());
+                if (entityName != null) {
+                    lookupRequest.addOpenContentAttr(Pso.ENTITY_NAME_ATTRIBUTE, entityName);
+                }
 
                 LookupResponse lookupResponse = this.execute(lookupRequest);
                 if (lookupResponse.getStatus() == StatusCode.SUCCESS) {
@@ -289,7 +757,7 @@ public class LdapSpmlTarget extends BaseSpmlTarget {
             // from PSO.getReferences, an unhandled capability data
             fail(addResponse, ErrorCode.CUSTOM_ERROR, e);
         } finally {
-            ldapPool.checkIn(ldap);
+            checkIn(ldap);
         }
     }
 
@@ -308,11 +776,11 @@ public class LdapSpmlTarget extends BaseSpmlTarget {
             String dn = deleteRequest.getPsoID().getID();
             String escapedDn = LdapSpmlTarget.escapeForwardSlash(dn);
 
-            ldap = ldapPool.checkOut();
+            ldap = checkOut();
 
             LOG.debug("Target '{}' - Delete '{}'", getId(), PSPUtil.toString(deleteRequest));
             LOG.debug("Target '{}' - Delete DN '{}'", getId(), escapedDn);
-            ldap.delete(escapedDn);
+            delete(ldap, escapedDn);
             LOG.info("Target '{}' - Deleted '{}'", getId(), PSPUtil.toString(deleteRequest));
 
         } catch (LdapPoolException e) {
@@ -322,7 +790,7 @@ public class LdapSpmlTarget extends BaseSpmlTarget {
         } catch (NamingException e) {
             fail(deleteResponse, ErrorCode.CUSTOM_ERROR, e);
         } finally {
-            ldapPool.checkIn(ldap);
+            checkIn(ldap);
         }
     }
 
@@ -339,56 +807,70 @@ public class LdapSpmlTarget extends BaseSpmlTarget {
             SearchControls sc = new SearchControls();
             sc.setSearchScope(SearchControls.OBJECT_SCOPE);
 
-            // This lookup requests attributes defined for *all* objects.
-            // Perhaps there should be two searches, one for the identifier
-            // and a second for attributes.
-            String[] retAttrs = getPSP().getNames(getId(), lookupRequest.getReturnData()).toArray(new String[] {});
-            sc.setReturningAttributes(retAttrs);
+            // Request only the attributes of the schema entity of the object if it is known, otherwise the
+            // attributes defined for *all* objects.
+            String entityName = lookupRequest.findOpenContentAttrValueByName(Pso.ENTITY_NAME_ATTRIBUTE);
+            String[] retAttrs = getReturningAttributes(entityName, lookupRequest.getReturnData());
 
             // TODO logging
             String dn = lookupRequest.getPsoID().getID();
             String escapedDn = LdapSpmlTarget.escapeForwardSlash(dn);
 
-            ldap = ldapPool.checkOut();
+            LdapEntryCache cache = entryCache;
+            Attributes attributes = cache == null ? null : cache.get(dn);
+
+            if (attributes != null) {
+                LOG.debug("Target '{}' - Found cached '{}'", getId(), PSPUtil.toString(lookupRequest));
+            } else {
+                ldap = checkOut();
+
+                // cache every attribute the psp manages, regardless of return data
+                String[] searchAttrs = retAttrs;
+                if (cache != null) {
+                    searchAttrs = getPSP().getNames(getId(), ReturnData.EVERYTHING).toArray(new String[] {});
+                } else if (entityName == null && !lookupRequest.getReturnData().equals(ReturnData.IDENTIFIER)
+                        && getPSP().getPsos(getId()).size() > 1) {
+                    // read the identifying attributes first, to request only the attributes of the schema entity
+                    String[] idAttrs = getPSP().getNames(getId(), ReturnData.IDENTIFIER).toArray(new String[] {});
+                    sc.setReturningAttributes(idAttrs);
+                    LOG.debug("Target '{}' - Searching schema entity '{}'", getId(), PSPUtil.toString(lookupRequest));
+                    Iterator<SearchResult> idResults = search(ldap, Operation.LOOKUP, escapedDn, sf, sc);
+                    if (!idResults.hasNext()) {
+                        fail(lookupResponse, ErrorCode.NO_SUCH_IDENTIFIER);
+                        return;
+                    }
+                    entityName = getPSODefinition(getLdapEntry(dn, idResults.next().getAttributes(), idAttrs)).getId();
+                    retAttrs = getReturningAttributes(entityName, lookupRequest.getReturnData());
+                    searchAttrs = retAttrs;
+                }
+                sc.setReturningAttributes(searchAttrs);
+
+                LOG.debug("Target '{}' - Searching '{}'", getId(), PSPUtil.toString(lookupRequest));
+                Iterator<SearchResult> searchResults = search(ldap, Operation.LOOKUP, escapedDn, sf, sc);
+                LOG.debug("Target '{}' - Searched '{}'", getId(), PSPUtil.toString(lookupRequest));
 
-            LOG.debug("Target '{}' - Searching '{}'", getId(), PSPUtil.toString(lookupRequest));
-            Iterator<SearchResult> searchResults = ldap.search(escapedDn, sf, sc);
-            LOG.debug("Target '{}' - Searched '{}'", getId(), PSPUtil.toString(lookupRequest));
+                if (!searchResults.hasNext()) {
+                    fail(lookupResponse, ErrorCode.NO_SUCH_IDENTIFIER);
+                    return;
+                }
 
-            if (!searchResults.hasNext()) {
-                fail(lookupResponse, ErrorCode.NO_SUCH_IDENTIFIER);
-                return;
-            }
+                SearchResult result = searchResults.next();
 
-            SearchResult result = searchResults.next();
+                if (searchResults.hasNext()) {
+                    fail(lookupResponse, ErrorCode.CUSTOM_ERROR, "More than one result found.");
+                    return;
+                }
 
-            if (searchResults.hasNext()) {
-                fail(lookupResponse, ErrorCode.CUSTOM_ERROR, "More than one result found.");
-                return;
-            }
-            Attributes attributes = result.getAttributes();
-
-            // return attributes in order defined by config
-            OrderedLdapBeanFactory orderedLdapBeanFactory = new OrderedLdapBeanFactory();
-            // sort values
-            SortedLdapBeanFactory sortedLdapBeanFactory = new SortedLdapBeanFactory();
-
-            LdapAttributes ldapAttributes = orderedLdapBeanFactory.newLdapAttributes();
-            for (String retAttr : retAttrs) {
-                Attribute attr = attributes.get(retAttr);
-                if (attr != null) {
-                    LdapAttribute ldapAttribute = sortedLdapBeanFactory.newLdapAttribute();
-                    ldapAttribute.setAttribute(attr);
-                    ldapAttributes.addAttribute(ldapAttribute);
+                attributes = result.getAttributes();
+                if (cache != null) {
+                    cache.put(dn, attributes);
                 }
             }
 
-            LdapEntry entry = sortedLdapBeanFactory.newLdapEntry();
-            entry.setDn(dn);
-            entry.setLdapAttributes(ldapAttributes);
+            LdapEntry entry = getLdapEntry(dn, attributes, retAttrs);
 
             if (this.isLogLdif()) {
-                LdapResult lr = sortedLdapBeanFactory.newLdapResult();
+                LdapResult lr = new SortedLdapBeanFactory().newLdapResult();
                 lr.addEntry(entry);
                 LdifResultConverter lrc = new LdifResultConverter();
                 LOG.info("Target '{}' - LDIF\n{}", getId(), lrc.toLdif(lr));
@@ -413,7 +895,7 @@ public class LdapSpmlTarget extends BaseSpmlTarget {
             fail(lookupResponse, ErrorCode.CUSTOM_ERROR, e);
         } finally {
             if (ldap != null) {
-                ldapPool.checkIn(ldap);
+                checkIn(ldap);
             }
         }
     }
@@ -455,7 +937,7 @@ public class LdapSpmlTarget extends BaseSpmlTarget {
                 }
             }
 
-            ldap = ldapPool.checkOut();
+            ldap = checkOut();
 
             PSOIdentifier responseLookupPsoID = modifyRequest.getPsoID();
 
@@ -464,7 +946,7 @@ public class LdapSpmlTarget extends BaseSpmlTarget {
                 String oldDn = LdapSpmlTarget.escapeForwardSlash(dn);
                 String newDn = LdapSpmlTarget.escapeForwardSlash(alternateIdentifiers.get(0).getID());
                 LOG.info("Target '{}' - Renaming '{}' to '{}'", new Object[] {getId(), oldDn, newDn});
-                ldap.rename(oldDn, newDn);
+                rename(ldap, oldDn, newDn);
                 dn = newDn;
                 responseLookupPsoID = alternateIdentifiers.get(0).getPSOIdentifier();
             }
@@ -474,7 +956,16 @@ public class LdapSpmlTarget extends BaseSpmlTarget {
             LOG.debug("Target '{}' - Modifications '{}'", getId(), modificationItems);
             String escapedDn = LdapSpmlTarget.escapeForwardSlash(dn);
             LOG.debug("Target '{}' - Modify DN '{}'", getId(), escapedDn);
-            ldap.modifyAttributes(escapedDn, modificationItems.toArray(new ModificationItem[] {}));
+            ModificationItem[] mods = modificationItems.toArray(new ModificationItem[] {});
+            SearchResult postImage = null;
+            String[] retAttrs = null;
+            String entityName = modifyRequest.findOpenContentAttrValueByName(Pso.ENTITY_NAME_ATTRIBUTE);
+            if (!modifyRequest.getReturnData().equals(ReturnData.IDENTIFIER) && isPostReadSupported(ldap)) {
+                retAttrs = getReturningAttributes(entityName, modifyRequest.getReturnData());
+                postImage = modifyAttributesWithPostRead(ldap, escapedDn, mods, retAttrs);
+            } else {
+                modifyAttributes(ldap, escapedDn, mods);
+            }
             LOG.debug("Target '{}' - Modified '{}'", getId(), PSPUtil.toString(modifyRequest));
 
             // response PSO
@@ -483,10 +974,16 @@ public class LdapSpmlTarget extends BaseSpmlTarget {
                 responsePSO.setPsoID(responseLookupPsoID);
                 // TODO entityName attribute ?
                 modifyResponse.setPso(responsePSO);
+            } else if (postImage != null) {
+                LdapEntry entry = getLdapEntry(responseLookupPsoID.getID(), postImage.getAttributes(), retAttrs);
+                modifyResponse.setPso(getPSO(entry, modifyRequest.getReturnData()));
             } else {
                 LookupRequest lookupRequest = new LookupRequest();
                 lookupRequest.setPsoID(responseLookupPsoID);
                 lookupRequest.setReturnData(modifyRequest.getReturnData());
+                if (entityName != null) {
+                    lookupRequest.addOpenContentAttr(Pso.ENTITY_NAME_ATTRIBUTE, entityName);
+                }
 
                 LookupResponse lookupResponse = this.execute(lookupRequest);
                 if (lookupResponse.getStatus() == StatusCode.SUCCESS) {
@@ -527,10 +1024,12 @@ public class LdapSpmlTarget extends BaseSpmlTarget {
             fail(modifyResponse, ErrorCode.CUSTOM_ERROR, e);
         } catch (NamingException e) {
             fail(modifyResponse, ErrorCode.CUSTOM_ERROR, e);
+        } catch (Spml2Exception e) {
+            fail(modifyResponse, ErrorCode.CUSTOM_ERROR, e);
         } catch (PspException e) {
             fail(modifyResponse, ErrorCode.CUSTOM_ERROR, e);
         } finally {
-            ldapPool.checkIn(ldap);
+            checkIn(ldap);
         }
     }
 
@@ -594,11 +1093,16 @@ public class LdapSpmlTarget extends BaseSpmlTarget {
 
         Ldap ldap = null;
         try {
-            ldap = ldapPool.checkOut();
-
             LOG.debug("Target '{}' - Search will return attributes '{}'", getId(), Arrays.asList(retAttrs));
             LOG.debug("Target '{}' - Searching '{}'", getId(), PSPUtil.toString(searchRequest));
-            Iterator<SearchResult> searchResults = ldap.search(base, new SearchFilter(filter), searchControls);
+            Iterator<SearchResult> searchResults = null;
+            if (partitionConcurrency > 0 && searchControls.getSearchScope() == SearchControls.SUBTREE_SCOPE) {
+                // the partitions check out their own connections
+                searchResults = searchPartitioned(base, filter, searchControls).iterator();
+            } else {
+                ldap = checkOut();
+                searchResults = search(ldap, Operation.SEARCH, base, new SearchFilter(filter), searchControls);
+            }
             LOG.debug("Target '{}' - Searched '{}'", getId(), PSPUtil.toString(searchRequest));
 
             SortedLdapBeanFactory ldapBeanFactory = new SortedLdapBeanFactory();
@@ -627,9 +1131,27 @@ public class LdapSpmlTarget extends BaseSpmlTarget {
         } catch (PspException e) {
             fail(searchResponse, ErrorCode.CUSTOM_ERROR, e);
         } finally {
-            ldapPool.checkIn(ldap);
+            checkIn(ldap);
+        }
+
+    }
+
+    /**
+     * Returns the names of the attributes to request for an object of the given schema entity. If the schema entity is
+     * null or unknown, the names of the attributes of every schema entity of this target are returned.
+     * 
+     * @param entityName the schema entity name, possibly null
+     * @param returnData the return data
+     * @return the names of the attributes to request
+     */
+    protected String[] getReturningAttributes(String entityName, ReturnData returnData) {
+
+        Set<String> names = entityName == null ? null : getPSP().getNames(getId(), entityName, returnData);
+        if (names == null) {
+            names = getPSP().getNames(getId(), returnData);
         }
 
+        return names.toArray(new String[names.size()]);
     }
 
     /**
@@ -673,46 +1195,356 @@ public class LdapSpmlTarget extends BaseSpmlTarget {
     }
 
     /**
-     * Gets the ldap pool.
+     * {@inheritDoc}
      * 
-     * @return the ldap pool
+     * If entries are cached, the values of the cached entry are counted. Otherwise the object is read once, returning
+     * only the named attribute, and the ranges of values of a very large attribute are counted as they are retrieved
+     * rather than accumulated.
      */
-    public LdapPool<Ldap> getLdapPool() {
-        return ldapPool;
-    }
+    public int countValues(PSOIdentifier psoID, String name) throws PspNoSuchIdentifierException, PspException {
 
-    /**
-     * Gets the id of the ldap pool.
-     * 
-     * @return the id of the ldap pool
-     */
-    public String getLdapPoolId() {
-        return ldapPoolId;
-    }
+        String escapedDn = LdapSpmlTarget.escapeForwardSlash(psoID.getID());
 
-    /**
-     * Get the source of the ldap pool id.
-     * 
-     * @return Returns the source of the ldap pool id
-     */
-    public String getLdapPoolIdSource() {
-        return ldapPoolIdSource;
+        LdapEntryCache cache = entryCache;
+        Attributes attributes = cache == null ? null : cache.get(psoID.getID());
+
+        // the number of values returned in ranges
+        final int[] rangeValues = new int[1];
+
+        Ldap ldap = null;
+        try {
+            if (attributes == null) {
+                SearchFilter sf = new SearchFilter();
+                sf.setFilter("objectclass=*");
+                SearchControls sc = new SearchControls();
+                sc.setSearchScope(SearchControls.OBJECT_SCOPE);
+                sc.setReturningAttributes(new String[] {name});
+
+                ldap = checkOut();
+
+                Iterator<SearchResult> searchResults;
+                RangeSearchResultHandler.setRangeValueListener(new RangeValueListener() {
+
+                    public void values(String dn, String attributeName, Attribute values, boolean last) {
+                        rangeValues[0] += values.size();
+                    }
+                });
+                try {
+                    searchResults = search(ldap, Operation.LOOKUP, escapedDn, sf, sc);
+                } finally {
+                    RangeSearchResultHandler.setRangeValueListener(null);
+                }
+                if (!searchResults.hasNext()) {
+                    throw new PspNoSuchIdentifierException("Unable to find '" + psoID.getID() + "' on target '"
+                            + getId() + "'");
+                }
+                attributes = searchResults.next().getAttributes();
+            }
+
+            // values not returned in ranges
+            Attribute attribute = attributes.get(name);
+            int count = rangeValues[0] + (attribute == null ? 0 : attribute.size());
+
+            LOG.debug("Target '{}' - Counted {} values of '{}' for '{}'", new Object[] {getId(), count, name,
+                    psoID.getID(),});
+
+            return count;
+        } catch (NameNotFoundException e) {
+            throw new PspNoSuchIdentifierException("Unable to find '" + psoID.getID() + "' on target '" + getId()
+                    + "'", e);
+        } catch (LdapPoolException e) {
+            throw new PspException(e);
+        } catch (NamingException e) {
+            throw new PspException(e);
+        } finally {
+            checkIn(ldap);
+        }
     }
 
     /**
-     * Gets the pso representation of the ldap entry.
+     * {@inheritDoc}
      * 
-     * @param entry the ldap entry
-     * @param returnData whether or not to include the identifier, data, and references
-     * @return the pso representation of the ldap entry
-     * @throws Spml2Exception if an spml error occurs
-     * @throws PspException if a psp error occurs
+     * If entries are cached, the values are found in the cached entry, which is read once returning every attribute
+     * managed by the psp. If entryCacheVerifyOnMiss is true and a value is not found in the cached entry, the entry is
+     * read again before the values are found. Otherwise, if the directory supports the matched values control, the
+     * object is searched once returning only those values of the named attribute which match the given values.
+     * Otherwise each value is compared if there are at most compareThreshold values, so that a few values do not cause
+     * a very large attribute to be read, or else the object is read once returning only the named attribute, and the
+     * ranges of values of a very large attribute are given to the finder as they are retrieved rather than
+     * accumulated.
+     * 
+     * Values are found as by {@link ValueFinder}, a value which differs from a present value only by case or whitespace
+     * is confirmed by an ldap compare.
      */
-    protected PSO getPSO(LdapEntry entry, ReturnData returnData) throws Spml2Exception, PspException {
+    public Set<String> findValues(PSOIdentifier psoID, String name, Collection<String> values)
+            throws PspNoSuchIdentifierException, PspException {
 
-        String msg = "get pso for '" + entry.getDn() + "' target '" + getId() + "'";
+        if (values.isEmpty()) {
+            return new LinkedHashSet<String>();
+        }
 
-        PSO pso = new PSO();
+        String escapedDn = LdapSpmlTarget.escapeForwardSlash(psoID.getID());
+        ValueFinder finder = new ValueFinder(name, isReferenceName(name), values);
+
+        LdapEntryCache cache = entryCache;
+        Attributes attributes = cache == null ? null : cache.get(psoID.getID());
+
+        Ldap ldap = null;
+        try {
+            if (attributes == null) {
+                ldap = checkOut();
+            }
+
+            if (attributes == null && cache == null && isMatchedValuesSupported(ldap)) {
+                SearchResult searchResult = searchWithMatchedValues(ldap, escapedDn, name, values);
+                if (searchResult == null) {
+                    throw new PspNoSuchIdentifierException("Unable to find '" + psoID.getID() + "' on target '"
+                            + getId() + "'");
+                }
+                attributes = searchResult.getAttributes();
+            } else if (attributes == null && cache == null && values.size() <= compareThreshold) {
+                Set<String> found = new LinkedHashSet<String>();
+                for (String value : values) {
+                    if (compare(ldap, escapedDn, new SearchFilter(name + "={0}", new Object[] {value}))) {
+                        found.add(value);
+                    }
+                }
+
+                LOG.debug("Target '{}' - Compared {} values of '{}' for '{}' found {}", new Object[] {getId(),
+                        values.size(), name, psoID.getID(), found.size(),});
+
+                return found;
+            } else if (attributes == null) {
+                SearchFilter sf = new SearchFilter();
+                sf.setFilter("objectclass=*");
+                SearchControls sc = new SearchControls();
+                sc.setSearchScope(SearchControls.OBJECT_SCOPE);
+                // if caching, read every attribute the psp manages so that subsequent checks are served from the cache
+                sc.setReturningAttributes(cache == null ? new String[] {name} : getPSP().getNames(getId(),
+                        ReturnData.EVERYTHING).toArray(new String[] {}));
+
+                Iterator<SearchResult> searchResults;
+                if (cache == null) {
+                    RangeSearchResultHandler.setRangeValueListener(finder);
+                    try {
+                        searchResults = search(ldap, Operation.LOOKUP, escapedDn, sf, sc);
+                    } finally {
+                        RangeSearchResultHandler.setRangeValueListener(null);
+                    }
+                } else {
+                    searchResults = search(ldap, Operation.LOOKUP, escapedDn, sf, sc);
+                }
+                if (!searchResults.hasNext()) {
+                    throw new PspNoSuchIdentifierException("Unable to find '" + psoID.getID() + "' on target '"
+                            + getId() + "'");
+                }
+                attributes = searchResults.next().getAttributes();
+                if (cache != null) {
+                    cache.put(psoID.getID(), attributes);
+                }
+            }
+            // values not returned in ranges
+            finder.addAll(attributes.get(name));
+
+            // values found in a cached entry are trusted, values not found are verified by reading the entry again
+            if (ldap == null && entryCacheVerifyOnMiss
+                    && finder.getFound().size() + finder.getCandidates().size() < new HashSet<String>(values).size()) {
+                LOG.debug("Target '{}' - Verifying values of '{}' not found in cached '{}'", new Object[] {getId(),
+                        name, psoID.getID(),});
+                cache.remove(psoID.getID());
+                return findValues(psoID, name, values);
+            }
+
+            Set<String> found = finder.getFound();
+            for (String value : finder.getCandidates()) {
+                if (ldap == null) {
+                    ldap = checkOut();
+                }
+                if (compare(ldap, escapedDn, new SearchFilter(name + "={0}", new Object[] {value}))) {
+                    found.add(value);
+                }
+            }
+
+            LOG.debug("Target '{}' - Found {} of {} values of '{}' for '{}'", new Object[] {getId(), found.size(),
+                    values.size(), name, psoID.getID(),});
+
+            return found;
+        } catch (NameNotFoundException e) {
+            throw new PspNoSuchIdentifierException("Unable to find '" + psoID.getID() + "' on target '" + getId()
+                    + "'", e);
+        } catch (LdapPoolException e) {
+            throw new PspException(e);
+        } catch (NamingException e) {
+            throw new PspException(e);
+        } finally {
+            checkIn(ldap);
+        }
+    }
+
+    /**
+     * Gets the maximum number of values which are compared one at a time rather than reading the attribute, if the
+     * matched values control is not used.
+     * 
+     * @return the maximum number of values compared one at a time, zero to always read the attribute
+     */
+    public int getCompareThreshold() {
+        return compareThreshold;
+    }
+
+    /**
+     * Returns the connection shared by operations which send request controls, which the pooled ldap connections do
+     * not expose. The connection is opened with the configuration of the ldap pool. It is closed if it fails, and
+     * reopened by the next operation.
+     * 
+     * @param ldap a pooled ldap connection, whose configuration is used to open the shared connection
+     * @return the shared connection
+     */
+    protected synchronized ControlLdap getControlLdap(Ldap ldap) {
+        if (controlLdap == null) {
+            controlLdap = new ControlLdap(ldap.getLdapConfig());
+        }
+        return controlLdap;
+    }
+
+    /**
+     * Gets the entry cache.
+     * 
+     * @return the entry cache, or null if entries are not cached
+     */
+    public LdapEntryCache getEntryCache() {
+        return entryCache;
+    }
+
+    /**
+     * Gets the maximum number of cached entries.
+     * 
+     * @return the maximum number of cached entries, zero if entries are not cached
+     */
+    public int getEntryCacheSize() {
+        return entryCacheSize;
+    }
+
+    /**
+     * Gets the time to live of cached entries in seconds.
+     * 
+     * @return the time to live of cached entries in seconds
+     */
+    public int getEntryCacheTtl() {
+        return entryCacheTtl;
+    }
+
+    /**
+     * Gets whether or not values not found in a cached entry are verified by reading the entry from the directory.
+     * 
+     * @return true if values not found in a cached entry are verified
+     */
+    public boolean isEntryCacheVerifyOnMiss() {
+        return entryCacheVerifyOnMiss;
+    }
+
+    /**
+     * Gets the change watcher.
+     * 
+     * @return the change watcher, or null if changes are not watched
+     */
+    public LdapChangeWatcher getChangeWatcher() {
+        return changeWatcher;
+    }
+
+    /**
+     * Gets the ldap pool.
+     * 
+     * @return the ldap pool
+     */
+    public LdapPool<Ldap> getLdapPool() {
+        return ldapPool;
+    }
+
+    /**
+     * Gets the id of the ldap pool.
+     * 
+     * @return the id of the ldap pool
+     */
+    public String getLdapPoolId() {
+        return ldapPoolId;
+    }
+
+    /**
+     * Get the source of the ldap pool id.
+     * 
+     * @return Returns the source of the ldap pool id
+     */
+    public String getLdapPoolIdSource() {
+        return ldapPoolIdSource;
+    }
+
+    /**
+     * Gets the number of partitions of a subtree search which are searched concurrently.
+     * 
+     * @return the number of partitions of a subtree search which are searched concurrently, zero if searches are not
+     *         partitioned
+     */
+    public int getPartitionConcurrency() {
+        return partitionConcurrency;
+    }
+
+    /**
+     * Gets the partitioned search, which retains the time taken to search each partition of the most recent search.
+     * 
+     * @return the partitioned search, or null if no partitioned search has been performed
+     */
+    public PartitionedSearch getPartitionedSearch() {
+        return partitionedSearch;
+    }
+
+    /**
+     * Gets an ldap entry consisting of the given attributes in the order of the given attribute names, with sorted
+     * values.
+     * 
+     * @param dn the DN of the entry
+     * @param attributes the attributes
+     * @param retAttrs the names of the attributes to include, in order
+     * @return the ldap entry
+     * @throws NamingException if an attribute value can not be read
+     */
+    protected LdapEntry getLdapEntry(String dn, Attributes attributes, String[] retAttrs) throws NamingException {
+
+        // return attributes in order defined by config
+        OrderedLdapBeanFactory orderedLdapBeanFactory = new OrderedLdapBeanFactory();
+        // sort values
+        SortedLdapBeanFactory sortedLdapBeanFactory = new SortedLdapBeanFactory();
+
+        LdapAttributes ldapAttributes = orderedLdapBeanFactory.newLdapAttributes();
+        for (String retAttr : retAttrs) {
+            Attribute attr = attributes.get(retAttr);
+            if (attr != null) {
+                LdapAttribute ldapAttribute = sortedLdapBeanFactory.newLdapAttribute();
+                ldapAttribute.setAttribute(attr);
+                ldapAttributes.addAttribute(ldapAttribute);
+            }
+        }
+
+        LdapEntry entry = sortedLdapBeanFactory.newLdapEntry();
+        entry.setDn(dn);
+        entry.setLdapAttributes(ldapAttributes);
+
+        return entry;
+    }
+
+    /**
+     * Gets the pso representation of the ldap entry.
+     * 
+     * @param entry the ldap entry
+     * @param returnData whether or not to include the identifier, data, and references
+     * @return the pso representation of the ldap entry
+     * @throws Spml2Exception if an spml error occurs
+     * @throws PspException if a psp error occurs
+     */
+    protected PSO getPSO(LdapEntry entry, ReturnData returnData) throws Spml2Exception, PspException {
+
+        String msg = "get pso for '" + entry.getDn() + "' target '" + getId() + "'";
+
+        PSO pso = new PSO();
 
         // determine schema entity, throws PSPException
         Pso psoDefinition = this.getPSODefinition(entry);
@@ -811,24 +1643,27 @@ public class LdapSpmlTarget extends BaseSpmlTarget {
      */
     protected Pso getPSODefinition(LdapEntry entry) throws PspException {
 
-        Attributes attributes = entry.getLdapAttributes().toAttributes();
+        LdapAttributes ldapAttributes = entry.getLdapAttributes();
 
         Pso definition = null;
 
-        for (Pso psoDefinition : getPSP().getPsos(getId())) {
-            PsoIdentifyingAttribute ia = psoDefinition.getPsoIdentifyingAttribute();
-            if (ia == null) {
+        // only the identifying attributes are examined, values are matched case insensitively
+        for (Map.Entry<String, Map<String, List<Pso>>> index : getPSP().getPsosByIdentifyingAttribute(getId())
+                .entrySet()) {
+            LdapAttribute ldapAttribute = ldapAttributes.getAttribute(index.getKey());
+            if (ldapAttribute == null) {
                 continue;
             }
-            String idAttrName = ia.getName();
-            String idAttrValue = ia.getValue();
-            Attribute attribute = attributes.get(idAttrName);
-            if (attribute != null && attribute.contains(idAttrValue)) {
-                if (definition != null) {
+            for (String value : ldapAttribute.getStringValues()) {
+                List<Pso> psoDefinitions = index.getValue().get(value.toLowerCase());
+                if (psoDefinitions == null) {
+                    continue;
+                }
+                if (definition != null || psoDefinitions.size() > 1) {
                     LOG.error("More than one schema entity found for " + entry.getDn());
                     throw new PspException("More than one schema entity found for " + entry.getDn());
                 }
-                definition = psoDefinition;
+                definition = psoDefinitions.get(0);
             }
         }
         if (definition == null) {
@@ -1059,6 +1894,89 @@ public class LdapSpmlTarget extends BaseSpmlTarget {
         return modifyRequest;
     }
 
+    /**
+     * Gets the ldap pool and operation statistics.
+     * 
+     * @return the ldap pool and operation statistics
+     */
+    public LdapSpmlTargetStats getStats() {
+        return stats;
+    }
+
+    /**
+     * Gets the DN of the subtree watched for changes.
+     * 
+     * @return the DN of the subtree watched for changes, or null for the base DN of the ldap pool
+     */
+    public String getWatchBaseDn() {
+        return watchBaseDn;
+    }
+
+    /**
+     * Gets the time in milliseconds to collect changes before repairing them.
+     * 
+     * @return the time in milliseconds to collect changes before repairing them
+     */
+    public int getWatchDelay() {
+        return watchDelay;
+    }
+
+    /**
+     * Gets the name of the operational attribute whose value identifies a modification of a watched entry.
+     * 
+     * @return the name of the operational attribute whose value identifies a modification of a watched entry
+     */
+    public String getWatchChangeAttribute() {
+        return watchChangeAttribute;
+    }
+
+    /**
+     * Gets the name of the attribute whose value is the source identifier of a changed entry.
+     * 
+     * @return the name of the attribute whose value is the source identifier of a changed entry
+     */
+    public String getWatchSourceIdAttribute() {
+        return watchSourceIdAttribute;
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * An ldap compare operation is performed, so the matching rule of the attribute applies. If entries are cached,
+     * the value is found as by {@link #findValues(PSOIdentifier, String, Collection)}.
+     */
+    public boolean hasValue(PSOIdentifier psoID, String name, String value) throws PspNoSuchIdentifierException,
+            PspException {
+
+        LdapEntryCache cache = entryCache;
+        if (cache != null) {
+            return findValues(psoID, name, Collections.singleton(value)).contains(value);
+        }
+
+        String escapedDn = LdapSpmlTarget.escapeForwardSlash(psoID.getID());
+
+        Ldap ldap = null;
+        try {
+            ldap = checkOut();
+
+            boolean hasValue = compare(ldap, escapedDn, new SearchFilter(name + "={0}", new Object[] {value}));
+
+            LOG.debug("Target '{}' - Compare '{}' name '{}' value '{}' : " + hasValue, new Object[] {getId(),
+                    psoID.getID(), name, value,});
+
+            return hasValue;
+        } catch (NameNotFoundException e) {
+            throw new PspNoSuchIdentifierException("Unable to find '" + psoID.getID() + "' on target '" + getId()
+                    + "'", e);
+        } catch (LdapPoolException e) {
+            throw new PspException(e);
+        } catch (NamingException e) {
+            throw new PspException(e);
+        } finally {
+            checkIn(ldap);
+        }
+    }
+
     /**
      * Whether or not to log ldif.
      * 
@@ -1068,6 +1986,187 @@ public class LdapSpmlTarget extends BaseSpmlTarget {
         return logLdif;
     }
 
+    /**
+     * Whether or not the matched values control should be requested and is supported by the directory. Support is
+     * determined once from the supportedControl attribute of the root DSE.
+     * 
+     * @param ldap the ldap connection
+     * @return true if the matched values control should be requested
+     */
+    protected boolean isMatchedValuesSupported(Ldap ldap) {
+
+        if (!useMatchedValuesControl) {
+            return false;
+        }
+
+        Boolean supported = matchedValuesSupported;
+        if (supported == null) {
+            try {
+                supported = Arrays.asList(ldap.getSupportedControls()).contains(MatchedValuesControl.OID);
+            } catch (NamingException e) {
+                LOG.warn("Target '{}' - Unable to determine support for the matched values control : {}", getId(), e);
+                supported = false;
+            }
+            LOG.info("Target '{}' - Matched values control supported '{}'", getId(), supported);
+            matchedValuesSupported = supported;
+        }
+
+        return supported;
+    }
+
+    /**
+     * Whether or not the post-read control should be requested and is supported by the directory. Support is
+     * determined once from the supportedControl attribute of the root DSE.
+     * 
+     * @param ldap the ldap connection
+     * @return true if the post-read control should be requested
+     */
+    protected boolean isPostReadSupported(Ldap ldap) {
+        return usePostReadControl && isPostReadControlSupported(ldap);
+    }
+
+    /**
+     * Whether or not the post-read control is supported by the directory. Support is determined once from the
+     * supportedControl attribute of the root DSE.
+     * 
+     * @param ldap the ldap connection
+     * @return true if the post-read control is supported
+     */
+    protected boolean isPostReadControlSupported(Ldap ldap) {
+
+        Boolean supported = postReadSupported;
+        if (supported == null) {
+            try {
+                supported = Arrays.asList(ldap.getSupportedControls()).contains(PostReadControl.OID);
+            } catch (NamingException e) {
+                LOG.warn("Target '{}' - Unable to determine support for the post-read control : {}", getId(), e);
+                supported = false;
+            }
+            LOG.info("Target '{}' - Post-read control supported '{}'", getId(), supported);
+            postReadSupported = supported;
+        }
+
+        return supported;
+    }
+
+    /**
+     * Whether or not to prefetch ranges of attribute values on another pooled connection.
+     * 
+     * @return whether or not to prefetch ranges of attribute values on another pooled connection
+     */
+    public boolean isPrefetchRanges() {
+        return prefetchRanges;
+    }
+
+    /**
+     * Whether or not the name is the name of a reference of any provisioned object of this target.
+     * 
+     * @param name the attribute name
+     * @return true if the name is the name of a reference
+     */
+    protected boolean isReferenceName(String name) {
+        for (Pso psoDefinition : getPSP().getPsos(getId())) {
+            for (String referenceName : psoDefinition.getReferenceNames()) {
+                if (referenceName.equalsIgnoreCase(name)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Whether or not to find values via the RFC 3876 matched values control, if supported by the directory.
+     * 
+     * @return whether or not to find values via the matched values control
+     */
+    public boolean isUseMatchedValuesControl() {
+        return useMatchedValuesControl;
+    }
+
+    /**
+     * Whether or not to request the post-image of modified objects via the RFC 4527 post-read control.
+     * 
+     * @return whether or not to request the post-image of modified objects via the post-read control
+     */
+    public boolean isUsePostReadControl() {
+        return usePostReadControl;
+    }
+
+    /**
+     * Whether or not to watch the directory for changes made by others.
+     * 
+     * @return whether or not to watch the directory for changes made by others
+     */
+    public boolean isWatchChanges() {
+        return watchChanges;
+    }
+
+    /**
+     * Modify attributes requesting the post-read control, returning the post-image or null if the directory did not
+     * return a post-read response control.
+     * 
+     * The pooled ldap connections do not expose request and response controls, so the modification is performed on the
+     * shared connection, see {@link #getControlLdap(Ldap)}.
+     * 
+     * @param ldap a pooled ldap connection, whose configuration is used to open the shared connection
+     * @param escapedDn the DN
+     * @param mods the modifications
+     * @param retAttrs the names of the attributes to return
+     * @return the post-image or null
+     * @throws NamingException if an ldap error occurs
+     */
+    protected SearchResult modifyAttributesWithPostRead(Ldap ldap, String escapedDn, ModificationItem[] mods,
+            String[] retAttrs) throws NamingException {
+
+        ControlLdap controlLdap = getControlLdap(ldap);
+
+        // the watch change attribute identifies this modification to the change watcher
+        boolean readChangeAttribute =
+                changeWatcher != null && !Arrays.asList(retAttrs).contains(watchChangeAttribute);
+        String[] postReadAttrs = retAttrs;
+        if (readChangeAttribute) {
+            postReadAttrs = Arrays.copyOf(retAttrs, retAttrs.length + 1);
+            postReadAttrs[retAttrs.length] = watchChangeAttribute;
+        }
+
+        long start = System.nanoTime();
+        boolean success = false;
+        LdapContext context = null;
+        try {
+            context = controlLdap.getLdapContext(new Control[] {new PostReadControl(postReadAttrs, false)});
+            context.modifyAttributes(escapedDn, mods);
+            success = true;
+            SearchResult postImage = PostReadControl.getEntry(context.getResponseControls());
+            if (postImage == null) {
+                LOG.debug("Target '{}' - No post-read response control returned for '{}'", getId(), escapedDn);
+            } else if (changeWatcher != null) {
+                Attribute changeAttribute = postImage.getAttributes().get(watchChangeAttribute);
+                if (changeAttribute != null && changeAttribute.size() > 0) {
+                    recordOwnChange(PersistentSearchControl.MODIFY, escapedDn, null, changeAttribute.get().toString());
+                }
+                if (readChangeAttribute) {
+                    postImage.getAttributes().remove(watchChangeAttribute);
+                }
+            }
+            return postImage;
+        } catch (CommunicationException e) {
+            LOG.warn("Target '{}' - Closing control connection : {}", getId(), e.getMessage());
+            controlLdap.close();
+            throw e;
+        } catch (ServiceUnavailableException e) {
+            LOG.warn("Target '{}' - Closing control connection : {}", getId(), e.getMessage());
+            controlLdap.close();
+            throw e;
+        } finally {
+            stats.record(Operation.MODIFY, start, success);
+            updateEntryCache(escapedDn, mods, success);
+            if (context != null) {
+                context.close();
+            }
+        }
+    }
+
     /** {@inheritDoc} */
     protected void onNewContextCreated(ApplicationContext newServiceContext) throws ServiceException {
 
@@ -1089,36 +2188,55 @@ public class LdapSpmlTarget extends BaseSpmlTarget {
             LOG.error(getId() + " configuration is not valid, retaining old configuration", e);
             throw new ServiceException(getId() + " configuration is not valid, retaining old configuration", e);
         }
+
+        if (entryCacheSize > 0) {
+            LOG.debug("Target '{}' - Caching at most {} entries for {} seconds", new Object[] {getId(),
+                    entryCacheSize, entryCacheTtl,});
+            entryCache = new LdapEntryCache(entryCacheSize, TimeUnit.SECONDS.toMillis(entryCacheTtl));
+        } else {
+            entryCache = null;
+        }
+
+        registerStats();
+
+        if (prefetchRanges) {
+            configureRangeSearchResultHandlers();
+        }
+
+        if (changeWatcher != null) {
+            changeWatcher.stop();
+            changeWatcher = null;
+        }
+        if (watchChanges) {
+            startChangeWatcher();
+        }
+
+        synchronized (this) {
+            if (partitionedSearch != null) {
+                partitionedSearch.shutdown();
+                partitionedSearch = null;
+            }
+
+            postReadSupported = null;
+            matchedValuesSupported = null;
+            if (controlLdap != null) {
+                controlLdap.close();
+                controlLdap = null;
+            }
+        }
     }
 
     /** {@inheritDoc} */
     public Set<PSOIdentifier> orderForDeletion(final Set<PSOIdentifier> psoIdentifiers) throws PspException {
 
-        // tree map keys are in ascending order, this will need to be reversed
-        Map<LdapName, PSOIdentifier> map = new TreeMap<LdapName, PSOIdentifier>();
-
+        Set<PSOIdentifier> psoIdsOrderedForDeletion;
         try {
-            for (PSOIdentifier psoIdentifier : psoIdentifiers) {
-                LdapName ldapName = new LdapName(psoIdentifier.getID());
-                map.put(ldapName, psoIdentifier);
-            }
+            psoIdsOrderedForDeletion = DeletionOrder.order(psoIdentifiers);
         } catch (InvalidNameException e) {
             LOG.error("An error occurred ordering the PSO identifiers.", e);
             throw new PspException(e);
         }
 
-        // linked hash set to preserver insertion order
-        Set<PSOIdentifier> psoIdsOrderedForDeletion = new LinkedHashSet<PSOIdentifier>();
-
-        ArrayList<LdapName> ldapNames = new ArrayList<LdapName>(map.keySet());
-
-        // reverse the order of the keys, suitable for deletion
-        Collections.reverse(ldapNames);
-
-        for (LdapName ldapName : ldapNames) {
-            psoIdsOrderedForDeletion.add(map.get(ldapName));
-        }
-
         if (LOG.isTraceEnabled()) {
             for (PSOIdentifier psoId : psoIdsOrderedForDeletion) {
                 LOG.trace("correct pso id '{}'", PSPUtil.toString(psoId));
@@ -1128,6 +2246,78 @@ public class LdapSpmlTarget extends BaseSpmlTarget {
         return psoIdsOrderedForDeletion;
     }
 
+    /**
+     * Record that an entry has been written by this target, so that the change watcher ignores the change.
+     * 
+     * @see LdapChangeWatcher#recordOwnChange(int, String, String, String)
+     * @param changeType the type of change, one of the change types of {@link PersistentSearchControl}
+     * @param dn the DN of the entry
+     * @param previousDn the previous DN of a renamed entry, otherwise null
+     * @param changeId the value of the watch change attribute of a modified entry, otherwise null
+     */
+    protected void recordOwnChange(int changeType, String dn, String previousDn, String changeId) {
+        LdapChangeWatcher watcher = changeWatcher;
+        if (watcher != null) {
+            watcher.recordOwnChange(changeType, dn, previousDn, changeId);
+        }
+    }
+
+    /**
+     * Register the statistics of this target with the platform MBean server, replacing the statistics of a previous
+     * target with the same id.
+     */
+    protected void registerStats() {
+        try {
+            MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name =
+                    new ObjectName("edu.internet2.middleware.psp:type=LdapSpmlTarget,name=" + ObjectName.quote(getId()));
+            if (mbeanServer.isRegistered(name)) {
+                mbeanServer.unregisterMBean(name);
+            }
+            mbeanServer.registerMBean(stats, name);
+            LOG.debug("Target '{}' - Registered statistics '{}'", getId(), name);
+        } catch (JMException e) {
+            LOG.warn("Target '{}' - Unable to register statistics : {}", getId(), e);
+        }
+    }
+
+    /**
+     * Sets the maximum number of values which are compared one at a time rather than reading the attribute, if the
+     * matched values control is not used.
+     * 
+     * @param compareThreshold the maximum number of values compared one at a time, zero to always read the attribute
+     */
+    public void setCompareThreshold(int compareThreshold) {
+        this.compareThreshold = compareThreshold;
+    }
+
+    /**
+     * Sets the maximum number of cached entries.
+     * 
+     * @param entryCacheSize the maximum number of cached entries, zero to not cache entries
+     */
+    public void setEntryCacheSize(int entryCacheSize) {
+        this.entryCacheSize = entryCacheSize;
+    }
+
+    /**
+     * Sets the time to live of cached entries in seconds.
+     * 
+     * @param entryCacheTtl the time to live of cached entries in seconds
+     */
+    public void setEntryCacheTtl(int entryCacheTtl) {
+        this.entryCacheTtl = entryCacheTtl;
+    }
+
+    /**
+     * Sets whether or not values not found in a cached entry are verified by reading the entry from the directory.
+     * 
+     * @param entryCacheVerifyOnMiss true to verify values not found in a cached entry
+     */
+    public void setEntryCacheVerifyOnMiss(boolean entryCacheVerifyOnMiss) {
+        this.entryCacheVerifyOnMiss = entryCacheVerifyOnMiss;
+    }
+
     /**
      * Sets the id of the ldap pool.
      * 
@@ -1154,4 +2344,131 @@ public class LdapSpmlTarget extends BaseSpmlTarget {
     public void setLogLdif(boolean logLdif) {
         this.logLdif = logLdif;
     }
+
+    /**
+     * Sets the number of partitions of a subtree search which are searched concurrently. Zero, the default, searches
+     * subtrees with a single search.
+     * 
+     * @param partitionConcurrency the number of partitions of a subtree search which are searched concurrently
+     */
+    public void setPartitionConcurrency(int partitionConcurrency) {
+        this.partitionConcurrency = partitionConcurrency;
+    }
+
+    /**
+     * Sets whether or not to prefetch ranges of attribute values on another pooled connection.
+     * 
+     * @param prefetchRanges whether or not to prefetch ranges of attribute values on another pooled connection
+     */
+    public void setPrefetchRanges(boolean prefetchRanges) {
+        this.prefetchRanges = prefetchRanges;
+    }
+
+    /**
+     * Sets whether or not to find values via the RFC 3876 matched values control, if supported by the directory.
+     * 
+     * @param useMatchedValuesControl whether or not to find values via the matched values control
+     */
+    public void setUseMatchedValuesControl(boolean useMatchedValuesControl) {
+        this.useMatchedValuesControl = useMatchedValuesControl;
+    }
+
+    /**
+     * Sets whether or not to request the post-image of modified objects via the RFC 4527 post-read control.
+     * 
+     * @param usePostReadControl whether or not to request the post-image of modified objects via the post-read control
+     */
+    public void setUsePostReadControl(boolean usePostReadControl) {
+        this.usePostReadControl = usePostReadControl;
+    }
+
+    /**
+     * Sets the DN of the subtree watched for changes.
+     * 
+     * @param watchBaseDn the DN of the subtree watched for changes, or null for the base DN of the ldap pool
+     */
+    public void setWatchBaseDn(String watchBaseDn) {
+        this.watchBaseDn = watchBaseDn;
+    }
+
+    /**
+     * Sets whether or not to watch the directory for changes made by others.
+     * 
+     * @param watchChanges whether or not to watch the directory for changes made by others
+     */
+    public void setWatchChanges(boolean watchChanges) {
+        this.watchChanges = watchChanges;
+    }
+
+    /**
+     * Sets the time in milliseconds to collect changes before repairing them.
+     * 
+     * @param watchDelay the time in milliseconds to collect changes before repairing them
+     */
+    public void setWatchDelay(int watchDelay) {
+        this.watchDelay = watchDelay;
+    }
+
+    /**
+     * Sets the name of the operational attribute whose value identifies a modification of a watched entry.
+     * 
+     * @param watchChangeAttribute the name of the operational attribute, such as entryCSN or modifyTimestamp
+     */
+    public void setWatchChangeAttribute(String watchChangeAttribute) {
+        this.watchChangeAttribute = watchChangeAttribute;
+    }
+
+    /**
+     * Sets the name of the attribute whose value is the source identifier of a changed entry.
+     * 
+     * @param watchSourceIdAttribute the name of the attribute whose value is the source identifier
+     */
+    public void setWatchSourceIdAttribute(String watchSourceIdAttribute) {
+        this.watchSourceIdAttribute = watchSourceIdAttribute;
+    }
+
+    /**
+     * Start watching the directory for changes made by others, repairing changed entries via sync requests.
+     */
+    protected void startChangeWatcher() {
+
+        Ldap ldap = null;
+        try {
+            ldap = checkOut();
+
+            String baseDn = watchBaseDn != null ? watchBaseDn : ldap.getLdapConfig().getBaseDn();
+            String[] returningAttributes =
+                    watchSourceIdAttribute != null ? new String[] {watchSourceIdAttribute, watchChangeAttribute}
+                            : new String[] {watchChangeAttribute};
+
+            changeWatcher =
+                    new LdapChangeWatcher("psp-" + getId(), ldap.getLdapConfig(), Collections.singletonList(baseDn),
+                            returningAttributes, new SyncRequestChangeHandler(this, watchSourceIdAttribute));
+            changeWatcher.setDelayMillis(watchDelay);
+            changeWatcher.setChangeAttribute(watchChangeAttribute);
+            changeWatcher.start();
+        } catch (LdapPoolException e) {
+            LOG.error("Target '" + getId() + "' - Unable to start watching for changes", e);
+        } finally {
+            checkIn(ldap);
+        }
+    }
+
+    /**
+     * Apply modifications to the cached entry, or remove the entry if the modifications failed.
+     * 
+     * @param escapedDn the DN
+     * @param mods the modifications
+     * @param success whether the modifications succeeded
+     */
+    protected void updateEntryCache(String escapedDn, ModificationItem[] mods, boolean success) {
+        LdapEntryCache cache = entryCache;
+        if (cache != null) {
+            if (success) {
+                cache.modify(escapedDn, mods);
+            } else {
+                cache.remove(escapedDn);
+            }
+        }
+    }
 }
@@ -0,0 +1,263 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.psp.ldap;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import edu.vt.middleware.ldap.Ldap;
+import edu.vt.middleware.ldap.pool.LdapPool;
+
+/** Ldap pool and operation statistics of an {@link LdapSpmlTarget}. */
+public class LdapSpmlTargetStats implements LdapSpmlTargetStatsMBean {
+
+    /** The instrumented ldap operations. */
+    public enum Operation {
+
+        /** Search. */
+        SEARCH,
+
+        /** Lookup, an object scoped search. */
+        LOOKUP,
+
+        /** Add. */
+        ADD,
+
+        /** Modify. */
+        MODIFY,
+
+        /** Rename. */
+        RENAME,
+
+        /** Delete. */
+        DELETE,
+
+        /** Compare. */
+        COMPARE;
+    }
+
+    /** The target. */
+    private LdapSpmlTarget target;
+
+    /** The number of connections currently checked out by the target. */
+    private final AtomicInteger active = new AtomicInteger();
+
+    /** Checkout wait times. */
+    private final LatencyHistogram checkOutWait = new LatencyHistogram();
+
+    /** Operation latencies. */
+    private final Map<Operation, LatencyHistogram> operations = new EnumMap<Operation, LatencyHistogram>(
+            Operation.class);
+
+    /**
+     * Constructor.
+     * 
+     * @param target the ldap target
+     */
+    public LdapSpmlTargetStats(LdapSpmlTarget target) {
+        this.target = target;
+        for (Operation operation : Operation.values()) {
+            operations.put(operation, new LatencyHistogram());
+        }
+    }
+
+    /**
+     * Record a successful checkout.
+     * 
+     * @param startNanos the time the checkout started from {@link System#nanoTime()}
+     */
+    public void recordCheckOut(long startNanos) {
+        checkOutWait.record(startNanos, true);
+        active.incrementAndGet();
+    }
+
+    /**
+     * Record a failed checkout.
+     * 
+     * @param startNanos the time the checkout started from {@link System#nanoTime()}
+     */
+    public void recordCheckOutError(long startNanos) {
+        checkOutWait.record(startNanos, false);
+    }
+
+    /**
+     * Record a checkin.
+     */
+    public void recordCheckIn() {
+        active.decrementAndGet();
+    }
+
+    /**
+     * Record an ldap operation.
+     * 
+     * @param operation the operation
+     * @param startNanos the time the operation started from {@link System#nanoTime()}
+     * @param success whether the operation succeeded
+     */
+    public void record(Operation operation, long startNanos, boolean success) {
+        operations.get(operation).record(startNanos, success);
+    }
+
+    /**
+     * Gets the latency histogram of the given operation.
+     * 
+     * @param operation the operation
+     * @return the latency histogram
+     */
+    public LatencyHistogram getHistogram(Operation operation) {
+        return operations.get(operation);
+    }
+
+    /** {@inheritDoc} */
+    public int getActiveCount() {
+        return active.get();
+    }
+
+    /** {@inheritDoc} */
+    public int getIdleCount() {
+        LdapPool<Ldap> ldapPool = target.getLdapPool();
+        return ldapPool == null ? -1 : ldapPool.availableCount();
+    }
+
+    /** {@inheritDoc} */
+    public int getMaxPoolSize() {
+        LdapPool<Ldap> ldapPool = target.getLdapPool();
+        return ldapPool == null ? -1 : ldapPool.getLdapPoolConfig().getMaxPoolSize();
+    }
+
+    /** {@inheritDoc} */
+    public long getCheckOutCount() {
+        return checkOutWait.getCount() - checkOutWait.getErrorCount();
+    }
+
+    /** {@inheritDoc} */
+    public long getCheckOutErrorCount() {
+        return checkOutWait.getErrorCount();
+    }
+
+    /** {@inheritDoc} */
+    public double getCheckOutWaitMeanMillis() {
+        return checkOutWait.getMeanMillis();
+    }
+
+    /** {@inheritDoc} */
+    public long getCheckOutWaitMaxMillis() {
+        return checkOutWait.getMaxMillis();
+    }
+
+    /** {@inheritDoc} */
+    public String[] getCheckOutWaitHistogram() {
+        return checkOutWait.getBuckets();
+    }
+
+    /** {@inheritDoc} */
+    public String[] getOperationSummary() {
+        List<String> summary = new ArrayList<String>();
+        for (Operation operation : Operation.values()) {
+            summary.add(operation.name().toLowerCase() + " " + operations.get(operation));
+        }
+        return summary.toArray(new String[summary.size()]);
+    }
+
+    /** {@inheritDoc} */
+    public long getOperationCount(String operation) {
+        return operations.get(toOperation(operation)).getCount();
+    }
+
+    /** {@inheritDoc} */
+    public long getOperationErrorCount(String operation) {
+        return operations.get(toOperation(operation)).getErrorCount();
+    }
+
+    /** {@inheritDoc} */
+    public String[] getOperationHistogram(String operation) {
+        return operations.get(toOperation(operation)).getBuckets();
+    }
+
+    /** {@inheritDoc} */
+    public int getEntryCacheSize() {
+        LdapEntryCache cache = target.getEntryCache();
+        return cache == null ? -1 : cache.size();
+    }
+
+    /** {@inheritDoc} */
+    public long getEntryCacheHitCount() {
+        LdapEntryCache cache = target.getEntryCache();
+        return cache == null ? 0 : cache.getHitCount();
+    }
+
+    /** {@inheritDoc} */
+    public long getEntryCacheMissCount() {
+        LdapEntryCache cache = target.getEntryCache();
+        return cache == null ? 0 : cache.getMissCount();
+    }
+
+    /** {@inheritDoc} */
+    public double getEntryCacheHitRate() {
+        LdapEntryCache cache = target.getEntryCache();
+        return cache == null ? 0 : cache.getHitRate();
+    }
+
+    /** {@inheritDoc} */
+    public long getEntryCacheEvictionCount() {
+        LdapEntryCache cache = target.getEntryCache();
+        return cache == null ? 0 : cache.getEvictionCount();
+    }
+
+    /** {@inheritDoc} */
+    public void reset() {
+        checkOutWait.reset();
+        for (LatencyHistogram histogram : operations.values()) {
+            histogram.reset();
+        }
+        LdapEntryCache cache = target.getEntryCache();
+        if (cache != null) {
+            cache.resetCounts();
+        }
+    }
+
+    /**
+     * Convert the case insensitive name of an operation to an operation.
+     * 
+     * @param operation the name of the operation
+     * @return the operation
+     * @throws IllegalArgumentException if the operation is unknown
+     */
+    private Operation toOperation(String operation) {
+        return Operation.valueOf(operation.trim().toUpperCase());
+    }
+
+    /** {@inheritDoc} */
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        builder.append("active=").append(getActiveCount());
+        builder.append(" checkOutWait[").append(checkOutWait).append("]");
+        for (Operation operation : Operation.values()) {
+            builder.append(" ").append(operation.name().toLowerCase());
+            builder.append("[").append(operations.get(operation)).append("]");
+        }
+        LdapEntryCache cache = target.getEntryCache();
+        if (cache != null) {
+            builder.append(" entryCache[").append(cache).append("]");
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.psp.ldap;
+
+/** JMX management interface exposing ldap pool and operation statistics of an {@link LdapSpmlTarget}. */
+public interface LdapSpmlTargetStatsMBean {
+
+    /**
+     * Gets the number of connections currently checked out of the ldap pool by the target.
+     * 
+     * @return the number of connections checked out
+     */
+    public int getActiveCount();
+
+    /**
+     * Gets the number of idle connections in the ldap pool.
+     * 
+     * @return the number of idle connections, or -1 if unknown
+     */
+    public int getIdleCount();
+
+    /**
+     * Gets the maximum size of the ldap pool.
+     * 
+     * @return the maximum size of the ldap pool, or -1 if unknown
+     */
+    public int getMaxPoolSize();
+
+    /**
+     * Gets the number of connections checked out of the ldap pool.
+     * 
+     * @return the number of checkouts
+     */
+    public long getCheckOutCount();
+
+    /**
+     * Gets the number of failed attempts to check out a connection from the ldap pool.
+     * 
+     * @return the number of failed checkouts
+     */
+    public long getCheckOutErrorCount();
+
+    /**
+     * Gets the mean time spent waiting to check out a connection in milliseconds.
+     * 
+     * @return the mean checkout wait time in milliseconds
+     */
+    public double getCheckOutWaitMeanMillis();
+
+    /**
+     * Gets the maximum time spent waiting to check out a connection in milliseconds.
+     * 
+     * @return the maximum checkout wait time in milliseconds
+     */
+    public long getCheckOutWaitMaxMillis();
+
+    /**
+     * Gets the histogram of checkout wait times.
+     * 
+     * @return the histogram of checkout wait times, one line per bucket
+     */
+    public String[] getCheckOutWaitHistogram();
+
+    /**
+     * Gets a one line summary of each ldap operation.
+     * 
+     * @return a summary of each ldap operation
+     */
+    public String[] getOperationSummary();
+
+    /**
+     * Gets the number of times the given ldap operation was performed.
+     * 
+     * @param operation the ldap operation, one of search, lookup, add, modify, rename, delete, compare
+     * @return the number of times the operation was performed
+     */
+    public long getOperationCount(String operation);
+
+    /**
+     * Gets the number of times the given ldap operation failed.
+     * 
+     * @param operation the ldap operation, one of search, lookup, add, modify, rename, delete, compare
+     * @return the number of times the operation failed
+     */
+    public long getOperationErrorCount(String operation);
+
+    /**
+     * Gets the histogram of latencies of the given ldap operation.
+     * 
+     * @param operation the ldap operation, one of search, lookup, add, modify, rename, delete, compare
+     * @return the histogram of latencies, one line per bucket
+     */
+    public String[] getOperationHistogram(String operation);
+
+    /**
+     * Gets the number of cached entries.
+     * 
+     * @return the number of cached entries, or -1 if entries are not cached
+     */
+    public int getEntryCacheSize();
+
+    /**
+     * Gets the number of lookups served from the entry cache.
+     * 
+     * @return the number of lookups served from the entry cache
+     */
+    public long getEntryCacheHitCount();
+
+    /**
+     * Gets the number of lookups not served from the entry cache.
+     * 
+     * @return the number of lookups not served from the entry cache
+     */
+    public long getEntryCacheMissCount();
+
+    /**
+     * Gets the fraction of lookups served from the entry cache.
+     * 
+     * @return the fraction of lookups served from the entry cache
+     */
+    public double getEntryCacheHitRate();
+
+    /**
+     * Gets the number of entries evicted from the full entry cache.
+     * 
+     * @return the number of evicted entries
+     */
+    public long getEntryCacheEvictionCount();
+
+    /**
+     * Reset all statistics.
+     */
+    public void reset();
+}
@@ -0,0 +1,290 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.psp.ldap;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.naming.ContextNotEmptyException;
+import javax.naming.NameAlreadyBoundException;
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.OperationNotSupportedException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.DirContext;
+import javax.naming.directory.ModificationItem;
+import javax.naming.directory.NoSuchAttributeException;
+import javax.naming.ldap.LdapName;
+import javax.naming.ldap.Rdn;
+
+/**
+ * Collects the writes of a provisioning run as LDIF rather than performing them.
+ *
+ * Added entries are held in memory, sorted so that parents precede children, and later modifications, renames, and
+ * deletes of an added entry are applied to it in memory. The entries are written as LDIF content records, suitable
+ * for bulk loaders such as slapadd or ldifde. Writes to entries which were not added are written, in order, as LDIF
+ * change records, if change records are enabled, otherwise they are refused.
+ *
+ * DNs are case-insensitively compared, see {@link LdapName}. This class is thread safe.
+ */
+public class LdifEntryBuffer {
+
+    /** The added entries, parents before children. */
+    private final TreeMap<LdapName, Attributes> entries = new TreeMap<LdapName, Attributes>();
+
+    /** The change records, or null if change records are not enabled. */
+    private StringWriter changes;
+
+    /** Writes change records. */
+    private LdifRecordWriter changeWriter;
+
+    /** The number of change records. */
+    private int changeCount;
+
+    /**
+     * Constructor.
+     *
+     * @param recordChanges whether or not to record writes to entries which were not added as change records
+     */
+    public LdifEntryBuffer(boolean recordChanges) {
+        if (recordChanges) {
+            changes = new StringWriter();
+            changeWriter = new LdifRecordWriter(changes);
+        }
+    }
+
+    /**
+     * Add an entry.
+     *
+     * @param dn the DN of the entry
+     * @param attributes the attributes of the entry
+     * @throws NamingException if the entry has already been added or the DN is not valid
+     */
+    public synchronized void add(String dn, Attributes attributes) throws NamingException {
+
+        LdapName ldapName = new LdapName(dn);
+        if (entries.containsKey(ldapName)) {
+            throw new NameAlreadyBoundException("Entry '" + dn + "' has already been added.");
+        }
+
+        entries.put(ldapName, LdapEntryCache.copy(attributes));
+    }
+
+    /**
+     * Modify an entry. The modifications are applied to an added entry, otherwise a change record is written.
+     *
+     * @param dn the DN of the entry
+     * @param mods the modifications
+     * @throws NamingException if a modification can not be applied, or the entry was not added and change records
+     *             are not enabled
+     */
+    public synchronized void modify(String dn, ModificationItem[] mods) throws NamingException {
+
+        LdapName ldapName = new LdapName(dn);
+        Attributes attributes = entries.get(ldapName);
+        if (attributes == null) {
+            try {
+                writeChange(dn).writeModify(dn, mods);
+            } catch (IOException e) {
+                // a string writer does not throw
+                throw new IllegalStateException(e);
+            }
+            changeCount++;
+            return;
+        }
+
+        // apply to a copy, so that a failed modification does not change the entry
+        Attributes modified = LdapEntryCache.copy(attributes);
+        for (ModificationItem mod : mods) {
+            if (!LdapEntryCache.apply(modified, mod)) {
+                throw new NoSuchAttributeException("Unable to modify entry '" + dn + "', no such value " + mod);
+            }
+        }
+        entries.put(ldapName, modified);
+    }
+
+    /**
+     * Delete an entry. An added entry is forgotten, otherwise a change record is written.
+     *
+     * @param dn the DN of the entry
+     * @throws NamingException if an added entry has added children, or the entry was not added and change records are
+     *             not enabled
+     */
+    public synchronized void delete(String dn) throws NamingException {
+
+        LdapName ldapName = new LdapName(dn);
+        if (!entries.containsKey(ldapName)) {
+            try {
+                writeChange(dn).writeDelete(dn);
+            } catch (IOException e) {
+                // a string writer does not throw
+                throw new IllegalStateException(e);
+            }
+            changeCount++;
+            return;
+        }
+
+        if (hasChildren(ldapName)) {
+            throw new ContextNotEmptyException("Unable to delete entry '" + dn + "' which has children.");
+        }
+        entries.remove(ldapName);
+    }
+
+    /**
+     * Rename an entry, deleting the old RDN. An added entry is moved, otherwise a change record is written.
+     *
+     * @param oldDn the old DN
+     * @param newDn the new DN
+     * @throws NamingException if an added entry has added children, the new DN exists, or the entry was not added and
+     *             change records are not enabled
+     */
+    public synchronized void rename(String oldDn, String newDn) throws NamingException {
+
+        LdapName oldName = new LdapName(oldDn);
+        LdapName newName = new LdapName(newDn);
+
+        Attributes attributes = entries.get(oldName);
+        if (attributes == null) {
+            try {
+                writeChange(oldDn).writeModDn(oldDn, newDn);
+            } catch (IOException e) {
+                // a string writer does not throw
+                throw new IllegalStateException(e);
+            }
+            changeCount++;
+            return;
+        }
+
+        if (hasChildren(oldName)) {
+            throw new ContextNotEmptyException("Unable to rename entry '" + oldDn + "' which has children.");
+        }
+        if (entries.containsKey(newName)) {
+            throw new NameAlreadyBoundException("Unable to rename entry '" + oldDn + "', entry '" + newDn
+                    + "' has already been added.");
+        }
+
+        // replace the old RDN values with the new RDN values
+        Attributes renamed = LdapEntryCache.copy(attributes);
+        apply(renamed, DirContext.REMOVE_ATTRIBUTE, oldName.getRdn(oldName.size() - 1).toAttributes());
+        apply(renamed, DirContext.ADD_ATTRIBUTE, newName.getRdn(newName.size() - 1).toAttributes());
+
+        entries.remove(oldName);
+        entries.put(newName, renamed);
+    }
+
+    /**
+     * Gets a copy of the attributes of an added entry.
+     *
+     * @param dn the DN of the entry
+     * @return a copy of the attributes, or null if the entry was not added
+     * @throws NamingException if the DN is not valid
+     */
+    public synchronized Attributes get(String dn) throws NamingException {
+        Attributes attributes = entries.get(new LdapName(dn));
+        return attributes == null ? null : LdapEntryCache.copy(attributes);
+    }
+
+    /**
+     * Gets the number of added entries.
+     *
+     * @return the number of added entries
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Gets the number of change records.
+     *
+     * @return the number of change records
+     */
+    public synchronized int getChangeCount() {
+        return changeCount;
+    }
+
+    /**
+     * Write the added entries as content records, parents before children, and the change records.
+     *
+     * @param entriesOut the output of the content records
+     * @param changesOut the output of the change records, may be null if there are none
+     * @throws IOException if an I/O error occurs
+     * @throws NamingException if a value can not be read
+     */
+    public synchronized void write(Writer entriesOut, Writer changesOut) throws IOException, NamingException {
+
+        LdifRecordWriter entryWriter = new LdifRecordWriter(entriesOut);
+        entryWriter.writeVersion();
+        for (Map.Entry<LdapName, Attributes> entry : entries.entrySet()) {
+            entryWriter.writeEntry(entry.getKey().toString(), entry.getValue());
+        }
+        entryWriter.flush();
+
+        if (changeCount > 0) {
+            LdifRecordWriter changesWriter = new LdifRecordWriter(changesOut);
+            changesWriter.writeVersion();
+            changesOut.write(changes.toString());
+            changesWriter.flush();
+        }
+    }
+
+    /**
+     * Apply a modification of each of the attributes.
+     *
+     * @param attributes the attributes to modify
+     * @param op the modification operation
+     * @param values the attributes whose values are added or removed
+     * @throws NamingException if a value can not be read
+     */
+    private static void apply(Attributes attributes, int op, Attributes values) throws NamingException {
+        NamingEnumeration<? extends Attribute> all = values.getAll();
+        while (all.hasMore()) {
+            LdapEntryCache.apply(attributes, new ModificationItem(op, all.next()));
+        }
+    }
+
+    /**
+     * Whether or not any added entry is a child of the given entry.
+     *
+     * @param ldapName the DN of the entry
+     * @return true if an added entry is a child of the given entry
+     */
+    private boolean hasChildren(LdapName ldapName) {
+        // descendants immediately follow their ancestor in the sorted map
+        LdapName next = entries.higherKey(ldapName);
+        return next != null && next.startsWith(ldapName);
+    }
+
+    /**
+     * Gets the change record writer.
+     *
+     * @param dn the DN of the entry which was not added
+     * @return the change record writer
+     * @throws OperationNotSupportedException if change records are not enabled
+     */
+    private LdifRecordWriter writeChange(String dn) throws OperationNotSupportedException {
+        if (changeWriter == null) {
+            throw new OperationNotSupportedException("Unable to write entry '" + dn
+                    + "' which has not been added, change records are not enabled.");
+        }
+        return changeWriter;
+    }
+}
@@ -0,0 +1,266 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.psp.ldap;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.DirContext;
+import javax.naming.directory.ModificationItem;
+import javax.naming.ldap.LdapName;
+import javax.xml.bind.DatatypeConverter;
+
+/**
+ * Writes RFC 2849 LDIF content and change records. Values which are not safe strings, and binary values, are base64
+ * encoded. Lines are not folded.
+ */
+public class LdifRecordWriter {
+
+    /** The line separator. */
+    private static final String NEWLINE = "\n";
+
+    /** The output. */
+    private Writer writer;
+
+    /**
+     * Constructor.
+     *
+     * @param writer the output
+     */
+    public LdifRecordWriter(Writer writer) {
+        this.writer = writer;
+    }
+
+    /**
+     * Write the version line, which must precede the first record.
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    public void writeVersion() throws IOException {
+        writer.write("version: 1" + NEWLINE + NEWLINE);
+    }
+
+    /**
+     * Write a content record, suitable for bulk loaders.
+     *
+     * @param dn the DN of the entry
+     * @param attributes the attributes of the entry
+     * @throws IOException if an I/O error occurs
+     * @throws NamingException if a value can not be read
+     */
+    public void writeEntry(String dn, Attributes attributes) throws IOException, NamingException {
+        writeLine("dn", dn);
+        writeAttributes(attributes);
+        writer.write(NEWLINE);
+    }
+
+    /**
+     * Write an add change record.
+     *
+     * @param dn the DN of the entry
+     * @param attributes the attributes of the entry
+     * @throws IOException if an I/O error occurs
+     * @throws NamingException if a value can not be read
+     */
+    public void writeAdd(String dn, Attributes attributes) throws IOException, NamingException {
+        writeLine("dn", dn);
+        writer.write("changetype: add" + NEWLINE);
+        writeAttributes(attributes);
+        writer.write(NEWLINE);
+    }
+
+    /**
+     * Write a delete change record.
+     *
+     * @param dn the DN of the entry
+     * @throws IOException if an I/O error occurs
+     */
+    public void writeDelete(String dn) throws IOException {
+        writeLine("dn", dn);
+        writer.write("changetype: delete" + NEWLINE + NEWLINE);
+    }
+
+    /**
+     * Write a modify change record.
+     *
+     * @param dn the DN of the entry
+     * @param mods the modifications
+     * @throws IOException if an I/O error occurs
+     * @throws NamingException if a value can not be read or a modification operation is unknown
+     */
+    public void writeModify(String dn, ModificationItem[] mods) throws IOException, NamingException {
+
+        writeLine("dn", dn);
+        writer.write("changetype: modify" + NEWLINE);
+
+        for (ModificationItem mod : mods) {
+            Attribute attribute = mod.getAttribute();
+            switch (mod.getModificationOp()) {
+                case DirContext.ADD_ATTRIBUTE:
+                    writer.write("add: " + attribute.getID() + NEWLINE);
+                    break;
+                case DirContext.REMOVE_ATTRIBUTE:
+                    writer.write("delete: " + attribute.getID() + NEWLINE);
+                    break;
+                case DirContext.REPLACE_ATTRIBUTE:
+                    writer.write("replace: " + attribute.getID() + NEWLINE);
+                    break;
+                default:
+                    throw new NamingException("Unknown modification operation " + mod.getModificationOp());
+            }
+            writeValues(attribute);
+            writer.write("-" + NEWLINE);
+        }
+
+        writer.write(NEWLINE);
+    }
+
+    /**
+     * Write a modify DN change record, deleting the old RDN.
+     *
+     * @param oldDn the old DN
+     * @param newDn the new DN
+     * @throws IOException if an I/O error occurs
+     * @throws NamingException if a DN is not valid
+     */
+    public void writeModDn(String oldDn, String newDn) throws IOException, NamingException {
+
+        LdapName oldName = new LdapName(oldDn);
+        LdapName newName = new LdapName(newDn);
+
+        writeLine("dn", oldDn);
+        writer.write("changetype: modrdn" + NEWLINE);
+        writeLine("newrdn", newName.getRdn(newName.size() - 1).toString());
+        writer.write("deleteoldrdn: 1" + NEWLINE);
+
+        LdapName newSuperior = (LdapName) newName.getPrefix(newName.size() - 1);
+        if (!newSuperior.equals(oldName.getPrefix(oldName.size() - 1))) {
+            writeLine("newsuperior", newSuperior.toString());
+        }
+
+        writer.write(NEWLINE);
+    }
+
+    /**
+     * Flush the output.
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    public void flush() throws IOException {
+        writer.flush();
+    }
+
+    /**
+     * Write every value of every attribute.
+     *
+     * @param attributes the attributes
+     * @throws IOException if an I/O error occurs
+     * @throws NamingException if a value can not be read
+     */
+    private void writeAttributes(Attributes attributes) throws IOException, NamingException {
+        NamingEnumeration<? extends Attribute> all = attributes.getAll();
+        while (all.hasMore()) {
+            writeValues(all.next());
+        }
+    }
+
+    /**
+     * Write every value of an attribute.
+     *
+     * @param attribute the attribute
+     * @throws IOException if an I/O error occurs
+     * @throws NamingException if a value can not be read
+     */
+    private void writeValues(Attribute attribute) throws IOException, NamingException {
+        NamingEnumeration<?> values = attribute.getAll();
+        while (values.hasMore()) {
+            Object value = values.next();
+            if (value instanceof byte[]) {
+                writer.write(attribute.getID() + ":: " + DatatypeConverter.printBase64Binary((byte[]) value) + NEWLINE);
+            } else {
+                writeLine(attribute.getID(), value.toString());
+            }
+        }
+    }
+
+    /**
+     * Write a line, base64 encoding the value if it is not a safe string.
+     *
+     * @param name the attribute description or keyword
+     * @param value the value
+     * @throws IOException if an I/O error occurs
+     */
+    private void writeLine(String name, String value) throws IOException {
+        if (isSafe(value)) {
+            writer.write(name + ": " + value + NEWLINE);
+        } else {
+            writer.write(name + ":: " + DatatypeConverter.printBase64Binary(utf8(value)) + NEWLINE);
+        }
+    }
+
+    /**
+     * Whether or not the value may be written as is, see SAFE-STRING in RFC 2849.
+     *
+     * @param value the value
+     * @return true if the value is a safe string, does not end with a space, and is not empty
+     */
+    protected static boolean isSafe(String value) {
+
+        if (value.length() == 0) {
+            return true;
+        }
+
+        char first = value.charAt(0);
+        if (first == ' ' || first == ':' || first == '<') {
+            return false;
+        }
+
+        if (value.charAt(value.length() - 1) == ' ') {
+            return false;
+        }
+
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == 0 || c == '\n' || c == '\r' || c > 127) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Encode a string as UTF-8.
+     *
+     * @param string the string
+     * @return the UTF-8 bytes
+     */
+    private static byte[] utf8(String string) {
+        try {
+            return string.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            // UTF-8 is always supported
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,227 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.psp.ldap;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+import javax.naming.NamingException;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.ModificationItem;
+
+import org.openspml.v2.msg.spml.ErrorCode;
+import org.openspml.v2.msg.spml.LookupRequest;
+import org.openspml.v2.msg.spml.LookupResponse;
+import org.openspml.v2.util.Spml2Exception;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.ApplicationContext;
+
+import edu.internet2.middleware.psp.PspException;
+import edu.internet2.middleware.psp.spml.config.Pso;
+import edu.internet2.middleware.psp.util.PSPUtil;
+import edu.internet2.middleware.shibboleth.common.service.ServiceException;
+import edu.vt.middleware.ldap.Ldap;
+import edu.vt.middleware.ldap.bean.LdapEntry;
+
+/**
+ * An ldap target which writes adds, modifies, renames, and deletes to LDIF files rather than to the directory, for the
+ * initial provisioning of a directory by a bulk loader such as slapadd or ldifde.
+ * 
+ * Objects are mapped exactly as by {@link LdapSpmlTarget}, and lookups and searches are performed against the
+ * directory, which is normally empty apart from the base entries. Added entries are written as content records to the
+ * LDIF file, parents before children, and lookups of added entries are answered from memory. Writes to entries which
+ * exist in the directory are written as change records to the LDIF changes file, to be applied by ldapmodify after
+ * the bulk load, or are refused if no changes file is configured.
+ * 
+ * The files are written when this target is flushed, which the command line does after every provisioning run.
+ * Every added entry is held in memory until then. The entry cache and change watcher are not used.
+ */
+public class LdifSpmlTarget extends LdapSpmlTarget implements Flushable {
+
+    /** Logger. */
+    private static final Logger LOG = LoggerFactory.getLogger(LdifSpmlTarget.class);
+
+    /** The path of the file to which added entries are written. */
+    private String ldifFile;
+
+    /** The path of the file to which change records are written, or null to refuse writes to existing entries. */
+    private String ldifChangesFile;
+
+    /** The added entries and change records. */
+    private LdifEntryBuffer ldifEntryBuffer;
+
+    /**
+     * Constructor.
+     */
+    public LdifSpmlTarget() {
+        super();
+    }
+
+    /** {@inheritDoc} */
+    protected void create(Ldap ldap, String escapedDn, Attributes attributes) throws NamingException {
+        ldifEntryBuffer.add(LdapSpmlTarget.unescapeForwardSlash(escapedDn), attributes);
+    }
+
+    /** {@inheritDoc} */
+    protected void delete(Ldap ldap, String escapedDn) throws NamingException {
+        ldifEntryBuffer.delete(LdapSpmlTarget.unescapeForwardSlash(escapedDn));
+    }
+
+    /** {@inheritDoc} */
+    protected void modifyAttributes(Ldap ldap, String escapedDn, ModificationItem[] mods) throws NamingException {
+        ldifEntryBuffer.modify(LdapSpmlTarget.unescapeForwardSlash(escapedDn), mods);
+    }
+
+    /** {@inheritDoc} */
+    protected void rename(Ldap ldap, String oldDn, String newDn) throws NamingException {
+        ldifEntryBuffer.rename(LdapSpmlTarget.unescapeForwardSlash(oldDn), LdapSpmlTarget.unescapeForwardSlash(newDn));
+    }
+
+    /**
+     * Lookup an added entry from memory, otherwise from the directory.
+     * 
+     * {@inheritDoc}
+     */
+    public void execute(LookupRequest lookupRequest, LookupResponse lookupResponse) {
+
+        String dn = lookupRequest.getPsoID().getID();
+
+        try {
+            Attributes attributes = ldifEntryBuffer.get(LdapSpmlTarget.unescapeForwardSlash(dn));
+            if (attributes == null) {
+                super.execute(lookupRequest, lookupResponse);
+                return;
+            }
+
+            LOG.debug("Target '{}' - Found added '{}'", getId(), PSPUtil.toString(lookupRequest));
+            String entityName = lookupRequest.findOpenContentAttrValueByName(Pso.ENTITY_NAME_ATTRIBUTE);
+            String[] retAttrs = getReturningAttributes(entityName, lookupRequest.getReturnData());
+            LdapEntry entry = getLdapEntry(dn, attributes, retAttrs);
+            lookupResponse.setPso(getPSO(entry, lookupRequest.getReturnData()));
+        } catch (NamingException e) {
+            fail(lookupResponse, ErrorCode.CUSTOM_ERROR, e);
+        } catch (Spml2Exception e) {
+            fail(lookupResponse, ErrorCode.CUSTOM_ERROR, e);
+        } catch (PspException e) {
+            fail(lookupResponse, ErrorCode.CUSTOM_ERROR, e);
+        }
+    }
+
+    /**
+     * Write the added entries to the LDIF file and the change records, if any, to the LDIF changes file. The files are
+     * overwritten, and contain every write since this target was created.
+     * 
+     * @throws IOException if the files can not be written
+     */
+    public void flush() throws IOException {
+
+        Writer entriesOut = null;
+        Writer changesOut = null;
+        try {
+            entriesOut = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(ldifFile), "UTF-8"));
+            if (ldifChangesFile != null) {
+                changesOut = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(ldifChangesFile), "UTF-8"));
+            }
+
+            ldifEntryBuffer.write(entriesOut, changesOut);
+
+            LOG.info("Target '{}' - Wrote {} entries to '{}' and {} changes to '{}'", new Object[] {getId(),
+                    ldifEntryBuffer.size(), ldifFile, ldifEntryBuffer.getChangeCount(), ldifChangesFile,});
+        } catch (NamingException e) {
+            throw new IOException("Unable to write LDIF", e);
+        } finally {
+            if (entriesOut != null) {
+                entriesOut.close();
+            }
+            if (changesOut != null) {
+                changesOut.close();
+            }
+        }
+    }
+
+    /**
+     * Gets the path of the file to which change records are written.
+     * 
+     * @return the path of the file to which change records are written, or null if writes to existing entries are
+     *         refused
+     */
+    public String getLdifChangesFile() {
+        return ldifChangesFile;
+    }
+
+    /**
+     * Gets the added entries and change records.
+     * 
+     * @return the added entries and change records
+     */
+    public LdifEntryBuffer getLdifEntryBuffer() {
+        return ldifEntryBuffer;
+    }
+
+    /**
+     * Gets the path of the file to which added entries are written.
+     * 
+     * @return the path of the file to which added entries are written
+     */
+    public String getLdifFile() {
+        return ldifFile;
+    }
+
+    /** {@inheritDoc} */
+    protected boolean isPostReadSupported(Ldap ldap) {
+        return false;
+    }
+
+    /** {@inheritDoc} */
+    protected void onNewContextCreated(ApplicationContext newServiceContext) throws ServiceException {
+
+        // neither would observe the writes of this target
+        setEntryCacheSize(0);
+        setWatchChanges(false);
+
+        super.onNewContextCreated(newServiceContext);
+
+        if (ldifEntryBuffer == null) {
+            ldifEntryBuffer = new LdifEntryBuffer(ldifChangesFile != null);
+        }
+    }
+
+    /**
+     * Sets the path of the file to which change records are written.
+     * 
+     * @param ldifChangesFile the path of the file to which change records are written, or null to refuse writes to
+     *            existing entries
+     */
+    public void setLdifChangesFile(String ldifChangesFile) {
+        this.ldifChangesFile = ldifChangesFile;
+    }
+
+    /**
+     * Sets the path of the file to which added entries are written.
+     * 
+     * @param ldifFile the path of the file to which added entries are written
+     */
+    public void setLdifFile(String ldifFile) {
+        this.ldifFile = ldifFile;
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.psp.ldap;
+
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.Collection;
+
+import javax.naming.ldap.Control;
+
+/**
+ * The RFC 3876 matched values request control, which asks the server to return only those values of the returned
+ * attributes which match a filter. The filter is a disjunction of equality matches of an attribute with each of the
+ * given values, so that whether an entry has a few values of a very large attribute is found by a single search which
+ * does not return the other values of the attribute.
+ */
+public class MatchedValuesControl implements Control {
+
+    /** The matched values control OID. */
+    public static final String OID = "1.2.826.0.1.3344810.2.3";
+
+    /** Serial version UID. */
+    private static final long serialVersionUID = 1L;
+
+    /** BER universal OCTET STRING tag. */
+    private static final int OCTET_STRING = 0x04;
+
+    /** BER universal constructed SEQUENCE tag. */
+    private static final int SEQUENCE = 0x30;
+
+    /** LDAP filter equalityMatch tag, [3] constructed. */
+    private static final int EQUALITY_MATCH = 0xa3;
+
+    /** Whether the control is critical. */
+    private boolean criticality;
+
+    /** The BER encoded control value. */
+    private byte[] value;
+
+    /**
+     * Constructor.
+     * 
+     * <pre>
+     * ValuesReturnFilter ::= SEQUENCE OF SimpleFilterItem
+     * 
+     * SimpleFilterItem ::= CHOICE {
+     *     equalityMatch   [3] AttributeValueAssertion, ... }
+     * 
+     * AttributeValueAssertion ::= SEQUENCE {
+     *     attributeDesc   AttributeDescription,
+     *     assertionValue  AssertionValue }
+     * </pre>
+     * 
+     * @param attributeName the name of the attribute
+     * @param values the values to match
+     * @param criticality whether the control is critical
+     */
+    public MatchedValuesControl(String attributeName, Collection<String> values, boolean criticality) {
+        this.criticality = criticality;
+
+        byte[] attributeDesc = utf8(attributeName);
+        ByteArrayOutputStream items = new ByteArrayOutputStream();
+        for (String value : values) {
+            ByteArrayOutputStream assertion = new ByteArrayOutputStream();
+            writeTlv(assertion, OCTET_STRING, attributeDesc);
+            writeTlv(assertion, OCTET_STRING, utf8(value));
+            writeTlv(items, EQUALITY_MATCH, assertion.toByteArray());
+        }
+        ByteArrayOutputStream sequence = new ByteArrayOutputStream();
+        writeTlv(sequence, SEQUENCE, items.toByteArray());
+        value = sequence.toByteArray();
+    }
+
+    /** {@inheritDoc} */
+    public String getID() {
+        return OID;
+    }
+
+    /** {@inheritDoc} */
+    public boolean isCritical() {
+        return criticality;
+    }
+
+    /** {@inheritDoc} */
+    public byte[] getEncodedValue() {
+        return value;
+    }
+
+    /**
+     * Write a tag, definite length, and value.
+     *
+     * @param out the output
+     * @param tag the tag
+     * @param contents the value
+     */
+    private static void writeTlv(ByteArrayOutputStream out, int tag, byte[] contents) {
+
+        out.write(tag);
+        int length = contents.length;
+        if (length < 0x80) {
+            out.write(length);
+        } else if (length <= 0xff) {
+            out.write(0x81);
+            out.write(length);
+        } else if (length <= 0xffff) {
+            out.write(0x82);
+            out.write(length >> 8);
+            out.write(length);
+        } else {
+            out.write(0x84);
+            out.write(length >> 24);
+            out.write(length >> 16);
+            out.write(length >> 8);
+            out.write(length);
+        }
+        out.write(contents, 0, contents.length);
+    }
+
+    /**
+     * Encode a string as UTF-8.
+     *
+     * @param string the string
+     * @return the UTF-8 bytes
+     */
+    private static byte[] utf8(String string) {
+        try {
+            return string.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            // UTF-8 is always supported
+            throw new IllegalStateException(e);
+        }
+    }
+}
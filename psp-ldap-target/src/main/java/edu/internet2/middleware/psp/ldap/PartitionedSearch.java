@@ -0,0 +1,284 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.psp.ldap;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.naming.NamingException;
+import javax.naming.directory.SearchControls;
+import javax.naming.directory.SearchResult;
+import javax.naming.ldap.LdapName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Performs a subtree search as concurrent searches of partitions of the subtree.
+ *
+ * The partitions are the base entry, searched with object scope, and each entry immediately below the base, searched
+ * with subtree scope. The partitions are searched by a fixed number of workers, each partition by a single call to
+ * the {@link Searcher}. The results are returned in partition order, and the time taken to search each partition of
+ * the most recent search is retained.
+ */
+public class PartitionedSearch {
+
+    /** The logger. */
+    private static final Logger LOG = LoggerFactory.getLogger(PartitionedSearch.class);
+
+    /**
+     * Searches a single partition, for example on a pooled connection so that paging and the configured search result
+     * handlers are applied.
+     */
+    public static interface Searcher {
+
+        /**
+         * Search.
+         *
+         * @param base the base DN
+         * @param filter the filter
+         * @param searchControls the search controls
+         * @return the results, whose names are absolute DNs
+         * @throws NamingException if an ldap error occurs
+         */
+        public List<SearchResult> search(String base, String filter, SearchControls searchControls)
+                throws NamingException;
+    }
+
+    /** The name of this search, used to name worker threads. */
+    private String name;
+
+    /** The searcher of partitions. */
+    private Searcher searcher;
+
+    /** The number of partitions searched concurrently. */
+    private int concurrency;
+
+    /** The workers. */
+    private ExecutorService executorService;
+
+    /** The time in milliseconds taken to search each partition of the most recent search. */
+    private Map<String, Long> partitionMillis = Collections.emptyMap();
+
+    /** A partition of a subtree. */
+    private static class Partition {
+
+        /** The base of the partition. */
+        private LdapName base;
+
+        /** The scope of the partition. */
+        private int scope;
+
+        /** The results. */
+        private List<SearchResult> results = Collections.emptyList();
+
+        /** The time taken to search the partition in milliseconds. */
+        private long millis;
+
+        /**
+         * Constructor.
+         *
+         * @param base the base of the partition
+         * @param scope the scope of the partition
+         */
+        private Partition(LdapName base, int scope) {
+            this.base = base;
+            this.scope = scope;
+        }
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param name the name of this search
+     * @param searcher the searcher of partitions
+     * @param concurrency the number of partitions to search concurrently
+     */
+    public PartitionedSearch(String name, Searcher searcher, int concurrency) {
+
+        if (concurrency < 1) {
+            throw new IllegalArgumentException("Concurrency must be at least one.");
+        }
+
+        this.name = name;
+        this.searcher = searcher;
+        this.concurrency = concurrency;
+
+        final AtomicInteger threadNumber = new AtomicInteger();
+        executorService = Executors.newFixedThreadPool(concurrency, new ThreadFactory() {
+
+            public Thread newThread(Runnable runnable) {
+                Thread thread =
+                        new Thread(runnable, PartitionedSearch.this.name + "-" + threadNumber.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Search the subtree below and including the base.
+     *
+     * @param base the base DN
+     * @param filter the filter
+     * @param searchControls the search controls, whose scope is ignored
+     * @return the results, whose names are absolute DNs
+     * @throws NamingException if the search of any partition fails
+     */
+    public List<SearchResult> search(String base, final String filter, final SearchControls searchControls)
+            throws NamingException {
+
+        long start = System.nanoTime();
+
+        final List<Partition> partitions = getPartitions(new LdapName(base));
+
+        // each worker takes the next unsearched partition
+        final AtomicInteger next = new AtomicInteger();
+        List<Future<Object>> workers = new ArrayList<Future<Object>>();
+        for (int i = 0; i < Math.min(concurrency, partitions.size()); i++) {
+            workers.add(executorService.submit(new Callable<Object>() {
+
+                public Object call() throws NamingException {
+                    for (int p = next.getAndIncrement(); p < partitions.size(); p = next.getAndIncrement()) {
+                        search(partitions.get(p), filter, searchControls);
+                    }
+                    return null;
+                }
+            }));
+        }
+
+        try {
+            for (Future<Object> worker : workers) {
+                worker.get();
+            }
+        } catch (ExecutionException e) {
+            // stop the remaining workers
+            next.set(partitions.size());
+            if (e.getCause() instanceof NamingException) {
+                throw (NamingException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        } catch (InterruptedException e) {
+            next.set(partitions.size());
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while searching '" + base + "'", e);
+        }
+
+        // merge in partition order
+        List<SearchResult> results = new ArrayList<SearchResult>();
+        Map<String, Long> millis = new LinkedHashMap<String, Long>();
+        Partition slowest = partitions.get(0);
+        for (Partition partition : partitions) {
+            results.addAll(partition.results);
+            millis.put(partition.base.toString(), partition.millis);
+            if (partition.millis > slowest.millis) {
+                slowest = partition;
+            }
+        }
+        partitionMillis = Collections.unmodifiableMap(millis);
+
+        LOG.info("Search '{}' - Found {} entries below '{}' in {} partitions in {} ms, slowest partition '{}' {} ms",
+                new Object[] {name, results.size(), base, partitions.size(),
+                        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), slowest.base, slowest.millis,});
+
+        return results;
+    }
+
+    /**
+     * Gets the time in milliseconds taken to search each partition of the most recent search, in partition order.
+     *
+     * @return the time taken to search each partition keyed by the base of the partition
+     */
+    public Map<String, Long> getPartitionMillis() {
+        return partitionMillis;
+    }
+
+    /**
+     * Stop the workers.
+     */
+    public void shutdown() {
+        executorService.shutdown();
+    }
+
+    /**
+     * Gets the partitions of the subtree, the base entry and each entry immediately below it.
+     *
+     * @param base the base DN
+     * @return the partitions
+     * @throws NamingException if the entries below the base can not be searched
+     */
+    private List<Partition> getPartitions(LdapName base) throws NamingException {
+
+        SearchControls oneLevel = new SearchControls();
+        oneLevel.setSearchScope(SearchControls.ONELEVEL_SCOPE);
+        oneLevel.setReturningAttributes(new String[] {"1.1"});
+
+        Partition children = new Partition(base, SearchControls.ONELEVEL_SCOPE);
+        search(children, "(objectClass=*)", oneLevel);
+
+        List<Partition> partitions = new ArrayList<Partition>();
+        partitions.add(new Partition(base, SearchControls.OBJECT_SCOPE));
+        for (SearchResult child : children.results) {
+            LdapName childName = new LdapName(child.getName());
+            // a name relative to the base, if the search result handlers did not make it absolute
+            if (childName.size() <= base.size() || !childName.startsWith(base)) {
+                childName = (LdapName) ((LdapName) base.clone()).addAll(childName);
+            }
+            partitions.add(new Partition(childName, SearchControls.SUBTREE_SCOPE));
+        }
+
+        LOG.debug("Search '{}' - Found {} partitions below '{}' in {} ms", new Object[] {name, partitions.size() - 1,
+                base, children.millis,});
+
+        return partitions;
+    }
+
+    /**
+     * Search a partition.
+     *
+     * @param partition the partition, whose results are set
+     * @param filter the filter
+     * @param searchControls the search controls, whose scope is replaced by the scope of the partition
+     * @throws NamingException if an ldap error occurs
+     */
+    private void search(Partition partition, String filter, SearchControls searchControls) throws NamingException {
+
+        long start = System.nanoTime();
+
+        SearchControls controls =
+                new SearchControls(partition.scope, searchControls.getCountLimit(), searchControls.getTimeLimit(),
+                        searchControls.getReturningAttributes(), false, false);
+
+        partition.results = searcher.search(partition.base.toString(), filter, controls);
+
+        partition.millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        LOG.debug("Search '{}' - Partition '{}' found {} entries in {} ms", new Object[] {name, partition.base,
+                partition.results.size(), partition.millis,});
+    }
+}
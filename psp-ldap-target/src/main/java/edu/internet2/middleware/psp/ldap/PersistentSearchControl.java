@@ -0,0 +1,271 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.psp.ldap;
+
+import java.io.UnsupportedEncodingException;
+
+import javax.naming.NamingException;
+import javax.naming.ldap.Control;
+
+/**
+ * The persistent search request control, draft-ietf-ldapext-psearch, which asks the server to return entries as they
+ * are changed rather than completing the search. Each returned entry may carry an entry change notification response
+ * control describing the change.
+ */
+public class PersistentSearchControl implements Control {
+
+    /** The persistent search control OID. */
+    public static final String OID = "2.16.840.1.113730.3.4.3";
+
+    /** The entry change notification response control OID. */
+    public static final String ENTRY_CHANGE_NOTIFICATION_OID = "2.16.840.1.113730.3.4.7";
+
+    /** Change type add. */
+    public static final int ADD = 1;
+
+    /** Change type delete. */
+    public static final int DELETE = 2;
+
+    /** Change type modify. */
+    public static final int MODIFY = 4;
+
+    /** Change type modify DN. */
+    public static final int MODDN = 8;
+
+    /** All change types. */
+    public static final int ALL = ADD | DELETE | MODIFY | MODDN;
+
+    /** Serial version UID. */
+    private static final long serialVersionUID = 1L;
+
+    /** BER universal BOOLEAN tag. */
+    private static final int BOOLEAN = 0x01;
+
+    /** BER universal INTEGER tag. */
+    private static final int INTEGER = 0x02;
+
+    /** BER universal OCTET STRING tag. */
+    private static final int OCTET_STRING = 0x04;
+
+    /** BER universal ENUMERATED tag. */
+    private static final int ENUMERATED = 0x0a;
+
+    /** BER universal constructed SEQUENCE tag. */
+    private static final int SEQUENCE = 0x30;
+
+    /** The change described by an entry change notification response control. */
+    public static class EntryChangeNotification {
+
+        /** The change type. */
+        private int changeType;
+
+        /** The previous DN of a renamed entry, or null. */
+        private String previousDn;
+
+        /** The change number, or -1. */
+        private long changeNumber = -1;
+
+        /**
+         * Gets the change type, one of {@link PersistentSearchControl#ADD}, {@link PersistentSearchControl#DELETE},
+         * {@link PersistentSearchControl#MODIFY}, or {@link PersistentSearchControl#MODDN}.
+         * 
+         * @return the change type
+         */
+        public int getChangeType() {
+            return changeType;
+        }
+
+        /**
+         * Gets the previous DN of a renamed entry.
+         * 
+         * @return the previous DN, or null
+         */
+        public String getPreviousDn() {
+            return previousDn;
+        }
+
+        /**
+         * Gets the change number.
+         * 
+         * @return the change number, or -1 if the server did not return a change number
+         */
+        public long getChangeNumber() {
+            return changeNumber;
+        }
+    }
+
+    /** Whether the control is critical. */
+    private boolean criticality;
+
+    /** The BER encoded control value. */
+    private byte[] value;
+
+    /**
+     * Constructor.
+     * 
+     * @param changeTypes the change types to return, a combination of ADD, DELETE, MODIFY, and MODDN
+     * @param changesOnly true to return only changed entries, false to first return all matching entries
+     * @param returnEcs whether to return entry change notification response controls
+     * @param criticality whether the control is critical
+     */
+    public PersistentSearchControl(int changeTypes, boolean changesOnly, boolean returnEcs, boolean criticality) {
+
+        if (changeTypes < 1 || changeTypes > ALL) {
+            throw new IllegalArgumentException("Invalid change types " + changeTypes);
+        }
+
+        this.criticality = criticality;
+
+        // PersistentSearch ::= SEQUENCE { changeTypes INTEGER, changesOnly BOOLEAN, returnECs BOOLEAN }
+        value = new byte[] {SEQUENCE, 9, INTEGER, 1, (byte) changeTypes, BOOLEAN, 1, (byte) (changesOnly ? 0xff : 0),
+                BOOLEAN, 1, (byte) (returnEcs ? 0xff : 0),};
+    }
+
+    /** {@inheritDoc} */
+    public String getID() {
+        return OID;
+    }
+
+    /** {@inheritDoc} */
+    public boolean isCritical() {
+        return criticality;
+    }
+
+    /** {@inheritDoc} */
+    public byte[] getEncodedValue() {
+        return value;
+    }
+
+    /**
+     * Returns the change carried by the entry change notification response control, or null if there is no such
+     * response control.
+     * 
+     * @param responseControls the response controls of a returned entry, possibly null
+     * @return the change or null
+     * @throws NamingException if the response control can not be decoded
+     */
+    public static EntryChangeNotification getEntryChangeNotification(Control[] responseControls)
+            throws NamingException {
+
+        if (responseControls == null) {
+            return null;
+        }
+
+        for (Control control : responseControls) {
+            if (ENTRY_CHANGE_NOTIFICATION_OID.equals(control.getID()) && control.getEncodedValue() != null) {
+                return decode(control.getEncodedValue());
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Decode the BER encoded entry change notification response control value.
+     * 
+     * <pre>
+     * EntryChangeNotification ::= SEQUENCE {
+     *     changeType ENUMERATED,
+     *     previousDN   LDAPDN OPTIONAL,
+     *     changeNumber INTEGER OPTIONAL }
+     * </pre>
+     * 
+     * @param encoded the control value
+     * @return the change
+     * @throws NamingException if the value can not be decoded
+     */
+    protected static EntryChangeNotification decode(byte[] encoded) throws NamingException {
+
+        try {
+            EntryChangeNotification notification = new EntryChangeNotification();
+            int[] position = new int[] {0};
+
+            int end = readHeader(encoded, position, SEQUENCE);
+            int changeTypeEnd = readHeader(encoded, position, ENUMERATED);
+            notification.changeType = (int) readInteger(encoded, position[0], changeTypeEnd);
+            position[0] = changeTypeEnd;
+
+            while (position[0] < end) {
+                int tag = encoded[position[0]] & 0xff;
+                int elementEnd = readHeader(encoded, position, tag);
+                if (tag == OCTET_STRING) {
+                    notification.previousDn =
+                            new String(encoded, position[0], elementEnd - position[0], "UTF-8");
+                } else if (tag == INTEGER) {
+                    notification.changeNumber = readInteger(encoded, position[0], elementEnd);
+                }
+                position[0] = elementEnd;
+            }
+
+            return notification;
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new NamingException("Unable to decode entry change notification, value is truncated.");
+        } catch (UnsupportedEncodingException e) {
+            // UTF-8 is always supported
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Read a tag and length, returning the position of the end of the value.
+     * 
+     * @param encoded the encoded bytes
+     * @param position the current position, advanced past the tag and length
+     * @param expectedTag the expected tag
+     * @return the position immediately after the value
+     * @throws NamingException if the tag is not the expected tag
+     */
+    private static int readHeader(byte[] encoded, int[] position, int expectedTag) throws NamingException {
+
+        int tag = encoded[position[0]++] & 0xff;
+        if (tag != expectedTag) {
+            throw new NamingException("Unable to decode entry change notification, expected tag 0x"
+                    + Integer.toHexString(expectedTag) + " but found 0x" + Integer.toHexString(tag));
+        }
+
+        int length = encoded[position[0]++] & 0xff;
+        if ((length & 0x80) != 0) {
+            int numberOfBytes = length & 0x7f;
+            if (numberOfBytes > 4) {
+                throw new NamingException("Unable to decode entry change notification, length too long.");
+            }
+            length = 0;
+            for (int i = 0; i < numberOfBytes; i++) {
+                length = (length << 8) | (encoded[position[0]++] & 0xff);
+            }
+        }
+
+        return position[0] + length;
+    }
+
+    /**
+     * Read a two's complement integer.
+     * 
+     * @param encoded the encoded bytes
+     * @param start the position of the first byte
+     * @param end the position after the last byte
+     * @return the integer
+     */
+    private static long readInteger(byte[] encoded, int start, int end) {
+        long integer = encoded[start];
+        for (int i = start + 1; i < end; i++) {
+            integer = (integer << 8) | (encoded[i] & 0xff);
+        }
+        return integer;
+    }
+}
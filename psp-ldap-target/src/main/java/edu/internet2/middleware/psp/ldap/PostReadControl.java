@@ -0,0 +1,261 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.psp.ldap;
+
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+
+import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.BasicAttribute;
+import javax.naming.directory.BasicAttributes;
+import javax.naming.directory.SearchResult;
+import javax.naming.ldap.Control;
+
+/**
+ * The RFC 4527 post-read request control, which asks the server to return the named attributes of an entry as they
+ * are after an add, modify, or modify DN operation.
+ */
+public class PostReadControl implements Control {
+
+    /** The post-read control OID. */
+    public static final String OID = "1.3.6.1.1.13.2";
+
+    /** Serial version UID. */
+    private static final long serialVersionUID = 1L;
+
+    /** BER universal OCTET STRING tag. */
+    private static final int OCTET_STRING = 0x04;
+
+    /** BER universal constructed SEQUENCE tag. */
+    private static final int SEQUENCE = 0x30;
+
+    /** BER universal constructed SET tag. */
+    private static final int SET = 0x31;
+
+    /** LDAP SearchResultEntry tag, [APPLICATION 4] constructed. */
+    private static final int SEARCH_RESULT_ENTRY = 0x64;
+
+    /** Whether the control is critical. */
+    private boolean criticality;
+
+    /** The BER encoded control value. */
+    private byte[] value;
+
+    /**
+     * Constructor.
+     *
+     * @param attributeNames the names of the attributes to return
+     * @param criticality whether the control is critical
+     */
+    public PostReadControl(String[] attributeNames, boolean criticality) {
+        this.criticality = criticality;
+
+        // AttributeSelection ::= SEQUENCE OF selector LDAPString
+        ByteArrayOutputStream selectors = new ByteArrayOutputStream();
+        for (String attributeName : attributeNames) {
+            writeTlv(selectors, OCTET_STRING, utf8(attributeName));
+        }
+        ByteArrayOutputStream sequence = new ByteArrayOutputStream();
+        writeTlv(sequence, SEQUENCE, selectors.toByteArray());
+        value = sequence.toByteArray();
+    }
+
+    /** {@inheritDoc} */
+    public String getID() {
+        return OID;
+    }
+
+    /** {@inheritDoc} */
+    public boolean isCritical() {
+        return criticality;
+    }
+
+    /** {@inheritDoc} */
+    public byte[] getEncodedValue() {
+        return value;
+    }
+
+    /**
+     * Returns the entry carried by the post-read response control, or null if there is no such response control.
+     *
+     * @param responseControls the response controls, possibly null
+     * @return the entry as it is after the operation, or null
+     * @throws NamingException if the response control can not be decoded
+     */
+    public static SearchResult getEntry(Control[] responseControls) throws NamingException {
+
+        if (responseControls == null) {
+            return null;
+        }
+
+        for (Control control : responseControls) {
+            if (OID.equals(control.getID())) {
+                return decode(control.getEncodedValue());
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Decode the BER encoded post-read response control value.
+     *
+     * <pre>
+     * SearchResultEntry ::= [APPLICATION 4] SEQUENCE {
+     *     objectName      LDAPDN,
+     *     attributes      PartialAttributeList }
+     *
+     * PartialAttributeList ::= SEQUENCE OF partialAttribute PartialAttribute
+     *
+     * PartialAttribute ::= SEQUENCE {
+     *     type       AttributeDescription,
+     *     vals       SET OF value AttributeValue }
+     * </pre>
+     *
+     * @param encoded the control value
+     * @return the entry
+     * @throws NamingException if the value can not be decoded
+     */
+    protected static SearchResult decode(byte[] encoded) throws NamingException {
+
+        try {
+            int[] position = new int[] {0};
+
+            int entryEnd = readHeader(encoded, position, SEARCH_RESULT_ENTRY);
+            String dn = readString(encoded, position);
+
+            Attributes attributes = new BasicAttributes(true);
+            int listEnd = readHeader(encoded, position, SEQUENCE);
+            while (position[0] < listEnd) {
+                int attributeEnd = readHeader(encoded, position, SEQUENCE);
+                Attribute attribute = new BasicAttribute(readString(encoded, position));
+                int valuesEnd = readHeader(encoded, position, SET);
+                while (position[0] < valuesEnd) {
+                    attribute.add(readString(encoded, position));
+                }
+                position[0] = attributeEnd;
+                attributes.put(attribute);
+            }
+            position[0] = entryEnd;
+
+            return new SearchResult(dn, null, attributes, false);
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new NamingException("Unable to decode post-read response control, value is truncated.");
+        }
+    }
+
+    /**
+     * Read a tag and length, returning the position of the end of the value.
+     *
+     * @param encoded the encoded bytes
+     * @param position the current position, advanced past the tag and length
+     * @param expectedTag the expected tag
+     * @return the position immediately after the value
+     * @throws NamingException if the tag is not the expected tag
+     */
+    private static int readHeader(byte[] encoded, int[] position, int expectedTag) throws NamingException {
+
+        int tag = encoded[position[0]++] & 0xff;
+        if (tag != expectedTag) {
+            throw new NamingException("Unable to decode post-read response control, expected tag 0x"
+                    + Integer.toHexString(expectedTag) + " but found 0x" + Integer.toHexString(tag));
+        }
+
+        int length = encoded[position[0]++] & 0xff;
+        if ((length & 0x80) != 0) {
+            int numberOfBytes = length & 0x7f;
+            if (numberOfBytes > 4) {
+                throw new NamingException("Unable to decode post-read response control, length too long.");
+            }
+            length = 0;
+            for (int i = 0; i < numberOfBytes; i++) {
+                length = (length << 8) | (encoded[position[0]++] & 0xff);
+            }
+        }
+
+        return position[0] + length;
+    }
+
+    /**
+     * Read an OCTET STRING as UTF-8.
+     *
+     * @param encoded the encoded bytes
+     * @param position the current position, advanced past the string
+     * @return the string
+     * @throws NamingException if the next element is not an OCTET STRING
+     */
+    private static String readString(byte[] encoded, int[] position) throws NamingException {
+
+        int end = readHeader(encoded, position, OCTET_STRING);
+        try {
+            String string = new String(encoded, position[0], end - position[0], "UTF-8");
+            position[0] = end;
+            return string;
+        } catch (UnsupportedEncodingException e) {
+            // UTF-8 is always supported
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Write a tag, definite length, and value.
+     *
+     * @param out the output
+     * @param tag the tag
+     * @param contents the value
+     */
+    private static void writeTlv(ByteArrayOutputStream out, int tag, byte[] contents) {
+
+        out.write(tag);
+        int length = contents.length;
+        if (length < 0x80) {
+            out.write(length);
+        } else if (length <= 0xff) {
+            out.write(0x81);
+            out.write(length);
+        } else if (length <= 0xffff) {
+            out.write(0x82);
+            out.write(length >> 8);
+            out.write(length);
+        } else {
+            out.write(0x84);
+            out.write(length >> 24);
+            out.write(length >> 16);
+            out.write(length >> 8);
+            out.write(length);
+        }
+        out.write(contents, 0, contents.length);
+    }
+
+    /**
+     * Encode a string as UTF-8.
+     *
+     * @param string the string
+     * @return the UTF-8 bytes
+     */
+    private static byte[] utf8(String string) {
+        try {
+            return string.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            // UTF-8 is always supported
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -17,6 +17,20 @@
 
 package edu.internet2.middleware.psp.ldap;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -31,6 +45,7 @@ import edu.vt.middleware.ldap.Ldap;
 import edu.vt.middleware.ldap.handler.CopySearchResultHandler;
 import edu.vt.middleware.ldap.handler.ExtendedSearchResultHandler;
 import edu.vt.middleware.ldap.handler.SearchCriteria;
+import edu.vt.middleware.ldap.pool.LdapPool;
 
 /**
  * The <code>RangeSearchResultHandler</code> rewrites attributes returned from Active Directory to include all values by
@@ -39,9 +54,16 @@ import edu.vt.middleware.ldap.handler.SearchCriteria;
  * http://www.ietf.org/proceedings/53/I-D/draft-kashi-incremental-00.txt.
  * 
  * For example, when the membership of a group exceeds 1500, requests for the member attribute will likely return an
- * attribute with name "member;Range=0-1499" and 1500 values. For a group with just over 3000 members, subsequent
- * searches will request "member;Range=1500-2999" and then "member;Range=3000-4499". When the returned attribute is of
- * the form "member;Range=3000-*", all values have been retrieved.
+ * attribute with name "member;Range=0-1499" and 1500 values. Subsequent searches request "member;Range=1500-*", and
+ * the server returns as many values as its configured maximum allows, for example "member;Range=1500-2999", so the
+ * step size follows the server rather than the size of the first range. When the returned attribute is of the form
+ * "member;Range=3000-*", all values have been retrieved.
+ * 
+ * Ranges are retrieved iteratively. If a prefetch pool is configured, the next range is requested on another pooled
+ * connection while the values of the current range are processed. The searching thread holds a pooled connection, so
+ * it never waits on the pool : if the prefetch has not obtained a connection within prefetchWaitMillis, the range is
+ * retrieved on the searching connection instead. If a {@link RangeValueListener} is set for the current thread, each
+ * range of values is given to the listener and the values are not accumulated in the search result.
  */
 public class RangeSearchResultHandler extends CopySearchResultHandler implements ExtendedSearchResultHandler {
 
@@ -51,15 +73,33 @@ public class RangeSearchResultHandler extends CopySearchResultHandler implements
     /** The format used to calculate attribute IDs for subsequent searches. */
     public static final String RANGE_FORMAT = "%1$s;Range=%2$s-%3$s";
 
+    /** The format used to calculate attribute IDs for subsequent searches, the server determines the end. */
+    public static final String OPEN_RANGE_FORMAT = "%1$s;Range=%2$s-" + END_OF_RANGE;
+
     /** The expression matching the range attribute ID "<id>;range=<X>-<Y>". */
     public static final String RANGE_PATTERN_STRING = "^(.*?);Range=([\\d\\*]+)-([\\d\\*]+)";
 
     /** The pattern matching the range attribute ID. */
     public static final Pattern RANGE_PATTERN = Pattern.compile(RANGE_PATTERN_STRING, Pattern.CASE_INSENSITIVE);
 
-    /** Ldap object for searching. */
+    /** The listener receiving ranges of values for searches performed by the current thread. */
+    private static final ThreadLocal<RangeValueListener> LISTENER = new ThreadLocal<RangeValueListener>();
+
+    /** Ldap object for searching, used if none has been set by the current thread. */
     private Ldap ldap;
 
+    /** Ldap object for searching, set by the thread performing the search since handlers may be shared. */
+    private ThreadLocal<Ldap> threadLdap = new ThreadLocal<Ldap>();
+
+    /** The pool of connections used to prefetch the next range, may be null. */
+    private LdapPool<Ldap> prefetchPool;
+
+    /** Executes prefetches. */
+    private ExecutorService prefetchExecutor;
+
+    /** The time in milliseconds to wait for a prefetch to obtain a connection before searching without it. */
+    private long prefetchWaitMillis = 100;
+
     /**
      * Creates a new <code>RangeSearchResultHandler</code>.
      */
@@ -75,14 +115,108 @@ public class RangeSearchResultHandler extends CopySearchResultHandler implements
         this.ldap = ldap;
     }
 
+    /**
+     * Sets the listener receiving ranges of values for searches performed by the current thread. While set, the
+     * values of range attributes are not accumulated in search results.
+     * 
+     * @param listener the listener, or null to accumulate values
+     */
+    public static void setRangeValueListener(RangeValueListener listener) {
+        if (listener == null) {
+            LISTENER.remove();
+        } else {
+            LISTENER.set(listener);
+        }
+    }
+
     /** {@inheritDoc} */
     public Ldap getSearchResultLdap() {
-        return this.ldap;
+        Ldap l = threadLdap.get();
+        return l != null ? l : this.ldap;
     }
 
     /** {@inheritDoc} */
     public void setSearchResultLdap(Ldap l) {
-        this.ldap = l;
+        threadLdap.set(l);
+    }
+
+    /** {@inheritDoc} */
+    public List<SearchResult> process(SearchCriteria sc, NamingEnumeration<? extends SearchResult> en)
+            throws NamingException {
+        try {
+            return super.process(sc, en);
+        } finally {
+            // do not retain the connection after it is returned to the pool
+            threadLdap.remove();
+        }
+    }
+
+    /** {@inheritDoc} */
+    public List<SearchResult> process(SearchCriteria sc, NamingEnumeration<? extends SearchResult> en,
+            Class<?>[] ignore) throws NamingException {
+        try {
+            return super.process(sc, en, ignore);
+        } finally {
+            threadLdap.remove();
+        }
+    }
+
+    /** {@inheritDoc} */
+    public List<SearchResult> process(SearchCriteria sc, List<? extends SearchResult> results)
+            throws NamingException {
+        try {
+            return super.process(sc, results);
+        } finally {
+            threadLdap.remove();
+        }
+    }
+
+    /**
+     * Gets the time to wait for a prefetch to obtain a pooled connection before retrieving the range on the searching
+     * connection.
+     * 
+     * @return the time in milliseconds
+     */
+    public long getPrefetchWaitMillis() {
+        return prefetchWaitMillis;
+    }
+
+    /**
+     * Sets the time to wait for a prefetch to obtain a pooled connection before retrieving the range on the searching
+     * connection.
+     * 
+     * @param prefetchWaitMillis the time in milliseconds
+     */
+    public void setPrefetchWaitMillis(long prefetchWaitMillis) {
+        this.prefetchWaitMillis = prefetchWaitMillis;
+    }
+
+    /**
+     * Gets the pool of connections used to prefetch the next range.
+     * 
+     * @return the pool of connections used to prefetch the next range, or null if ranges are not prefetched
+     */
+    public LdapPool<Ldap> getPrefetchPool() {
+        return prefetchPool;
+    }
+
+    /**
+     * Sets the pool of connections used to prefetch the next range.
+     * 
+     * @param prefetchPool the pool, or null to not prefetch ranges
+     */
+    public synchronized void setPrefetchPool(LdapPool<Ldap> prefetchPool) {
+        this.prefetchPool = prefetchPool;
+        if (prefetchPool != null && prefetchExecutor == null) {
+            prefetchExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "psp-range-prefetch");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
     }
 
     /** {@inheritDoc} */
@@ -91,7 +225,8 @@ public class RangeSearchResultHandler extends CopySearchResultHandler implements
         // get all attributes in the search result
         Attributes attrs = sr.getAttributes();
 
-        // for every attribute in the search result
+        // find the attributes with range syntax before modifying the attributes
+        List<Attribute> rangeAttrs = new ArrayList<Attribute>();
         NamingEnumeration<? extends Attribute> attrsEnumeration = attrs.getAll();
         while (attrsEnumeration.hasMore()) {
             Attribute attr = attrsEnumeration.next();
@@ -101,87 +236,286 @@ public class RangeSearchResultHandler extends CopySearchResultHandler implements
                 continue;
             }
 
-            // Match attribute ID against the pattern
-            Matcher matcher = RANGE_PATTERN.matcher(attr.getID());
-
             // If the attribute ID matches the pattern
-            if (matcher.find()) {
+            if (RANGE_PATTERN.matcher(attr.getID()).find()) {
+                rangeAttrs.add(attr);
+            }
+        }
 
-                String msg = "attribute '" + attr.getID() + "' result '" + sr.getName() + "'";
+        for (Attribute rangeAttr : rangeAttrs) {
+            // Remove original attribute with range syntax from returned attributes
+            attrs.remove(rangeAttr.getID());
+            processRanges(sr.getName(), rangeAttr, attrs);
+        }
+
+        return attrs;
+    }
+
+    /**
+     * Retrieve all ranges of values of an attribute, starting with the given range, either adding the values to the
+     * attributes or giving them to the listener.
+     * 
+     * @param dn the DN of the entry
+     * @param firstRange the first range
+     * @param attrs the attributes to which values are added
+     * @throws NamingException if an error occurs retrieving a range
+     */
+    protected void processRanges(String dn, Attribute firstRange, Attributes attrs) throws NamingException {
+
+        String msg = "attribute '" + firstRange.getID() + "' result '" + dn + "'";
+        this.logger.debug("Found Range option " + msg);
+
+        // Determine the attribute name without the range syntax
+        Matcher matcher = RANGE_PATTERN.matcher(firstRange.getID());
+        matcher.find();
+        String attrTypeName = matcher.group(1);
+        if (attrTypeName == null || attrTypeName.isEmpty()) {
+            this.logger.error("Unable to determine the attribute type name for " + msg);
+            throw new RuntimeException("Unable to determine the attribute type name for " + msg);
+        }
 
-                // Determine the attribute name without the range syntax
-                String attrTypeName = matcher.group(1);
-                this.logger.debug("Found Range option " + msg);
-                if (attrTypeName == null || attrTypeName.isEmpty()) {
-                    this.logger.error("Unable to determine the attribute type name for " + msg);
-                    throw new RuntimeException("Unable to determine the attribute type name for " + msg);
+        RangeValueListener listener = LISTENER.get();
+
+        // The values of the attribute whose ID has the range syntax removed, a set since adding to a large attribute
+        // one value at a time is quadratic
+        Set<Object> values = null;
+        if (listener == null) {
+            values = new LinkedHashSet<Object>();
+            Attribute oldAttr = attrs.get(attrTypeName);
+            if (oldAttr != null) {
+                NamingEnumeration<?> oldValues = oldAttr.getAll();
+                while (oldValues.hasMore()) {
+                    values.add(oldValues.next());
                 }
+            }
+        }
+
+        int ranges = 0;
+        Attribute range = firstRange;
+        while (range != null) {
+            ranges++;
 
-                // Create or update the attribute whose ID has the range syntax removed
-                Attribute newAttr = attrs.get(attrTypeName);
-                if (newAttr == null) {
-                    newAttr = new BasicAttribute(attrTypeName, attr.isOrdered());
-                    attrs.put(newAttr);
+            matcher = RANGE_PATTERN.matcher(range.getID());
+            if (!matcher.find()) {
+                this.logger.error("Unable to parse range '" + range.getID() + "' for " + msg);
+                throw new RuntimeException("Unable to parse range '" + range.getID() + "' for " + msg);
+            }
+
+            // If the attribute ID ends with * we're done, otherwise request the next range before processing values
+            boolean last = range.getID().endsWith(END_OF_RANGE);
+            RangeRequest next = null;
+            if (!last) {
+                String terminalRange = matcher.group(3);
+                if (terminalRange == null || terminalRange.isEmpty()) {
+                    this.logger.error("Unable to determine terminal range for " + msg);
+                    throw new RuntimeException("Unable to determine terminal range for " + msg);
                 }
+                int end = 0;
+                try {
+                    end = Integer.parseInt(terminalRange);
+                } catch (NumberFormatException e) {
+                    this.logger.error("Unable to parse range for " + msg);
+                    throw new RuntimeException("Unable to parse range for " + msg);
+                }
+                next = fetchRange(dn, attrTypeName, String.format(OPEN_RANGE_FORMAT, attrTypeName, end + 1));
+            }
 
+            if (listener != null) {
+                listener.values(dn, attrTypeName, range, last);
+            } else {
                 // Copy values
-                NamingEnumeration<?> attrValues = attr.getAll();
+                NamingEnumeration<?> attrValues = range.getAll();
                 while (attrValues.hasMore()) {
-                    newAttr.add(attrValues.next());
+                    values.add(attrValues.next());
                 }
+            }
 
-                // Remove original attribute with range syntax from returned attributes
-                sr.getAttributes().remove(attr.getID());
+            range = next == null ? null : next.get(msg);
+        }
 
-                // If the attribute ID ends with * we're done, otherwise increment
-                if (!attr.getID().endsWith(END_OF_RANGE)) {
+        if (values != null) {
+            // Create or replace the attribute whose ID has the range syntax removed
+            attrs.put(new ValuesAttribute(attrTypeName, firstRange.isOrdered(), values));
+        }
 
-                    // Determine next attribute ID
-                    String initialRange = matcher.group(2);
-                    if (initialRange == null || initialRange.isEmpty()) {
-                        this.logger.error("Unable to determine initial range for " + msg);
-                        throw new RuntimeException("Unable to determine initial range for " + msg);
-                    }
-                    String terminalRange = matcher.group(3);
-                    if (terminalRange == null || terminalRange.isEmpty()) {
-                        this.logger.error("Unable to determine terminal range for " + msg);
-                        throw new RuntimeException("Unable to determine terminal range for " + msg);
-                    }
-                    int start = 0;
-                    int end = 0;
+        this.logger.debug("Retrieved " + ranges + " ranges for " + msg);
+    }
+
+    /**
+     * Request a range of values, on a connection from the prefetch pool if configured and a connection is available,
+     * otherwise on the connection performing the search when the range is needed.
+     * 
+     * @param dn the DN of the entry
+     * @param attrTypeName the attribute name without range syntax
+     * @param nextAttrID the attribute ID with range syntax
+     * @return the requested range
+     */
+    protected RangeRequest fetchRange(final String dn, final String attrTypeName, final String nextAttrID) {
+
+        LdapPool<Ldap> configuredPool = prefetchPool;
+        LdapPool<Ldap> pool = configuredPool != null && configuredPool.availableCount() > 0 ? configuredPool : null;
+
+        this.logger.debug("Searching for '" + nextAttrID + "' of '" + dn + "'" + (pool != null ? " prefetching" : ""));
+
+        RangeRequest rangeRequest = new RangeRequest(getSearchResultLdap(), dn, attrTypeName, nextAttrID);
+        if (pool != null) {
+            rangeRequest.prefetch(pool);
+        }
+        return rangeRequest;
+    }
+
+    /**
+     * Search for a range of values.
+     * 
+     * @param searchLdap the connection
+     * @param dn the DN of the entry
+     * @param attrTypeName the attribute name without range syntax
+     * @param nextAttrID the attribute ID with range syntax
+     * @return the range, or null if the server returned no range of the attribute
+     * @throws NamingException if an error occurs
+     */
+    protected Attribute getRange(Ldap searchLdap, String dn, String attrTypeName, String nextAttrID)
+            throws NamingException {
+
+        Attributes nextAttrs = searchLdap.getAttributes(dn, new String[] {nextAttrID});
+
+        NamingEnumeration<? extends Attribute> nextAttrsEnum = nextAttrs.getAll();
+        while (nextAttrsEnum.hasMore()) {
+            Attribute nextAttr = nextAttrsEnum.next();
+            if (nextAttr == null) {
+                this.logger.error("Null attribute returned for '" + nextAttrID + "' of '" + dn + "'");
+                throw new RuntimeException("Null attribute returned for '" + nextAttrID + "' of '" + dn + "'");
+            }
+            Matcher matcher = RANGE_PATTERN.matcher(nextAttr.getID());
+            if (matcher.find() && matcher.group(1).equalsIgnoreCase(attrTypeName)) {
+                return nextAttr;
+            }
+        }
+
+        // the values may have been deleted since the previous range was retrieved
+        this.logger.warn("No range returned for '" + nextAttrID + "' of '" + dn + "'");
+        return null;
+    }
+
+    /**
+     * A requested range, retrieved either by a prefetch on a pooled connection or on the searching connection.
+     */
+    protected class RangeRequest {
+
+        /** The searching connection. */
+        private Ldap searchLdap;
+
+        /** The DN of the entry. */
+        private String dn;
+
+        /** The attribute name without range syntax. */
+        private String attrTypeName;
+
+        /** The attribute ID with range syntax. */
+        private String nextAttrID;
+
+        /** Set by whichever of the prefetch and the searching thread retrieves the range. */
+        private AtomicBoolean claimed = new AtomicBoolean();
+
+        /** The prefetched range, null if not prefetching. */
+        private Future<Attribute> prefetched;
+
+        /**
+         * Constructor.
+         * 
+         * @param searchLdap the searching connection
+         * @param dn the DN of the entry
+         * @param attrTypeName the attribute name without range syntax
+         * @param nextAttrID the attribute ID with range syntax
+         */
+        protected RangeRequest(Ldap searchLdap, String dn, String attrTypeName, String nextAttrID) {
+            this.searchLdap = searchLdap;
+            this.dn = dn;
+            this.attrTypeName = attrTypeName;
+            this.nextAttrID = nextAttrID;
+        }
+
+        /**
+         * Start retrieving the range on a connection from the pool.
+         * 
+         * @param pool the pool
+         */
+        protected void prefetch(final LdapPool<Ldap> pool) {
+            prefetched = prefetchExecutor.submit(new Callable<Attribute>() {
+
+                public Attribute call() throws Exception {
+                    Ldap prefetchLdap = pool.checkOut();
                     try {
-                        start = Integer.parseInt(initialRange);
-                        end = Integer.parseInt(terminalRange);
-                    } catch (NumberFormatException e) {
-                        this.logger.error("Unable to parse range for " + msg);
-                        throw new RuntimeException("Unable to parse range for " + msg);
-                    }
-                    int diff = end - start;
-                    String nextAttrID = String.format(RANGE_FORMAT, attrTypeName, end + 1, end + diff + 1);
-
-                    // Search for next increment of values
-                    this.logger.debug("Searching for '" + nextAttrID + "' to increment " + msg);
-                    Attributes nextAttrs = this.ldap.getAttributes(sr.getName(), new String[] {nextAttrID});
-
-                    // Add all attributes to the search result
-                    NamingEnumeration<? extends Attribute> nextAttrsEnum = nextAttrs.getAll();
-                    while (nextAttrsEnum.hasMore()) {
-                        Attribute nextAttr = nextAttrsEnum.next();
-                        if (nextAttr == null) {
-                            this.logger.error("Null attribute returned for '" + nextAttrID + "' when incrementing "
-                                    + msg);
-                            throw new RuntimeException("Null attribute returned for '" + nextAttrID
-                                    + "' when incrementing " + msg);
+                        // the searching thread stopped waiting and retrieved the range itself
+                        if (!claimed.compareAndSet(false, true)) {
+                            return null;
                         }
-                        sr.getAttributes().put(nextAttr);
+                        return getRange(prefetchLdap, dn, attrTypeName, nextAttrID);
+                    } finally {
+                        pool.checkIn(prefetchLdap);
                     }
+                }
+            });
+        }
 
-                    // Iterate
-                    attrs = processAttributes(sc, sr);
+        /**
+         * Gets the range, waiting at most prefetchWaitMillis for a prefetch to obtain a connection.
+         * 
+         * @param msg the description of the attribute for logging
+         * @return the range or null
+         * @throws NamingException if an error occurred retrieving the range
+         */
+        protected Attribute get(String msg) throws NamingException {
+
+            if (prefetched == null) {
+                return getRange(searchLdap, dn, attrTypeName, nextAttrID);
+            }
+
+            try {
+                try {
+                    return prefetched.get(prefetchWaitMillis, TimeUnit.MILLISECONDS);
+                } catch (TimeoutException e) {
+                    if (claimed.compareAndSet(false, true)) {
+                        logger.debug("No prefetch connection available for '" + nextAttrID + "' of '" + dn
+                                + "', searching without prefetch");
+                        return getRange(searchLdap, dn, attrTypeName, nextAttrID);
+                    }
+                    // the prefetch has a connection and is searching
+                    return prefetched.get();
                 }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new NamingException("Interrupted while retrieving range for " + msg);
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof NamingException) {
+                    throw (NamingException) cause;
+                }
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                logger.error("Unable to retrieve range for " + msg, cause);
+                throw new RuntimeException("Unable to retrieve range for " + msg, cause);
             }
         }
+    }
 
-        return attrs;
+    /** An attribute constructed from distinct values without comparing each value to every other. */
+    private static class ValuesAttribute extends BasicAttribute {
+
+        /** Serial version UID. */
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * Constructor.
+         * 
+         * @param id the attribute ID
+         * @param ordered whether or not the values are ordered
+         * @param distinctValues the distinct values
+         */
+        public ValuesAttribute(String id, boolean ordered, Collection<Object> distinctValues) {
+            super(id, ordered);
+            values.addAll(distinctValues);
+        }
     }
 }
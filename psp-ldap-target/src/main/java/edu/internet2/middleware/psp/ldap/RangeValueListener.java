@@ -0,0 +1,39 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.psp.ldap;
+
+import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+
+/**
+ * Receives the values of a multi-valued attribute one range at a time as they are retrieved by the
+ * {@link RangeSearchResultHandler}, so that the values of very large attributes need not be held in memory at once.
+ */
+public interface RangeValueListener {
+
+    /**
+     * Process a range of values.
+     * 
+     * @param dn the DN of the entry
+     * @param attributeName the name of the attribute without the range option
+     * @param values the range of values
+     * @param last whether or not this is the last range
+     * @throws NamingException if the values can not be processed
+     */
+    public void values(String dn, String attributeName, Attribute values, boolean last) throws NamingException;
+}
@@ -0,0 +1,145 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.psp.ldap;
+
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+
+import org.openspml.v2.msg.spml.ErrorCode;
+import org.openspml.v2.msg.spml.StatusCode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.internet2.middleware.psp.PspException;
+import edu.internet2.middleware.psp.spml.provider.BaseSpmlTarget;
+import edu.internet2.middleware.psp.spml.request.SyncRequest;
+import edu.internet2.middleware.psp.spml.request.SyncResponse;
+import edu.internet2.middleware.psp.util.PSPUtil;
+
+/**
+ * Repairs entries changed in the directory by others by executing a {@link SyncRequest} for the source identifier of
+ * each changed entry.
+ * 
+ * The source identifier is the value of an attribute of the entry, which must be provisioned by the psp and returned
+ * with each change. Entries without the attribute, such as entries not provisioned by the psp, are not repaired, nor
+ * are entries whose source object no longer exists; a bulk sync is required to delete them.
+ */
+public class SyncRequestChangeHandler implements LdapChangeHandler {
+
+    /** The logger. */
+    private static final Logger LOG = LoggerFactory.getLogger(SyncRequestChangeHandler.class);
+
+    /** The target whose psp executes sync requests. */
+    private BaseSpmlTarget target;
+
+    /** The name of the attribute whose value is the source identifier. */
+    private String sourceIdAttribute;
+
+    /**
+     * Constructor.
+     * 
+     * @param target the target whose psp executes sync requests
+     * @param sourceIdAttribute the name of the attribute whose value is the source identifier
+     */
+    public SyncRequestChangeHandler(BaseSpmlTarget target, String sourceIdAttribute) {
+        this.target = target;
+        this.sourceIdAttribute = sourceIdAttribute;
+    }
+
+    /** {@inheritDoc} */
+    public void handle(List<LdapChange> changes) throws PspException {
+
+        Set<String> ids = new LinkedHashSet<String>();
+        for (LdapChange change : changes) {
+            String id = getSourceId(change);
+            if (id == null) {
+                LOG.debug("Target '{}' - Unable to determine source identifier of changed entry {}", target.getId(),
+                        change);
+                continue;
+            }
+            ids.add(id);
+        }
+
+        int failures = 0;
+        for (String id : ids) {
+            if (!sync(id)) {
+                failures++;
+            }
+        }
+
+        if (failures > 0) {
+            throw new PspException("Unable to sync " + failures + " of " + ids.size() + " changed entries.");
+        }
+    }
+
+    /**
+     * Gets the source identifier of a changed entry.
+     * 
+     * @param change the change
+     * @return the source identifier, or null if the entry does not have the source identifier attribute
+     * @throws PspException if the value can not be read
+     */
+    protected String getSourceId(LdapChange change) throws PspException {
+
+        Attribute attribute = change.getAttributes().get(sourceIdAttribute);
+        if (attribute == null || attribute.size() == 0) {
+            return null;
+        }
+
+        try {
+            return attribute.get().toString();
+        } catch (NamingException e) {
+            throw new PspException(e);
+        }
+    }
+
+    /**
+     * Execute a sync request.
+     * 
+     * @param id the source identifier
+     * @return false if the sync request failed
+     */
+    protected boolean sync(String id) {
+
+        SyncRequest syncRequest = new SyncRequest();
+        syncRequest.setId(id);
+        syncRequest.setRequestID(PSPUtil.uniqueRequestId());
+
+        LOG.debug("Target '{}' - Will attempt to sync changed '{}'", target.getId(), PSPUtil.toString(syncRequest));
+
+        SyncResponse syncResponse = target.getPSP().execute(syncRequest);
+
+        if (syncResponse.getStatus().equals(StatusCode.SUCCESS)) {
+            LOG.info("Target '{}' - Sync of changed '{}' was successful '{}'", new Object[] {target.getId(), id,
+                    PSPUtil.toString(syncResponse),});
+        } else if (syncResponse.getError().equals(ErrorCode.NO_SUCH_IDENTIFIER)) {
+            LOG.info("Target '{}' - Sync of changed '{}' unable to calculate provisioning '{}'", new Object[] {
+                    target.getId(), id, PSPUtil.toString(syncResponse),});
+        } else {
+            LOG.error("Target '{}' - Sync of changed '{}' failed '{}'", new Object[] {target.getId(), id,
+                    PSPUtil.toString(syncResponse),});
+            return false;
+        }
+
+        return true;
+    }
+}
@@ -0,0 +1,211 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package edu.internet2.middleware.psp.ldap;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.naming.InvalidNameException;
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+import javax.naming.ldap.LdapName;
+
+/**
+ * Finds which of a set of wanted values an attribute has, given the present values of the attribute one at a time.
+ * Only the wanted values are retained, so the present values of a very large attribute may be streamed one range at
+ * a time, see {@link RangeSearchResultHandler#setRangeValueListener(RangeValueListener)}.
+ * 
+ * Reference values are compared as DNs. Data values are compared exactly, a wanted value which differs from a present
+ * value only by case or whitespace is a candidate which should be confirmed by an ldap compare, so that the matching
+ * rule of the attribute applies.
+ */
+public class ValueFinder implements RangeValueListener {
+
+    /** The name of the attribute. */
+    private String name;
+
+    /** Whether or not the values are references, compared as DNs. */
+    private boolean isReference;
+
+    /** The wanted values, in order. */
+    private List<String> wanted;
+
+    /** The wanted values, for lookup. */
+    private Set<String> wantedSet;
+
+    /** The wanted values as ldap names. */
+    private Map<LdapName, List<String>> wantedNames = new HashMap<LdapName, List<String>>();
+
+    /** The wanted values keyed by their normalized value. */
+    private Map<String, List<String>> wantedNormalized = new HashMap<String, List<String>>();
+
+    /** The wanted values which are present. */
+    private Set<String> found = new HashSet<String>();
+
+    /** The wanted values which may be present according to the matching rule of the attribute. */
+    private Set<String> candidates = new HashSet<String>();
+
+    /**
+     * Constructor.
+     * 
+     * @param name the name of the attribute
+     * @param isReference whether or not the values are references, compared as DNs
+     * @param wanted the wanted values
+     */
+    public ValueFinder(String name, boolean isReference, Collection<String> wanted) {
+        this.name = name;
+        this.isReference = isReference;
+        this.wanted = new ArrayList<String>(wanted);
+        this.wantedSet = new HashSet<String>(wanted);
+        for (String value : wanted) {
+            index(wantedNormalized, normalize(value), value);
+            if (isReference) {
+                LdapName ldapName = toLdapName(value);
+                if (ldapName != null) {
+                    index(wantedNames, ldapName, value);
+                }
+            }
+        }
+    }
+
+    /** {@inheritDoc} */
+    public void values(String dn, String attributeName, Attribute values, boolean last) throws NamingException {
+        if (name.equalsIgnoreCase(attributeName)) {
+            addAll(values);
+        }
+    }
+
+    /**
+     * Add the present values of the attribute.
+     * 
+     * @param values the present values, may be null
+     * @throws NamingException if the values can not be read
+     */
+    public void addAll(Attribute values) throws NamingException {
+        if (values == null) {
+            return;
+        }
+        NamingEnumeration<?> enumeration = values.getAll();
+        while (enumeration.hasMore()) {
+            Object object = enumeration.next();
+            if (object instanceof String) {
+                add((String) object);
+            }
+        }
+    }
+
+    /**
+     * Add a present value of the attribute.
+     * 
+     * @param value the present value
+     */
+    public void add(String value) {
+        if (wantedSet.contains(value)) {
+            found.add(value);
+        }
+        if (isReference) {
+            LdapName ldapName = toLdapName(value);
+            if (ldapName != null && wantedNames.containsKey(ldapName)) {
+                found.addAll(wantedNames.get(ldapName));
+            }
+        }
+        List<String> normalized = wantedNormalized.get(normalize(value));
+        if (normalized != null) {
+            candidates.addAll(normalized);
+        }
+    }
+
+    /**
+     * Gets the wanted values which are present, in the order of the wanted values.
+     * 
+     * @return the wanted values which are present
+     */
+    public Set<String> getFound() {
+        Set<String> ordered = new LinkedHashSet<String>();
+        for (String value : wanted) {
+            if (found.contains(value)) {
+                ordered.add(value);
+            }
+        }
+        return ordered;
+    }
+
+    /**
+     * Gets the wanted values which are not present exactly, but which differ from a present value only by case or
+     * whitespace, in the order of the wanted values.
+     * 
+     * @return the wanted values to confirm by an ldap compare
+     */
+    public Set<String> getCandidates() {
+        Set<String> ordered = new LinkedHashSet<String>();
+        for (String value : wanted) {
+            if (candidates.contains(value) && !found.contains(value)) {
+                ordered.add(value);
+            }
+        }
+        return ordered;
+    }
+
+    /**
+     * Add a value to the list of values with the given key.
+     * 
+     * @param map the map
+     * @param key the key
+     * @param value the value
+     */
+    private static <K> void index(Map<K, List<String>> map, K key, String value) {
+        List<String> values = map.get(key);
+        if (values == null) {
+            values = new ArrayList<String>(1);
+            map.put(key, values);
+        }
+        values.add(value);
+    }
+
+    /**
+     * Lower case a value and collapse whitespace, used to find values which an ldap matching rule may consider equal.
+     * 
+     * @param value the value
+     * @return the normalized value
+     */
+    private static String normalize(String value) {
+        return value.trim().replaceAll("\\s+", " ").toLowerCase();
+    }
+
+    /**
+     * Parse a reference value as an ldap name.
+     * 
+     * @param value the reference value
+     * @return the ldap name, or null if the value is not a valid ldap name
+     */
+    private static LdapName toLdapName(String value) {
+        try {
+            return new LdapName(LdapSpmlTarget.unescapeForwardSlash(value));
+        } catch (InvalidNameException e) {
+            return null;
+        }
+    }
+}
@@ -60,5 +60,83 @@ public class LdapSpmlTargetBeanDefinitionParser extends BaseSpmlProviderBeanDefi
             LOG.debug("Setting logLdif to '{}'", XMLHelper.getAttributeValueAsBoolean(attr));
             builder.addPropertyValue("logLdif", XMLHelper.getAttributeValueAsBoolean(attr));
         }
+
+        if (configElement.hasAttributeNS(null, "usePostReadControl")) {
+            Attr attr = configElement.getAttributeNodeNS(null, "usePostReadControl");
+            LOG.debug("Setting usePostReadControl to '{}'", XMLHelper.getAttributeValueAsBoolean(attr));
+            builder.addPropertyValue("usePostReadControl", XMLHelper.getAttributeValueAsBoolean(attr));
+        }
+
+        if (configElement.hasAttributeNS(null, "useMatchedValuesControl")) {
+            Attr attr = configElement.getAttributeNodeNS(null, "useMatchedValuesControl");
+            LOG.debug("Setting useMatchedValuesControl to '{}'", XMLHelper.getAttributeValueAsBoolean(attr));
+            builder.addPropertyValue("useMatchedValuesControl", XMLHelper.getAttributeValueAsBoolean(attr));
+        }
+
+        if (configElement.hasAttributeNS(null, "compareThreshold")) {
+            int compareThreshold = Integer.parseInt(configElement.getAttributeNS(null, "compareThreshold"));
+            LOG.debug("Setting compareThreshold to '{}'", compareThreshold);
+            builder.addPropertyValue("compareThreshold", compareThreshold);
+        }
+
+        if (configElement.hasAttributeNS(null, "prefetchRanges")) {
+            Attr attr = configElement.getAttributeNodeNS(null, "prefetchRanges");
+            LOG.debug("Setting prefetchRanges to '{}'", XMLHelper.getAttributeValueAsBoolean(attr));
+            builder.addPropertyValue("prefetchRanges", XMLHelper.getAttributeValueAsBoolean(attr));
+        }
+
+        if (configElement.hasAttributeNS(null, "entryCacheSize")) {
+            int entryCacheSize = Integer.parseInt(configElement.getAttributeNS(null, "entryCacheSize"));
+            LOG.debug("Setting entryCacheSize to '{}'", entryCacheSize);
+            builder.addPropertyValue("entryCacheSize", entryCacheSize);
+        }
+
+        if (configElement.hasAttributeNS(null, "entryCacheTtl")) {
+            int entryCacheTtl = Integer.parseInt(configElement.getAttributeNS(null, "entryCacheTtl"));
+            LOG.debug("Setting entryCacheTtl to '{}'", entryCacheTtl);
+            builder.addPropertyValue("entryCacheTtl", entryCacheTtl);
+        }
+
+        if (configElement.hasAttributeNS(null, "entryCacheVerifyOnMiss")) {
+            Attr attr = configElement.getAttributeNodeNS(null, "entryCacheVerifyOnMiss");
+            LOG.debug("Setting entryCacheVerifyOnMiss to '{}'", XMLHelper.getAttributeValueAsBoolean(attr));
+            builder.addPropertyValue("entryCacheVerifyOnMiss", XMLHelper.getAttributeValueAsBoolean(attr));
+        }
+
+        if (configElement.hasAttributeNS(null, "watchChanges")) {
+            Attr attr = configElement.getAttributeNodeNS(null, "watchChanges");
+            LOG.debug("Setting watchChanges to '{}'", XMLHelper.getAttributeValueAsBoolean(attr));
+            builder.addPropertyValue("watchChanges", XMLHelper.getAttributeValueAsBoolean(attr));
+        }
+
+        if (configElement.hasAttributeNS(null, "watchBaseDn")) {
+            String watchBaseDn = configElement.getAttributeNS(null, "watchBaseDn");
+            LOG.debug("Setting watchBaseDn to '{}'", watchBaseDn);
+            builder.addPropertyValue("watchBaseDn", watchBaseDn);
+        }
+
+        if (configElement.hasAttributeNS(null, "watchSourceIdAttribute")) {
+            String watchSourceIdAttribute = configElement.getAttributeNS(null, "watchSourceIdAttribute");
+            LOG.debug("Setting watchSourceIdAttribute to '{}'", watchSourceIdAttribute);
+            builder.addPropertyValue("watchSourceIdAttribute", watchSourceIdAttribute);
+        }
+
+        if (configElement.hasAttributeNS(null, "watchChangeAttribute")) {
+            String watchChangeAttribute = configElement.getAttributeNS(null, "watchChangeAttribute");
+            LOG.debug("Setting watchChangeAttribute to '{}'", watchChangeAttribute);
+            builder.addPropertyValue("watchChangeAttribute", watchChangeAttribute);
+        }
+
+        if (configElement.hasAttributeNS(null, "watchDelay")) {
+            int watchDelay = Integer.parseInt(configElement.getAttributeNS(null, "watchDelay"));
+            LOG.debug("Setting watchDelay to '{}'", watchDelay);
+            builder.addPropertyValue("watchDelay", watchDelay);
+        }
+
+        if (configElement.hasAttributeNS(null, "partitionConcurrency")) {
+            int partitionConcurrency = Integer.parseInt(configElement.getAttributeNS(null, "partitionConcurrency"));
+            LOG.debug("Setting partitionConcurrency to '{}'", partitionConcurrency);
+            builder.addPropertyValue("partitionConcurrency", partitionConcurrency);
+        }
     }
 }
@@ -29,5 +29,8 @@ public class LdapSpmlTargetNamespaceHandler extends BaseSpringNamespaceHandler {
     public void init() {
         registerBeanDefinitionParser(LdapSpmlTargetBeanDefinitionParser.TYPE_NAME,
                 new LdapSpmlTargetBeanDefinitionParser());
+
+        registerBeanDefinitionParser(LdifSpmlTargetBeanDefinitionParser.TYPE_NAME,
+                new LdifSpmlTargetBeanDefinitionParser());
     }
 }
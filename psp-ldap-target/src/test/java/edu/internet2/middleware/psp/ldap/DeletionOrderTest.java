@@ -0,0 +1,202 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.psp.ldap;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+
+import javax.naming.InvalidNameException;
+import javax.naming.ldap.LdapName;
+
+import junit.framework.TestCase;
+import junit.textui.TestRunner;
+
+import org.openspml.v2.msg.spml.PSOIdentifier;
+
+/**
+ * Tests the ordering of pso identifiers for deletion. Run with a number of identifiers as the argument to compare the
+ * time taken with the ordering by {@link LdapName}.
+ */
+public class DeletionOrderTest extends TestCase {
+
+  public static void main(String[] args) throws Exception {
+    if (args.length > 0) {
+      benchmark(Integer.parseInt(args[0]));
+    } else {
+      TestRunner.run(DeletionOrderTest.class);
+    }
+  }
+
+  public DeletionOrderTest(String name) {
+    super(name);
+  }
+
+  private static PSOIdentifier psoId(String dn) {
+    PSOIdentifier psoId = new PSOIdentifier();
+    psoId.setID(dn);
+    psoId.setTargetID("ldap");
+    return psoId;
+  }
+
+  /**
+   * A tree of groups and people, in random order.
+   */
+  private static Set<PSOIdentifier> tree(int size, long seed) {
+    List<PSOIdentifier> psoIds = new ArrayList<PSOIdentifier>();
+    psoIds.add(psoId("dc=edu"));
+    psoIds.add(psoId("ou=groups,dc=edu"));
+    psoIds.add(psoId("ou=people,dc=edu"));
+    for (int i = 0; psoIds.size() < size; i++) {
+      String stem = "ou=stem" + (i % 100) + ",ou=groups,dc=edu";
+      if (i < 100) {
+        psoIds.add(psoId(stem));
+      }
+      psoIds.add(psoId("cn=group" + i + "," + stem));
+      psoIds.add(psoId("uid=Person" + i + ", ou=people,dc=edu"));
+    }
+    Collections.shuffle(psoIds, new Random(seed));
+    return new LinkedHashSet<PSOIdentifier>(psoIds);
+  }
+
+  /**
+   * The ordering by reversed {@link LdapName} order which preceded {@link DeletionOrder}.
+   */
+  private static Set<PSOIdentifier> orderByLdapName(Set<PSOIdentifier> psoIdentifiers) throws InvalidNameException {
+    Map<LdapName, PSOIdentifier> map = new TreeMap<LdapName, PSOIdentifier>();
+    for (PSOIdentifier psoIdentifier : psoIdentifiers) {
+      map.put(new LdapName(psoIdentifier.getID()), psoIdentifier);
+    }
+    List<LdapName> ldapNames = new ArrayList<LdapName>(map.keySet());
+    Collections.reverse(ldapNames);
+    Set<PSOIdentifier> ordered = new LinkedHashSet<PSOIdentifier>();
+    for (LdapName ldapName : ldapNames) {
+      ordered.add(map.get(ldapName));
+    }
+    return ordered;
+  }
+
+  private static void assertChildrenBeforeParents(Set<PSOIdentifier> ordered) throws InvalidNameException {
+    Set<LdapName> seen = new LinkedHashSet<LdapName>();
+    for (PSOIdentifier psoId : ordered) {
+      LdapName ldapName = new LdapName(psoId.getID());
+      for (LdapName other : seen) {
+        assertFalse(psoId.getID() + " precedes its descendant " + other, !other.equals(ldapName)
+            && ldapName.startsWith(other));
+      }
+      seen.add(ldapName);
+    }
+  }
+
+  public void testChildrenBeforeParents() throws Exception {
+
+    Set<PSOIdentifier> psoIds = tree(500, 1);
+    Set<PSOIdentifier> ordered = DeletionOrder.order(psoIds);
+
+    assertEquals(psoIds.size(), ordered.size());
+    assertChildrenBeforeParents(ordered);
+
+    Iterator<PSOIdentifier> iterator = ordered.iterator();
+    PSOIdentifier last = null;
+    while (iterator.hasNext()) {
+      last = iterator.next();
+    }
+    assertEquals("dc=edu", last.getID());
+  }
+
+  public void testSameOrderAsLdapName() throws Exception {
+
+    Set<PSOIdentifier> psoIds = tree(2000, 2);
+
+    assertEquals(new ArrayList<PSOIdentifier>(orderByLdapName(psoIds)), new ArrayList<PSOIdentifier>(DeletionOrder
+        .order(psoIds)));
+  }
+
+  public void testEqualDnsReducedToLast() throws Exception {
+
+    Set<PSOIdentifier> psoIds = new LinkedHashSet<PSOIdentifier>();
+    psoIds.add(psoId("cn=a,ou=groups,dc=edu"));
+    psoIds.add(psoId("ou=groups,dc=edu"));
+    psoIds.add(psoId("CN=A, ou=Groups,dc=edu"));
+
+    List<PSOIdentifier> ordered = new ArrayList<PSOIdentifier>(DeletionOrder.order(psoIds));
+
+    assertEquals(2, ordered.size());
+    assertEquals("CN=A, ou=Groups,dc=edu", ordered.get(0).getID());
+    assertEquals("ou=groups,dc=edu", ordered.get(1).getID());
+  }
+
+  public void testEscapedAndMultiValuedRdns() throws Exception {
+
+    Set<PSOIdentifier> psoIds = new LinkedHashSet<PSOIdentifier>();
+    psoIds.add(psoId("ou=a\\,b,dc=edu"));
+    psoIds.add(psoId("cn=x+uid=y,ou=a\\,b,dc=edu"));
+    psoIds.add(psoId("cn=c\\/d,ou=a\\,b,dc=edu"));
+
+    List<PSOIdentifier> ordered = new ArrayList<PSOIdentifier>(DeletionOrder.order(psoIds));
+
+    assertEquals(3, ordered.size());
+    assertEquals("ou=a\\,b,dc=edu", ordered.get(2).getID());
+  }
+
+  public void testInvalidDn() {
+    Set<PSOIdentifier> psoIds = new LinkedHashSet<PSOIdentifier>();
+    psoIds.add(psoId("cn=a,groups,dc=edu"));
+    try {
+      DeletionOrder.order(psoIds);
+      fail("An invalid DN must not be ordered.");
+    } catch (InvalidNameException e) {
+      // expected
+    }
+  }
+
+  /**
+   * Print the time taken and memory allocated to order the given number of identifiers by both implementations.
+   */
+  private static void benchmark(int size) throws Exception {
+
+    Set<PSOIdentifier> psoIds = tree(size, 3);
+
+    for (int round = 0; round < 5; round++) {
+      System.gc();
+      long start = System.nanoTime();
+      int n = 0;
+      for (Iterator<PSOIdentifier> i = orderByLdapName(psoIds).iterator(); i.hasNext(); i.next()) {
+        n++;
+      }
+      long ldapNameMillis = (System.nanoTime() - start) / 1000000;
+
+      System.gc();
+      start = System.nanoTime();
+      int m = 0;
+      for (Iterator<PSOIdentifier> i = DeletionOrder.order(psoIds).iterator(); i.hasNext(); i.next()) {
+        m++;
+      }
+      long deletionOrderMillis = (System.nanoTime() - start) / 1000000;
+
+      System.out.println("round " + round + " : " + n + " identifiers LdapName " + ldapNameMillis + " ms, " + m
+          + " identifiers DeletionOrder " + deletionOrderMillis + " ms");
+    }
+  }
+}
@@ -0,0 +1,254 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.psp.ldap;
+
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.naming.directory.Attributes;
+import javax.naming.directory.BasicAttribute;
+import javax.naming.directory.BasicAttributes;
+import javax.naming.directory.DirContext;
+import javax.naming.directory.ModificationItem;
+
+import junit.framework.TestCase;
+import junit.textui.TestRunner;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.directory.api.ldap.codec.api.LdapApiService;
+import org.apache.directory.api.ldap.codec.controls.search.entryChange.EntryChangeFactory;
+import org.apache.directory.api.ldap.codec.controls.search.persistentSearch.PersistentSearchFactory;
+import org.apache.directory.api.ldap.model.entry.DefaultEntry;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.server.core.api.DirectoryService;
+import org.apache.directory.server.core.factory.DefaultDirectoryServiceFactory;
+import org.apache.directory.server.core.partition.impl.avl.AvlPartition;
+import org.apache.directory.server.ldap.LdapServer;
+import org.apache.directory.server.protocol.shared.transport.TcpTransport;
+
+import edu.vt.middleware.ldap.Ldap;
+import edu.vt.middleware.ldap.LdapConfig;
+
+/**
+ * Tests the change watcher against an embedded directory.
+ */
+public class LdapChangeWatcherDirectoryTest extends TestCase {
+
+  public static void main(String[] args) {
+    TestRunner.run(LdapChangeWatcherDirectoryTest.class);
+  }
+
+  public LdapChangeWatcherDirectoryTest(String name) {
+    super(name);
+  }
+
+  /** The maximum time in milliseconds to wait for change notifications. */
+  private static final long TIMEOUT = 10000;
+
+  /** The embedded directory. */
+  private DirectoryService directoryService;
+
+  /** The ldap protocol server of the embedded directory. */
+  private LdapServer ldapServer;
+
+  /** The connection used to change entries. */
+  private Ldap ldap;
+
+  /** The changes handed to the handler. */
+  private List<LdapChange> handled;
+
+  /** The watcher. */
+  private LdapChangeWatcher watcher;
+
+  /** {@inheritDoc} */
+  protected void setUp() throws Exception {
+
+    DefaultDirectoryServiceFactory directoryServiceFactory = new DefaultDirectoryServiceFactory();
+    directoryServiceFactory.init(getClass().getSimpleName());
+    directoryService = directoryServiceFactory.getDirectoryService();
+    directoryService.setShutdownHookEnabled(false);
+
+    AvlPartition partition = new AvlPartition(directoryService.getSchemaManager());
+    partition.setId("edu");
+    partition.setSuffixDn(new Dn(directoryService.getSchemaManager(), "dc=edu"));
+    directoryService.addPartition(partition);
+    directoryService.getAdminSession().add(
+        new DefaultEntry(directoryService.getSchemaManager(), "dc=edu", "objectClass: top", "objectClass: domain",
+            "dc: edu"));
+
+    ServerSocket serverSocket = new ServerSocket(0);
+    int port = serverSocket.getLocalPort();
+    serverSocket.close();
+
+    // the standalone codec does not register the persistent search controls by default
+    LdapApiService codec = directoryService.getLdapCodecService();
+    codec.registerControl(new PersistentSearchFactory(codec));
+    codec.registerControl(new EntryChangeFactory(codec));
+
+    ldapServer = new LdapServer();
+    ldapServer.setDirectoryService(directoryService);
+    ldapServer.setTransports(new TcpTransport(port));
+    ldapServer.start();
+
+    LdapConfig ldapConfig = new LdapConfig("ldap://localhost:" + port, "dc=edu");
+    ldapConfig.setBindDn("uid=admin,ou=system");
+    ldapConfig.setBindCredential("secret");
+    ldap = new Ldap(ldapConfig);
+
+    ldap.create("ou=groups,dc=edu", attributes("organizationalUnit", "ou", "groups"));
+    ldap.create("cn=a,ou=groups,dc=edu", attributes("groupOfNames", "cn", "a"));
+
+    handled = Collections.synchronizedList(new ArrayList<LdapChange>());
+    watcher =
+        new LdapChangeWatcher("test", ldapConfig, Collections.singletonList("ou=groups,dc=edu"), new String[] {
+            "description", "entryCSN",}, new LdapChangeHandler() {
+
+          public void handle(List<LdapChange> changes) {
+            handled.addAll(changes);
+          }
+        });
+    // changes are handed to the handler by the tests
+    watcher.setDelayMillis(TIMEOUT * 10);
+    watcher.start();
+
+    // wait for the persistent search to start
+    long deadline = System.currentTimeMillis() + TIMEOUT;
+    while (watcher.getReceivedCount() == 0 && System.currentTimeMillis() < deadline) {
+      describe("cn=a,ou=groups,dc=edu", "started");
+      Thread.sleep(100);
+    }
+    assertTrue("The persistent search did not start.", watcher.getReceivedCount() > 0);
+
+    // discard the changes made while waiting
+    long received = -1;
+    while (received != watcher.getReceivedCount()) {
+      received = watcher.getReceivedCount();
+      Thread.sleep(200);
+    }
+    watcher.handlePending();
+    handled.clear();
+  }
+
+  /** {@inheritDoc} */
+  protected void tearDown() throws Exception {
+    watcher.stop();
+    ldap.close();
+    ldapServer.stop();
+    directoryService.shutdown();
+    FileUtils.deleteDirectory(directoryService.getInstanceLayout().getInstanceDirectory());
+  }
+
+  private static Attributes attributes(String objectClass, String name, String value) {
+    Attributes attributes = new BasicAttributes(true);
+    attributes.put(new BasicAttribute("objectClass", objectClass));
+    attributes.put(new BasicAttribute(name, value));
+    if (objectClass.equals("groupOfNames")) {
+      attributes.put(new BasicAttribute("member", "uid=admin,ou=system"));
+    }
+    return attributes;
+  }
+
+  private void describe(String dn, String description) throws Exception {
+    ldap.modifyAttributes(dn, new ModificationItem[] {new ModificationItem(DirContext.REPLACE_ATTRIBUTE,
+        new BasicAttribute("description", description)),});
+  }
+
+  /** Modify an entry as the target does, recording the entryCSN of the post-image. */
+  private void describeOwn(String dn, String description) throws Exception {
+    describe(dn, description);
+    // the post-image is read after the write rather than with the post-read control
+    String entryCSN = ldap.getAttributes(dn, new String[] {"entryCSN"}).get("entryCSN").get().toString();
+    watcher.recordOwnChange(PersistentSearchControl.MODIFY, dn, null, entryCSN);
+  }
+
+  private void awaitReceived(long count) throws Exception {
+    long deadline = System.currentTimeMillis() + TIMEOUT;
+    while (watcher.getReceivedCount() < count && System.currentTimeMillis() < deadline) {
+      Thread.sleep(50);
+    }
+    assertEquals(count, watcher.getReceivedCount());
+  }
+
+  public void testHandleChangeByOthers() throws Exception {
+
+    long received = watcher.getReceivedCount();
+    describe("cn=a,ou=groups,dc=edu", "others");
+    awaitReceived(received + 1);
+
+    watcher.handlePending();
+    assertEquals(1, handled.size());
+    assertEquals("cn=a,ou=groups,dc=edu", handled.get(0).getDn());
+    assertEquals(PersistentSearchControl.MODIFY, handled.get(0).getChangeType());
+    assertEquals("others", handled.get(0).getAttributes().get("description").get());
+  }
+
+  public void testIgnoreOwnModify() throws Exception {
+
+    long received = watcher.getReceivedCount();
+    describeOwn("cn=a,ou=groups,dc=edu", "own");
+    awaitReceived(received + 1);
+
+    watcher.handlePending();
+    assertEquals(0, handled.size());
+    assertEquals(1, watcher.getIgnoredCount());
+  }
+
+  public void testHandleChangeByOthersImmediatelyAfterOwnModify() throws Exception {
+
+    long received = watcher.getReceivedCount();
+    describeOwn("cn=a,ou=groups,dc=edu", "own");
+    describe("cn=a,ou=groups,dc=edu", "others");
+    awaitReceived(received + 2);
+
+    watcher.handlePending();
+    assertEquals(1, handled.size());
+    assertEquals(1, watcher.getIgnoredCount());
+    assertEquals("others", handled.get(0).getAttributes().get("description").get());
+  }
+
+  public void testIgnoreOwnAddRenameAndDelete() throws Exception {
+
+    long received = watcher.getReceivedCount();
+    ldap.create("cn=b,ou=groups,dc=edu", attributes("groupOfNames", "cn", "b"));
+    watcher.recordOwnChange(PersistentSearchControl.ADD, "cn=b,ou=groups,dc=edu", null, null);
+    ldap.rename("cn=b,ou=groups,dc=edu", "cn=c,ou=groups,dc=edu");
+    watcher.recordOwnChange(PersistentSearchControl.MODDN, "cn=c,ou=groups,dc=edu", "cn=b,ou=groups,dc=edu", null);
+    ldap.delete("cn=c,ou=groups,dc=edu");
+    watcher.recordOwnChange(PersistentSearchControl.DELETE, "cn=c,ou=groups,dc=edu", null, null);
+    awaitReceived(received + 3);
+
+    watcher.handlePending();
+    assertEquals(0, handled.size());
+    assertEquals(3, watcher.getIgnoredCount());
+  }
+
+  public void testHandleDeleteByOthers() throws Exception {
+
+    long received = watcher.getReceivedCount();
+    ldap.create("cn=b,ou=groups,dc=edu", attributes("groupOfNames", "cn", "b"));
+    watcher.recordOwnChange(PersistentSearchControl.ADD, "cn=b,ou=groups,dc=edu", null, null);
+    ldap.delete("cn=b,ou=groups,dc=edu");
+    awaitReceived(received + 2);
+
+    watcher.handlePending();
+    assertEquals(1, handled.size());
+    assertEquals(PersistentSearchControl.DELETE, handled.get(0).getChangeType());
+  }
+}
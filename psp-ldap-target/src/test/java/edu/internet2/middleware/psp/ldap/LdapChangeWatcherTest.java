@@ -0,0 +1,194 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.psp.ldap;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.naming.directory.BasicAttributes;
+
+import junit.framework.TestCase;
+import junit.textui.TestRunner;
+
+import edu.vt.middleware.ldap.LdapConfig;
+
+/**
+ * Tests the queueing of changes by the change watcher, without a directory.
+ */
+public class LdapChangeWatcherTest extends TestCase {
+
+  public static void main(String[] args) {
+    TestRunner.run(LdapChangeWatcherTest.class);
+  }
+
+  public LdapChangeWatcherTest(String name) {
+    super(name);
+  }
+
+  /** The changes handed to the handler. */
+  private List<LdapChange> handled;
+
+  /** The watcher, which is never started. */
+  private LdapChangeWatcher watcher;
+
+  /** {@inheritDoc} */
+  protected void setUp() {
+    handled = new ArrayList<LdapChange>();
+    watcher =
+        new LdapChangeWatcher("test", new LdapConfig(), Collections.singletonList("dc=edu"),
+            new String[] {"1.1"}, new LdapChangeHandler() {
+
+              public void handle(List<LdapChange> changes) {
+                handled.addAll(changes);
+              }
+            });
+  }
+
+  private LdapChange change(String dn, int changeType) {
+    return new LdapChange(dn, null, changeType, new BasicAttributes(true));
+  }
+
+  public void testHandlePending() {
+
+    watcher.changed(change("cn=a,ou=groups,dc=edu", PersistentSearchControl.ADD));
+    watcher.changed(change("cn=b,ou=groups,dc=edu", PersistentSearchControl.MODIFY));
+    assertEquals(2, watcher.getPendingCount());
+
+    assertEquals(2, watcher.handlePending());
+    assertEquals(2, handled.size());
+    assertEquals("cn=a,ou=groups,dc=edu", handled.get(0).getDn());
+    assertEquals("cn=b,ou=groups,dc=edu", handled.get(1).getDn());
+    assertEquals(0, watcher.getPendingCount());
+    assertEquals(2, watcher.getHandledCount());
+
+    assertEquals(0, watcher.handlePending());
+  }
+
+  public void testCoalesceChangesToSameEntry() {
+
+    watcher.changed(change("cn=a,ou=groups,dc=edu", PersistentSearchControl.ADD));
+    watcher.changed(change("cn=b,ou=groups,dc=edu", PersistentSearchControl.MODIFY));
+    watcher.changed(change("CN=A,ou=groups,dc=edu", PersistentSearchControl.MODIFY));
+
+    assertEquals(3, watcher.getReceivedCount());
+    assertEquals(2, watcher.handlePending());
+    assertEquals("CN=A,ou=groups,dc=edu", handled.get(0).getDn());
+    assertEquals(PersistentSearchControl.MODIFY, handled.get(0).getChangeType());
+  }
+
+  private LdapChange modify(String dn, String entryCSN) {
+    BasicAttributes attributes = new BasicAttributes(true);
+    attributes.put("entryCSN", entryCSN);
+    return new LdapChange(dn, null, PersistentSearchControl.MODIFY, attributes);
+  }
+
+  public void testIgnoreOwnModify() {
+
+    watcher.recordOwnChange(PersistentSearchControl.MODIFY, "cn=a,ou=groups,dc=edu", null, "1");
+    watcher.changed(modify("cn=a,ou=groups,dc=edu", "1"));
+    watcher.changed(modify("cn=b,ou=groups,dc=edu", "2"));
+
+    assertEquals(1, watcher.handlePending());
+    assertEquals(1, watcher.getIgnoredCount());
+    assertEquals("cn=b,ou=groups,dc=edu", handled.get(0).getDn());
+  }
+
+  public void testHandleOtherModifyOfOwnEntry() throws Exception {
+
+    watcher.recordOwnChange(PersistentSearchControl.MODIFY, "cn=a,ou=groups,dc=edu", null, "1");
+    watcher.changed(modify("cn=a,ou=groups,dc=edu", "1"));
+    watcher.changed(modify("cn=a,ou=groups,dc=edu", "2"));
+
+    // the change made by others is not coalesced away by the later own change
+    assertEquals(1, watcher.handlePending());
+    assertEquals(1, watcher.getIgnoredCount());
+    assertEquals("2", handled.get(0).getAttributes().get("entryCSN").get(0));
+  }
+
+  public void testHandleOtherModifyBeforeOwnModify() throws Exception {
+
+    watcher.changed(modify("cn=a,ou=groups,dc=edu", "1"));
+    watcher.changed(modify("cn=a,ou=groups,dc=edu", "2"));
+    watcher.recordOwnChange(PersistentSearchControl.MODIFY, "cn=a,ou=groups,dc=edu", null, "2");
+
+    assertEquals(1, watcher.handlePending());
+    assertEquals("1", handled.get(0).getAttributes().get("entryCSN").get(0));
+  }
+
+  public void testOwnModifyRecordedAfterNotification() {
+
+    // the post-read response may be processed after the notification is received
+    watcher.changed(modify("cn=a,ou=groups,dc=edu", "1"));
+    watcher.recordOwnChange(PersistentSearchControl.MODIFY, "cn=a,ou=groups,dc=edu", null, "1");
+
+    assertEquals(0, watcher.handlePending());
+    assertEquals(1, watcher.getIgnoredCount());
+  }
+
+  public void testOwnModifyIsForgottenOnceMatched() {
+
+    watcher.recordOwnChange(PersistentSearchControl.MODIFY, "cn=a,ou=groups,dc=edu", null, "1");
+    watcher.changed(modify("cn=a,ou=groups,dc=edu", "1"));
+    assertEquals(0, watcher.handlePending());
+
+    watcher.changed(modify("cn=a,ou=groups,dc=edu", "1"));
+    assertEquals(1, watcher.handlePending());
+  }
+
+  public void testModifyWithoutChangeIdIsHandled() {
+
+    watcher.recordOwnChange(PersistentSearchControl.MODIFY, "cn=a,ou=groups,dc=edu", null, null);
+    watcher.changed(change("cn=a,ou=groups,dc=edu", PersistentSearchControl.MODIFY));
+
+    assertEquals(1, watcher.handlePending());
+  }
+
+  public void testIgnoreOwnAddDeleteAndRename() {
+
+    watcher.recordOwnChange(PersistentSearchControl.ADD, "cn=a,ou=groups,dc=edu", null, null);
+    watcher.recordOwnChange(PersistentSearchControl.DELETE, "cn=b,ou=groups,dc=edu", null, null);
+    watcher.recordOwnChange(PersistentSearchControl.MODDN, "cn=d,ou=groups,dc=edu", "cn=c,ou=groups,dc=edu", null);
+
+    watcher.changed(change("CN=A,ou=groups,dc=edu", PersistentSearchControl.ADD));
+    watcher.changed(change("cn=b,ou=groups,dc=edu", PersistentSearchControl.DELETE));
+    watcher.changed(new LdapChange("cn=d,ou=groups,dc=edu", "CN=C,ou=groups,dc=edu", PersistentSearchControl.MODDN,
+        new BasicAttributes(true)));
+
+    assertEquals(0, watcher.handlePending());
+    assertEquals(3, watcher.getIgnoredCount());
+  }
+
+  public void testHandleOtherChangeTypeOfOwnEntry() {
+
+    watcher.recordOwnChange(PersistentSearchControl.ADD, "cn=a,ou=groups,dc=edu", null, null);
+    watcher.changed(change("cn=a,ou=groups,dc=edu", PersistentSearchControl.DELETE));
+
+    assertEquals(1, watcher.handlePending());
+    assertEquals(0, watcher.getIgnoredCount());
+  }
+
+  public void testRenameFromOtherDnIsHandled() {
+
+    watcher.recordOwnChange(PersistentSearchControl.MODDN, "cn=d,ou=groups,dc=edu", "cn=c,ou=groups,dc=edu", null);
+    watcher.changed(new LdapChange("cn=d,ou=groups,dc=edu", "cn=e,ou=groups,dc=edu", PersistentSearchControl.MODDN,
+        new BasicAttributes(true)));
+
+    assertEquals(1, watcher.handlePending());
+  }
+}
@@ -0,0 +1,165 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.psp.ldap;
+
+import javax.naming.directory.Attributes;
+import javax.naming.directory.BasicAttribute;
+import javax.naming.directory.BasicAttributes;
+import javax.naming.directory.DirContext;
+import javax.naming.directory.ModificationItem;
+
+import junit.framework.TestCase;
+import junit.textui.TestRunner;
+
+/**
+ * Tests the ldap entry cache.
+ */
+public class LdapEntryCacheTest extends TestCase {
+
+  public static void main(String[] args) {
+    TestRunner.run(LdapEntryCacheTest.class);
+  }
+
+  public LdapEntryCacheTest(String name) {
+    super(name);
+  }
+
+  private static Attributes group(String... members) {
+    Attributes attributes = new BasicAttributes(true);
+    attributes.put(new BasicAttribute("cn", "group"));
+    BasicAttribute member = new BasicAttribute("member");
+    for (String m : members) {
+      member.add(m);
+    }
+    attributes.put(member);
+    return attributes;
+  }
+
+  public void testGetIsCaseInsensitiveDn() throws Exception {
+
+    LdapEntryCache cache = new LdapEntryCache(10, 60000);
+    cache.put("cn=group,ou=groups,dc=edu", group("cn=a"));
+
+    Attributes attributes = cache.get("CN=Group, OU=groups,DC=edu");
+    assertNotNull(attributes);
+    assertEquals("group", attributes.get("CN").get());
+    assertEquals(1, cache.getHitCount());
+
+    assertNull(cache.get("cn=other,ou=groups,dc=edu"));
+    assertEquals(1, cache.getMissCount());
+    assertEquals(0.5, cache.getHitRate(), 0.0001);
+  }
+
+  public void testReturnsCopies() throws Exception {
+
+    LdapEntryCache cache = new LdapEntryCache(10, 60000);
+    Attributes put = group("cn=a");
+    cache.put("cn=group,dc=edu", put);
+    put.get("member").add("cn=b");
+
+    Attributes got = cache.get("cn=group,dc=edu");
+    assertEquals(1, got.get("member").size());
+    got.get("member").add("cn=c");
+
+    assertEquals(1, cache.get("cn=group,dc=edu").get("member").size());
+  }
+
+  public void testExpires() throws Exception {
+
+    LdapEntryCache cache = new LdapEntryCache(10, 0);
+    cache.put("cn=group,dc=edu", group("cn=a"));
+    assertNull(cache.get("cn=group,dc=edu"));
+    assertEquals(0, cache.size());
+  }
+
+  public void testEvictsLeastRecentlyUsed() throws Exception {
+
+    LdapEntryCache cache = new LdapEntryCache(2, 60000);
+    cache.put("cn=1,dc=edu", group());
+    cache.put("cn=2,dc=edu", group());
+    assertNotNull(cache.get("cn=1,dc=edu"));
+    cache.put("cn=3,dc=edu", group());
+
+    assertNotNull(cache.get("cn=1,dc=edu"));
+    assertNull(cache.get("cn=2,dc=edu"));
+    assertNotNull(cache.get("cn=3,dc=edu"));
+    assertEquals(1, cache.getEvictionCount());
+  }
+
+  public void testModify() throws Exception {
+
+    LdapEntryCache cache = new LdapEntryCache(10, 60000);
+    cache.put("cn=group,dc=edu", group("cn=a", "cn=b"));
+
+    cache.modify("cn=group,dc=edu", new ModificationItem[] {
+        new ModificationItem(DirContext.ADD_ATTRIBUTE, new BasicAttribute("member", "cn=c")),
+        new ModificationItem(DirContext.REMOVE_ATTRIBUTE, new BasicAttribute("member", "cn=a")),
+        new ModificationItem(DirContext.REPLACE_ATTRIBUTE, new BasicAttribute("description", "d")),});
+
+    Attributes attributes = cache.get("cn=group,dc=edu");
+    assertEquals(2, attributes.get("member").size());
+    assertTrue(attributes.get("member").contains("cn=b"));
+    assertTrue(attributes.get("member").contains("cn=c"));
+    assertEquals("d", attributes.get("description").get());
+  }
+
+  public void testUncertainModifyRemoves() throws Exception {
+
+    LdapEntryCache cache = new LdapEntryCache(10, 60000);
+    cache.put("cn=group,dc=edu", group("cn=a"));
+
+    // the directory may consider CN=A equal to cn=a
+    cache.modify("cn=group,dc=edu", new ModificationItem[] {new ModificationItem(DirContext.REMOVE_ATTRIBUTE,
+        new BasicAttribute("member", "CN=A")),});
+
+    assertNull(cache.get("cn=group,dc=edu"));
+  }
+
+  public void testRemoveSubtree() throws Exception {
+
+    LdapEntryCache cache = new LdapEntryCache(10, 60000);
+    cache.put("ou=groups,dc=edu", group());
+    cache.put("cn=group,ou=groups,dc=edu", group());
+    cache.put("ou=people,dc=edu", group());
+
+    cache.removeSubtree("ou=groups,dc=edu");
+
+    assertNull(cache.get("ou=groups,dc=edu"));
+    assertNull(cache.get("cn=group,ou=groups,dc=edu"));
+    assertNotNull(cache.get("ou=people,dc=edu"));
+  }
+
+  public void testRemoveSubtreeOfUncachedEntry() throws Exception {
+
+    LdapEntryCache cache = new LdapEntryCache(10, 60000);
+    cache.put("cn=a,ou=x,ou=groups,dc=edu", group());
+    cache.put("cn=b,ou=y,ou=x,ou=groups,dc=edu", group());
+    cache.put("ou=xy,ou=groups,dc=edu", group());
+    cache.put("cn=c,ou=groups,dc=edu", group());
+    cache.put("ou=groups,dc=org", group());
+
+    cache.removeSubtree("OU=X,ou=groups,DC=edu");
+
+    assertNull(cache.get("cn=a,ou=x,ou=groups,dc=edu"));
+    assertNull(cache.get("cn=b,ou=y,ou=x,ou=groups,dc=edu"));
+    assertNotNull(cache.get("ou=xy,ou=groups,dc=edu"));
+    assertNotNull(cache.get("cn=c,ou=groups,dc=edu"));
+    assertNotNull(cache.get("ou=groups,dc=org"));
+    assertEquals(3, cache.size());
+  }
+}
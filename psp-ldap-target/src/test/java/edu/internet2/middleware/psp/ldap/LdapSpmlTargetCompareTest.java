@@ -0,0 +1,192 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.psp.ldap;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+
+import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.BasicAttribute;
+import javax.naming.directory.BasicAttributes;
+import javax.naming.directory.NoSuchAttributeException;
+import javax.naming.directory.SearchResult;
+
+import junit.framework.TestCase;
+import junit.textui.TestRunner;
+
+import org.openspml.v2.msg.spml.PSOIdentifier;
+
+import edu.internet2.middleware.psp.PspNoSuchIdentifierException;
+import edu.vt.middleware.ldap.Ldap;
+import edu.vt.middleware.ldap.SearchFilter;
+
+/**
+ * Tests compare based value checks, including entries which lack the compared attribute, and finding several values
+ * by a single search requesting the matched values control.
+ */
+public class LdapSpmlTargetCompareTest extends TestCase {
+
+  public static void main(String[] args) {
+    TestRunner.run(LdapSpmlTargetCompareTest.class);
+  }
+
+  public LdapSpmlTargetCompareTest(String name) {
+    super(name);
+  }
+
+  /** The entry compared against. */
+  private Attributes entry;
+
+  /** The target, whose connections compare against the entry as a directory would. */
+  private LdapSpmlTarget target;
+
+  /** Whether or not the directory supports the matched values control. */
+  private boolean matchedValuesSupported;
+
+  /** Whether or not the entry exists. */
+  private boolean exists;
+
+  /** The number of compares. */
+  private int compares;
+
+  /** The number of searches requesting the matched values control. */
+  private int matchedValuesSearches;
+
+  /** {@inheritDoc} */
+  protected void setUp() {
+    entry = new BasicAttributes(true);
+    entry.put(new BasicAttribute("cn", "group"));
+    matchedValuesSupported = false;
+    exists = true;
+    compares = 0;
+    matchedValuesSearches = 0;
+
+    final Ldap ldap = new Ldap() {
+
+      public boolean compare(String dn, SearchFilter filter) throws NamingException {
+        compares++;
+        String name = filter.getFilter().substring(0, filter.getFilter().indexOf('='));
+        Attribute attribute = entry.get(name);
+        if (attribute == null) {
+          throw new NoSuchAttributeException("[LDAP: error code 16 - No Such Attribute]");
+        }
+        return attribute.contains(filter.getFilterArgs().get(0));
+      }
+    };
+
+    target = new LdapSpmlTarget() {
+
+      protected Ldap checkOut() {
+        return ldap;
+      }
+
+      protected void checkIn(Ldap ldap) {
+      }
+
+      protected boolean isReferenceName(String name) {
+        return name.equals("member");
+      }
+
+      protected boolean isMatchedValuesSupported(Ldap ldap) {
+        return matchedValuesSupported;
+      }
+
+      protected SearchResult searchWithMatchedValues(Ldap ldap, String escapedDn, String name,
+          Collection<String> values) {
+        matchedValuesSearches++;
+        if (!exists) {
+          return null;
+        }
+        // the directory returns only the matching values
+        Attribute matched = new BasicAttribute(name);
+        Attribute attribute = entry.get(name);
+        for (String value : values) {
+          if (attribute != null && attribute.contains(value)) {
+            matched.add(value);
+          }
+        }
+        Attributes attributes = new BasicAttributes(true);
+        attributes.put(matched);
+        return new SearchResult(escapedDn, null, attributes);
+      }
+    };
+  }
+
+  private static PSOIdentifier psoID() {
+    return new PSOIdentifier("cn=group,ou=groups,dc=edu", null, "ldap");
+  }
+
+  public void testEntryWithoutAttribute() throws Exception {
+
+    // for example the first member added to an empty group
+    assertFalse(target.hasValue(psoID(), "member", "cn=a,ou=people,dc=edu"));
+  }
+
+  public void testEntryWithAttribute() throws Exception {
+
+    BasicAttribute member = new BasicAttribute("member");
+    member.add("cn=a,ou=people,dc=edu");
+    entry.put(member);
+
+    assertTrue(target.hasValue(psoID(), "member", "cn=a,ou=people,dc=edu"));
+    assertFalse(target.hasValue(psoID(), "member", "cn=b,ou=people,dc=edu"));
+  }
+
+  public void testFindValuesWithMatchedValues() throws Exception {
+
+    BasicAttribute member = new BasicAttribute("member");
+    member.add("cn=a,ou=people,dc=edu");
+    member.add("cn=c,ou=people,dc=edu");
+    entry.put(member);
+    matchedValuesSupported = true;
+
+    assertEquals(Collections.singleton("cn=a,ou=people,dc=edu"), target.findValues(psoID(), "member",
+        Arrays.asList("cn=a,ou=people,dc=edu", "cn=b,ou=people,dc=edu")));
+    assertEquals(1, matchedValuesSearches);
+    assertEquals(0, compares);
+  }
+
+  public void testFindValuesWithMatchedValuesMissingObject() throws Exception {
+
+    matchedValuesSupported = true;
+    exists = false;
+
+    try {
+      target.findValues(psoID(), "member", Collections.singleton("cn=a,ou=people,dc=edu"));
+      fail("A missing object must be reported.");
+    } catch (PspNoSuchIdentifierException e) {
+      // expected
+    }
+  }
+
+  public void testFindValuesCompareThreshold() throws Exception {
+
+    BasicAttribute member = new BasicAttribute("member");
+    member.add("cn=a,ou=people,dc=edu");
+    entry.put(member);
+    target.setCompareThreshold(2);
+
+    assertEquals(Collections.singleton("cn=a,ou=people,dc=edu"), target.findValues(psoID(), "member",
+        Arrays.asList("cn=a,ou=people,dc=edu", "cn=b,ou=people,dc=edu")));
+    assertEquals(2, compares);
+    assertEquals(0, matchedValuesSearches);
+  }
+}
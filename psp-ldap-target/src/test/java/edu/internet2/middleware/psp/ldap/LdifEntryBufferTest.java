@@ -0,0 +1,164 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.psp.ldap;
+
+import java.io.StringWriter;
+
+import javax.naming.NameAlreadyBoundException;
+import javax.naming.OperationNotSupportedException;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.BasicAttribute;
+import javax.naming.directory.BasicAttributes;
+import javax.naming.directory.DirContext;
+import javax.naming.directory.ModificationItem;
+
+import junit.framework.TestCase;
+import junit.textui.TestRunner;
+
+/**
+ * Tests the collection of writes as LDIF.
+ */
+public class LdifEntryBufferTest extends TestCase {
+
+  public static void main(String[] args) {
+    TestRunner.run(LdifEntryBufferTest.class);
+  }
+
+  public LdifEntryBufferTest(String name) {
+    super(name);
+  }
+
+  private Attributes group(String cn, String... members) {
+    Attributes attributes = new BasicAttributes(true);
+    attributes.put("objectClass", "groupOfNames");
+    attributes.put("cn", cn);
+    BasicAttribute member = new BasicAttribute("member");
+    for (String value : members) {
+      member.add(value);
+    }
+    attributes.put(member);
+    return attributes;
+  }
+
+  private Attributes ou(String ou) {
+    Attributes attributes = new BasicAttributes(true);
+    attributes.put("objectClass", "organizationalUnit");
+    attributes.put("ou", ou);
+    return attributes;
+  }
+
+  public void testParentsBeforeChildren() throws Exception {
+
+    LdifEntryBuffer buffer = new LdifEntryBuffer(false);
+    buffer.add("cn=b,ou=groups,dc=edu", group("b", "cn=a,ou=groups,dc=edu"));
+    buffer.add("cn=a,ou=sub,ou=groups,dc=edu", group("a"));
+    buffer.add("ou=sub,ou=groups,dc=edu", ou("sub"));
+    buffer.add("ou=groups,dc=edu", ou("groups"));
+
+    StringWriter out = new StringWriter();
+    buffer.write(out, null);
+    String ldif = out.toString();
+
+    assertTrue(ldif.startsWith("version: 1\n\n"));
+    assertTrue(ldif.indexOf("dn: ou=groups,dc=edu\n") < ldif.indexOf("dn: cn=b,ou=groups,dc=edu\n"));
+    assertTrue(ldif.indexOf("dn: ou=groups,dc=edu\n") < ldif.indexOf("dn: ou=sub,ou=groups,dc=edu\n"));
+    assertTrue(ldif.indexOf("dn: ou=sub,ou=groups,dc=edu\n") < ldif.indexOf("dn: cn=a,ou=sub,ou=groups,dc=edu\n"));
+    assertTrue(ldif.indexOf("changetype") < 0);
+    assertEquals(4, buffer.size());
+  }
+
+  public void testModifyAddedEntry() throws Exception {
+
+    LdifEntryBuffer buffer = new LdifEntryBuffer(false);
+    buffer.add("cn=a,ou=groups,dc=edu", group("a", ""));
+    buffer.modify("CN=A,ou=groups,dc=edu", new ModificationItem[] {
+        new ModificationItem(DirContext.ADD_ATTRIBUTE, new BasicAttribute("member", "cn=x,dc=edu")),
+        new ModificationItem(DirContext.REMOVE_ATTRIBUTE, new BasicAttribute("member", "")),});
+
+    Attributes attributes = buffer.get("cn=a,ou=groups,dc=edu");
+    assertEquals(1, attributes.get("member").size());
+    assertEquals("cn=x,dc=edu", attributes.get("member").get());
+    assertEquals(0, buffer.getChangeCount());
+  }
+
+  public void testRenameAddedEntry() throws Exception {
+
+    LdifEntryBuffer buffer = new LdifEntryBuffer(false);
+    buffer.add("cn=a,ou=groups,dc=edu", group("a"));
+    buffer.rename("cn=a,ou=groups,dc=edu", "cn=b,ou=groups,dc=edu");
+
+    assertNull(buffer.get("cn=a,ou=groups,dc=edu"));
+    Attributes attributes = buffer.get("cn=b,ou=groups,dc=edu");
+    assertEquals(1, attributes.get("cn").size());
+    assertEquals("b", attributes.get("cn").get());
+  }
+
+  public void testDeleteAddedEntry() throws Exception {
+
+    LdifEntryBuffer buffer = new LdifEntryBuffer(false);
+    buffer.add("cn=a,ou=groups,dc=edu", group("a"));
+    buffer.delete("cn=a,ou=groups,dc=edu");
+
+    assertEquals(0, buffer.size());
+  }
+
+  public void testAddTwice() throws Exception {
+
+    LdifEntryBuffer buffer = new LdifEntryBuffer(false);
+    buffer.add("cn=a,ou=groups,dc=edu", group("a"));
+    try {
+      buffer.add("cn=A,ou=groups,dc=edu", group("a"));
+      fail("An entry must not be added twice.");
+    } catch (NameAlreadyBoundException e) {
+      // expected
+    }
+  }
+
+  public void testChangesRefused() throws Exception {
+
+    LdifEntryBuffer buffer = new LdifEntryBuffer(false);
+    try {
+      buffer.delete("cn=a,ou=groups,dc=edu");
+      fail("Changes to existing entries must be refused.");
+    } catch (OperationNotSupportedException e) {
+      // expected
+    }
+  }
+
+  public void testChangeRecords() throws Exception {
+
+    LdifEntryBuffer buffer = new LdifEntryBuffer(true);
+    buffer.add("cn=a,ou=groups,dc=edu", group("a"));
+    buffer.modify("ou=groups,dc=edu", new ModificationItem[] {new ModificationItem(DirContext.REPLACE_ATTRIBUTE,
+        new BasicAttribute("description", " leading space")),});
+    buffer.rename("cn=old,ou=groups,dc=edu", "cn=new,ou=people,dc=edu");
+    buffer.delete("cn=gone,ou=groups,dc=edu");
+
+    StringWriter entries = new StringWriter();
+    StringWriter changes = new StringWriter();
+    buffer.write(entries, changes);
+
+    assertEquals(3, buffer.getChangeCount());
+    assertEquals("version: 1\n\n"
+        + "dn: ou=groups,dc=edu\nchangetype: modify\nreplace: description\ndescription:: IGxlYWRpbmcgc3BhY2U=\n-\n\n"
+        + "dn: cn=old,ou=groups,dc=edu\nchangetype: modrdn\nnewrdn: cn=new\ndeleteoldrdn: 1\n"
+        + "newsuperior: ou=people,dc=edu\n\n"
+        + "dn: cn=gone,ou=groups,dc=edu\nchangetype: delete\n\n", changes.toString());
+    assertTrue(entries.toString().indexOf("dn: cn=a,ou=groups,dc=edu\n") > 0);
+  }
+}
@@ -0,0 +1,66 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.psp.ldap;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import junit.framework.TestCase;
+import junit.textui.TestRunner;
+
+/**
+ * Tests the encoding of the matched values request control.
+ */
+public class MatchedValuesControlTest extends TestCase {
+
+  public static void main(String[] args) {
+    TestRunner.run(MatchedValuesControlTest.class);
+  }
+
+  public MatchedValuesControlTest(String name) {
+    super(name);
+  }
+
+  public void testEncode() {
+
+    MatchedValuesControl control = new MatchedValuesControl("cn", Arrays.asList("a", "bc"), false);
+
+    assertEquals(MatchedValuesControl.OID, control.getID());
+    assertFalse(control.isCritical());
+    assertTrue(Arrays.equals(new byte[] {0x30, 0x13, (byte) 0xa3, 0x07, 0x04, 0x02, 'c', 'n', 0x04, 0x01, 'a',
+        (byte) 0xa3, 0x08, 0x04, 0x02, 'c', 'n', 0x04, 0x02, 'b', 'c',}, control.getEncodedValue()));
+  }
+
+  public void testEncodeLongValue() {
+
+    char[] value = new char[200];
+    Arrays.fill(value, 'a');
+    byte[] encoded =
+        new MatchedValuesControl("cn", Collections.singleton(new String(value)), true).getEncodedValue();
+
+    // 0x30 0x81 0xd2, 0xa3 0x81 0xcf, 0x04 0x02 'c' 'n', 0x04 0x81 0xc8, then the 200 byte value
+    assertEquals(213, encoded.length);
+    assertEquals(0x30, encoded[0]);
+    assertEquals((byte) 0x81, encoded[1]);
+    assertEquals((byte) 0xd2, encoded[2]);
+    assertEquals((byte) 0xa3, encoded[3]);
+    assertEquals((byte) 0x81, encoded[4]);
+    assertEquals((byte) 0xcf, encoded[5]);
+    assertEquals((byte) 0xc8, encoded[12]);
+  }
+}
@@ -0,0 +1,181 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.psp.ldap;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.naming.NamingException;
+import javax.naming.directory.BasicAttributes;
+import javax.naming.directory.SearchControls;
+import javax.naming.directory.SearchResult;
+import javax.naming.ldap.LdapName;
+
+import junit.framework.TestCase;
+import junit.textui.TestRunner;
+
+/**
+ * Tests partitioned searches against an in-memory directory.
+ */
+public class PartitionedSearchTest extends TestCase {
+
+  public static void main(String[] args) {
+    TestRunner.run(PartitionedSearchTest.class);
+  }
+
+  public PartitionedSearchTest(String name) {
+    super(name);
+  }
+
+  /** The entries of the in-memory directory. */
+  private List<LdapName> entries = Collections.synchronizedList(new ArrayList<LdapName>());
+
+  /** The bases searched. */
+  private List<String> searches = Collections.synchronizedList(new ArrayList<String>());
+
+  /** {@inheritDoc} */
+  protected void setUp() throws Exception {
+    for (String dn : new String[] {"dc=edu", "ou=groups,dc=edu", "ou=people,dc=edu", "ou=empty,dc=edu",}) {
+      entries.add(new LdapName(dn));
+    }
+    for (int i = 0; i < 5; i++) {
+      entries.add(new LdapName("cn=group" + i + ",ou=groups,dc=edu"));
+      entries.add(new LdapName("uid=person" + i + ",ou=people,dc=edu"));
+    }
+  }
+
+  public void testSearch() throws Exception {
+
+    PartitionedSearch search = new PartitionedSearch("test", new InMemorySearcher(false), 2);
+
+    List<SearchResult> results = search.search("dc=edu", "(objectClass=*)", new SearchControls());
+
+    List<String> dns = new ArrayList<String>();
+    for (SearchResult result : results) {
+      dns.add(result.getName());
+    }
+    assertEquals(entries.size(), dns.size());
+    for (LdapName entry : entries) {
+      assertTrue(dns.contains(entry.toString()));
+    }
+
+    // the base partition is first, followed by the partitions in the order returned by the directory
+    assertEquals("dc=edu", dns.get(0));
+    assertEquals("ou=groups,dc=edu", dns.get(1));
+    assertEquals(Arrays.asList("dc=edu", "ou=groups,dc=edu", "ou=people,dc=edu", "ou=empty,dc=edu"),
+        new ArrayList<String>(search.getPartitionMillis().keySet()));
+
+    // one search to find the partitions and one per partition
+    assertEquals(5, searches.size());
+
+    search.shutdown();
+  }
+
+  public void testRelativeNames() throws Exception {
+
+    PartitionedSearch search = new PartitionedSearch("test", new InMemorySearcher(true), 2);
+
+    search.search("dc=edu", "(objectClass=*)", new SearchControls());
+
+    assertEquals(Arrays.asList("dc=edu", "ou=groups,dc=edu", "ou=people,dc=edu", "ou=empty,dc=edu"),
+        new ArrayList<String>(search.getPartitionMillis().keySet()));
+
+    search.shutdown();
+  }
+
+  public void testMissingBase() throws Exception {
+
+    PartitionedSearch search = new PartitionedSearch("test", new InMemorySearcher(false), 2);
+    try {
+      search.search("dc=org", "(objectClass=*)", new SearchControls());
+      fail("The base must exist.");
+    } catch (NamingException e) {
+      // expected
+    }
+    search.shutdown();
+  }
+
+  public void testFailedPartition() throws Exception {
+
+    final AtomicInteger count = new AtomicInteger();
+    final InMemorySearcher searcher = new InMemorySearcher(false);
+    PartitionedSearch search = new PartitionedSearch("test", new PartitionedSearch.Searcher() {
+
+      public List<SearchResult> search(String base, String filter, SearchControls searchControls)
+          throws NamingException {
+        if (base.equals("ou=people,dc=edu") && count.incrementAndGet() == 1) {
+          throw new NamingException("Failed " + base);
+        }
+        return searcher.search(base, filter, searchControls);
+      }
+    }, 2);
+
+    try {
+      search.search("dc=edu", "(objectClass=*)", new SearchControls());
+      fail("A partial result must not be returned.");
+    } catch (NamingException e) {
+      assertEquals("Failed ou=people,dc=edu", e.getMessage());
+    }
+    search.shutdown();
+  }
+
+  /** Searches the in-memory directory. */
+  private class InMemorySearcher implements PartitionedSearch.Searcher {
+
+    /** Whether to return names relative to the base. */
+    private boolean relative;
+
+    private InMemorySearcher(boolean relative) {
+      this.relative = relative;
+    }
+
+    /** {@inheritDoc} */
+    public List<SearchResult> search(String dn, String filter, SearchControls controls) throws NamingException {
+
+      searches.add(dn);
+
+      LdapName base = new LdapName(dn);
+      if (!entries.contains(base)) {
+        throw new NamingException("No such object " + base);
+      }
+
+      List<SearchResult> results = new ArrayList<SearchResult>();
+      for (LdapName entry : entries) {
+        boolean inScope = false;
+        switch (controls.getSearchScope()) {
+          case SearchControls.OBJECT_SCOPE:
+            inScope = entry.equals(base);
+            break;
+          case SearchControls.ONELEVEL_SCOPE:
+            inScope = entry.size() == base.size() + 1 && entry.startsWith(base);
+            break;
+          default:
+            inScope = entry.startsWith(base);
+        }
+        if (inScope) {
+          String name = relative ? entry.getSuffix(base.size()).toString() : entry.toString();
+          results.add(new SearchResult(name, null, new BasicAttributes(true)));
+        }
+      }
+      return results;
+    }
+  }
+}
@@ -0,0 +1,89 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.psp.ldap;
+
+import java.util.Arrays;
+
+import javax.naming.NamingException;
+
+import junit.framework.TestCase;
+import junit.textui.TestRunner;
+
+import edu.internet2.middleware.psp.ldap.PersistentSearchControl.EntryChangeNotification;
+
+/**
+ * Tests the encoding of the persistent search control and the decoding of entry change notifications.
+ */
+public class PersistentSearchControlTest extends TestCase {
+
+  public static void main(String[] args) {
+    TestRunner.run(PersistentSearchControlTest.class);
+  }
+
+  public PersistentSearchControlTest(String name) {
+    super(name);
+  }
+
+  public void testEncode() {
+
+    PersistentSearchControl control = new PersistentSearchControl(PersistentSearchControl.ALL, true, true, true);
+
+    assertEquals(PersistentSearchControl.OID, control.getID());
+    assertTrue(control.isCritical());
+    assertTrue(Arrays.equals(new byte[] {0x30, 0x09, 0x02, 0x01, 0x0f, 0x01, 0x01, (byte) 0xff, 0x01, 0x01,
+        (byte) 0xff,}, control.getEncodedValue()));
+  }
+
+  public void testEncodeInvalidChangeTypes() {
+    try {
+      new PersistentSearchControl(0, true, true, true);
+      fail("Change types must not be empty.");
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+  }
+
+  public void testDecodeModify() throws NamingException {
+
+    EntryChangeNotification notification = PersistentSearchControl.decode(new byte[] {0x30, 0x03, 0x0a, 0x01,
+        0x04,});
+
+    assertEquals(PersistentSearchControl.MODIFY, notification.getChangeType());
+    assertNull(notification.getPreviousDn());
+  }
+
+  public void testDecodeModDn() throws NamingException {
+
+    // modDN from "cn=a" with change number 300
+    EntryChangeNotification notification = PersistentSearchControl.decode(new byte[] {0x30, 0x0d, 0x0a, 0x01,
+        0x08, 0x04, 0x04, 'c', 'n', '=', 'a', 0x02, 0x02, 0x01, 0x2c,});
+
+    assertEquals(PersistentSearchControl.MODDN, notification.getChangeType());
+    assertEquals("cn=a", notification.getPreviousDn());
+    assertEquals(300, notification.getChangeNumber());
+  }
+
+  public void testDecodeTruncated() {
+    try {
+      PersistentSearchControl.decode(new byte[] {0x30, 0x03, 0x0a, 0x01,});
+      fail("A truncated value must not be decoded.");
+    } catch (NamingException e) {
+      // expected
+    }
+  }
+}
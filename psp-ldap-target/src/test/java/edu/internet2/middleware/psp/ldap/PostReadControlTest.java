@@ -0,0 +1,164 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package edu.internet2.middleware.psp.ldap;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.SearchResult;
+import javax.naming.ldap.BasicControl;
+import javax.naming.ldap.Control;
+
+import junit.framework.TestCase;
+import junit.textui.TestRunner;
+
+/**
+ * Tests the encoding of the post-read request control and the decoding of post-read response controls.
+ */
+public class PostReadControlTest extends TestCase {
+
+  public static void main(String[] args) {
+    TestRunner.run(PostReadControlTest.class);
+  }
+
+  public PostReadControlTest(String name) {
+    super(name);
+  }
+
+  public void testEncode() {
+
+    PostReadControl control = new PostReadControl(new String[] {"cn", "member",}, false);
+
+    assertEquals(PostReadControl.OID, control.getID());
+    assertFalse(control.isCritical());
+    assertTrue(Arrays.equals(new byte[] {0x30, 0x0c, 0x04, 0x02, 'c', 'n', 0x04, 0x06, 'm', 'e', 'm', 'b', 'e', 'r',},
+        control.getEncodedValue()));
+  }
+
+  public void testEncodeLongSelection() {
+
+    char[] name = new char[200];
+    Arrays.fill(name, 'a');
+    byte[] encoded = new PostReadControl(new String[] {new String(name),}, true).getEncodedValue();
+
+    // 0x30 0x81 0xcb, 0x04 0x81 0xc8, then the 200 byte name
+    assertEquals(206, encoded.length);
+    assertEquals(0x30, encoded[0]);
+    assertEquals((byte) 0x81, encoded[1]);
+    assertEquals((byte) 0xcb, encoded[2]);
+    assertEquals(0x04, encoded[3]);
+    assertEquals((byte) 0x81, encoded[4]);
+    assertEquals((byte) 0xc8, encoded[5]);
+  }
+
+  public void testDecode() throws NamingException {
+
+    SearchResult entry = PostReadControl.decode(entry("cn=a,dc=edu", "member", "cn=x", "cn=y"));
+
+    assertEquals("cn=a,dc=edu", entry.getName());
+    Attribute member = entry.getAttributes().get("member");
+    assertEquals(2, member.size());
+    assertEquals("cn=x", member.get(0));
+    assertEquals("cn=y", member.get(1));
+  }
+
+  public void testDecodeLongForm() throws NamingException {
+
+    String[] values = new String[50];
+    for (int i = 0; i < values.length; i++) {
+      values[i] = "uid=member" + i;
+    }
+
+    SearchResult entry = PostReadControl.decode(entry("cn=a,dc=edu", "member", values));
+
+    Attribute member = entry.getAttributes().get("member");
+    assertEquals(50, member.size());
+    assertEquals("uid=member49", member.get(49));
+  }
+
+  public void testGetEntry() throws NamingException {
+
+    Control other = new BasicControl("1.2.3", false, new byte[0]);
+    Control postRead = new BasicControl(PostReadControl.OID, false, entry("cn=a", "cn", "a"));
+
+    assertNull(PostReadControl.getEntry(null));
+    assertNull(PostReadControl.getEntry(new Control[] {other,}));
+    assertEquals("cn=a", PostReadControl.getEntry(new Control[] {other, postRead,}).getName());
+  }
+
+  public void testDecodeWrongTag() {
+    byte[] encoded = entry("cn=a", "cn", "a");
+    encoded[0] = 0x30;
+    try {
+      PostReadControl.decode(encoded);
+      fail("A value which is not a search result entry must not be decoded.");
+    } catch (NamingException e) {
+      // expected
+    }
+  }
+
+  public void testDecodeTruncated() {
+    byte[] encoded = entry("cn=a", "cn", "a");
+    try {
+      PostReadControl.decode(Arrays.copyOf(encoded, encoded.length - 3));
+      fail("A truncated value must not be decoded.");
+    } catch (NamingException e) {
+      // expected
+    }
+  }
+
+  /**
+   * Encode a search result entry with a single attribute.
+   */
+  private static byte[] entry(String dn, String attributeName, String... values) {
+
+    ByteArrayOutputStream set = new ByteArrayOutputStream();
+    for (String value : values) {
+      tlv(set, 0x04, value.getBytes());
+    }
+    ByteArrayOutputStream attribute = new ByteArrayOutputStream();
+    tlv(attribute, 0x04, attributeName.getBytes());
+    tlv(attribute, 0x31, set.toByteArray());
+    ByteArrayOutputStream list = new ByteArrayOutputStream();
+    tlv(list, 0x30, attribute.toByteArray());
+    ByteArrayOutputStream entry = new ByteArrayOutputStream();
+    tlv(entry, 0x04, dn.getBytes());
+    tlv(entry, 0x30, list.toByteArray());
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    tlv(out, 0x64, entry.toByteArray());
+    return out.toByteArray();
+  }
+
+  private static void tlv(ByteArrayOutputStream out, int tag, byte[] contents) {
+    out.write(tag);
+    if (contents.length < 0x80) {
+      out.write(contents.length);
+    } else if (contents.length <= 0xff) {
+      out.write(0x81);
+      out.write(contents.length);
+    } else {
+      out.write(0x82);
+      out.write(contents.length >> 8);
+      out.write(contents.length);
+    }
+    out.write(contents, 0, contents.length);
+  }
+}
@@ -0,0 +1,273 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.psp.ldap;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Timer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+
+import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.BasicAttribute;
+import javax.naming.directory.BasicAttributes;
+import javax.naming.directory.SearchResult;
+
+import junit.framework.TestCase;
+import junit.textui.TestRunner;
+
+import edu.vt.middleware.ldap.Ldap;
+import edu.vt.middleware.ldap.pool.LdapPool;
+import edu.vt.middleware.ldap.pool.LdapPoolConfig;
+import edu.vt.middleware.ldap.pool.LdapPoolException;
+
+/**
+ * Tests the iterative retrieval of ranges of attribute values.
+ */
+public class RangeSearchResultHandlerTest extends TestCase {
+
+  public static void main(String[] args) {
+    TestRunner.run(RangeSearchResultHandlerTest.class);
+  }
+
+  public RangeSearchResultHandlerTest(String name) {
+    super(name);
+  }
+
+  /** The DN of the entry. */
+  private static final String DN = "CN=group,OU=groups,DC=edu";
+
+  /** The attribute IDs requested from the directory. */
+  private List<String> requested;
+
+  /** {@inheritDoc} */
+  protected void setUp() {
+    requested = new ArrayList<String>();
+  }
+
+  /** {@inheritDoc} */
+  protected void tearDown() {
+    RangeSearchResultHandler.setRangeValueListener(null);
+  }
+
+  /**
+   * A directory returning at most maxValRange values of the member attribute, which has the given number of values.
+   */
+  private Ldap directory(final int numberOfValues, final int maxValRange) {
+    return new Ldap() {
+
+      public Attributes getAttributes(String dn, String[] retAttrs) throws NamingException {
+        assertEquals(DN, dn);
+        requested.add(retAttrs[0]);
+        Matcher matcher = RangeSearchResultHandler.RANGE_PATTERN.matcher(retAttrs[0]);
+        assertTrue(matcher.find());
+        assertEquals(RangeSearchResultHandler.END_OF_RANGE, matcher.group(3));
+        Attributes attributes = new BasicAttributes(true);
+        attributes.put(range(Integer.parseInt(matcher.group(2)), numberOfValues, maxValRange));
+        return attributes;
+      }
+    };
+  }
+
+  /**
+   * The range of member values starting at start, as returned by the directory.
+   */
+  private static Attribute range(int start, int numberOfValues, int maxValRange) {
+    int end = Math.min(start + maxValRange, numberOfValues) - 1;
+    String id =
+        "member;range=" + start + "-" + (end == numberOfValues - 1 ? RangeSearchResultHandler.END_OF_RANGE : end);
+    Attribute attribute = new BasicAttribute(id);
+    for (int i = start; i <= end; i++) {
+      attribute.add("cn=member" + i);
+    }
+    return attribute;
+  }
+
+  /**
+   * A pool which reports an available connection, and checks out the given connection once the latch is released.
+   */
+  private static LdapPool<Ldap> pool(final Ldap ldap, final CountDownLatch available, final AtomicInteger checkedIn) {
+    return new LdapPool<Ldap>() {
+
+      public Ldap checkOut() throws LdapPoolException {
+        try {
+          available.await();
+        } catch (InterruptedException e) {
+          throw new LdapPoolException(e);
+        }
+        return ldap;
+      }
+
+      public void checkIn(Ldap l) {
+        checkedIn.incrementAndGet();
+      }
+
+      public int availableCount() {
+        return 1;
+      }
+
+      public int activeCount() {
+        return 0;
+      }
+
+      public LdapPoolConfig getLdapPoolConfig() {
+        return null;
+      }
+
+      public void setPoolTimer(Timer timer) {
+      }
+
+      public void initialize() {
+      }
+
+      public void close() {
+      }
+
+      public void prune() {
+      }
+
+      public void validate() {
+      }
+    };
+  }
+
+  private SearchResult searchResult(int numberOfValues, int maxValRange) {
+    Attributes attributes = new BasicAttributes(true);
+    attributes.put(new BasicAttribute("cn", "group"));
+    attributes.put(range(0, numberOfValues, maxValRange));
+    return new SearchResult(DN, null, attributes);
+  }
+
+  public void testAllValuesRetrieved() throws Exception {
+
+    RangeSearchResultHandler handler = new RangeSearchResultHandler(directory(10, 4));
+    Attributes attributes = handler.processAttributes(null, searchResult(10, 4));
+
+    assertEquals(10, attributes.get("member").size());
+    for (int i = 0; i < 10; i++) {
+      assertTrue(attributes.get("member").contains("cn=member" + i));
+    }
+    assertNull(attributes.get("member;range=0-3"));
+    assertNotNull(attributes.get("cn"));
+    assertEquals("[member;Range=4-*, member;Range=8-*]", requested.toString());
+  }
+
+  public void testStepFollowsServer() throws Exception {
+
+    // the first range is larger than the server returns for subsequent requests
+    RangeSearchResultHandler handler = new RangeSearchResultHandler(directory(10, 3));
+    Attributes attributes = handler.processAttributes(null, searchResult(10, 5));
+
+    assertEquals(10, attributes.get("member").size());
+    assertEquals("[member;Range=5-*, member;Range=8-*]", requested.toString());
+  }
+
+  public void testManyRangesWithoutRecursion() throws Exception {
+
+    RangeSearchResultHandler handler = new RangeSearchResultHandler(directory(100000, 10));
+    Attributes attributes = handler.processAttributes(null, searchResult(100000, 10));
+
+    assertEquals(100000, attributes.get("member").size());
+    assertEquals(9999, requested.size());
+  }
+
+  public void testNoRange() throws Exception {
+
+    RangeSearchResultHandler handler = new RangeSearchResultHandler(directory(3, 4));
+    Attributes attributes = handler.processAttributes(null, searchResult(3, 4));
+
+    assertEquals(3, attributes.get("member").size());
+    assertTrue(requested.isEmpty());
+  }
+
+  public void testListener() throws Exception {
+
+    final List<String> values = new ArrayList<String>();
+    final List<Boolean> lasts = new ArrayList<Boolean>();
+
+    RangeSearchResultHandler.setRangeValueListener(new RangeValueListener() {
+
+      public void values(String dn, String attributeName, Attribute range, boolean last) throws NamingException {
+        assertEquals(DN, dn);
+        assertEquals("member", attributeName);
+        for (int i = 0; i < range.size(); i++) {
+          values.add((String) range.get(i));
+        }
+        lasts.add(last);
+      }
+    });
+
+    RangeSearchResultHandler handler = new RangeSearchResultHandler(directory(10, 4));
+    Attributes attributes = handler.processAttributes(null, searchResult(10, 4));
+
+    assertNull(attributes.get("member"));
+    assertEquals(10, values.size());
+    assertEquals("[false, false, true]", lasts.toString());
+  }
+
+  public void testPrefetch() throws Exception {
+
+    AtomicInteger checkedIn = new AtomicInteger();
+    RangeSearchResultHandler handler = new RangeSearchResultHandler();
+    handler.setPrefetchPool(pool(directory(10, 4), new CountDownLatch(0), checkedIn));
+    handler.setPrefetchWaitMillis(TimeUnit.SECONDS.toMillis(10));
+    Attributes attributes = handler.processAttributes(null, searchResult(10, 4));
+
+    assertEquals(10, attributes.get("member").size());
+    assertEquals("[member;Range=4-*, member;Range=8-*]", requested.toString());
+    assertEquals(2, checkedIn.get());
+  }
+
+  public void testPrefetchPoolExhausted() throws Exception {
+
+    // the pool reports a connection but blocks, as when another thread checks it out first
+    CountDownLatch available = new CountDownLatch(1);
+    AtomicInteger checkedIn = new AtomicInteger();
+    RangeSearchResultHandler handler = new RangeSearchResultHandler(directory(10, 4));
+    handler.setPrefetchPool(pool(directory(10, 4), available, checkedIn));
+    handler.setPrefetchWaitMillis(10);
+    Attributes attributes = handler.processAttributes(null, searchResult(10, 4));
+
+    // retrieved on the searching connection
+    assertEquals(10, attributes.get("member").size());
+    assertEquals("[member;Range=4-*, member;Range=8-*]", requested.toString());
+
+    // the abandoned prefetches return their connections without searching
+    available.countDown();
+    for (int i = 0; i < 100 && checkedIn.get() < 2; i++) {
+      Thread.sleep(10);
+    }
+    assertEquals(2, checkedIn.get());
+    assertEquals(2, requested.size());
+  }
+
+  public void testSearchResultLdapCleared() throws Exception {
+
+    Ldap ldap = directory(3, 4);
+    RangeSearchResultHandler handler = new RangeSearchResultHandler(ldap);
+    handler.setSearchResultLdap(directory(3, 4));
+    handler.process(null, Collections.<SearchResult> emptyList());
+
+    assertSame(ldap, handler.getSearchResultLdap());
+  }
+}
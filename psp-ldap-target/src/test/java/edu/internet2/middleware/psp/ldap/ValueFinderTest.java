@@ -0,0 +1,82 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package edu.internet2.middleware.psp.ldap;
+
+import java.util.Arrays;
+
+import javax.naming.NamingException;
+import javax.naming.directory.BasicAttribute;
+
+import junit.framework.TestCase;
+import junit.textui.TestRunner;
+
+/**
+ * Tests finding wanted values among present values given one range at a time.
+ */
+public class ValueFinderTest extends TestCase {
+
+  public static void main(String[] args) {
+    TestRunner.run(ValueFinderTest.class);
+  }
+
+  public ValueFinderTest(String name) {
+    super(name);
+  }
+
+  private static BasicAttribute range(String id, String... values) {
+    BasicAttribute attribute = new BasicAttribute(id);
+    for (String value : values) {
+      attribute.add(value);
+    }
+    return attribute;
+  }
+
+  public void testReferences() throws NamingException {
+
+    ValueFinder finder =
+        new ValueFinder("member", true, Arrays.asList("cn=c,dc=edu", "CN=A, DC=edu", "cn=missing,dc=edu"));
+
+    finder.values("cn=group,dc=edu", "member", range("member;range=0-1", "cn=a,dc=edu", "cn=b,dc=edu"), false);
+    finder.values("cn=group,dc=edu", "member", range("member;range=2-*", "cn=c,dc=edu"), true);
+
+    // in the order of the wanted values
+    assertEquals("[cn=c,dc=edu, CN=A, DC=edu]", finder.getFound().toString());
+    assertTrue(finder.getCandidates().isEmpty());
+  }
+
+  public void testOtherAttributeIgnored() throws NamingException {
+
+    ValueFinder finder = new ValueFinder("member", true, Arrays.asList("cn=a,dc=edu"));
+
+    finder.values("cn=group,dc=edu", "owner", range("owner;range=0-*", "cn=a,dc=edu"), true);
+
+    assertTrue(finder.getFound().isEmpty());
+  }
+
+  public void testData() throws NamingException {
+
+    ValueFinder finder = new ValueFinder("description", false, Arrays.asList("exact", "Case  Differs", "missing"));
+
+    finder.addAll(range("description", "exact", "case differs", "other"));
+    finder.addAll(null);
+
+    assertEquals("[exact]", finder.getFound().toString());
+    assertEquals("[Case  Differs]", finder.getCandidates().toString());
+  }
+}
@@ -19,13 +19,16 @@ package edu.internet2.middleware.psp;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 
 import org.opensaml.util.resource.ResourceException;
 import org.opensaml.xml.util.DatatypeHelper;
@@ -38,6 +41,7 @@ import org.openspml.v2.msg.spml.CapabilityData;
 import org.openspml.v2.msg.spml.DeleteRequest;
 import org.openspml.v2.msg.spml.DeleteResponse;
 import org.openspml.v2.msg.spml.ErrorCode;
+import org.openspml.v2.msg.spml.Extensible;
 import org.openspml.v2.msg.spml.ListTargetsRequest;
 import org.openspml.v2.msg.spml.ListTargetsResponse;
 import org.openspml.v2.msg.spml.LookupRequest;
@@ -87,6 +91,8 @@ import edu.internet2.middleware.psp.spml.config.PsoIdentifyingAttribute;
 import edu.internet2.middleware.psp.spml.config.PsoReference;
 import edu.internet2.middleware.psp.spml.config.PsoReferences;
 import edu.internet2.middleware.psp.spml.provider.BaseSpmlProvider;
+import edu.internet2.middleware.psp.spml.provider.SpmlBatchAddTarget;
+import edu.internet2.middleware.psp.spml.provider.SpmlCompareTarget;
 import edu.internet2.middleware.psp.spml.provider.SpmlProvider;
 import edu.internet2.middleware.psp.spml.provider.SpmlTarget;
 import edu.internet2.middleware.psp.spml.request.AlternateIdentifier;
@@ -129,6 +135,13 @@ public class Psp extends BaseSpmlProvider implements SpmlProvider {
     /** Logger. */
     private static final Logger LOG = LoggerFactory.getLogger(Psp.class);
 
+    /**
+     * The number of source identifiers of a bulk sync which are diffed before their requests are executed, so that the
+     * objects they add to a {@link SpmlBatchAddTarget} are added together. If a sync request of a window fails and the
+     * bulk sync stops on error, the objects added by later sync requests of the window remain added.
+     */
+    protected static final int BATCH_ADD_WINDOW = 500;
+
     /** Required bootstrap configuration files. */
     private static String[] CONFIG_FILES = {"psp-internal.xml", "psp-services.xml",};
 
@@ -141,6 +154,12 @@ public class Psp extends BaseSpmlProvider implements SpmlProvider {
     /** Spring identifier. */
     private String id;
 
+    /**
+     * Map whose keys are target IDs and values are maps of identifying attribute names (case insensitive) to maps of
+     * lower cased identifying attribute values to provisioned object definitions.
+     */
+    private Map<String, Map<String, Map<String, List<Pso>>>> identifyingAttributeIndex = Collections.EMPTY_MAP;
+
     /** Map whose keys are target IDs and values are provisioned object definitions. */
     private Map<String, List<Pso>> objects = Collections.EMPTY_MAP;
 
@@ -180,6 +199,155 @@ public class Psp extends BaseSpmlProvider implements SpmlProvider {
         return psp;
     }
 
+    /**
+     * Return the provisioned object which results from applying the modifications of the modify request to the given
+     * provisioned object. This allows the response to a modify request to be built from the object as it was before
+     * the modification, rather than by looking up the object again.
+     * 
+     * Returns null if the modify request renames the object.
+     * 
+     * @param pso the provisioned object before modification
+     * @param modifyRequest the modify request
+     * @return the provisioned object after modification, or null if the modify request renames the object
+     * @throws PspException if the schema entity of the provisioned object is unknown
+     * @throws Spml2Exception if an spml error occurs
+     */
+    public PSO applyModifications(PSO pso, ModifyRequest modifyRequest) throws PspException, Spml2Exception {
+
+        String targetId = pso.getPsoID().getTargetID();
+        String entityName = pso.findOpenContentAttrValueByName(Pso.ENTITY_NAME_ATTRIBUTE);
+        Pso psoDefinition = getPso(targetId, entityName);
+        if (psoDefinition == null) {
+            LOG.error("Unknown pso for target id '" + targetId + "' entity name '" + entityName + "'");
+            throw new PspException("Unknown pso for target id '" + targetId + "' entity name '" + entityName + "'");
+        }
+
+        // data values, in order
+        Map<String, List<String>> data = new LinkedHashMap<String, List<String>>();
+        for (DSMLAttr dsmlAttr : PSPUtil.getDSMLAttrMap(pso.getData()).values()) {
+            List<String> values = new ArrayList<String>();
+            for (DSMLValue dsmlValue : dsmlAttr.getValues()) {
+                values.add(dsmlValue.getValue());
+            }
+            data.put(dsmlAttr.getName(), values);
+        }
+
+        // references, in order
+        Map<String, List<Reference>> references = new LinkedHashMap<String, List<Reference>>();
+        for (Map.Entry<String, List<Reference>> entry : PSPUtil.getReferences(pso.getCapabilityData()).entrySet()) {
+            references.put(entry.getKey(), new ArrayList<Reference>(entry.getValue()));
+        }
+
+        for (Modification modification : modifyRequest.getModifications()) {
+
+            if (!PSPUtil.getAlternateIdentifiers(modification).isEmpty()) {
+                return null;
+            }
+
+            for (Object object : modification.getOpenContentElements(DSMLModification.class)) {
+                DSMLModification dsmlModification = (DSMLModification) object;
+                String name = dsmlModification.getName();
+
+                List<String> modValues = new ArrayList<String>();
+                for (DSMLValue dsmlValue : dsmlModification.getValues()) {
+                    if (!DatatypeHelper.isEmpty(dsmlValue.getValue())) {
+                        modValues.add(dsmlValue.getValue());
+                    }
+                }
+
+                List<String> values = data.get(name);
+                if (values == null) {
+                    values = new ArrayList<String>();
+                    data.put(name, values);
+                }
+
+                if (dsmlModification.getOperation().equals(ModificationMode.ADD)) {
+                    for (String modValue : modValues) {
+                        if (!values.contains(modValue)) {
+                            values.add(modValue);
+                        }
+                    }
+                } else if (dsmlModification.getOperation().equals(ModificationMode.DELETE)) {
+                    if (modValues.isEmpty()) {
+                        values.clear();
+                    } else {
+                        values.removeAll(modValues);
+                    }
+                } else if (dsmlModification.getOperation().equals(ModificationMode.REPLACE)) {
+                    values.clear();
+                    values.addAll(modValues);
+                }
+            }
+
+            Map<String, List<Reference>> modReferences = PSPUtil.getReferences(modification.getCapabilityData());
+            for (String typeOfReference : modReferences.keySet()) {
+
+                PsoReferences psoReferences = psoDefinition.getReferences(typeOfReference);
+                boolean caseSensitive = psoReferences == null || psoReferences.isCaseSensitive();
+
+                List<Reference> currentReferences = references.get(typeOfReference);
+                if (currentReferences == null) {
+                    currentReferences = new ArrayList<Reference>();
+                    references.put(typeOfReference, currentReferences);
+                }
+
+                if (modification.getModificationMode().equals(ModificationMode.REPLACE)) {
+                    currentReferences.clear();
+                }
+
+                for (Reference modReference : modReferences.get(typeOfReference)) {
+                    Reference existing = null;
+                    for (Reference currentReference : currentReferences) {
+                        String currentId = currentReference.getToPsoID().getID();
+                        String modId = modReference.getToPsoID().getID();
+                        if (caseSensitive ? currentId.equals(modId) : currentId.equalsIgnoreCase(modId)) {
+                            existing = currentReference;
+                            break;
+                        }
+                    }
+                    if (modification.getModificationMode().equals(ModificationMode.DELETE)) {
+                        if (existing != null) {
+                            currentReferences.remove(existing);
+                        }
+                    } else if (existing == null) {
+                        currentReferences.add(modReference);
+                    }
+                }
+            }
+        }
+
+        PSO modifiedPso = new PSO();
+        modifiedPso.setPsoID(pso.getPsoID());
+        if (entityName != null) {
+            modifiedPso.addOpenContentAttr(Pso.ENTITY_NAME_ATTRIBUTE, entityName);
+        }
+
+        Extensible modifiedData = new Extensible();
+        for (String name : data.keySet()) {
+            List<String> values = data.get(name);
+            if (!values.isEmpty()) {
+                DSMLValue[] dsmlValues = new DSMLValue[values.size()];
+                for (int i = 0; i < dsmlValues.length; i++) {
+                    dsmlValues[i] = new DSMLValue(values.get(i));
+                }
+                modifiedData.addOpenContentElement(new DSMLAttr(name, dsmlValues));
+            }
+        }
+        if (modifiedData.getOpenContentElements().length > 0) {
+            modifiedPso.setData(modifiedData);
+        }
+
+        List<Reference> modifiedReferences = new ArrayList<Reference>();
+        for (List<Reference> typeReferences : references.values()) {
+            modifiedReferences.addAll(typeReferences);
+        }
+        if (!modifiedReferences.isEmpty()) {
+            PSPUtil.setReferences(modifiedPso, modifiedReferences);
+        }
+
+        return modifiedPso;
+    }
+
     /**
      * Return an spmlv2 add request.
      * 
@@ -868,57 +1036,40 @@ public class Psp extends BaseSpmlProvider implements SpmlProvider {
             PspContext pspContext = new PspContext();
             pspContext.setCalcRequestMap(new HashMap<CalcRequest, CalcResponse>(identifiers.size()));
 
-            // sync each identifier
-            for (String identifier : identifiers.keySet()) {
-
-                // new sync request
-                SyncRequest syncRequest = new SyncRequest();
-                syncRequest.setId(identifier);
-                syncRequest.setRequestID(PSPUtil.uniqueRequestId());
-                syncRequest.setReturnData(bulkSyncRequest.getReturnData());
-                syncRequest.setSchemaEntities(identifiers.get(identifier));
-
-                // execute sync request
-                SyncResponse syncResponse = execute(syncRequest, pspContext);
-
-                // add sync response to bulk response ?
-                boolean addToBulkResponse = false;
-                if (bulkSyncRequest.returnDiffResponses()) {
-                    if (!syncResponse.getAddDeleteModifyResponses().isEmpty()) {
-                        addToBulkResponse = true;
-                    }
-                }
-                if (bulkSyncRequest.returnSyncResponses()) {
-                    if (!syncResponse.getSynchronizedResponses().isEmpty()) {
-                        addToBulkResponse = true;
-                    }
-                }
-                if (addToBulkResponse) {
-                    bulkSyncResponse.addResponse(syncResponse);
-                }
-
-                // store correct ids and ids to be deleted for reconciliation
-                DiffResponse diffResponse = syncResponse.getDiffResponse();
-                for (AddRequest addRequest : diffResponse.getAddRequests()) {
-                    correctPsoIds.add(addRequest.getPsoID());
-                }
-                for (ModifyRequest modifyRequest : diffResponse.getModifyRequests()) {
-                    correctPsoIds.add(modifyRequest.getPsoID());
-                }
-                for (DeleteRequest deleteRequest : diffResponse.getDeleteRequests()) {
-                    psoIdsToBeDeleted.add(deleteRequest.getPsoID());
-                }
-                for (SynchronizedResponse synchronizedResponse : diffResponse.getSynchronizedResponses()) {
-                    correctPsoIds.add(synchronizedResponse.getPsoID());
+            // add and modify responses are discarded unless diff responses are returned
+            pspContext.setOmitResponsePsos(!bulkSyncRequest.returnDiffResponses());
+
+            // sync each identifier, a window of identifiers at a time
+            List<String> identifierList = new ArrayList<String>(identifiers.keySet());
+            for (int fromIndex = 0; fromIndex < identifierList.size(); fromIndex += BATCH_ADD_WINDOW) {
+                int toIndex = Math.min(fromIndex + BATCH_ADD_WINDOW, identifierList.size());
+                List<String> window = identifierList.subList(fromIndex, toIndex);
+
+                // new sync requests
+                List<SyncRequest> syncRequests = new ArrayList<SyncRequest>(window.size());
+                for (String identifier : window) {
+                    SyncRequest syncRequest = new SyncRequest();
+                    syncRequest.setId(identifier);
+                    syncRequest.setRequestID(PSPUtil.uniqueRequestId());
+                    syncRequest.setReturnData(bulkSyncRequest.getReturnData());
+                    syncRequest.setSchemaEntities(identifiers.get(identifier));
+                    syncRequests.add(syncRequest);
                 }
 
-                // first failure encountered, stop processing if OnError.EXIT
-                if (syncResponse.getStatus() != StatusCode.SUCCESS
-                        && bulkSyncResponse.getStatus() != StatusCode.FAILURE) {
-                    bulkSyncResponse.setStatus(StatusCode.FAILURE);
-                    if (bulkSyncRequest.getOnError().equals(OnError.EXIT)) {
-                        return;
+                // diff the window and add its objects to batch add targets, then execute each sync request
+                pspContext.setCurrentPsoMap(new HashMap<PSOIdentifier, PSO>());
+                try {
+                    diff(syncRequests, pspContext);
+                    for (SyncRequest syncRequest : syncRequests) {
+                        if (!execute(syncRequest, pspContext, bulkSyncRequest, bulkSyncResponse, correctPsoIds,
+                                psoIdsToBeDeleted)) {
+                            return;
+                        }
                     }
+                } finally {
+                    pspContext.setCurrentPsoMap(null);
+                    pspContext.setDiffResponseMap(null);
+                    pspContext.setAddResponseMap(null);
                 }
             }
 
@@ -962,6 +1113,117 @@ public class Psp extends BaseSpmlProvider implements SpmlProvider {
         }
     }
 
+    /**
+     * Execute a sync request of a bulk sync request. The sync response is added to the bulk sync response if requested,
+     * and the identifiers which should exist and which are being deleted are remembered for reconciliation.
+     * 
+     * @param syncRequest the SPML sync request
+     * @param pspContext the psp context of the bulk sync request
+     * @param bulkSyncRequest the SPML bulk sync request
+     * @param bulkSyncResponse the SPML bulk sync response
+     * @param correctPsoIds the identifiers which should exist
+     * @param psoIdsToBeDeleted the identifiers which are being deleted
+     * @return false if the sync failed and processing should stop, true otherwise
+     */
+    protected boolean execute(SyncRequest syncRequest, PspContext pspContext, BulkSyncRequest bulkSyncRequest,
+            BulkSyncResponse bulkSyncResponse, Set<PSOIdentifier> correctPsoIds, Set<PSOIdentifier> psoIdsToBeDeleted) {
+
+        // execute sync request
+        SyncResponse syncResponse = execute(syncRequest, pspContext);
+
+        // add sync response to bulk response ?
+        boolean addToBulkResponse = false;
+        if (bulkSyncRequest.returnDiffResponses()) {
+            if (!syncResponse.getAddDeleteModifyResponses().isEmpty()) {
+                addToBulkResponse = true;
+            }
+        }
+        if (bulkSyncRequest.returnSyncResponses()) {
+            if (!syncResponse.getSynchronizedResponses().isEmpty()) {
+                addToBulkResponse = true;
+            }
+        }
+        if (addToBulkResponse) {
+            bulkSyncResponse.addResponse(syncResponse);
+        }
+
+        // store correct ids and ids to be deleted for reconciliation
+        DiffResponse diffResponse = syncResponse.getDiffResponse();
+        for (AddRequest addRequest : diffResponse.getAddRequests()) {
+            correctPsoIds.add(addRequest.getPsoID());
+        }
+        for (ModifyRequest modifyRequest : diffResponse.getModifyRequests()) {
+            correctPsoIds.add(modifyRequest.getPsoID());
+        }
+        for (DeleteRequest deleteRequest : diffResponse.getDeleteRequests()) {
+            psoIdsToBeDeleted.add(deleteRequest.getPsoID());
+        }
+        for (SynchronizedResponse synchronizedResponse : diffResponse.getSynchronizedResponses()) {
+            correctPsoIds.add(synchronizedResponse.getPsoID());
+        }
+
+        // first failure encountered, stop processing if OnError.EXIT
+        if (syncResponse.getStatus() != StatusCode.SUCCESS
+                && bulkSyncResponse.getStatus() != StatusCode.FAILURE) {
+            bulkSyncResponse.setStatus(StatusCode.FAILURE);
+            if (bulkSyncRequest.getOnError().equals(OnError.EXIT)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Diff the given sync requests of a bulk sync request before they are executed, and add the objects they add to
+     * each {@link SpmlBatchAddTarget} in one batch, see {@link #getBatchAddRequests(DiffResponse)}. The diff responses
+     * and add responses are stored in the psp context, where
+     * {@link #execute(SyncRequest, SyncResponse, PspContext)} finds them.
+     * 
+     * @param syncRequests the sync requests
+     * @param pspContext the psp context of the bulk sync request
+     */
+    protected void diff(List<SyncRequest> syncRequests, PspContext pspContext) {
+
+        Map<String, DiffResponse> diffResponses = new HashMap<String, DiffResponse>(syncRequests.size());
+        List<AddRequest> addRequests = new ArrayList<AddRequest>();
+        for (SyncRequest syncRequest : syncRequests) {
+            DiffResponse diffResponse = execute(getDiffRequest(syncRequest), pspContext);
+            diffResponses.put(syncRequest.getId(), diffResponse);
+            if (diffResponse.getStatus().equals(StatusCode.SUCCESS)) {
+                addRequests.addAll(getBatchAddRequests(diffResponse));
+            }
+        }
+
+        pspContext.setDiffResponseMap(diffResponses);
+        pspContext.setAddResponseMap(executeBatchAdds(addRequests));
+    }
+
+    /**
+     * Return the add requests of the given diff response which may be executed in a batch before its other requests
+     * without changing their order, which are the add requests to a {@link SpmlBatchAddTarget} preceding the first
+     * other request.
+     * 
+     * @param diffResponse the diff response
+     * @return the possibly empty list of add requests
+     */
+    protected List<AddRequest> getBatchAddRequests(DiffResponse diffResponse) {
+
+        List<AddRequest> addRequests = new ArrayList<AddRequest>();
+        for (Request request : diffResponse.getRequests()) {
+            if (!(request instanceof AddRequest)) {
+                break;
+            }
+            AddRequest addRequest = (AddRequest) request;
+            if (addRequest.getPsoID() == null
+                    || !(targets.get(addRequest.getPsoID().getTargetID()) instanceof SpmlBatchAddTarget)) {
+                break;
+            }
+            addRequests.add(addRequest);
+        }
+        return addRequests;
+    }
+
     /** {@inheritDoc} */
     public CalcResponse execute(CalcRequest calcRequest) {
         return execute(calcRequest, new PspContext());
@@ -1249,6 +1511,11 @@ public class Psp extends BaseSpmlProvider implements SpmlProvider {
             lookupRequest.setPsoID(correctPSO.getPsoID());
             lookupRequest.setRequestID(PSPUtil.uniqueRequestId());
             lookupRequest.setReturnData(diffRequest.getReturnData());
+            // the calculated schema entity lets the target request only the attributes of that entity
+            String entityName = correctPSO.findOpenContentAttrValueByName(Pso.ENTITY_NAME_ATTRIBUTE);
+            if (entityName != null) {
+                lookupRequest.addOpenContentAttr(Pso.ENTITY_NAME_ATTRIBUTE, entityName);
+            }
 
             LookupResponse lookupResponse = execute(lookupRequest);
 
@@ -1259,6 +1526,11 @@ public class Psp extends BaseSpmlProvider implements SpmlProvider {
 
                     List<ModifyRequest> modifyRequests = diff(correctPSO, currentPSO, diffRequest.getReturnData());
 
+                    // remember the object as it is, so that modify responses may be built without a lookup
+                    if (pspContext.getCurrentPsoMap() != null && !modifyRequests.isEmpty()) {
+                        pspContext.getCurrentPsoMap().put(correctPSO.getPsoID(), currentPSO);
+                    }
+
                     if (modifyRequests.isEmpty()) {
 
                         SynchronizedResponse synchronizedResponse = new SynchronizedResponse();
@@ -1384,6 +1656,55 @@ public class Psp extends BaseSpmlProvider implements SpmlProvider {
         }
     }
 
+    /**
+     * Execute a modify request during a sync. If the object as it was before modification is known, or if the
+     * modified object will be discarded, the target is asked to return only the identifier, and the object returned
+     * in the response, if any, is built by applying the modifications locally.
+     * 
+     * @param modifyRequest the modify request
+     * @param pspContext the psp context
+     * @return the response
+     * @throws PspException if a psp error occurs
+     * @throws Spml2Exception if an spml error occurs
+     */
+    protected Response execute(ModifyRequest modifyRequest, PspContext pspContext) throws PspException,
+            Spml2Exception {
+
+        ReturnData returnData = modifyRequest.getReturnData();
+        if (returnData == null || returnData.equals(ReturnData.IDENTIFIER)) {
+            return execute((Request) modifyRequest);
+        }
+
+        Map<PSOIdentifier, PSO> currentPsoMap = pspContext.getCurrentPsoMap();
+        PSO currentPso = currentPsoMap == null ? null : currentPsoMap.get(modifyRequest.getPsoID());
+
+        PSO modifiedPso = null;
+        if (currentPso != null && !pspContext.isOmitResponsePsos()) {
+            modifiedPso = applyModifications(currentPso, modifyRequest);
+        }
+
+        if (modifiedPso == null && !pspContext.isOmitResponsePsos()) {
+            return execute((Request) modifyRequest);
+        }
+
+        Response response = null;
+        modifyRequest.setReturnData(ReturnData.IDENTIFIER);
+        try {
+            response = execute((Request) modifyRequest);
+        } finally {
+            modifyRequest.setReturnData(returnData);
+        }
+
+        if (modifiedPso != null && response instanceof ModifyResponse
+                && response.getStatus().equals(StatusCode.SUCCESS)) {
+            ((ModifyResponse) response).setPso(modifiedPso);
+            // subsequent modifications of the same object apply to the modified object
+            currentPsoMap.put(modifyRequest.getPsoID(), modifiedPso);
+        }
+
+        return response;
+    }
+
     /** {@inheritDoc} */
     public void execute(SearchRequest searchRequest, SearchResponse searchResponse) {
 
@@ -1482,6 +1803,9 @@ public class Psp extends BaseSpmlProvider implements SpmlProvider {
     /**
      * Execute an {@link SyncRequest} and update the {@link SyncResponse}.
      * 
+     * If the psp context contains the diff response of the sync request, because it was diffed in advance by a bulk
+     * sync request, the requests of that diff response are executed without diffing again.
+     * 
      * @param syncRequest the SPML sync request
      * @param syncResponse the SPML sync response
      */
@@ -1490,16 +1814,69 @@ public class Psp extends BaseSpmlProvider implements SpmlProvider {
         // Set the response id.
         syncResponse.setId(syncRequest.getId());
 
-        // Create a diff request.
+        // The diff response computed in advance, if any.
+        if (pspContext.getDiffResponseMap() != null) {
+            DiffResponse diffResponse = pspContext.getDiffResponseMap().remove(syncRequest.getId());
+            if (diffResponse != null) {
+                execute(diffResponse, syncResponse, pspContext);
+                return;
+            }
+        }
+
+        // Remember current objects while diffing, to build modify responses without a lookup.
+        Map<PSOIdentifier, PSO> oldCurrentPsoMap = pspContext.getCurrentPsoMap();
+        pspContext.setCurrentPsoMap(new HashMap<PSOIdentifier, PSO>());
+
+        try {
+            execute(getDiffRequest(syncRequest), syncResponse, pspContext);
+        } finally {
+            pspContext.setCurrentPsoMap(oldCurrentPsoMap);
+        }
+    }
+
+    /**
+     * Return the diff request of a sync request.
+     * 
+     * @param syncRequest the SPML sync request
+     * @return the SPML diff request
+     */
+    protected DiffRequest getDiffRequest(SyncRequest syncRequest) {
+
         DiffRequest diffRequest = new DiffRequest();
         diffRequest.setId(syncRequest.getId());
         diffRequest.setRequestID(PSPUtil.uniqueRequestId());
         diffRequest.setReturnData(syncRequest.getReturnData());
         diffRequest.setSchemaEntities(syncRequest.getSchemaEntities());
+        return diffRequest;
+    }
+
+    /**
+     * Execute the diff request of a sync request, and then the requests in the diff response.
+     * 
+     * @param diffRequest the diff request
+     * @param syncResponse the SPML sync response
+     * @param pspContext the psp context
+     */
+    protected void execute(DiffRequest diffRequest, SyncResponse syncResponse, PspContext pspContext) {
 
         // Execute the diff request.
         DiffResponse diffResponse = execute(diffRequest, pspContext);
 
+        // Execute the requests in the diff response.
+        execute(diffResponse, syncResponse, pspContext);
+    }
+
+    /**
+     * Execute the requests in the diff response of a sync request, in order. Add requests which were executed in a
+     * batch, see {@link PspContext#getAddResponseMap()}, are not executed again. Otherwise, the add requests to a
+     * {@link SpmlBatchAddTarget} which precede the other requests are executed in a batch.
+     * 
+     * @param diffResponse the diff response
+     * @param syncResponse the SPML sync response
+     * @param pspContext the psp context
+     */
+    protected void execute(DiffResponse diffResponse, SyncResponse syncResponse, PspContext pspContext) {
+
         // Store the diff response.
         syncResponse.setDiffResponse(diffResponse);
 
@@ -1510,10 +1887,23 @@ public class Psp extends BaseSpmlProvider implements SpmlProvider {
         }
 
         try {
+            // The responses of add requests executed in a batch.
+            Map<AddRequest, AddResponse> batchAddResponses = pspContext.getAddResponseMap();
+            if (batchAddResponses == null) {
+                batchAddResponses = executeBatchAdds(getBatchAddRequests(diffResponse));
+            }
+
             // Execute the requests in the diff response.
             for (Request request : diffResponse.getRequests()) {
 
-                Response response = execute(request);
+                Response response = null;
+                if (batchAddResponses.containsKey(request)) {
+                    response = batchAddResponses.remove(request);
+                } else if (request instanceof ModifyRequest) {
+                    response = execute((ModifyRequest) request, pspContext);
+                } else {
+                    response = execute(request);
+                }
 
                 syncResponse.addResponse(response);
 
@@ -1540,6 +1930,54 @@ public class Psp extends BaseSpmlProvider implements SpmlProvider {
         }
     }
 
+    /**
+     * Execute the add requests of each target which adds objects in batches, see {@link SpmlBatchAddTarget}, if there
+     * is more than one add request for the target. Other add requests are not executed. The add requests of a target
+     * are executed in the given order, which may span the sync requests of a bulk sync request.
+     * 
+     * @param addRequests the add requests
+     * @return the add responses of the executed add requests
+     */
+    protected Map<AddRequest, AddResponse> executeBatchAdds(List<AddRequest> addRequests) {
+
+        Map<String, List<AddRequest>> batches = new LinkedHashMap<String, List<AddRequest>>();
+        for (AddRequest addRequest : addRequests) {
+            if (addRequest.getPsoID() == null) {
+                continue;
+            }
+            String targetId = addRequest.getPsoID().getTargetID();
+            if (!(targets.get(targetId) instanceof SpmlBatchAddTarget)) {
+                continue;
+            }
+            List<AddRequest> batch = batches.get(targetId);
+            if (batch == null) {
+                batch = new ArrayList<AddRequest>();
+                batches.put(targetId, batch);
+            }
+            batch.add(addRequest);
+        }
+
+        Map<AddRequest, AddResponse> addResponses = new IdentityHashMap<AddRequest, AddResponse>();
+        for (String targetId : batches.keySet()) {
+            List<AddRequest> batch = batches.get(targetId);
+            if (batch.size() < 2) {
+                continue;
+            }
+            LOG.debug("Psp '{}' - Adding {} objects to target '{}' in a batch", new Object[] {getId(), batch.size(),
+                    targetId,});
+            for (AddRequest addRequest : batch) {
+                writeRequest(addRequest);
+            }
+            List<AddResponse> responses = ((SpmlBatchAddTarget) targets.get(targetId)).execute(batch);
+            for (int i = 0; i < batch.size(); i++) {
+                writeResponse(responses.get(i));
+                addResponses.put(batch.get(i), responses.get(i));
+            }
+        }
+
+        return addResponses;
+    }
+
     /**
      * This method returns all source object identifiers. The map keys are the identifiers, and the map values are the
      * {@link SchemaEntityRef}s applicable for each identifier.
@@ -1756,22 +2194,58 @@ public class Psp extends BaseSpmlProvider implements SpmlProvider {
         List<Pso> psoDefinitions = objects.get(targetId);
         if (psoDefinitions != null) {
             for (Pso psoDefinition : psoDefinitions) {
-                PsoIdentifyingAttribute ia = psoDefinition.getPsoIdentifyingAttribute();
-                if (ia != null) {
-                    names.add(ia.getName());
-                }
-                if (returnData.equals(ReturnData.DATA) || returnData.equals(ReturnData.EVERYTHING)) {
-                    names.addAll(psoDefinition.getAttributeNames());
-                }
-                if (returnData.equals(ReturnData.EVERYTHING)) {
-                    names.addAll(psoDefinition.getReferenceNames());
-                }
+                addNames(psoDefinition, returnData, names);
             }
         }
 
         return names;
     }
 
+    /**
+     * If return data is everything, the names of the identifier, attributes, and references of the given schema entity
+     * are returned. Returns null if the schema entity is unknown, in which case callers should fall back to
+     * {@link #getNames(String, ReturnData)}.
+     * 
+     * @param targetId the target id
+     * @param entityName the schema entity name (pso definition id)
+     * @param returnData return data
+     * @return possibly empty set of attribute, reference, and identifier names, or null if the entity is unknown
+     */
+    public Set<String> getNames(String targetId, String entityName, ReturnData returnData) {
+
+        Pso psoDefinition = getPso(targetId, entityName);
+        if (psoDefinition == null) {
+            return null;
+        }
+
+        Set<String> names = new LinkedHashSet<String>();
+        addNames(psoDefinition, returnData, names);
+
+        return names;
+    }
+
+    /**
+     * Add the names of the identifying attribute, attributes, and references of the pso definition appropriate for the
+     * return data to the given set.
+     * 
+     * @param psoDefinition the pso definition
+     * @param returnData return data
+     * @param names the names
+     */
+    private static void addNames(Pso psoDefinition, ReturnData returnData, Set<String> names) {
+
+        PsoIdentifyingAttribute ia = psoDefinition.getPsoIdentifyingAttribute();
+        if (ia != null) {
+            names.add(ia.getName());
+        }
+        if (returnData.equals(ReturnData.DATA) || returnData.equals(ReturnData.EVERYTHING)) {
+            names.addAll(psoDefinition.getAttributeNames());
+        }
+        if (returnData.equals(ReturnData.EVERYTHING)) {
+            names.addAll(psoDefinition.getReferenceNames());
+        }
+    }
+
     /**
      * Return the pso definition with the given target id and object id (entity name) or null.
      * 
@@ -1800,6 +2274,26 @@ public class Psp extends BaseSpmlProvider implements SpmlProvider {
         return psoDefinitionToReturn;
     }
 
+    /**
+     * Returns an index of the pso definitions for the given target id by identifying attribute. The keys of the
+     * returned map are identifying attribute names, compared case insensitively, and the values are maps whose keys are
+     * lower cased identifying attribute values and whose values are the pso definitions identified by that name and
+     * value. The index is built when the configuration is loaded. Returns an empty map if the target id is null or
+     * unknown.
+     * 
+     * @param targetId the target id
+     * @return the possibly empty index of pso definitions by identifying attribute name and lower cased value
+     */
+    public Map<String, Map<String, List<Pso>>> getPsosByIdentifyingAttribute(String targetId) {
+
+        Map<String, Map<String, List<Pso>>> index = identifyingAttributeIndex.get(targetId);
+        if (index == null) {
+            return Collections.EMPTY_MAP;
+        }
+
+        return index;
+    }
+
     /**
      * Returns a list of pso definitions for the given target id. Returns null if the target id is null or the target id
      * is unknown.
@@ -1920,6 +2414,15 @@ public class Psp extends BaseSpmlProvider implements SpmlProvider {
         return targets.get(targetId);
     }
 
+    /**
+     * Return the {@link SpmlTarget}s.
+     * 
+     * @return the {@link SpmlTarget}s
+     */
+    public Collection<SpmlTarget> getTargets() {
+        return Collections.unmodifiableCollection(targets.values());
+    }
+
     /**
      * Return a map whose keys are target IDs and whose values are lists of PSO definitions applicable to the schema
      * entity of the supplied provisioning request.
@@ -2014,6 +2517,132 @@ public class Psp extends BaseSpmlProvider implements SpmlProvider {
         return map;
     }
 
+    /**
+     * Return the number of references of the given type which the given {@link PSOIdentifier} has.
+     * 
+     * If the target is a {@link SpmlCompareTarget} the values of the reference attribute are counted, otherwise the
+     * object is looked up.
+     * 
+     * @param psoID the pso identifier
+     * @param typeOfReference the type of reference
+     * @return the number of references of the given type
+     * @throws PspException if the lookup fails
+     * @throws PspNoSuchIdentifierException if the psoID can not be found
+     */
+    public int countReferences(PSOIdentifier psoID, String typeOfReference) throws PspException,
+            PspNoSuchIdentifierException {
+
+        LOG.debug("Psp '{}' - Count references from '{}' of type '{}'", new Object[] {getId(),
+                PSPUtil.toString(psoID), typeOfReference,});
+
+        SpmlTarget target = targets.get(psoID.getTargetID());
+        if (target instanceof SpmlCompareTarget) {
+            return ((SpmlCompareTarget) target).countValues(psoID, typeOfReference);
+        }
+
+        LookupRequest lookupRequest = new LookupRequest();
+        lookupRequest.setPsoID(psoID);
+        lookupRequest.setRequestID(PSPUtil.uniqueRequestId());
+        lookupRequest.setReturnData(ReturnData.EVERYTHING);
+
+        LookupResponse lookupResponse = execute(lookupRequest);
+
+        if (!doesIdentifierExist(lookupResponse)) {
+            throw new PspNoSuchIdentifierException("Unable to find '" + PSPUtil.toString(psoID) + "'");
+        }
+
+        List<Reference> references =
+                PSPUtil.getReferences(lookupResponse.getPso().getCapabilityData()).get(typeOfReference);
+        return references == null ? 0 : references.size();
+    }
+
+    /**
+     * Return those of the given values of the named attribute which the given {@link PSOIdentifier} has.
+     * 
+     * If the target is a {@link SpmlCompareTarget} the object is read once, otherwise each value is searched for.
+     * 
+     * @param psoID the pso identifier
+     * @param attributeName the attribute name
+     * @param attributeValues the attribute values
+     * @return the given values which the pso identifier has
+     * @throws PspException if the spml search fails
+     * @throws DSMLProfileException if a dsml error occurs
+     * @throws PspNoSuchIdentifierException if the psoID can not be found
+     */
+    public Set<String> findAttributeValues(PSOIdentifier psoID, String attributeName,
+            Collection<String> attributeValues) throws PspException, DSMLProfileException,
+            PspNoSuchIdentifierException {
+
+        LOG.debug("Psp '{}' - Find attribute '{}' name '{}' values {}", new Object[] {getId(),
+                PSPUtil.toString(psoID), attributeName, attributeValues,});
+
+        SpmlTarget target = targets.get(psoID.getTargetID());
+        if (target instanceof SpmlCompareTarget) {
+            return ((SpmlCompareTarget) target).findValues(psoID, attributeName, attributeValues);
+        }
+
+        Set<String> found = new LinkedHashSet<String>();
+        for (String attributeValue : attributeValues) {
+            if (hasAttribute(psoID, attributeName, attributeValue)) {
+                found.add(attributeValue);
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Return those of the given {@link Reference}s which the given {@link PSOIdentifier} has.
+     * 
+     * If the target is a {@link SpmlCompareTarget} the object is read once for each type of reference, otherwise each
+     * reference is searched for.
+     * 
+     * @param psoID the pso identifier
+     * @param references the references
+     * @return the given references which the pso identifier has
+     * @throws PspException if the spml search fails
+     * @throws PspNoSuchIdentifierException if the psoID can not be found
+     */
+    public List<Reference> findReferences(PSOIdentifier psoID, Collection<Reference> references) throws PspException,
+            PspNoSuchIdentifierException {
+
+        LOG.debug("Psp '{}' - Find {} references from '{}'", new Object[] {getId(), references.size(),
+                PSPUtil.toString(psoID),});
+
+        SpmlTarget target = targets.get(psoID.getTargetID());
+
+        // the ids of the references to find for each type of reference
+        Map<String, Set<String>> idMap = new LinkedHashMap<String, Set<String>>();
+        for (Reference reference : references) {
+            if (target instanceof SpmlCompareTarget && isComparable(psoID, reference)) {
+                Set<String> ids = idMap.get(reference.getTypeOfReference());
+                if (ids == null) {
+                    ids = new LinkedHashSet<String>();
+                    idMap.put(reference.getTypeOfReference(), ids);
+                }
+                ids.add(reference.getToPsoID().getID());
+            }
+        }
+
+        Map<String, Set<String>> foundIdMap = new HashMap<String, Set<String>>();
+        for (String typeOfReference : idMap.keySet()) {
+            foundIdMap.put(typeOfReference,
+                    ((SpmlCompareTarget) target).findValues(psoID, typeOfReference, idMap.get(typeOfReference)));
+        }
+
+        List<Reference> found = new ArrayList<Reference>();
+        for (Reference reference : references) {
+            Set<String> foundIds = foundIdMap.get(reference.getTypeOfReference());
+            if (foundIds != null && isComparable(psoID, reference)) {
+                if (foundIds.contains(reference.getToPsoID().getID())) {
+                    found.add(reference);
+                }
+            } else if (hasReference(psoID, reference)) {
+                found.add(reference);
+            }
+        }
+        return found;
+    }
+
     /**
      * Return true if the given {@link PSOIdentifier} has an attribute with the given name and value.
      * 
@@ -2031,6 +2660,11 @@ public class Psp extends BaseSpmlProvider implements SpmlProvider {
         LOG.debug("Psp '{}' - Has attribute '{}' name '{}' value '{}'", new Object[] {getId(), PSPUtil.toString(psoID),
                 attributeName, attributeValue,});
 
+        SpmlTarget target = targets.get(psoID.getTargetID());
+        if (target instanceof SpmlCompareTarget) {
+            return ((SpmlCompareTarget) target).hasValue(psoID, attributeName, attributeValue);
+        }
+
         EqualityMatch equalityMatch = new EqualityMatch(attributeName, attributeValue);
         Filter filter = new Filter();
         filter.setItem(equalityMatch);
@@ -2086,6 +2720,12 @@ public class Psp extends BaseSpmlProvider implements SpmlProvider {
         LOG.debug("Psp '{}' - Has reference from '{}' to '{}'",
                 new Object[] {getId(), PSPUtil.toString(psoID), PSPUtil.toString(reference),});
 
+        SpmlTarget target = targets.get(psoID.getTargetID());
+        if (target instanceof SpmlCompareTarget && isComparable(psoID, reference)) {
+            return ((SpmlCompareTarget) target).hasValue(psoID, reference.getTypeOfReference(), reference
+                    .getToPsoID().getID());
+        }
+
         HasReference hasReference = new HasReference();
         hasReference.setToPsoID(reference.getToPsoID());
         hasReference.setTypeOfReference(reference.getTypeOfReference());
@@ -2132,6 +2772,31 @@ public class Psp extends BaseSpmlProvider implements SpmlProvider {
         return false;
     }
 
+    /**
+     * Whether or not the existence of the reference can be determined by comparing the id of the referenced object,
+     * which is the case if the reference has no reference data and refers to an object on the same target.
+     * 
+     * @param psoID the pso identifier
+     * @param reference the reference
+     * @return true if the reference can be compared
+     */
+    protected boolean isComparable(PSOIdentifier psoID, Reference reference) {
+
+        Extensible referenceData = reference.getReferenceData();
+        if (referenceData != null
+                && (referenceData.getOpenContentElements().length > 0
+                        || referenceData.getOpenContentAttrs().length > 0)) {
+            return false;
+        }
+
+        PSOIdentifier toPsoID = reference.getToPsoID();
+        if (toPsoID == null || toPsoID.getID() == null) {
+            return false;
+        }
+
+        return toPsoID.getTargetID() == null || toPsoID.getTargetID().equals(psoID.getTargetID());
+    }
+
     /**
      * {@inheritDoc}
      * 
@@ -2155,6 +2820,45 @@ public class Psp extends BaseSpmlProvider implements SpmlProvider {
         ObjectFactory.getInstance().addOCEUnmarshaller(new DSMLUnmarshaller());
     }
 
+    /**
+     * Build the index of pso definitions by target id, identifying attribute name, and lower cased identifying
+     * attribute value. Pso definitions without an identifying attribute are not indexed.
+     * 
+     * @param psoDefinitions map whose keys are target ids and values are pso definitions
+     * @return the index
+     */
+    protected static Map<String, Map<String, Map<String, List<Pso>>>> buildIdentifyingAttributeIndex(
+            Map<String, List<Pso>> psoDefinitions) {
+
+        Map<String, Map<String, Map<String, List<Pso>>>> index =
+                new LinkedHashMap<String, Map<String, Map<String, List<Pso>>>>(psoDefinitions.size());
+
+        for (String targetId : psoDefinitions.keySet()) {
+            // ldap attribute names are case insensitive
+            Map<String, Map<String, List<Pso>>> targetIndex =
+                    new TreeMap<String, Map<String, List<Pso>>>(String.CASE_INSENSITIVE_ORDER);
+            for (Pso psoDefinition : psoDefinitions.get(targetId)) {
+                PsoIdentifyingAttribute ia = psoDefinition.getPsoIdentifyingAttribute();
+                if (ia == null) {
+                    continue;
+                }
+                Map<String, List<Pso>> values = targetIndex.get(ia.getName());
+                if (values == null) {
+                    values = new HashMap<String, List<Pso>>();
+                    targetIndex.put(ia.getName(), values);
+                }
+                String value = ia.getValue().toLowerCase();
+                if (!values.containsKey(value)) {
+                    values.put(value, new ArrayList<Pso>(1));
+                }
+                values.get(value).add(psoDefinition);
+            }
+            index.put(targetId, Collections.unmodifiableMap(targetIndex));
+        }
+
+        return Collections.unmodifiableMap(index);
+    }
+
     /**
      * {@inheritDoc}
      * 
@@ -2164,6 +2868,7 @@ public class Psp extends BaseSpmlProvider implements SpmlProvider {
     protected void onNewContextCreated(ApplicationContext newServiceContext) throws ServiceException {
 
         Map<String, List<Pso>> oldPsoDefinitions = objects;
+        Map<String, Map<String, Map<String, List<Pso>>>> oldIdentifyingAttributeIndex = identifyingAttributeIndex;
         Map<String, SpmlTarget> oldTargets = targets;
 
         try {
@@ -2178,6 +2883,7 @@ public class Psp extends BaseSpmlProvider implements SpmlProvider {
                 }
                 objects.get(targetId).add(psoDefinition);
             }
+            identifyingAttributeIndex = buildIdentifyingAttributeIndex(objects);
             targets = new LinkedHashMap<String, SpmlTarget>(objects.keySet().size());
             for (String targetId : objects.keySet()) {
                 Object target = newServiceContext.getBean(targetId, SpmlTarget.class);
@@ -2186,6 +2892,7 @@ public class Psp extends BaseSpmlProvider implements SpmlProvider {
             }
         } catch (Exception e) {
             objects = oldPsoDefinitions;
+            identifyingAttributeIndex = oldIdentifyingAttributeIndex;
             targets = oldTargets;
             LOG.error("PSP '" + getId() + "' - Configuration is not valid, retaining old configuration", e);
             throw new ServiceException("PSP '" + getId()
@@ -2380,6 +3087,116 @@ public class Psp extends BaseSpmlProvider implements SpmlProvider {
         return unbundledModifyRequests;
     }
 
+    /**
+     * Add or delete the empty value of the reference attributes of a {@link ModifyRequest} which was not calculated by
+     * a diff, such as a modification of memberships, so that a target which requires a reference attribute to have a
+     * value, such as an OpenLDAP groupOfNames, does not reject the request. The empty value of a type of reference,
+     * see {@link PsoReferences#getEmptyValue()}, is added before the modifications if they delete every value of the
+     * attribute, and is deleted after the modifications if they add a value to an attribute which has the empty value.
+     * 
+     * The values of the attribute are counted if references are deleted, see
+     * {@link #countReferences(PSOIdentifier, String)}, and the empty value is compared if references are added, see
+     * {@link #hasReference(PSOIdentifier, Reference)}.
+     * 
+     * @param modifyRequest the modify request
+     * @return true if the modify request was changed
+     * @throws PspException if an error occurs
+     */
+    public boolean updateEmptyReferences(ModifyRequest modifyRequest) throws PspException {
+
+        PSOIdentifier psoID = modifyRequest.getPsoID();
+        String entityName = modifyRequest.findOpenContentAttrValueByName(Pso.ENTITY_NAME_ATTRIBUTE);
+        if (entityName == null) {
+            return false;
+        }
+
+        Pso psoDefinition = getPso(psoID.getTargetID(), entityName);
+        if (psoDefinition == null) {
+            return false;
+        }
+
+        // the number of references added and deleted of each type of reference with an empty value
+        Map<String, int[]> counts = new LinkedHashMap<String, int[]>();
+        for (Modification modification : modifyRequest.getModifications()) {
+            Map<String, List<Reference>> references = PSPUtil.getReferences(modification.getCapabilityData());
+            for (String typeOfReference : references.keySet()) {
+                PsoReferences refsDef = psoDefinition.getReferences(typeOfReference);
+                if (refsDef == null || refsDef.getEmptyValue() == null) {
+                    continue;
+                }
+                int[] count = counts.get(typeOfReference);
+                if (count == null) {
+                    count = new int[2];
+                    counts.put(typeOfReference, count);
+                }
+                for (Reference reference : references.get(typeOfReference)) {
+                    if (refsDef.getEmptyValue().equals(reference.getToPsoID().getID())) {
+                        continue;
+                    }
+                    if (modification.getModificationMode().equals(ModificationMode.ADD)) {
+                        count[0]++;
+                    } else if (modification.getModificationMode().equals(ModificationMode.DELETE)) {
+                        count[1]++;
+                    }
+                }
+            }
+        }
+
+        List<Reference> emptyReferencesToAdd = new ArrayList<Reference>();
+        List<Reference> emptyReferencesToDelete = new ArrayList<Reference>();
+        try {
+            for (String typeOfReference : counts.keySet()) {
+                int added = counts.get(typeOfReference)[0];
+                int deleted = counts.get(typeOfReference)[1];
+
+                Reference emptyReference = new Reference();
+                emptyReference.setToPsoID(new PSOIdentifier(psoDefinition.getReferences(typeOfReference)
+                        .getEmptyValue(), null, psoID.getTargetID()));
+                emptyReference.setTypeOfReference(typeOfReference);
+
+                if (added == 0 && deleted > 0 && countReferences(psoID, typeOfReference) <= deleted) {
+                    emptyReferencesToAdd.add(emptyReference);
+                } else if (added > 0 && deleted == 0 && hasReference(psoID, emptyReference)) {
+                    emptyReferencesToDelete.add(emptyReference);
+                }
+            }
+        } catch (PspNoSuchIdentifierException e) {
+            // the modify request will fail
+            return false;
+        }
+
+        if (emptyReferencesToAdd.isEmpty() && emptyReferencesToDelete.isEmpty()) {
+            return false;
+        }
+
+        try {
+            Modification[] originalModifications = modifyRequest.getModifications();
+            modifyRequest.clearModifications();
+            if (!emptyReferencesToAdd.isEmpty()) {
+                Modification modification = new Modification();
+                modification.addCapabilityData(PSPUtil.fromReferences(emptyReferencesToAdd));
+                modification.setModificationMode(ModificationMode.ADD);
+                modifyRequest.addModification(modification);
+            }
+            for (Modification originalModification : originalModifications) {
+                modifyRequest.addModification(originalModification);
+            }
+            if (!emptyReferencesToDelete.isEmpty()) {
+                Modification modification = new Modification();
+                modification.addCapabilityData(PSPUtil.fromReferences(emptyReferencesToDelete));
+                modification.setModificationMode(ModificationMode.DELETE);
+                modifyRequest.addModification(modification);
+            }
+        } catch (Spml2Exception e) {
+            throw new PspException(e);
+        }
+
+        LOG.debug("Psp '{}' - Added empty references {} and deleted empty references {} '{}'", new Object[] {getId(),
+                emptyReferencesToAdd, emptyReferencesToDelete, PSPUtil.toString(modifyRequest),});
+
+        return true;
+    }
+
     /**
      * {@inheritDoc}
      * 
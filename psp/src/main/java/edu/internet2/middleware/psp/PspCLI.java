@@ -19,6 +19,7 @@ package edu.internet2.middleware.psp;
 
 import java.io.BufferedWriter;
 import java.io.FileWriter;
+import java.io.Flushable;
 import java.io.IOException;
 import java.io.OutputStreamWriter;
 import java.text.MessageFormat;
@@ -41,6 +42,8 @@ import org.openspml.v2.msg.spml.Response;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import edu.internet2.middleware.psp.spml.provider.SpmlTarget;
+
 /**
  * Execute requests to a psp from the command line.
  */
@@ -142,6 +145,17 @@ public class PspCLI extends TimerTask {
 
             writer.flush();
 
+            // targets which buffer their writes, such as ldif targets, write them at the end of every run
+            for (SpmlTarget target : psp.getTargets()) {
+                if (target instanceof Flushable) {
+                    try {
+                        ((Flushable) target).flush();
+                    } catch (IOException e) {
+                        LOG.error("Unable to flush target '" + target.getClass().getName() + "'", e);
+                    }
+                }
+            }
+
             sw.stop();
             LOG.info("End of {} execution : {} ms", PspOptions.NAME, sw.getTime());
 
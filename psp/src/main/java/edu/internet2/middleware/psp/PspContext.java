@@ -19,8 +19,14 @@ package edu.internet2.middleware.psp;
 
 import java.util.Map;
 
+import org.openspml.v2.msg.spml.AddRequest;
+import org.openspml.v2.msg.spml.AddResponse;
+import org.openspml.v2.msg.spml.PSO;
+import org.openspml.v2.msg.spml.PSOIdentifier;
+
 import edu.internet2.middleware.psp.spml.request.CalcRequest;
 import edu.internet2.middleware.psp.spml.request.CalcResponse;
+import edu.internet2.middleware.psp.spml.request.DiffResponse;
 import edu.internet2.middleware.psp.spml.request.ProvisioningRequest;
 import edu.internet2.middleware.shibboleth.common.attribute.BaseAttribute;
 
@@ -39,6 +45,27 @@ public class PspContext {
     /** The map of calc requests and responses. */
     private Map<CalcRequest, CalcResponse> calcRequestMap;
 
+    /** The map of identifiers to provisioned objects as they currently exist on a target. */
+    private Map<PSOIdentifier, PSO> currentPsoMap;
+
+    /** Whether or not the objects returned in add and modify responses will be discarded. */
+    private boolean omitResponsePsos;
+
+    /** The map of identifiers to the diff responses of sync requests which were diffed in advance. */
+    private Map<String, DiffResponse> diffResponseMap;
+
+    /** The map of add requests to the responses of add requests which were executed in a batch. */
+    private Map<AddRequest, AddResponse> addResponseMap;
+
+    /**
+     * Gets the map of add requests to the responses of add requests which were executed in a batch.
+     * 
+     * @return the map of add requests to add responses, or null
+     */
+    public Map<AddRequest, AddResponse> getAddResponseMap() {
+        return addResponseMap;
+    }
+
     /**
      * Gets the attributes returned from the attribute authority.
      * 
@@ -57,6 +84,25 @@ public class PspContext {
         return calcRequestMap;
     }
 
+    /**
+     * Gets the map of identifiers to provisioned objects as they currently exist on a target, used to build modify
+     * responses without looking up modified objects.
+     * 
+     * @return the map of identifiers to provisioned objects, or null
+     */
+    public Map<PSOIdentifier, PSO> getCurrentPsoMap() {
+        return currentPsoMap;
+    }
+
+    /**
+     * Gets the map of identifiers to the diff responses of sync requests which were diffed in advance.
+     * 
+     * @return the map of identifiers to diff responses, or null
+     */
+    public Map<String, DiffResponse> getDiffResponseMap() {
+        return diffResponseMap;
+    }
+
     /**
      * Gets the provisioning request.
      * 
@@ -75,6 +121,25 @@ public class PspContext {
         return provisioningServiceProvider;
     }
 
+    /**
+     * Whether or not the objects returned in add and modify responses will be discarded, in which case targets need
+     * only return identifiers.
+     * 
+     * @return whether or not the objects returned in add and modify responses will be discarded
+     */
+    public boolean isOmitResponsePsos() {
+        return omitResponsePsos;
+    }
+
+    /**
+     * Sets the map of add requests to the responses of add requests which were executed in a batch.
+     * 
+     * @param addResponseMap the map of add requests to add responses
+     */
+    public void setAddResponseMap(Map<AddRequest, AddResponse> addResponseMap) {
+        this.addResponseMap = addResponseMap;
+    }
+
     /**
      * Sets the attributes returned from the attribute authority.
      * 
@@ -93,6 +158,33 @@ public class PspContext {
         this.calcRequestMap = calcRequestMap;
     }
 
+    /**
+     * Sets the map of identifiers to provisioned objects as they currently exist on a target.
+     * 
+     * @param currentPsoMap the map of identifiers to provisioned objects
+     */
+    public void setCurrentPsoMap(Map<PSOIdentifier, PSO> currentPsoMap) {
+        this.currentPsoMap = currentPsoMap;
+    }
+
+    /**
+     * Sets the map of identifiers to the diff responses of sync requests which were diffed in advance.
+     * 
+     * @param diffResponseMap the map of identifiers to diff responses
+     */
+    public void setDiffResponseMap(Map<String, DiffResponse> diffResponseMap) {
+        this.diffResponseMap = diffResponseMap;
+    }
+
+    /**
+     * Sets whether or not the objects returned in add and modify responses will be discarded.
+     * 
+     * @param omitResponsePsos whether or not the objects returned in add and modify responses will be discarded
+     */
+    public void setOmitResponsePsos(boolean omitResponsePsos) {
+        this.omitResponsePsos = omitResponsePsos;
+    }
+
     /**
      * Sets the provisioning request.
      * 
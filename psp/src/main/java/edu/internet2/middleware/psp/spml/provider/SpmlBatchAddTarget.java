@@ -0,0 +1,40 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package edu.internet2.middleware.psp.spml.provider;
+
+import java.util.List;
+
+import org.openspml.v2.msg.spml.AddRequest;
+import org.openspml.v2.msg.spml.AddResponse;
+
+/**
+ * A Provisioning Service Target which can add many objects together, for example in one transaction, more efficiently
+ * than one at a time.
+ */
+public interface SpmlBatchAddTarget extends SpmlTarget {
+
+    /**
+     * Execute add requests together. The requests may be executed in any order which adds parents before their
+     * children. A failed request does not prevent the other requests from being executed.
+     * 
+     * @param addRequests the add requests
+     * @return the add responses, in the order of the add requests
+     */
+    public List<AddResponse> execute(List<AddRequest> addRequests);
+}
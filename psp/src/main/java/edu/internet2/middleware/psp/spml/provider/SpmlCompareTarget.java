@@ -0,0 +1,73 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.psp.spml.provider;
+
+import java.util.Collection;
+import java.util.Set;
+
+import org.openspml.v2.msg.spml.PSOIdentifier;
+
+import edu.internet2.middleware.psp.PspException;
+import edu.internet2.middleware.psp.PspNoSuchIdentifierException;
+
+/**
+ * A Provisioning Service Target which can test whether an object has attribute or reference values directly, rather
+ * than via a search request.
+ * 
+ * The name of an attribute or reference is the name of the attribute or type of reference as configured. The value of
+ * a reference is the ID of the referenced object.
+ */
+public interface SpmlCompareTarget extends SpmlTarget {
+
+    /**
+     * Returns the number of values of the attribute or reference which the object has, reading the object once.
+     * 
+     * @param psoID the identifier of the object
+     * @param name the name of the attribute or type of reference
+     * @return the number of values, zero if the object does not have the attribute
+     * @throws PspNoSuchIdentifierException if the object does not exist
+     * @throws PspException if an error occurs
+     */
+    public int countValues(PSOIdentifier psoID, String name) throws PspNoSuchIdentifierException, PspException;
+
+    /**
+     * Whether or not the object has the given attribute or reference value.
+     * 
+     * @param psoID the identifier of the object
+     * @param name the name of the attribute or type of reference
+     * @param value the value
+     * @return true if the object has the value
+     * @throws PspNoSuchIdentifierException if the object does not exist
+     * @throws PspException if an error occurs
+     */
+    public boolean hasValue(PSOIdentifier psoID, String name, String value) throws PspNoSuchIdentifierException,
+            PspException;
+
+    /**
+     * Returns those of the given attribute or reference values which the object has, reading the object once.
+     * 
+     * @param psoID the identifier of the object
+     * @param name the name of the attribute or type of reference
+     * @param values the values
+     * @return the given values which the object has
+     * @throws PspNoSuchIdentifierException if the object does not exist
+     * @throws PspException if an error occurs
+     */
+    public Set<String> findValues(PSOIdentifier psoID, String name, Collection<String> values)
+            throws PspNoSuchIdentifierException, PspException;
+}
@@ -0,0 +1,212 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.psp;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+import junit.textui.TestRunner;
+
+import org.openspml.v2.msg.spml.Modification;
+import org.openspml.v2.msg.spml.ModificationMode;
+import org.openspml.v2.msg.spml.ModifyRequest;
+import org.openspml.v2.msg.spml.PSOIdentifier;
+import org.openspml.v2.msg.spmlref.Reference;
+
+import edu.internet2.middleware.psp.spml.config.Pso;
+import edu.internet2.middleware.psp.spml.config.PsoReferences;
+import edu.internet2.middleware.psp.util.PSPUtil;
+
+/**
+ * Tests adding the empty value of a reference attribute before a modify which deletes its last value, and deleting the
+ * empty value after a modify which adds a value.
+ */
+public class PspEmptyReferencesTest extends TestCase {
+
+  public static void main(String[] args) {
+    TestRunner.run(PspEmptyReferencesTest.class);
+  }
+
+  public PspEmptyReferencesTest(String name) {
+    super(name);
+  }
+
+  private static final String DN = "cn=group,ou=groups,dc=edu";
+
+  private static final String EMPTY_VALUE = "cn=empty";
+
+  /** Whether or not the object exists. */
+  private boolean exists;
+
+  /** The number of members of the object. */
+  private int members;
+
+  /** Whether or not the object has the empty value. */
+  private boolean hasEmptyValue;
+
+  /** The number of queries of the object. */
+  private int queries;
+
+  /** The psp, whose group definition has a member reference attribute with an empty value. */
+  private Psp psp;
+
+  /** {@inheritDoc} */
+  protected void setUp() {
+    exists = true;
+    members = 0;
+    hasEmptyValue = false;
+    queries = 0;
+
+    PsoReferences refsDef = new PsoReferences();
+    refsDef.setName("member");
+    refsDef.setEmptyValue(EMPTY_VALUE);
+
+    final Pso psoDefinition = new Pso();
+    psoDefinition.setId("group");
+    psoDefinition.setPsoReferences(Arrays.asList(new PsoReferences[] {refsDef}));
+
+    psp = new Psp() {
+
+      public Pso getPso(String targetId, String objectId) {
+        return psoDefinition.getId().equals(objectId) ? psoDefinition : null;
+      }
+
+      public int countReferences(PSOIdentifier psoID, String typeOfReference) throws PspNoSuchIdentifierException {
+        queries++;
+        if (!exists) {
+          throw new PspNoSuchIdentifierException("Unable to find '" + psoID.getID() + "'");
+        }
+        return members + (hasEmptyValue ? 1 : 0);
+      }
+
+      public boolean hasReference(PSOIdentifier psoID, Reference reference) throws PspNoSuchIdentifierException {
+        queries++;
+        if (!exists) {
+          throw new PspNoSuchIdentifierException("Unable to find '" + psoID.getID() + "'");
+        }
+        return hasEmptyValue && reference.getToPsoID().getID().equals(EMPTY_VALUE);
+      }
+    };
+  }
+
+  private static ModifyRequest modifyMembers(String entityName, ModificationMode modificationMode,
+      String... members) throws Exception {
+    List<Reference> references = new ArrayList<Reference>();
+    for (String value : members) {
+      Reference reference = new Reference();
+      reference.setToPsoID(new PSOIdentifier(value, null, "ldap"));
+      reference.setTypeOfReference("member");
+      references.add(reference);
+    }
+
+    Modification modification = new Modification();
+    modification.addCapabilityData(PSPUtil.fromReferences(references));
+    modification.setModificationMode(modificationMode);
+
+    ModifyRequest modifyRequest = new ModifyRequest();
+    modifyRequest.setPsoID(new PSOIdentifier(DN, null, "ldap"));
+    modifyRequest.addOpenContentAttr(Pso.ENTITY_NAME_ATTRIBUTE, entityName);
+    modifyRequest.addModification(modification);
+    return modifyRequest;
+  }
+
+  private static String emptyValueOf(Modification modification) throws Exception {
+    Map<String, List<Reference>> references = PSPUtil.getReferences(modification.getCapabilityData());
+    assertEquals(1, references.get("member").size());
+    return references.get("member").get(0).getToPsoID().getID();
+  }
+
+  public void testDeleteLastMembers() throws Exception {
+
+    members = 2;
+    ModifyRequest modifyRequest = modifyMembers("group", ModificationMode.DELETE, "cn=a", "cn=b");
+
+    assertTrue(psp.updateEmptyReferences(modifyRequest));
+
+    Modification[] modifications = modifyRequest.getModifications();
+    assertEquals(2, modifications.length);
+    assertEquals(ModificationMode.ADD, modifications[0].getModificationMode());
+    assertEquals(EMPTY_VALUE, emptyValueOf(modifications[0]));
+    assertEquals(ModificationMode.DELETE, modifications[1].getModificationMode());
+  }
+
+  public void testDeleteSomeMembers() throws Exception {
+
+    members = 2;
+    ModifyRequest modifyRequest = modifyMembers("group", ModificationMode.DELETE, "cn=a");
+
+    assertFalse(psp.updateEmptyReferences(modifyRequest));
+    assertEquals(1, modifyRequest.getModifications().length);
+  }
+
+  public void testDeleteLastMemberWithEmptyValue() throws Exception {
+
+    // the attribute keeps the empty value
+    members = 1;
+    hasEmptyValue = true;
+    ModifyRequest modifyRequest = modifyMembers("group", ModificationMode.DELETE, "cn=a");
+
+    assertFalse(psp.updateEmptyReferences(modifyRequest));
+    assertEquals(1, modifyRequest.getModifications().length);
+  }
+
+  public void testAddMemberDeletesEmptyValue() throws Exception {
+
+    hasEmptyValue = true;
+    ModifyRequest modifyRequest = modifyMembers("group", ModificationMode.ADD, "cn=a");
+
+    assertTrue(psp.updateEmptyReferences(modifyRequest));
+
+    Modification[] modifications = modifyRequest.getModifications();
+    assertEquals(2, modifications.length);
+    assertEquals(ModificationMode.ADD, modifications[0].getModificationMode());
+    assertEquals(ModificationMode.DELETE, modifications[1].getModificationMode());
+    assertEquals(EMPTY_VALUE, emptyValueOf(modifications[1]));
+  }
+
+  public void testAddMemberWithoutEmptyValue() throws Exception {
+
+    members = 1;
+    ModifyRequest modifyRequest = modifyMembers("group", ModificationMode.ADD, "cn=b");
+
+    assertFalse(psp.updateEmptyReferences(modifyRequest));
+    assertEquals(1, modifyRequest.getModifications().length);
+  }
+
+  public void testNoEmptyValueConfigured() throws Exception {
+
+    members = 1;
+    ModifyRequest modifyRequest = modifyMembers("other", ModificationMode.DELETE, "cn=a");
+
+    assertFalse(psp.updateEmptyReferences(modifyRequest));
+    assertEquals(1, modifyRequest.getModifications().length);
+    assertEquals(0, queries);
+  }
+
+  public void testMissingObject() throws Exception {
+
+    exists = false;
+    ModifyRequest modifyRequest = modifyMembers("group", ModificationMode.DELETE, "cn=a");
+
+    assertFalse(psp.updateEmptyReferences(modifyRequest));
+    assertEquals(1, modifyRequest.getModifications().length);
+  }
+}